@@ -0,0 +1,83 @@
+/*
+ * Copyright (C) 2010 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.email.mail.store.imap;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import android.test.suitebuilder.annotation.SmallTest;
+
+import junit.framework.TestCase;
+
+/**
+ * Tests of {@link ImapUidSet}.
+ */
+@SmallTest
+public class ImapUidSetTest extends TestCase {
+    private static final int NO_LIMIT = Integer.MAX_VALUE;
+
+    public void testConsecutiveUidsAreCollapsedIntoRanges() {
+        assertEquals(Arrays.asList("1:4,6,8:9"),
+                ImapUidSet.build(Arrays.asList("1", "2", "3", "4", "6", "8", "9"), NO_LIMIT));
+    }
+
+    public void testSingleUid() {
+        assertEquals(Arrays.asList("42"), ImapUidSet.build(Arrays.asList("42"), NO_LIMIT));
+    }
+
+    public void testUnsortedUidsAreSorted() {
+        assertEquals(Arrays.asList("1:3,10"),
+                ImapUidSet.build(Arrays.asList("10", "3", "1", "2"), NO_LIMIT));
+    }
+
+    public void testDuplicatedUidsAreDropped() {
+        assertEquals(Arrays.asList("1:2,5"),
+                ImapUidSet.build(Arrays.asList("2", "1", "2", "5", "5", "1"), NO_LIMIT));
+    }
+
+    public void testNonNumericUidsAreAppended() {
+        assertEquals(Arrays.asList("1:2,abc"),
+                ImapUidSet.build(Arrays.asList("abc", "2", "1"), NO_LIMIT));
+    }
+
+    public void testEmptySet() {
+        assertTrue(ImapUidSet.build(Collections.<String>emptyList(), NO_LIMIT).isEmpty());
+    }
+
+    public void testLongSetIsSplit() {
+        List<String> uids = new ArrayList<String>();
+        for (int uid = 1; uid <= 20; uid += 2) {
+            uids.add(Integer.toString(uid));
+        }
+
+        List<String> sets = ImapUidSet.build(uids, 10);
+
+        assertEquals(Arrays.asList("1,3,5,7,9", "11,13,15", "17,19"), sets);
+    }
+
+    public void testRangeLongerThanLimitIsKeptWhole() {
+        List<String> uids = new ArrayList<String>();
+        for (int uid = 1000; uid <= 2000; uid++) {
+            uids.add(Integer.toString(uid));
+        }
+        uids.add("3000");
+
+        assertEquals(Arrays.asList("1000:2000", "3000"), ImapUidSet.build(uids, 4));
+    }
+}
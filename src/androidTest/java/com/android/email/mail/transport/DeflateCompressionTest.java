@@ -0,0 +1,136 @@
+/*
+ * Copyright (C) 2010 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.email.mail.transport;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+import android.test.suitebuilder.annotation.SmallTest;
+
+import junit.framework.TestCase;
+
+/**
+ * Tests of {@link DeflateCompression}.
+ */
+@SmallTest
+public class DeflateCompressionTest extends TestCase {
+    private static final byte[] LINE = "1 OK FETCH completed\r\n".getBytes();
+
+    public void testRoundTrip() throws IOException {
+        DeflateCompression sender = new DeflateCompression();
+        DeflateCompression receiver = new DeflateCompression();
+        ByteArrayOutputStream wire = new ByteArrayOutputStream();
+
+        OutputStream out = sender.wrap(wire);
+        out.write(LINE);
+        out.flush();
+        InputStream in = receiver.wrap(new ByteArrayInputStream(wire.toByteArray()));
+        byte[] read = new byte[LINE.length];
+        int count = 0;
+        while (count < read.length) {
+            count += in.read(read, count, read.length - count);
+        }
+
+        assertEquals(new String(LINE), new String(read));
+        sender.end();
+        receiver.end();
+    }
+
+    public void testEachFlushedCommandDecodesOnItsOwn() throws IOException {
+        String[] commands = {
+                "1 NOOP\r\n",
+                "2 UID FETCH 1:* (FLAGS)\r\n",
+                "3 UID STORE 4 +FLAGS (\\Seen)\r\n",
+                "4 IDLE\r\n"
+        };
+        DeflateCompression sender = new DeflateCompression();
+        DeflateCompression receiver = new DeflateCompression();
+        ByteArrayOutputStream wire = new ByteArrayOutputStream();
+        OutputStream out = sender.wrap(wire);
+        // Only provides the bytes sent so far: the receiver fails if a command is held back.
+        WireInputStream received = new WireInputStream();
+        InputStream in = receiver.wrap(received);
+
+        for (String command : commands) {
+            out.write(command.getBytes());
+            out.flush();
+            received.append(wire.toByteArray());
+            wire.reset();
+
+            byte[] read = new byte[command.length()];
+            int count = 0;
+            while (count < read.length) {
+                count += in.read(read, count, read.length - count);
+            }
+            assertEquals(command, new String(read));
+        }
+        sender.end();
+        receiver.end();
+    }
+
+    public void testStreamsFailOnceEnded() {
+        DeflateCompression compression = new DeflateCompression();
+        InputStream in = compression.wrap(new ByteArrayInputStream(new byte[16]));
+        OutputStream out = compression.wrap(new ByteArrayOutputStream());
+        compression.end();
+
+        try {
+            in.read();
+            fail("Read after end()");
+        } catch (IOException expected) {
+        }
+        try {
+            out.write(LINE);
+            out.flush();
+            fail("Write after end()");
+        } catch (IOException expected) {
+        }
+    }
+
+    /**
+     * Stream of the bytes appended so far, ending where they do.
+     */
+    private static class WireInputStream extends InputStream {
+        private final ByteArrayOutputStream mBytes = new ByteArrayOutputStream();
+        private int mPosition;
+
+        public void append(byte[] bytes) {
+            mBytes.write(bytes, 0, bytes.length);
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] b = new byte[1];
+            return (read(b, 0, 1) == -1) ? -1 : (b[0] & 0xff);
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            byte[] bytes = mBytes.toByteArray();
+            if (mPosition == bytes.length) {
+                return -1;
+            }
+            int count = Math.min(len, bytes.length - mPosition);
+            System.arraycopy(bytes, mPosition, b, off, count);
+            mPosition += count;
+            return count;
+        }
+    }
+}
@@ -0,0 +1,142 @@
+/*
+ * Copyright (C) 2010 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.email.mail.transport;
+
+import java.util.Arrays;
+
+import android.test.suitebuilder.annotation.SmallTest;
+
+import junit.framework.TestCase;
+
+/**
+ * Tests of {@link DiscourseLogger}.
+ */
+@SmallTest
+public class DiscourseLoggerTest extends TestCase {
+    private static void addReceived(DiscourseLogger logger, String received) {
+        byte[] bytes = received.getBytes();
+        logger.addReceivedBytes(bytes, 0, bytes.length);
+    }
+
+    private static void assertLines(DiscourseLogger logger, String... expected) {
+        assertEquals(Arrays.asList(expected), Arrays.asList(logger.getLines()));
+    }
+
+    private static String repeat(char c, int count) {
+        char[] chars = new char[count];
+        Arrays.fill(chars, c);
+        return new String(chars);
+    }
+
+    public void testEmpty() {
+        assertLines(new DiscourseLogger(4));
+    }
+
+    public void testSentAndReceivedLines() {
+        DiscourseLogger logger = new DiscourseLogger(4);
+
+        logger.addSentCommand("1 NOOP");
+        addReceived(logger, "* 3 EXISTS\r\n1 OK NOOP completed\r\n");
+
+        assertLines(logger, "1 NOOP", "* 3 EXISTS", "1 OK NOOP completed");
+    }
+
+    public void testLineBeingReceivedIsIncluded() {
+        DiscourseLogger logger = new DiscourseLogger(4);
+
+        addReceived(logger, "* OK IMAP4rev1 ready\r\n* BYE");
+
+        assertLines(logger, "* OK IMAP4rev1 ready", "* BYE");
+    }
+
+    public void testWrapAround() {
+        DiscourseLogger logger = new DiscourseLogger(3);
+
+        for (int i = 1; i <= 5; i++) {
+            logger.addSentCommand(i + " NOOP");
+        }
+        assertLines(logger, "3 NOOP", "4 NOOP", "5 NOOP");
+
+        // Received lines take the place of the oldest ones as well.
+        addReceived(logger, "* 1 EXISTS\r\n* 2 EXISTS\r\n");
+        assertLines(logger, "5 NOOP", "* 1 EXISTS", "* 2 EXISTS");
+    }
+
+    public void testLongSentLineIsTruncated() {
+        DiscourseLogger logger = new DiscourseLogger(4);
+        String kept = repeat('a', DiscourseLogger.MAX_LINE_LENGTH);
+
+        logger.addSentCommand(kept + repeat('b', 44));
+
+        assertLines(logger, kept + "... (44 more bytes)");
+    }
+
+    public void testLongReceivedLineIsTruncated() {
+        DiscourseLogger logger = new DiscourseLogger(4);
+        String kept = repeat('a', DiscourseLogger.MAX_LINE_LENGTH);
+
+        addReceived(logger, kept + repeat('b', 10) + "\r\n* OK\r\n");
+
+        assertLines(logger, kept + "... (10 more bytes)", "* OK");
+    }
+
+    public void testLineOfExactlyMaxLengthIsNotTruncated() {
+        DiscourseLogger logger = new DiscourseLogger(4);
+        String line = repeat('a', DiscourseLogger.MAX_LINE_LENGTH);
+
+        logger.addSentCommand(line);
+
+        assertLines(logger, line);
+    }
+
+    public void testLiteralIsReplacedByItsLength() {
+        DiscourseLogger logger = new DiscourseLogger(4);
+
+        addReceived(logger, "* 1 FETCH (UID 7 BODY[] {1234}\r\n");
+        logger.addReceivedLiteral(1234);
+        addReceived(logger, " FLAGS (\\Seen))\r\n");
+        addReceived(logger, "* 2 FETCH (BODY[] {0}\r\n");
+        logger.addReceivedLiteral(0);
+        addReceived(logger, ")\r\n");
+
+        assertLines(logger, "* 1 FETCH (UID 7 BODY[] {1234}", "<1234 bytes> FLAGS (\\Seen))",
+                "* 2 FETCH (BODY[] {0}", "<0 bytes>)");
+    }
+
+    public void testNonPrintableBytesAreEscaped() {
+        DiscourseLogger logger = new DiscourseLogger(4);
+        byte[] bytes = { 'a', 0x01, (byte) 0xff, 'b', '\n' };
+
+        logger.addReceivedBytes(bytes, 0, bytes.length);
+
+        assertLines(logger, "a\\x01\\xffb");
+    }
+
+    public void testLogLastDiscourseClearsTheLines() {
+        DiscourseLogger logger = new DiscourseLogger(3);
+        for (int i = 1; i <= 4; i++) {
+            logger.addSentCommand(i + " NOOP");
+        }
+        addReceived(logger, "* pending");
+
+        logger.logLastDiscourse();
+        assertLines(logger);
+
+        logger.addSentCommand("5 NOOP");
+        assertLines(logger, "5 NOOP");
+    }
+}
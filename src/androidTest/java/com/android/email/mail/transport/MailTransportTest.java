@@ -0,0 +1,193 @@
+/*
+ * Copyright (C) 2010 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.email.mail.transport;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.URI;
+import java.security.KeyStore;
+
+import javax.net.ssl.KeyManagerFactory;
+import javax.net.ssl.SSLContext;
+
+import android.test.suitebuilder.annotation.MediumTest;
+import android.util.Base64;
+
+import com.android.email.mail.Transport;
+
+import junit.framework.TestCase;
+
+/**
+ * Runs {@link MailTransport} connections over TLS against a loopback server.
+ */
+@MediumTest
+public class MailTransportTest extends TestCase {
+    /** Self-signed certificate of the TLS test server, in a PKCS#12 key store. */
+    private static final String KEYSTORE =
+            "MIIJZwIBAzCCCSAGCSqGSIb3DQEHAaCCCREEggkNMIIJCTCCBWUGCSqGSIb3DQEHAaCCBVYEggVSMIIFTjCCBUoGCyqGSIb3"
+            + "DQEMCgECoIIE+zCCBPcwKQYKKoZIhvcNAQwBAzAbBBSApZyo7GOOn3vVASy+C2z1yMXq/QIDAMNQBIIEyN+CNPvcAwUJUkO3"
+            + "7uq3ZG3iHBjHAKLVUYU4MgJ59aDsfXudqWpiGCKvSA2opHIyvcmeXSTYJqdGb/B/tV/u7zq61x1+xdazOIS46V3mukK/QjcS"
+            + "LIrjgdRIWACW/wsjoPgdmrBX9mS6W3H/U7F/N8GU5SONEbNDPUbICFKIzUmMePZ6yX8AEJTD1BeD0hx4Wa7dOLjOM1vqfmkW"
+            + "k0TiK7h+L8Ge5AcRFs5dySO9us+NHruZWtlUfBYmsMkT4ZHEHfcKflipn+6uQohGEShVJgwnDif+4cx+lBL1MZSc3FfRk2Nf"
+            + "8HaQ+cCyoRAOEpeigghfmRCVX1C1q54fgYmlgm26UzYWLPCm0Sq6pHSc5V7u8804+NBuXfuKNro1panc1iPbHReFkPX+6ylo"
+            + "x76/5Wz8oH/rD0Qw1irJ97FnU3GyjTefb/s4ngsPlSHn4mXvDQwXVp8xu9JTs1o0tt+6Br5Jg3TGzDoievBeRpV1v5nNkz+A"
+            + "I9zM18ZGFt2T2S5dKWhI9I5Wd/PjykWKBOktxSfRC+6DXJ0sYa5CpWfIF67cFa8wo8O5lo9/E+5dZm20e6xejCblPKgvjlZ7"
+            + "OVWupUkfy9FNOLTnUt8KIEPleJ0HbzswjUXKQPHujD+FcejH1fILGBDeb44aySTi38a1diGDouJAvC2/iic+2YXqQuZq/cn0"
+            + "Au+cchpl6kpFv9RPmxWvKFpfh/zHr56ncTr+DJ+HItTEKWHG6T4mpJs7b4tQv0d8lf+eZ94qN1xfRaiADnqmWVxFy3Gs+yGt"
+            + "1vpG7DwljDVkWSJEZA5UeYCZm6s36LQjKGmqe/OUBykeDSM493rSjv7NZs3NOTEe3GijmUO+8c1h4y+rqWJCocAYKua+j+fV"
+            + "wvNiVc9thT/7X9HnqqGqmrHtToq1vn0NwxHWTJ3O9zRJco/Ai8p2KWYH+FHbl8tcmhsnBM0mmyFiISEA2ycXIta7fzR1+L6U"
+            + "/ZlreQ6eHJItkqpuwtOBsR7xfoVtga6Mvbd0x6cZQ2yAGQsrd8xwtTLKLT3Ip/PmkIam+ejmExyTXVPHPqz8N06tUE1MU/Mx"
+            + "b/CFcfaMmUr0RsLqZ0w9QLr855nI3x97TqqqwnJWmBmw7FxhQAhVMxgYA2Dcfi+gMxtIfdMok97T2R/sWzE+tLCQm9uRzYhd"
+            + "S51HGBW3i3jDB6/TFi1+qjU3dOTxYGyOUffRn1YsHou/H5YR1audc4nh2DT05b9iD6qr/AnOiE1u5QrvqEYzrqW9yVORIgTG"
+            + "otCr0HQnUiEvdl1Avy/AARBWqzVv14wc7O9pL4VoNBglWCVBVvx0XgPm+Cr1LwMFDzsY61rNMH/0qAWCi/7EIKsl8wRinhSx"
+            + "aUBIjaqEiGlCco6XjjuQi3+wqyMWOJBLiy7hkkSRTKKHNKsg9uDfNjhFpQXNw43vTzWFqVcdQ7HC6TcLQINHCjDdZtpFjkAE"
+            + "Do6jCpEI4LP+DmcZWBvlfHO1xK46MNI/omZsQKlFhhV5Ea5yNOXEfTXYG9ncdyZ/myzBMXUVcOtKOgB7xk7Vfv5OW6NmKD/t"
+            + "Icusr99HhCspaquvMxrsiRCmANY7ulEUvOTBrVr0qND6yNcI4+KWFpL2tXW5fMUnbI/n+RKK9nmfD0oELjE8MBcGCSqGSIb3"
+            + "DQEJFDEKHggAdABlAHMAdDAhBgkqhkiG9w0BCRUxFAQSVGltZSAxNzkyMjEyNzY4NzI5MIIDnAYJKoZIhvcNAQcGoIIDjTCC"
+            + "A4kCAQAwggOCBgkqhkiG9w0BBwEwKQYKKoZIhvcNAQwBBjAbBBTGKviQpiO8VvyA7YMF6ylp/2V3sgIDAMNQgIIDSPwVxnqJ"
+            + "nZ2gOZCefl6xJqJbE0ro/bcq6E3WpsLteD37KKmz4X237AAYimQIibPk285LKAhuyn0q+GlOGxPlv23AHFUmmdylhf4VRID4"
+            + "FJZcOSjr60qaTJIjweFxGPntIseVenfpDdXegreIBbSIIZ5cEFvyQAqELmd2RLtWSFX/45rnMQLy7HX52/9wiXy4P2/ouKTl"
+            + "L/ldpreJb/T7GsC75EKhaRjzYz379xrTpdCsJWLra4C3A3ztB5hgSfgiAI36MT2LRc/cqSp1dFjcA7dvwYugXL6mz2pWFZ7J"
+            + "RbJtIghGjXJpxZdX0LVb3JhX2Tzedl/hJgiDZChKc8cNr+fIeFGPpe5eeqxPf6UPT28fQFl36ULVQcDtaTHurhJ/lDImpqnt"
+            + "5X0YNcUIenEYX77LQakZq12QHUGM4wGce5yLshlE7pMOzeMoil1et438DEHiSFTbrI/8oXD9xjkxvNqbLT2cHgGQkajoZhj9"
+            + "fN0W9IyaX9/vJXLWDvwr4gB20MGxeVRoKvb4rpCXnl9KXt3t0QpXW+aybS0nm82PultG1nPH6JWTPdJhjAEbSaXFjuhgrk4a"
+            + "kw6tUoKbCsnnmoz3zIxAsNAMNdihpTf5N7Al3raQGk4dKUaZizuPSmuXKGk3bvUqBnITL+kH32KgPMjnkwGx6GU8r1jK0/S3"
+            + "K/SM8KpV/smCMgfTSwedhCwiAqWK8CuW+UbGDfRWMhJzzh9apis8svYMbpN7Rb0SHR6NPhPf5NCrtypgq3BveoGp3aDki4zj"
+            + "murnag2PseLQVn+4VYA8mBO6wNldllhLJOl7vizAfKuDrIKK24Vs1FAkA4XcgEpr7a4EPFCvXbdWBCBneC8AUasOW6r6UZsf"
+            + "2DV08eJUDXhxSQTQ2agCxM3afYQvSDUlTZVaL03uRZjdvqyhBCTbP/RfDbO8rNJ5GE/XCJXEdGEj66g+EuIESN8NPL9rftKG"
+            + "YZF5ENzZBPTSC9ZRef3Nl81ISLB4dkEthZ3qO26hYivkDCjwbnxW211c/bPpJmLFLBjO7hFEBq93yNhl0HKpGAcR8f+cC3Pm"
+            + "Pja7kPfFAXZLoJgtPzm4koSu/GfVUc5wSN8rjtZWkj4eXwyhvt29NoR0vjA+MCEwCQYFKw4DAhoFAAQUbF84bhfFj4Prte+P"
+            + "dxhJ6gBAtcIEFGgAhjm9h4MH4wwFlwnfUPaRrGeQAgMBhqA=";
+    private static final char[] KEYSTORE_PASSWORD = "password".toCharArray();
+
+    private static final int TIMEOUT_MS = 10000;
+
+    /** Context of the TLS servers, shared by the tests. */
+    private static SSLContext sServerSslContext;
+
+    private ServerSocket mServer;
+    private MailTransport mTransport;
+
+    @Override
+    protected void tearDown() throws Exception {
+        if (mTransport != null) {
+            mTransport.close();
+        }
+        if (mServer != null) {
+            mServer.close();
+        }
+        super.tearDown();
+    }
+
+    public void testTlsSessionIsResumed() throws Exception {
+        startEchoServer(2);
+        TlsHandshakeStats stats = MailTransport.getHandshakeStats();
+        openTransport();
+        // Also receives the session ticket of TLS 1.3, sent after the handshake.
+        assertExchange();
+        int fullCount = stats.getFullHandshakeCount();
+        int resumedCount = stats.getResumedHandshakeCount();
+
+        openTransport();
+        assertExchange();
+
+        assertEquals(fullCount, stats.getFullHandshakeCount());
+        assertEquals(resumedCount + 1, stats.getResumedHandshakeCount());
+    }
+
+    private void assertExchange() throws IOException {
+        mTransport.writeLine("1 NOOP", null);
+        assertEquals("* ECHO 1 NOOP", mTransport.readLine());
+    }
+
+    private void openTransport() throws Exception {
+        if (mTransport != null) {
+            mTransport.close();
+        }
+        int port = mServer.getLocalPort();
+        mTransport = new MailTransport("test");
+        mTransport.setUri(new URI("imap://127.0.0.1:" + port), port);
+        mTransport.setSecurity(Transport.CONNECTION_SECURITY_SSL, true);
+        mTransport.open();
+        mTransport.setSoTimeout(TIMEOUT_MS);
+    }
+
+    /**
+     * Starts a TLS server on the loopback interface accepting the given number of connections,
+     * one after the other, and echoing each line received on them.
+     */
+    private void startEchoServer(final int connections) throws Exception {
+        mServer = getServerSslContext().getServerSocketFactory()
+                .createServerSocket(0, 1, InetAddress.getByName("127.0.0.1"));
+        final ServerSocket server = mServer;
+        new Thread() {
+            @Override
+            public void run() {
+                try {
+                    for (int i = 0; i < connections; i++) {
+                        Socket socket = server.accept();
+                        try {
+                            socket.setSoTimeout(TIMEOUT_MS);
+                            echo(socket.getInputStream(), socket.getOutputStream());
+                        } finally {
+                            socket.close();
+                        }
+                    }
+                } catch (IOException e) {
+                    // The client fails as well.
+                }
+            }
+        }.start();
+    }
+
+    /**
+     * Returns the context of the TLS test servers, holding their self-signed certificate.
+     */
+    private static synchronized SSLContext getServerSslContext() throws Exception {
+        if (sServerSslContext != null) {
+            return sServerSslContext;
+        }
+        KeyStore keyStore = KeyStore.getInstance("PKCS12");
+        keyStore.load(new ByteArrayInputStream(Base64.decode(KEYSTORE, Base64.DEFAULT)),
+                KEYSTORE_PASSWORD);
+        KeyManagerFactory keyManagers = KeyManagerFactory.getInstance(
+                KeyManagerFactory.getDefaultAlgorithm());
+        keyManagers.init(keyStore, KEYSTORE_PASSWORD);
+        sServerSslContext = SSLContext.getInstance("TLS");
+        sServerSslContext.init(keyManagers.getKeyManagers(), null, null);
+        return sServerSslContext;
+    }
+
+    private static void echo(InputStream in, OutputStream out) throws IOException {
+        StringBuilder line = new StringBuilder();
+        int c;
+        while ((c = in.read()) != -1) {
+            if (c == '\n') {
+                out.write(("* ECHO " + line + "\n").getBytes("US-ASCII"));
+                out.flush();
+                line.setLength(0);
+            } else if (c != '\r') {
+                line.append((char) c);
+            }
+        }
+    }
+}
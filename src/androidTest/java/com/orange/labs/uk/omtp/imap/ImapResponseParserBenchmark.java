@@ -0,0 +1,162 @@
+package com.orange.labs.uk.omtp.imap;
+
+import java.io.ByteArrayInputStream;
+import java.io.UnsupportedEncodingException;
+
+import android.os.Debug;
+import android.test.suitebuilder.annotation.LargeTest;
+import android.util.Log;
+
+import com.android.email.mail.store.imap.ImapConstants;
+import com.android.email.mail.store.imap.ImapList;
+import com.android.email.mail.store.imap.ImapResponse;
+import com.android.email.mail.store.imap.ImapResponseParser;
+import com.android.email.mail.transport.DiscourseLogger;
+
+import junit.framework.TestCase;
+
+/**
+ * Measures the allocations and the time required to parse large FETCH listings, as received
+ * when synchronizing the inbox and the greetings.
+ */
+@LargeTest
+public class ImapResponseParserBenchmark extends TestCase {
+	private static final String TAG = "ImapResponseParserBenchmark";
+
+	private static final int MESSAGE_COUNT = 1000;
+	private static final int ITERATIONS = 5;
+
+	private static final String VOICEMAIL_FETCH = "* %d FETCH (UID %d FLAGS (\\Seen) "
+			+ "INTERNALDATE \"17-Oct-2012 10:12:45 +0100\" RFC822.SIZE 24512 "
+			+ "BODYSTRUCTURE ((\"TEXT\" \"PLAIN\" (\"CHARSET\" \"US-ASCII\") NIL NIL \"7BIT\" 42 1 "
+			+ "NIL NIL NIL)(\"AUDIO\" \"AMR\" (\"NAME\" \"voicemail.amr\") NIL NIL \"BASE64\" "
+			+ "23010 NIL (\"ATTACHMENT\" (\"FILENAME\" \"voicemail.amr\")) NIL) \"MIXED\" "
+			+ "(\"BOUNDARY\" \"----=_Part_%d\") NIL NIL))\r\n";
+
+	private static final String GREETING_HEADER = "X-CNS-Greeting-Type: normal-greeting\r\n\r\n";
+
+	private static final String GREETING_FETCH = "* %d FETCH (UID %d FLAGS (\\Seen "
+			+ "$CNS-Greeting-On) BODY[HEADER.FIELDS (X-CNS-Greeting-Type)] {40}\r\n"
+			+ GREETING_HEADER + ")\r\n";
+
+	/** Shared by the iterations, like the logger of a connection is shared by its responses. */
+	private final DiscourseLogger mDiscourseLogger = new DiscourseLogger(64);
+
+	public void testVoicemailListing() throws Exception {
+		runBenchmark("voicemail listing", buildListing(VOICEMAIL_FETCH), new FetchVerifier() {
+			@Override
+			public void verify(int index, ImapList fetchList) {
+				assertUid(index, fetchList);
+				assertTrue(fetchList.getKeyedListOrEmpty(ImapConstants.FLAGS)
+						.contains(ImapConstants.FLAG_SEEN));
+
+				ImapList structure = fetchList.getKeyedListOrEmpty(ImapConstants.BODYSTRUCTURE);
+				assertEquals(6, structure.size());
+				assertTrue(structure.getStringOrEmpty(2).is("MIXED"));
+				assertEquals("----=_Part_" + index, structure.getListOrEmpty(3)
+						.getKeyedStringOrEmpty("BOUNDARY").getString());
+
+				ImapList text = structure.getListOrEmpty(0);
+				assertTrue(text.getStringOrEmpty(0).is("TEXT"));
+				assertTrue(text.getStringOrEmpty(1).is("PLAIN"));
+				assertEquals(42, text.getStringOrEmpty(6).getNumberOrZero());
+
+				ImapList audio = structure.getListOrEmpty(1);
+				assertTrue(audio.getStringOrEmpty(0).is("AUDIO"));
+				assertTrue(audio.getStringOrEmpty(1).is("AMR"));
+				assertEquals("voicemail.amr",
+						audio.getListOrEmpty(2).getKeyedStringOrEmpty("NAME").getString());
+				assertTrue(audio.getStringOrEmpty(5).is("BASE64"));
+				assertEquals(23010, audio.getStringOrEmpty(6).getNumberOrZero());
+			}
+		});
+	}
+
+	public void testGreetingListing() throws Exception {
+		runBenchmark("greeting listing", buildListing(GREETING_FETCH), new FetchVerifier() {
+			@Override
+			public void verify(int index, ImapList fetchList) {
+				assertUid(index, fetchList);
+				ImapList flags = fetchList.getKeyedListOrEmpty(ImapConstants.FLAGS);
+				assertEquals(2, flags.size());
+				assertTrue(flags.contains(ImapConstants.FLAG_SEEN));
+				assertTrue(flags.contains("$CNS-Greeting-On"));
+				assertEquals(GREETING_HEADER,
+						fetchList.getKeyedStringOrEmpty("BODY[", true).getString());
+			}
+		});
+	}
+
+	/**
+	 * Checks the content of the FETCH responses of the listing, outside of the measurements.
+	 */
+	private interface FetchVerifier {
+		/**
+		 * @param index	Sequence number of the message, starting at 1.
+		 * @param fetchList	Data items of its FETCH response.
+		 */
+		public void verify(int index, ImapList fetchList);
+	}
+
+	private static void assertUid(int index, ImapList fetchList) {
+		assertEquals(1000 + index,
+				fetchList.getKeyedStringOrEmpty(ImapConstants.UID).getNumberOrZero());
+	}
+
+	private byte[] buildListing(String format) throws UnsupportedEncodingException {
+		StringBuilder listing = new StringBuilder();
+		for (int i = 1; i <= MESSAGE_COUNT; i++) {
+			listing.append(String.format(format, i, 1000 + i, i));
+		}
+		listing.append("A1 OK UID FETCH completed\r\n");
+		return listing.toString().getBytes("US-ASCII");
+	}
+
+	private void runBenchmark(String name, byte[] listing, FetchVerifier verifier)
+			throws Exception {
+		// Warm up, so that the classes are loaded and the interned atoms created, and check the
+		// parsed values.
+		parseListing(listing, verifier);
+
+		Debug.startAllocCounting();
+		try {
+			Debug.resetThreadAllocCount();
+			long start = System.nanoTime();
+			for (int i = 0; i < ITERATIONS; i++) {
+				parseListing(listing, null);
+			}
+			long elapsedNs = System.nanoTime() - start;
+			int allocations = Debug.getThreadAllocCount();
+			int allocatedBytes = Debug.getThreadAllocSize();
+
+			int responses = ITERATIONS * (MESSAGE_COUNT + 1);
+			Log.i(TAG, String.format("%s: %.1f allocations (%d bytes) and %.1f us per response",
+					name, (double) allocations / responses, allocatedBytes / responses,
+					elapsedNs / 1000.0 / responses));
+		} finally {
+			Debug.stopAllocCounting();
+		}
+	}
+
+	private void parseListing(byte[] listing, FetchVerifier verifier) throws Exception {
+		ImapResponseParser parser = new ImapResponseParser(new ByteArrayInputStream(listing),
+				mDiscourseLogger);
+		int fetched = 0;
+		ImapResponse response;
+		do {
+			response = parser.readResponse();
+			if (response.isDataResponse(1, ImapConstants.FETCH)) {
+				fetched++;
+				if (verifier != null) {
+					assertEquals(fetched, response.getStringOrEmpty(0).getNumberOrZero());
+					verifier.verify(fetched, response.getListOrEmpty(2));
+				}
+			} else if (verifier != null) {
+				assertTrue(response.isTagged() && response.isOk());
+			}
+			// Destroy the responses as the fetch loop of ImapFolder does.
+			parser.destroyResponses();
+		} while (!response.isTagged());
+		assertEquals(MESSAGE_COUNT, fetched);
+	}
+}
@@ -0,0 +1,52 @@
+package com.orange.labs.uk.omtp.imap;
+
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+
+import com.android.email.mail.store.imap.ImapList;
+import com.android.email.mail.store.imap.ImapResponse;
+import com.android.email.mail.store.imap.ImapResponseParser;
+import com.android.email.mail.store.imap.ImapString;
+import com.android.email.mail.transport.DiscourseLogger;
+
+import junit.framework.TestCase;
+
+public class ImapResponseParserTest extends TestCase {
+
+	private static final String RESPONSE = "* 1 FETCH (UID 1001 BODYSTRUCTURE (\"AUDIO\" \"AMR\" "
+			+ "(\"NAME\" \"voicemail.amr\") NIL NIL \"BASE64\" 23010))\r\n";
+
+	public void testStringReadBeforeDestroy() throws Exception {
+		ImapResponseParser parser = createParser(RESPONSE);
+		ImapString name = getName(parser.readResponse());
+
+		assertEquals("voicemail.amr", name.getString());
+		InputStream stream = name.getAsStream();
+		byte[] bytes = new byte[32];
+		assertEquals(13, stream.read(bytes));
+		assertEquals("voicemail.amr", new String(bytes, 0, 13, "US-ASCII"));
+	}
+
+	public void testStringCannotBeStreamedAfterDestroy() throws Exception {
+		ImapResponseParser parser = createParser(RESPONSE);
+		ImapString name = getName(parser.readResponse());
+		parser.destroyResponses();
+
+		try {
+			name.getAsStream();
+			fail("The bytes of a destroyed string must not be read");
+		} catch (IllegalStateException e) {
+			// Expected.
+		}
+	}
+
+	private static ImapResponseParser createParser(String response) throws Exception {
+		return new ImapResponseParser(new ByteArrayInputStream(response.getBytes("US-ASCII")),
+				new DiscourseLogger(4));
+	}
+
+	private static ImapString getName(ImapResponse response) {
+		ImapList structure = response.getListOrEmpty(2).getKeyedListOrEmpty("BODYSTRUCTURE");
+		return structure.getListOrEmpty(2).getKeyedStringOrEmpty("NAME");
+	}
+}
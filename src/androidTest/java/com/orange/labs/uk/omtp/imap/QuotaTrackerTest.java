@@ -0,0 +1,133 @@
+package com.orange.labs.uk.omtp.imap;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import com.orange.labs.uk.omtp.config.StackStaticConfiguration;
+import com.orange.labs.uk.omtp.notification.QuotaNotification;
+import com.orange.labs.uk.omtp.notification.SourceNotification;
+import com.orange.labs.uk.omtp.notification.SourceNotifier;
+
+import junit.framework.TestCase;
+
+/**
+ * Runs the {@link QuotaTracker} with a manual clock, recording the quotas sent to the source.
+ */
+public class QuotaTrackerTest extends TestCase {
+
+	private static final String ACCOUNT = "imap://user@example.com";
+	private static final String OTHER_ACCOUNT = "imap://other@example.com";
+
+	private TestQuotaTracker mTracker;
+	private RecordingNotifier mNotifier;
+
+	@Override
+	protected void setUp() throws Exception {
+		super.setUp();
+		mTracker = new TestQuotaTracker();
+		mNotifier = new RecordingNotifier();
+	}
+
+	public void testUnknownQuotaNeedsRefresh() {
+		assertTrue(mTracker.needsRefresh(ACCOUNT));
+	}
+
+	public void testQuotaExpiresAfterTheRefreshInterval() {
+		mTracker.mNow = 1000;
+		mTracker.update(ACCOUNT, 42, mNotifier);
+		assertFalse(mTracker.needsRefresh(ACCOUNT));
+
+		mTracker.mNow += StackStaticConfiguration.QUOTA_REFRESH_INTERVAL - 1;
+		assertFalse(mTracker.needsRefresh(ACCOUNT));
+
+		mTracker.mNow += 1;
+		assertTrue(mTracker.needsRefresh(ACCOUNT));
+	}
+
+	public void testUpdateRestartsTheRefreshInterval() {
+		mTracker.update(ACCOUNT, 42, mNotifier);
+		mTracker.mNow += StackStaticConfiguration.QUOTA_REFRESH_INTERVAL;
+		mTracker.update(ACCOUNT, 42, mNotifier);
+
+		assertFalse(mTracker.needsRefresh(ACCOUNT));
+	}
+
+	public void testInvalidatedQuotaNeedsRefresh() {
+		mTracker.update(ACCOUNT, 42, mNotifier);
+
+		mTracker.invalidate(ACCOUNT);
+		assertTrue(mTracker.needsRefresh(ACCOUNT));
+
+		mTracker.update(ACCOUNT, 42, mNotifier);
+		assertFalse(mTracker.needsRefresh(ACCOUNT));
+	}
+
+	public void testInvalidationIsPerAccount() {
+		mTracker.update(ACCOUNT, 42, mNotifier);
+		mTracker.update(OTHER_ACCOUNT, 42, mNotifier);
+
+		mTracker.invalidate(OTHER_ACCOUNT);
+
+		assertFalse(mTracker.needsRefresh(ACCOUNT));
+		assertTrue(mTracker.needsRefresh(OTHER_ACCOUNT));
+	}
+
+	public void testInvalidatingUnknownAccountIsIgnored() {
+		mTracker.invalidate(ACCOUNT);
+
+		assertTrue(mTracker.needsRefresh(ACCOUNT));
+	}
+
+	public void testFirstQuotaIsNotified() {
+		mTracker.update(ACCOUNT, 42, mNotifier);
+
+		assertEquals(Arrays.asList(42), mNotifier.mQuotas);
+	}
+
+	public void testOnlyChangesOfBucketAreNotified() {
+		int step = StackStaticConfiguration.QUOTA_NOTIFICATION_STEP;
+		int[] quotas = { 4 * step + 2, 4 * step + 5, 5 * step, 5 * step + 1, 3 * step + 8 };
+		for (int quota : quotas) {
+			mTracker.update(ACCOUNT, quota, mNotifier);
+		}
+
+		assertEquals(Arrays.asList(4 * step + 2, 5 * step, 3 * step + 8), mNotifier.mQuotas);
+	}
+
+	public void testBucketsArePerAccount() {
+		mTracker.update(ACCOUNT, 42, mNotifier);
+		mTracker.update(OTHER_ACCOUNT, 42, mNotifier);
+
+		assertEquals(Arrays.asList(42, 42), mNotifier.mQuotas);
+	}
+
+	public void testClearForgetsTheQuotas() {
+		mTracker.update(ACCOUNT, 42, mNotifier);
+
+		mTracker.clear();
+		assertTrue(mTracker.needsRefresh(ACCOUNT));
+
+		mTracker.update(ACCOUNT, 42, mNotifier);
+		assertEquals(Arrays.asList(42, 42), mNotifier.mQuotas);
+	}
+
+	private static class TestQuotaTracker extends QuotaTracker {
+		private long mNow;
+
+		@Override
+		long now() {
+			return mNow;
+		}
+	}
+
+	/** Notifier recording the quota of the notifications sent. */
+	private static class RecordingNotifier implements SourceNotifier {
+		private final List<Integer> mQuotas = new ArrayList<Integer>();
+
+		@Override
+		public void sendNotification(SourceNotification notification) {
+			mQuotas.add(notification.getBundle().getInt(QuotaNotification.QUOTA_VALUE_KEY));
+		}
+	}
+}
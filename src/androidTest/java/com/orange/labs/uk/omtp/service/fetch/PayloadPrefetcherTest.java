@@ -0,0 +1,89 @@
+package com.orange.labs.uk.omtp.service.fetch;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import com.orange.labs.uk.omtp.config.StackStaticConfiguration;
+import com.orange.labs.uk.omtp.voicemail.Voicemail;
+import com.orange.labs.uk.omtp.voicemail.VoicemailImpl;
+
+import junit.framework.TestCase;
+
+public class PayloadPrefetcherTest extends TestCase {
+
+	private static final long WAIT_MS = 2000;
+	/** Time left to the refused downloads to show up if they were started anyway. */
+	private static final long SETTLE_MS = 200;
+
+	public void testExpectedSizeIsThePayloadSize() {
+		Voicemail voicemail = VoicemailImpl.createEmptyBuilder().setDuration(22)
+				.setPayloadSize(12345).build();
+
+		assertEquals(12345, PayloadPrefetcher.getExpectedSize(voicemail));
+	}
+
+	public void testExpectedSizeIsEstimatedFromTheDurationInSeconds() {
+		Voicemail voicemail = VoicemailImpl.createEmptyBuilder().setDuration(60).build();
+
+		assertEquals(60 * StackStaticConfiguration.PREFETCH_ESTIMATED_BYTES_PER_SECOND,
+				PayloadPrefetcher.getExpectedSize(voicemail));
+	}
+
+	public void testExpectedSizeDefaultsWithoutSizeNorDuration() {
+		Voicemail voicemail = VoicemailImpl.createEmptyBuilder().build();
+
+		assertEquals(StackStaticConfiguration.PREFETCH_DEFAULT_RESERVED_BYTES,
+				PayloadPrefetcher.getExpectedSize(voicemail));
+	}
+
+	public void testBudgetStopsThePrefetch() throws Exception {
+		// Each payload takes a bit more than a third of the budget: only two of them fit.
+		long size = StackStaticConfiguration.PREFETCH_BYTE_BUDGET / 3 + 1;
+		List<Voicemail> voicemails = new ArrayList<Voicemail>();
+		for (int i = 0; i < 3; ++i) {
+			voicemails.add(VoicemailImpl.createEmptyBuilder().setTimestamp(i)
+					.setSourceData(String.valueOf(i)).setPayloadSize(size).build());
+		}
+		RecordingPrefetcher prefetcher = new RecordingPrefetcher(2);
+
+		prefetcher.prefetch(voicemails);
+
+		assertTrue(prefetcher.mFetched.await(WAIT_MS, TimeUnit.MILLISECONDS));
+		Thread.sleep(SETTLE_MS);
+		assertEquals(2, prefetcher.mFetchedVoicemails.size());
+	}
+
+	public void testBudgetIsPerBatch() throws Exception {
+		long size = StackStaticConfiguration.PREFETCH_BYTE_BUDGET;
+		RecordingPrefetcher prefetcher = new RecordingPrefetcher(2);
+
+		prefetcher.prefetch(Collections.<Voicemail> singletonList(VoicemailImpl
+				.createEmptyBuilder().setSourceData("1").setPayloadSize(size).build()));
+		prefetcher.prefetch(Collections.<Voicemail> singletonList(VoicemailImpl
+				.createEmptyBuilder().setSourceData("2").setPayloadSize(size).build()));
+
+		assertTrue(prefetcher.mFetched.await(WAIT_MS, TimeUnit.MILLISECONDS));
+	}
+
+	/** Prefetcher recording the downloads instead of performing them. */
+	private static class RecordingPrefetcher extends PayloadPrefetcher {
+		private final List<Voicemail> mFetchedVoicemails =
+				Collections.synchronizedList(new ArrayList<Voicemail>());
+		private final CountDownLatch mFetched;
+
+		public RecordingPrefetcher(int expectedFetches) {
+			super(null, null, null, null, null, null);
+			mFetched = new CountDownLatch(expectedFetches);
+		}
+
+		@Override
+		/* package */ long fetchPayload(Voicemail voicemail) {
+			mFetchedVoicemails.add(voicemail);
+			mFetched.countDown();
+			return voicemail.getPayloadSize();
+		}
+	}
+}
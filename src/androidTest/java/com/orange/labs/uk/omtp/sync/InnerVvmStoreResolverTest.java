@@ -0,0 +1,257 @@
+package com.orange.labs.uk.omtp.sync;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import android.test.suitebuilder.annotation.LargeTest;
+
+import com.orange.labs.uk.omtp.callbacks.Callback;
+import com.orange.labs.uk.omtp.fetch.VoicemailListing;
+import com.orange.labs.uk.omtp.sync.VvmStore.Action;
+import com.orange.labs.uk.omtp.sync.VvmStoreResolver.ResolvePolicy;
+import com.orange.labs.uk.omtp.voicemail.Voicemail;
+import com.orange.labs.uk.omtp.voicemail.VoicemailImpl;
+
+import junit.framework.TestCase;
+
+/**
+ * Resolves synthetic mailboxes of 10k to 50k messages, and checks that every message is handed to
+ * the policy exactly once, with the state of the other stores.
+ */
+@LargeTest
+public class InnerVvmStoreResolverTest extends TestCase {
+
+	private static final long RESOLVE_TIMEOUT_MS = 30000;
+
+	private ScheduledExecutorService mScheduler;
+	private Random mRandom;
+
+	@Override
+	protected void setUp() throws Exception {
+		super.setUp();
+		mScheduler = Executors.newSingleThreadScheduledExecutor();
+		mRandom = new Random(42);
+	}
+
+	@Override
+	protected void tearDown() throws Exception {
+		mScheduler.shutdownNow();
+		super.tearDown();
+	}
+
+	public void testResolve10k() throws Exception {
+		checkResolve(10000);
+	}
+
+	public void testResolve25k() throws Exception {
+		checkResolve(25000);
+	}
+
+	public void testResolve50k() throws Exception {
+		checkResolve(50000);
+	}
+
+	public void testResolveLocalChanges50k() throws Exception {
+		Mailbox mailbox = new Mailbox(50000);
+		RecordingPolicy policy = new RecordingPolicy();
+		InnerVvmStoreResolver resolver = new InnerVvmStoreResolver(mailbox.mLocal,
+				mailbox.mRemote, mailbox.mMirror, policy, mScheduler, mailbox.mCallback);
+
+		resolver.resolveLocalChanges();
+
+		mailbox.awaitSuccess();
+		assertEquals(mailbox.expectedLocalResolve(), policy.mResolved);
+		assertEquals(1, mailbox.mMirror.mLoads);
+	}
+
+	private void checkResolve(int size) throws Exception {
+		Mailbox mailbox = new Mailbox(size);
+		RecordingPolicy policy = new RecordingPolicy();
+		InnerVvmStoreResolver resolver = new InnerVvmStoreResolver(mailbox.mLocal,
+				mailbox.mRemote, mailbox.mMirror, policy, mScheduler, mailbox.mCallback);
+
+		resolver.resolve();
+
+		mailbox.awaitSuccess();
+		assertEquals(mailbox.expectedResolve(), policy.mResolved);
+		// The mirror is loaded once, and the remote listing starts from it.
+		assertEquals(1, mailbox.mMirror.mLoads);
+		assertSame(mailbox.mMirror.mMessages, mailbox.mRemote.mKnownVoicemails);
+		assertTrue(mailbox.mRemote.mCommitted);
+	}
+
+	/**
+	 * Messages 1 to size, each of which is randomly present in the local, remote and mirror
+	 * stores. The stores list them in random order.
+	 */
+	private class Mailbox {
+		private final Set<String> mInLocal = new HashSet<String>();
+		private final Set<String> mInRemote = new HashSet<String>();
+		private final Set<String> mInMirror = new HashSet<String>();
+		private final FakeStore mLocal = new FakeStore();
+		private final FakeStore mRemote = new FakeStore();
+		private final FakeStore mMirror = new FakeStore();
+		private final CountDownLatch mDone = new CountDownLatch(1);
+		private final AtomicReference<Exception> mError = new AtomicReference<Exception>();
+		private final Callback<Void> mCallback = new Callback<Void>() {
+			@Override
+			public void onSuccess(Void result) {
+				mDone.countDown();
+			}
+
+			@Override
+			public void onFailure(Exception error) {
+				mError.set(error);
+				mDone.countDown();
+			}
+		};
+
+		public Mailbox(int size) {
+			for (int i = 1; i <= size; i++) {
+				String uid = Integer.toString(i);
+				int stores = mRandom.nextInt(8);
+				if ((stores & 1) != 0) {
+					add(mLocal, mInLocal, uid);
+				}
+				if ((stores & 2) != 0) {
+					add(mRemote, mInRemote, uid);
+				}
+				if ((stores & 4) != 0) {
+					add(mMirror, mInMirror, uid);
+				}
+			}
+			Collections.shuffle(mLocal.mMessages, mRandom);
+			Collections.shuffle(mRemote.mMessages, mRandom);
+			Collections.shuffle(mMirror.mMessages, mRandom);
+		}
+
+		private void add(FakeStore store, Set<String> uids, String uid) {
+			store.mMessages.add(VoicemailImpl.createEmptyBuilder().setSourceData(uid).build());
+			uids.add(uid);
+		}
+
+		public void awaitSuccess() throws InterruptedException {
+			assertTrue(mDone.await(RESOLVE_TIMEOUT_MS, TimeUnit.MILLISECONDS));
+			assertNull(mError.get());
+		}
+
+		public Set<String> expectedResolve() {
+			Set<String> expected = new HashSet<String>();
+			for (String uid : mInLocal) {
+				expected.add((mInRemote.contains(uid) ? "both " : "local ") + uid);
+			}
+			for (String uid : mInRemote) {
+				if (!mInLocal.contains(uid)) {
+					expected.add("remote " + uid + " mirror=" + mInMirror.contains(uid));
+				}
+			}
+			return expected;
+		}
+
+		public Set<String> expectedLocalResolve() {
+			Set<String> expected = new HashSet<String>();
+			for (String uid : mInMirror) {
+				expected.add((mInLocal.contains(uid) ? "local+mirror " : "mirror ") + uid);
+			}
+			return expected;
+		}
+	}
+
+	/**
+	 * Store returning its messages synchronously, and accepting any action.
+	 */
+	private static class FakeStore implements RemoteVvmStore {
+		private final List<Voicemail> mMessages = new ArrayList<Voicemail>();
+		private int mLoads;
+		private List<Voicemail> mKnownVoicemails;
+		private boolean mCommitted;
+
+		@Override
+		public void getAllMessages(Callback<List<Voicemail>> callback) {
+			mLoads++;
+			callback.onSuccess(mMessages);
+		}
+
+		@Override
+		public void getMessageListing(List<Voicemail> knownVoicemails,
+				Callback<VoicemailListing> callback) {
+			mKnownVoicemails = knownVoicemails;
+			callback.onSuccess(new VoicemailListing() {
+				@Override
+				public List<Voicemail> getVoicemails() {
+					return mMessages;
+				}
+
+				@Override
+				public void commit() {
+					mCommitted = true;
+				}
+			});
+		}
+
+		@Override
+		public void performActions(List<Action> actions, Callback<Void> callback) {
+			callback.onSuccess(null);
+		}
+
+		@Override
+		public void deleteAllMessages(Callback<Void> callback) {
+			throw new UnsupportedOperationException();
+		}
+	}
+
+	/**
+	 * Policy recording the messages it is given, failing if one of them is given twice.
+	 */
+	private static class RecordingPolicy implements ResolvePolicy {
+		private final Set<String> mResolved = new HashSet<String>();
+
+		private void record(String resolution) {
+			assertTrue("Resolved twice: " + resolution, mResolved.add(resolution));
+		}
+
+		@Override
+		public void resolveLocalOnlyMessage(Voicemail localMessage, List<Action> localActions,
+				List<Action> remoteActions) {
+			record("local " + localMessage.getSourceData());
+		}
+
+		@Override
+		public void resolveRemoteOnlyMessage(Voicemail remoteMessage, Voicemail mirrorMessage,
+				List<Action> localActions, List<Action> remoteActions) {
+			if (mirrorMessage != null) {
+				assertEquals(remoteMessage.getSourceData(), mirrorMessage.getSourceData());
+			}
+			record("remote " + remoteMessage.getSourceData() + " mirror="
+					+ (mirrorMessage != null));
+		}
+
+		@Override
+		public void resolveBothLocalAndRemoteMessage(Voicemail localMessage,
+				Voicemail remoteMessage, List<Action> localActions, List<Action> remoteActions) {
+			assertEquals(localMessage.getSourceData(), remoteMessage.getSourceData());
+			record("both " + localMessage.getSourceData());
+		}
+
+		@Override
+		public void resolveBothLocalAndMirrorMessage(Voicemail localMessage,
+				Voicemail mirrorMessage, List<Action> remoteActions) {
+			assertEquals(localMessage.getSourceData(), mirrorMessage.getSourceData());
+			record("local+mirror " + localMessage.getSourceData());
+		}
+
+		@Override
+		public void resolveMirrorOnlyMessage(Voicemail mirrorMessage, List<Action> remoteActions) {
+			record("mirror " + mirrorMessage.getSourceData());
+		}
+	}
+}
@@ -0,0 +1,116 @@
+package com.orange.labs.uk.omtp.sync;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.orange.labs.uk.omtp.callbacks.Callback;
+import com.orange.labs.uk.omtp.callbacks.Callbacks;
+
+import junit.framework.TestCase;
+
+public class ResolveCompletionTest extends TestCase {
+
+	private static final long STEP_TIMEOUT_MS = 50;
+	private static final long WAIT_MS = 2000;
+
+	private ScheduledExecutorService mScheduler;
+	private RecordingCallback mCallback;
+	private ResolveCompletion mCompletion;
+
+	@Override
+	protected void setUp() throws Exception {
+		super.setUp();
+		mScheduler = Executors.newSingleThreadScheduledExecutor();
+		mCallback = new RecordingCallback();
+		mCompletion = new ResolveCompletion(mCallback, mScheduler);
+	}
+
+	@Override
+	protected void tearDown() throws Exception {
+		mScheduler.shutdownNow();
+		super.tearDown();
+	}
+
+	public void testTimeoutIsReportedWithoutOutstandingOperation() throws Exception {
+		mCompletion.startStep("test", STEP_TIMEOUT_MS);
+
+		assertTrue(mCallback.mDone.await(WAIT_MS, TimeUnit.MILLISECONDS));
+		assertEquals(1, mCallback.mFailures.get());
+	}
+
+	public void testTimeoutWaitsForOutstandingOperations() throws Exception {
+		Callback<Void> first = mCompletion.track(Callbacks.<Void> emptyCallback());
+		Callback<Void> second = mCompletion.track(Callbacks.<Void> emptyCallback());
+		mCompletion.startStep("test", STEP_TIMEOUT_MS);
+
+		// The step has timed out, but the stores are still working.
+		assertFalse(mCallback.mDone.await(STEP_TIMEOUT_MS * 4, TimeUnit.MILLISECONDS));
+		assertTrue(mCompletion.isDone());
+		first.onSuccess(null);
+		assertEquals(0, mCallback.mFailures.get());
+		second.onFailure(new Exception("Late failure"));
+
+		assertTrue(mCallback.mDone.await(WAIT_MS, TimeUnit.MILLISECONDS));
+		assertEquals(1, mCallback.mFailures.get());
+		assertEquals(0, mCallback.mSuccesses.get());
+	}
+
+	public void testOperationReturningTwiceIsCountedOnce() throws Exception {
+		Callback<Void> first = mCompletion.track(Callbacks.<Void> emptyCallback());
+		mCompletion.track(Callbacks.<Void> emptyCallback());
+		mCompletion.fail(new Exception("Failure"));
+
+		first.onSuccess(null);
+		first.onSuccess(null);
+
+		assertEquals(0, mCallback.mFailures.get());
+	}
+
+	public void testFailureOfTrackedOperationIsReportedOnceItReturns() throws Exception {
+		Callback<Void> operation = mCompletion.track(new Callback<Void>() {
+			@Override
+			public void onSuccess(Void result) {
+			}
+
+			@Override
+			public void onFailure(Exception error) {
+				mCompletion.fail(error);
+			}
+		});
+
+		operation.onFailure(new Exception("Store failure"));
+
+		assertEquals(1, mCallback.mFailures.get());
+	}
+
+	public void testSuccessIsReportedOnce() throws Exception {
+		mCompletion.startStep("test", STEP_TIMEOUT_MS);
+		mCompletion.succeed();
+		mCompletion.fail(new Exception("Late failure"));
+		Thread.sleep(STEP_TIMEOUT_MS * 4);
+
+		assertEquals(1, mCallback.mSuccesses.get());
+		assertEquals(0, mCallback.mFailures.get());
+	}
+
+	private static class RecordingCallback implements Callback<Void> {
+		private final CountDownLatch mDone = new CountDownLatch(1);
+		private final AtomicInteger mSuccesses = new AtomicInteger();
+		private final AtomicInteger mFailures = new AtomicInteger();
+
+		@Override
+		public void onSuccess(Void result) {
+			mSuccesses.incrementAndGet();
+			mDone.countDown();
+		}
+
+		@Override
+		public void onFailure(Exception error) {
+			mFailures.incrementAndGet();
+			mDone.countDown();
+		}
+	}
+}
@@ -0,0 +1,326 @@
+package com.orange.labs.uk.omtp.sync;
+
+import java.util.ArrayList;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import android.content.Context;
+
+import com.orange.labs.uk.omtp.account.OmtpAccountStoreWrapper;
+import com.orange.labs.uk.omtp.callbacks.Callback;
+import com.orange.labs.uk.omtp.config.StackStaticConfiguration;
+import com.orange.labs.uk.omtp.greetings.GreetingUpdateType;
+import com.orange.labs.uk.omtp.sync.SerialSynchronizer.SyncFlag;
+import com.orange.labs.uk.omtp.sync.SerialSynchronizer.SyncPriority;
+
+import junit.framework.TestCase;
+
+/**
+ * Runs the {@link SerialSynchronizer} queue against a resolver completing the synchronizations on
+ * demand, with a manual clock and scheduler.
+ */
+public class SerialSynchronizerTest extends TestCase {
+
+	private ManualScheduler mScheduler;
+	private FakeResolver mResolver;
+	private TestSynchronizer mSynchronizer;
+
+	@Override
+	protected void setUp() throws Exception {
+		super.setUp();
+		mScheduler = new ManualScheduler();
+		mResolver = new FakeResolver();
+		mSynchronizer = new TestSynchronizer(mScheduler, mResolver);
+	}
+
+	@Override
+	protected void tearDown() throws Exception {
+		mScheduler.shutdownNow();
+		super.tearDown();
+	}
+
+	public void testFullCoversPendingLocal() {
+		mSynchronizer.execute(SyncFlag.FULL_SYNCHRONIZATION);
+		mSynchronizer.execute(SyncFlag.LOCAL_SYNCHRONIZATION);
+		mSynchronizer.execute(SyncFlag.FULL_SYNCHRONIZATION);
+		mSynchronizer.execute(SyncFlag.LOCAL_SYNCHRONIZATION);
+
+		completeAll();
+
+		assertEquals(runs("full", "full"), mResolver.getKinds());
+	}
+
+	public void testDuplicateCollapses() {
+		mSynchronizer.execute(SyncFlag.FULL_SYNCHRONIZATION);
+		mSynchronizer.execute(SyncFlag.FULL_SYNCHRONIZATION);
+		mSynchronizer.execute(SyncFlag.FULL_SYNCHRONIZATION);
+		mSynchronizer.executeTuiChange(SyncFlag.TUI_LANGUAGE_CHANGE, 1);
+		mSynchronizer.executeTuiChange(SyncFlag.TUI_LANGUAGE_CHANGE, 2);
+		mSynchronizer.executeTuiChange(SyncFlag.TUI_LANGUAGE_CHANGE, 3);
+
+		completeAll();
+
+		assertEquals(runs("full", "tui 1", "full", "tui 3"), mResolver.getKinds());
+	}
+
+	public void testUploadCoversChangeOfSameGreeting() {
+		occupyGreetingsLane();
+		mSynchronizer.executeGreeting(EnumSet.of(GreetingUpdateType.ONLY_CHANGE_REQUIRED,
+				GreetingUpdateType.NORMAL));
+		mSynchronizer.executeGreeting(EnumSet.of(GreetingUpdateType.UPLOAD_REQUIRED,
+				GreetingUpdateType.NORMAL));
+
+		completeAll();
+
+		assertEquals(runs("tui 1", "greetings"), mResolver.getKinds());
+		assertEquals(EnumSet.of(GreetingUpdateType.UPLOAD_REQUIRED, GreetingUpdateType.NORMAL),
+				mResolver.mRuns.get(1).mGreetings);
+	}
+
+	public void testDifferentGreetingsStaySeparate() {
+		occupyGreetingsLane();
+		mSynchronizer.executeGreeting(EnumSet.of(GreetingUpdateType.UPLOAD_REQUIRED,
+				GreetingUpdateType.NORMAL));
+		mSynchronizer.executeGreeting(EnumSet.of(GreetingUpdateType.UPLOAD_REQUIRED,
+				GreetingUpdateType.VOICE_SIGNATURE));
+
+		completeAll();
+
+		assertEquals(runs("tui 1", "greetings", "greetings"), mResolver.getKinds());
+		assertTrue(mResolver.mRuns.get(1).mGreetings.contains(GreetingUpdateType.NORMAL));
+		assertTrue(mResolver.mRuns.get(2).mGreetings.contains(
+				GreetingUpdateType.VOICE_SIGNATURE));
+	}
+
+	public void testDebounceMergesBurst() {
+		mSynchronizer.execute(SyncFlag.LOCAL_SYNCHRONIZATION);
+		mSynchronizer.mNow += 500;
+		mSynchronizer.execute(SyncFlag.LOCAL_SYNCHRONIZATION);
+		mSynchronizer.mNow += 500;
+		mSynchronizer.execute(SyncFlag.LOCAL_SYNCHRONIZATION);
+		assertTrue(mResolver.mRuns.isEmpty());
+
+		mSynchronizer.mNow = StackStaticConfiguration.SYNC_DEBOUNCE_WINDOW;
+		mScheduler.runScheduledTasks();
+		completeAll();
+
+		assertEquals(runs("local"), mResolver.getKinds());
+	}
+
+	public void testGreetingStartsWhileFullRuns() {
+		mSynchronizer.execute(SyncFlag.FULL_SYNCHRONIZATION);
+		mSynchronizer.executeGreeting(EnumSet.of(GreetingUpdateType.UNKNOWN));
+
+		assertEquals(runs("full", "greetings"), mResolver.getKinds());
+	}
+
+	public void testRetryDoesNotAgeOnRunTime() {
+		mSynchronizer.executeGreeting(EnumSet.of(GreetingUpdateType.UNKNOWN));
+		mSynchronizer.executeTuiChange(SyncFlag.TUI_LANGUAGE_CHANGE, 1);
+
+		// The greetings synchronization runs for a while, then fails.
+		mSynchronizer.mNow += 5 * StackStaticConfiguration.SYNC_PRIORITY_AGING_STEP;
+		mResolver.nextRunning().mCallback.onFailure(new Exception("Connection lost"));
+		completeAll();
+
+		assertEquals(runs("greetings", "tui 1", "greetings"), mResolver.getKinds());
+	}
+
+	public void testWaitExcludesRunTime() {
+		mSynchronizer.executeGreeting(EnumSet.of(GreetingUpdateType.UNKNOWN));
+		mSynchronizer.mNow += 5 * StackStaticConfiguration.SYNC_PRIORITY_AGING_STEP;
+		mResolver.nextRunning().mCallback.onFailure(new Exception("Connection lost"));
+		completeAll();
+
+		assertEquals(runs("greetings", "greetings"), mResolver.getKinds());
+		assertEquals(0, mSynchronizer.getTimings(SyncPriority.BACKGROUND).getMaxWait());
+	}
+
+	public void testRetriedFullMergesWithPendingFull() {
+		mSynchronizer.execute(SyncFlag.FULL_SYNCHRONIZATION);
+		mSynchronizer.execute(SyncFlag.FULL_SYNCHRONIZATION);
+		mResolver.nextRunning().mCallback.onFailure(new Exception("Connection lost"));
+		completeAll();
+
+		assertEquals(runs("full", "full"), mResolver.getKinds());
+	}
+
+	public void testRetriedFullReplacesPendingLocal() {
+		mSynchronizer.execute(SyncFlag.FULL_SYNCHRONIZATION);
+		mSynchronizer.execute(SyncFlag.LOCAL_SYNCHRONIZATION);
+		mResolver.nextRunning().mCallback.onFailure(new Exception("Connection lost"));
+		completeAll();
+
+		assertEquals(runs("full", "full"), mResolver.getKinds());
+	}
+
+	public void testRetriedTuiChangeKeepsLatestLanguage() {
+		mSynchronizer.executeTuiChange(SyncFlag.TUI_LANGUAGE_CHANGE, 1);
+		mSynchronizer.executeTuiChange(SyncFlag.TUI_LANGUAGE_CHANGE, 2);
+		mResolver.nextRunning().mCallback.onFailure(new Exception("Connection lost"));
+		completeAll();
+
+		assertEquals(runs("tui 1", "tui 2"), mResolver.getKinds());
+	}
+
+	/**
+	 * Starts a TUI change, so that the greetings requests are queued.
+	 */
+	private void occupyGreetingsLane() {
+		mSynchronizer.executeTuiChange(SyncFlag.TUI_LANGUAGE_CHANGE, 1);
+		assertEquals(runs("tui 1"), mResolver.getKinds());
+	}
+
+	/**
+	 * Completes the running synchronizations successfully, until the queue is empty.
+	 */
+	private void completeAll() {
+		Run run;
+		while ((run = mResolver.nextRunning()) != null) {
+			run.mCallback.onSuccess(null);
+		}
+	}
+
+	private static List<String> runs(String... kinds) {
+		List<String> list = new ArrayList<String>();
+		for (String kind : kinds) {
+			list.add(kind);
+		}
+		return list;
+	}
+
+	private static class TestSynchronizer extends SerialSynchronizer {
+		private final FakeResolver mResolver;
+		private long mNow;
+
+		public TestSynchronizer(ManualScheduler scheduler, FakeResolver resolver) {
+			super(null, null, null, scheduler);
+			mResolver = resolver;
+		}
+
+		@Override
+		SyncResolver createSyncResolver() {
+			return mResolver;
+		}
+
+		@Override
+		long now() {
+			return mNow;
+		}
+	}
+
+	/**
+	 * A synchronization started by the queue, completed by the test through its callback.
+	 */
+	private static class Run {
+		private final String mKind;
+		private final Callback<Void> mCallback;
+		private Set<GreetingUpdateType> mGreetings;
+		private boolean mCompleted;
+
+		private Run(String kind, final Callback<Void> callback) {
+			mKind = kind;
+			mCallback = new Callback<Void>() {
+				@Override
+				public void onSuccess(Void result) {
+					mCompleted = true;
+					callback.onSuccess(result);
+				}
+
+				@Override
+				public void onFailure(Exception error) {
+					mCompleted = true;
+					callback.onFailure(error);
+				}
+			};
+		}
+	}
+
+	private static class FakeResolver implements SyncResolver {
+		private final List<Run> mRuns = new ArrayList<Run>();
+
+		@Override
+		public void syncAllMessages(Callback<Void> callback) {
+			mRuns.add(new Run("full", callback));
+		}
+
+		@Override
+		public void syncLocalMessages(Callback<Void> callback) {
+			mRuns.add(new Run("local", callback));
+		}
+
+		@Override
+		public void syncGreetings(Callback<Void> callback, Set<GreetingUpdateType> updates) {
+			Run run = new Run("greetings", callback);
+			run.mGreetings = updates;
+			mRuns.add(run);
+		}
+
+		@Override
+		public void updateTuiLanguage(Callback<Void> callback, int language, Context context,
+				OmtpAccountStoreWrapper accountStore) {
+			mRuns.add(new Run("tui " + language, callback));
+		}
+
+		/** Returns the oldest synchronization still running, null if none. */
+		private Run nextRunning() {
+			for (Run run : mRuns) {
+				if (!run.mCompleted) {
+					return run;
+				}
+			}
+			return null;
+		}
+
+		private List<String> getKinds() {
+			List<String> kinds = new ArrayList<String>();
+			for (Run run : mRuns) {
+				kinds.add(run.mKind);
+			}
+			return kinds;
+		}
+	}
+
+	/**
+	 * Scheduler keeping the delayed tasks until the test runs them.
+	 */
+	private static class ManualScheduler extends ScheduledThreadPoolExecutor {
+		private final List<Runnable> mTasks = new ArrayList<Runnable>();
+		private final List<Future<?>> mFutures = new ArrayList<Future<?>>();
+
+		public ManualScheduler() {
+			super(1);
+		}
+
+		@Override
+		public ScheduledFuture<?> schedule(Runnable command, long delay, TimeUnit unit) {
+			ScheduledFuture<?> future = super.schedule(new Runnable() {
+				@Override
+				public void run() {
+				}
+			}, 1, TimeUnit.DAYS);
+			mTasks.add(command);
+			mFutures.add(future);
+			return future;
+		}
+
+		/** Runs the tasks scheduled so far which have not been cancelled. */
+		public void runScheduledTasks() {
+			List<Runnable> tasks = new ArrayList<Runnable>(mTasks);
+			List<Future<?>> futures = new ArrayList<Future<?>>(mFutures);
+			mTasks.clear();
+			mFutures.clear();
+			for (int i = 0; i < tasks.size(); i++) {
+				if (!futures.get(i).isCancelled()) {
+					futures.get(i).cancel(false);
+					tasks.get(i).run();
+				}
+			}
+		}
+	}
+}
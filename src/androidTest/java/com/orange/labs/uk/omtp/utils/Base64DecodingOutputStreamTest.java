@@ -0,0 +1,127 @@
+package com.orange.labs.uk.omtp.utils;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+
+import junit.framework.TestCase;
+
+public class Base64DecodingOutputStreamTest extends TestCase {
+
+	/** "Voicemail payload!" encoded with a line break every 8 characters. */
+	private static final String ENCODED = "Vm9pY2Vt\r\nYWlsIHBh\r\neWxvYWQh";
+	private static final String DECODED = "Voicemail payload!";
+
+	public void testDecodesInOneWrite() throws Exception {
+		assertEquals(DECODED, decode(ENCODED, ENCODED.length()));
+	}
+
+	public void testLineBreaksAreSkipped() throws Exception {
+		assertEquals("abcdef", decode("YW\nJj\r\nZG\r\nVm", 100));
+	}
+
+	public void testChunksSplittingQuanta() throws Exception {
+		for (int chunkSize = 1; chunkSize < ENCODED.length(); ++chunkSize) {
+			assertEquals("Chunk size " + chunkSize, DECODED, decode(ENCODED, chunkSize));
+		}
+	}
+
+	public void testSingleBytesWrites() throws Exception {
+		ByteArrayOutputStream decoded = new ByteArrayOutputStream();
+		Base64DecodingOutputStream stream = new Base64DecodingOutputStream(decoded);
+		for (byte b : ENCODED.getBytes("US-ASCII")) {
+			stream.write(b);
+		}
+		stream.close();
+		assertEquals(DECODED, decoded.toString("US-ASCII"));
+	}
+
+	public void testPadding() throws Exception {
+		assertEquals("a", decode("YQ==", 100));
+		assertEquals("ab", decode("YWI=", 100));
+		assertEquals("abc", decode("YWJj", 100));
+		// Padding split from its quantum by a chunk boundary.
+		assertEquals("ab", decode("YWI=", 3));
+		assertEquals("a", decode("YQ==", 1));
+	}
+
+	public void testContentAfterPaddingIsIgnored() throws Exception {
+		assertEquals("a", decode("YQ==\r\nYWJj", 100));
+	}
+
+	public void testMissingPaddingIsDecodedOnClose() throws Exception {
+		assertEquals("a", decode("YQ", 100));
+		assertEquals("ab", decode("YWI", 1));
+	}
+
+	public void testWholeQuantaAreWrittenBeforeClose() throws Exception {
+		ByteArrayOutputStream decoded = new ByteArrayOutputStream();
+		Base64DecodingOutputStream stream = new Base64DecodingOutputStream(decoded);
+		byte[] encoded = "YWJjZGV".getBytes("US-ASCII");
+		stream.write(encoded, 0, encoded.length);
+		stream.flush();
+		// The incomplete quantum waits for more content.
+		assertEquals("abc", decoded.toString("US-ASCII"));
+		stream.close();
+		assertEquals("abcde", decoded.toString("US-ASCII"));
+	}
+
+	public void testLargeContent() throws Exception {
+		byte[] content = new byte[10000];
+		for (int i = 0; i < content.length; ++i) {
+			content[i] = (byte) (i * 31);
+		}
+		String encoded = encode(content);
+		ByteArrayOutputStream decoded = new ByteArrayOutputStream();
+		Base64DecodingOutputStream stream = new Base64DecodingOutputStream(decoded);
+		byte[] bytes = encoded.getBytes("US-ASCII");
+		stream.write(bytes, 0, bytes.length);
+		stream.close();
+		assertTrue(Arrays.equals(content, decoded.toByteArray()));
+	}
+
+	public void testTruncatedQuantumFails() throws Exception {
+		try {
+			decode("YWJjZ", 100);
+			fail("Expected an IOException");
+		} catch (IOException e) {
+			// Expected.
+		}
+	}
+
+	/** Decodes the given content, written in chunks of the given size. */
+	private static String decode(String encoded, int chunkSize) throws IOException {
+		ByteArrayOutputStream decoded = new ByteArrayOutputStream();
+		Base64DecodingOutputStream stream = new Base64DecodingOutputStream(decoded);
+		byte[] bytes = encoded.getBytes("US-ASCII");
+		for (int start = 0; start < bytes.length; start += chunkSize) {
+			stream.write(bytes, start, Math.min(chunkSize, bytes.length - start));
+			stream.flush();
+		}
+		stream.close();
+		return decoded.toString("US-ASCII");
+	}
+
+	/** Encodes the given content in base64, with a line break every 76 characters. */
+	private static String encode(byte[] content) {
+		String alphabet = "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789+/";
+		StringBuilder encoded = new StringBuilder();
+		for (int i = 0; i < content.length; i += 3) {
+			int quantum = (content[i] & 0xff) << 16;
+			if (i + 1 < content.length) {
+				quantum |= (content[i + 1] & 0xff) << 8;
+			}
+			if (i + 2 < content.length) {
+				quantum |= content[i + 2] & 0xff;
+			}
+			encoded.append(alphabet.charAt((quantum >> 18) & 0x3f));
+			encoded.append(alphabet.charAt((quantum >> 12) & 0x3f));
+			encoded.append((i + 1 < content.length) ? alphabet.charAt((quantum >> 6) & 0x3f) : '=');
+			encoded.append((i + 2 < content.length) ? alphabet.charAt(quantum & 0x3f) : '=');
+			if (encoded.length() % 78 == 76) {
+				encoded.append("\r\n");
+			}
+		}
+		return encoded.toString();
+	}
+}
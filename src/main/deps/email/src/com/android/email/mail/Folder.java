@@ -16,6 +16,7 @@
 
 package com.android.email.mail;
 
+import java.io.OutputStream;
 
 public abstract class Folder {
     public enum OpenMode {
@@ -62,6 +63,52 @@ public abstract class Folder {
     public abstract void open(OpenMode mode, PersistentDataCallbacks callbacks)
             throws MessagingException;
 
+    /**
+     * Opens the folder, then queries its quota root if {@code queryQuota} is set, and searches
+     * the UIDs of the messages matching each of the {@code uidSearches} (e.g.
+     * "1:* NOT DELETED"). Implementations may perform all of them in a single round trip.
+     */
+    public OpenResult open(OpenMode mode, boolean queryQuota, String... uidSearches)
+            throws MessagingException {
+        throw new MessagingException("Not implemented");
+    }
+
+    /**
+     * Result of {@link Folder#open(OpenMode, boolean, String...)}.
+     */
+    public static class OpenResult {
+        private final int mQuota;
+        private final String[][] mUids;
+
+        public OpenResult(int quota, String[][] uids) {
+            mQuota = quota;
+            mUids = uids;
+        }
+
+        /**
+         * @return the quota as returned by {@link Folder#getQuotaRoot()}, or -1 if it wasn't
+         * queried.
+         */
+        public int getQuota() {
+            return mQuota;
+        }
+
+        /**
+         * @return the UIDs found by the first search, or null if no search was requested.
+         */
+        public String[] getUids() {
+            return getUids(0);
+        }
+
+        /**
+         * @return the UIDs found by the search at the given index, or null if fewer searches
+         * were requested.
+         */
+        public String[] getUids(int index) {
+            return index < mUids.length ? mUids[index] : null;
+        }
+    }
+
     /**
      * Forces a close of the MailProvider. Any further access will attempt to
      * reopen the MailProvider.
@@ -115,6 +162,28 @@ public abstract class Folder {
      */
     public abstract int getMessageCount() throws MessagingException;
 
+    /**
+     * @return The UIDVALIDITY of the selected folder, or 0 if the server did not report it.
+     */
+    public long getUidValidity() {
+        return 0;
+    }
+
+    /**
+     * @return The UIDNEXT of the selected folder, or 0 if the server did not report it.
+     */
+    public long getUidNext() {
+        return 0;
+    }
+
+    /**
+     * @return The HIGHESTMODSEQ of the selected folder, or 0 if the server does not support
+     * CONDSTORE (RFC 4551) for this folder.
+     */
+    public long getHighestModSeq() {
+        return 0;
+    }
+
     public abstract int getUnreadMessageCount() throws MessagingException;
 
     public abstract Message getMessage(String uid) throws MessagingException;
@@ -152,6 +221,46 @@ public abstract class Folder {
         throw new MessagingException("Not implemented");
     }
 
+    /**
+     * Return the messages whose flags changed since the given mod-sequence, with their flags
+     * populated. Only available when {@link #getHighestModSeq()} is not 0.
+     */
+    public Message[] getMessagesChangedSince(long modSeq) throws MessagingException {
+        throw new MessagingException("Not implemented");
+    }
+
+    /**
+     * @return whether {@link #idle(int)} can be used on this folder.
+     */
+    public boolean isIdleSupported() {
+        return false;
+    }
+
+    /**
+     * Blocks until the server reports new or expunged messages in the folder, or until no such
+     * change has been reported for the given time.
+     *
+     * @return true if the folder has changed.
+     */
+    public boolean idle(int timeoutMillis) throws MessagingException {
+        throw new MessagingException("Not implemented");
+    }
+
+    /**
+     * Interrupts a pending {@link #idle(int)}. May be called from any thread.
+     */
+    public void stopIdle() {
+        // Do nothing - idle is not supported
+    }
+
+    /**
+     * Aborts the command in progress by closing the connection of the folder: the thread running
+     * it fails with an I/O error. May be called from any thread.
+     */
+    public void abort() {
+        // Do nothing - no connection to close
+    }
+
     public abstract void appendMessages(Message[] messages) throws MessagingException;
 
     public abstract void copyMessages(Message[] msgs, Folder folder,
@@ -161,12 +270,42 @@ public abstract class Folder {
             throws MessagingException;
 
     public abstract Message[] expunge() throws MessagingException;
+
+    /**
+     * Flags the given messages as deleted and expunges the folder. Implementations may override
+     * this to perform both operations in fewer round trips.
+     */
+    public void deleteMessages(Message[] messages) throws MessagingException {
+        setFlags(messages, new Flag[] { Flag.DELETED }, true);
+        expunge();
+    }
     
     public abstract Message[] logout() throws MessagingException;
 
     public abstract void fetch(Message[] messages, FetchProfile fp,
             MessageRetrievalListener listener) throws MessagingException;
 
+    /**
+     * Fetches the content of a single part of a message, previously obtained with a
+     * {@link FetchProfile.Item#STRUCTURE} fetch, and writes it decoded to the output stream as it
+     * is received. The stream is not closed.
+     */
+    public void fetchPart(Message message, Part part, OutputStream out)
+            throws MessagingException {
+        throw new MessagingException("Not implemented");
+    }
+
+    /**
+     * Fetches at most length bytes of a single part of a message, starting at the given offset,
+     * and writes them still transfer encoded to the output stream. The stream is not closed.
+     *
+     * @return the number of bytes written, less than length once the end of the part is reached.
+     */
+    public int fetchPartRange(Message message, Part part, long offset, int length,
+            OutputStream out) throws MessagingException {
+        throw new MessagingException("Not implemented");
+    }
+
     public abstract void delete(boolean recurse) throws MessagingException;
 
     public abstract String getName();
@@ -271,4 +410,14 @@ public abstract class Folder {
      * @throws MessagingException 
      */
 	public abstract int getQuotaRoot() throws MessagingException;
+
+    /**
+     * Get the Quota value pushed by the server since the previous call, without sending any
+     * command
+     * @return used Quota percentage reported by the last unsolicited QUOTA response, or -1 if
+     * the server didn't send any
+     */
+    public int getReceivedQuota() {
+        return -1;
+    }
 }
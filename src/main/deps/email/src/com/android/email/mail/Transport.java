@@ -121,6 +121,17 @@ public interface Transport {
      */
     public void reopenTls() throws MessagingException;
     
+    /**
+     * Compresses the data sent and decompresses the data received from now on with raw DEFLATE
+     * (RFC 1951), e.g. once an IMAP COMPRESS command (RFC 4978) has succeeded.
+     */
+    public void startCompression();
+
+    /**
+     * @return whether {@link #startCompression()} can be used on this device
+     */
+    public boolean isCompressionSupported();
+
     /**
      * @return true if the connection is open
      */
@@ -354,22 +354,32 @@ public class MimeUtility {
         /*
          * We'll remove any transfer encoding by wrapping the stream.
          */
+        in = getDecodingInputStream(in, contentTransferEncoding);
+
+        BinaryTempFileBody tempBody = new BinaryTempFileBody();
+        OutputStream out = tempBody.getOutputStream();
+        IOUtils.copy(in, out);
+        out.close();
+        return tempBody;
+    }
+
+    /**
+     * Wraps the given stream so that the transfer encoding (base64 or quoted-printable) is
+     * removed on the fly while reading it.
+     */
+    public static InputStream getDecodingInputStream(InputStream in,
+            String contentTransferEncoding) {
         if (contentTransferEncoding != null) {
             contentTransferEncoding =
                 MimeUtility.getHeaderParameter(contentTransferEncoding, null);
             if ("quoted-printable".equalsIgnoreCase(contentTransferEncoding)) {
-                in = new QuotedPrintableInputStream(in);
+                return new QuotedPrintableInputStream(in);
             }
             else if ("base64".equalsIgnoreCase(contentTransferEncoding)) {
-                in = new Base64InputStream(in);
+                return new Base64InputStream(in);
             }
         }
-
-        BinaryTempFileBody tempBody = new BinaryTempFileBody();
-        OutputStream out = tempBody.getOutputStream();
-        IOUtils.copy(in, out);
-        out.close();
-        return tempBody;
+        return in;
     }
 
     /**
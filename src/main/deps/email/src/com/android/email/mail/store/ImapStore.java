@@ -16,11 +16,20 @@
 
 package com.android.email.mail.store;
 
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.SocketTimeoutException;
 import java.net.URI;
 import java.net.URISyntaxException;
 import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
 import java.nio.charset.Charset;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
@@ -28,17 +37,24 @@ import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Date;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
 import java.util.LinkedHashSet;
+import java.util.LinkedList;
 import java.util.List;
 import java.util.Locale;
 import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.regex.Pattern;
 
 import javax.net.ssl.SSLException;
 
+import org.apache.commons.io.IOUtils;
+
 import android.content.Context;
 import android.os.Build;
+import android.os.SystemClock;
 import android.telephony.TelephonyManager;
 import android.text.TextUtils;
 import android.util.Base64;
@@ -72,8 +88,8 @@ import com.android.email.mail.store.imap.ImapResponse;
 import com.android.email.mail.store.imap.ImapResponseParser;
 import com.android.email.mail.store.imap.ImapResponseParser.ByeException;
 import com.android.email.mail.store.imap.ImapString;
+import com.android.email.mail.store.imap.ImapUidSet;
 import com.android.email.mail.store.imap.digestmd5.DigestMd5Responder;
-import com.android.email.mail.transport.CountingOutputStream;
 import com.android.email.mail.transport.DiscourseLogger;
 import com.android.email.mail.transport.EOLConvertingOutputStream;
 import com.android.email.mail.transport.MailTransport;
@@ -101,6 +117,9 @@ public class ImapStore extends Store {
 
     private static final Flag[] PERMANENT_FLAGS = { Flag.DELETED, Flag.SEEN, Flag.FLAGGED };
 
+    /** Largest literal that can be sent non-synchronizing with LITERAL- (RFC 7888). */
+    private static final long LITERAL_MINUS_MAX_SIZE = 4096;
+
     private final Context mContext;
     private Transport mRootTransport;
     private String mUsername;
@@ -109,9 +128,14 @@ public class ImapStore extends Store {
     private String mPathPrefix;
     private String mIdPhrase = null;
     private static String sImapId = null;
+    private static volatile int sMaxUidSetLength = 1000;
 
     private final ConcurrentLinkedQueue<ImapConnection> mConnectionPool =
             new ConcurrentLinkedQueue<ImapConnection>();
+    /** Connections handed out by {@link #getConnection()}, and neither pooled nor closed yet. */
+    private final AtomicInteger mConnectionsInUse = new AtomicInteger();
+    /** Set by {@link #close()}, the connections returned afterwards are closed. */
+    private volatile boolean mClosed;
 
     /**
      * Charset used for converting folder names to and from UTF-7 as defined by RFC 3501.
@@ -208,6 +232,14 @@ public class ImapStore extends Store {
         return mConnectionPool;
     }
 
+    /**
+     * Sets the maximum length of the UID sets sent in a single command. Longer sets are split
+     * over several commands, so that the command lines remain under the limit of the server.
+     */
+    public static void setMaxUidSetLength(int maxUidSetLength) {
+        sMaxUidSetLength = maxUidSetLength;
+    }
+
     /**
      * For testing only.  Injects a different root transport (it will be copied using
      * newInstanceWithConfiguration() each time IMAP sets up a new channel).  The transport
@@ -437,6 +469,29 @@ public class ImapStore extends Store {
         }
     }
 
+    /**
+     * Opens and authenticates a connection ahead of its use and adds it to the pool, unless one
+     * is already pooled. This hides the connection setup from an operation known to come shortly.
+     */
+    public void prepareConnection() throws MessagingException {
+        if (!mConnectionPool.isEmpty()) {
+            return;
+        }
+        ImapConnection connection = new ImapConnection();
+        try {
+            connection.open();
+        } catch (IOException ioe) {
+            connection.close();
+            throw new MessagingException(MessagingException.IOERROR, ioe.toString());
+        } catch (MessagingException me) {
+            connection.close();
+            throw me;
+        } finally {
+            connection.destroyResponses();
+        }
+        poolConnection(connection);
+    }
+
     /**
      * Gets a connection if one is available from the pool, or creates a new one if not.
      */
@@ -459,18 +514,92 @@ public class ImapStore extends Store {
         if (connection == null) {
             connection = new ImapConnection();
         }
+        if (connection.mCheckedOut.compareAndSet(false, true)) {
+            mConnectionsInUse.incrementAndGet();
+        }
         return connection;
     }
 
     /**
-     * Save a {@link ImapConnection} in the pool for reuse.
+     * Save a {@link ImapConnection} in the pool for reuse. The connection is closed instead if
+     * the store has been closed.
      */
     /* package */ void poolConnection(ImapConnection connection) {
         if (connection != null) {
+            if (mClosed) {
+                connection.destroyResponses();
+                connection.close();
+                return;
+            }
+            connection.checkIn();
+            connection.mLastUsedTime = SystemClock.elapsedRealtime();
             mConnectionPool.add(connection);
+            if (mClosed && mConnectionPool.remove(connection)) {
+                // Closed while being pooled.
+                connection.destroyResponses();
+                connection.close();
+            }
         }
     }
 
+    /**
+     * Returns the number of connections currently used by an operation, i.e. obtained from the
+     * store and neither returned to the pool nor closed yet.
+     */
+    public int getConnectionsInUse() {
+        return mConnectionsInUse.get();
+    }
+
+    /**
+     * Closes every pooled connection that has not been used for at least {@code maxIdleMillis}.
+     * Connections currently in use are not affected, they will be checked when returned.
+     *
+     * @return the number of connections still pooled after the eviction
+     */
+    public int closeIdleConnections(long maxIdleMillis) {
+        final long now = SystemClock.elapsedRealtime();
+        for (Iterator<ImapConnection> it = mConnectionPool.iterator(); it.hasNext(); ) {
+            ImapConnection connection = it.next();
+            if (now - connection.mLastUsedTime >= maxIdleMillis) {
+                if (mConnectionPool.remove(connection)) {
+                    connection.destroyResponses();
+                    connection.close();
+                }
+            }
+        }
+        return mConnectionPool.size();
+    }
+
+    /**
+     * Closes all the pooled connections. The store can still be used afterwards, a new connection
+     * will be opened on demand.
+     */
+    public void closeAllConnections() {
+        ImapConnection connection;
+        while ((connection = mConnectionPool.poll()) != null) {
+            connection.destroyResponses();
+            connection.close();
+        }
+    }
+
+    /**
+     * Closes all the pooled connections, as well as the connections in use once they are
+     * returned: unlike {@link #closeAllConnections()}, nothing is pooled by the store anymore.
+     */
+    public void close() {
+        mClosed = true;
+        closeAllConnections();
+    }
+
+    /**
+     * Returns a new {@link Folder} which is not shared through the folder cache. Callers running
+     * concurrent operations on the same store must use this instead of {@link #getFolder(String)},
+     * as an open folder holds a single connection.
+     */
+    public Folder createFolder(String name) {
+        return new ImapFolder(this, name);
+    }
+
     /* package */ static String encodeFolderName(String name) {
         // TODO bypass the conversion if name doesn't have special char.
         ByteBuffer bb = MODIFIED_UTF_7_CHARSET.encode(name);
@@ -489,28 +618,35 @@ public class ImapStore extends Store {
     }
 
     /**
-     * Returns UIDs of Messages joined with "," as the separator.
+     * Returns the UIDs of the messages as compact sequence sets, e.g. "1:40,42,45:60". There
+     * are several sets if the UIDs don't fit in {@link #sMaxUidSetLength} characters, each of
+     * them to be sent in its own command.
      */
-    /* package */ static String joinMessageUids(Message[] messages) {
-        StringBuilder sb = new StringBuilder();
-        boolean notFirst = false;
+    /* package */ static List<String> buildUidSets(Message[] messages) {
+        ArrayList<String> uids = new ArrayList<String>(messages.length);
         for (Message m : messages) {
-            if (notFirst) {
-                sb.append(',');
-            }
-            sb.append(m.getUid());
-            notFirst = true;
+            uids.add(m.getUid());
         }
-        return sb.toString();
+        return ImapUidSet.build(uids, sMaxUidSetLength);
     }
 
     static class ImapFolder extends Folder {
         private final ImapStore mStore;
         private final String mName;
         private int mMessageCount = -1;
+        /** Quota percentage of the last untagged QUOTA response, -1 if none was received. */
+        private volatile int mReceivedQuota = -1;
         private ImapConnection mConnection;
         private OpenMode mMode;
         private boolean mExists;
+        /** Guards the IDLE state below, as {@link #stopIdle()} is called from another thread. */
+        private final Object mIdleLock = new Object();
+        private boolean mIdling;
+        private boolean mIdleStopRequested;
+        /** UIDVALIDITY, UIDNEXT and HIGHESTMODSEQ reported by the last SELECT, 0 if absent. */
+        private long mUidValidity;
+        private long mUidNext;
+        private long mHighestModSeq;
 
         public ImapFolder(ImapStore store, String name) {
             mStore = store;
@@ -548,49 +684,68 @@ public class ImapStore extends Store {
                 synchronized (this) {
                     mConnection = mStore.getConnection();
                 }
-                // * FLAGS (\Answered \Flagged \Deleted \Seen \Draft NonJunk
-                // $MDNSent)
-                // * OK [PERMANENTFLAGS (\Answered \Flagged \Deleted \Seen \Draft
-                // NonJunk $MDNSent \*)] Flags permitted.
-                // * 23 EXISTS
-                // * 0 RECENT
-                // * OK [UIDVALIDITY 1125022061] UIDs valid
-                // * OK [UIDNEXT 57576] Predicted next UID
-                // 2 OK [READ-WRITE] Select completed.
                 try {
-                    List<ImapResponse> responses = mConnection.executeSimpleCommand(
-                            String.format(ImapConstants.SELECT + " \"%s\"",
-                                    encodeFolderName(mName)));
-                    /*
-                     * If the command succeeds we expect the folder has been opened read-write
-                     * unless we are notified otherwise in the responses.
-                     */
-                    mMode = OpenMode.READ_WRITE;
-
-                    int messageCount = -1;
-                    for (ImapResponse response : responses) {
-                        if (response.isDataResponse(1, ImapConstants.EXISTS)) {
-                            messageCount = response.getStringOrEmpty(0).getNumberOrZero();
-
-                        } else if (response.isOk()) {
-                            final ImapString responseCode = response.getResponseCodeOrEmpty();
-                            if (responseCode.is(ImapConstants.READ_ONLY)) {
-                                mMode = OpenMode.READ_ONLY;
-                            } else if (responseCode.is(ImapConstants.READ_WRITE)) {
-                                mMode = OpenMode.READ_WRITE;
-                            }
-                        } else if (response.isTagged()) { // Not OK
-                            throw new MessagingException("Can't open mailbox: "
-                                    + response.getStatusResponseTextOrEmpty());
-                        }
-                    }
+                    handleSelectResponses(mConnection.executeSimpleCommand(buildSelectCommand()));
+                } catch (IOException ioe) {
+                    throw ioExceptionHandler(mConnection, ioe);
+                } finally {
+                    destroyResponses();
+                }
+            } catch (MessagingException e) {
+                mExists = false;
+                // The responses of the SELECT may not have been read to the end.
+                close(false, true);
+                throw e;
+            }
+        }
 
-                    if (messageCount == -1) {
-                        throw new MessagingException("Did not find message count during select");
+        /**
+         * Opens the folder with a SELECT pipelined with the GETQUOTAROOT and the UID SEARCHes, so
+         * that they all cost a single round trip. The other commands are sent before the SELECT
+         * has completed: they fail along with it if the folder can't be selected.
+         */
+        @Override
+        public OpenResult open(OpenMode mode, boolean queryQuota, String... uidSearches)
+                throws MessagingException {
+            if (isOpen()) {
+                // Hand the connection back, a new SELECT is sent anyway.
+                close(false);
+            }
+            try {
+                synchronized (this) {
+                    mConnection = mStore.getConnection();
+                }
+                try {
+                    ArrayList<PipelinedCommand> commands = new ArrayList<PipelinedCommand>();
+                    PipelinedCommand select = new PipelinedCommand(buildSelectCommand());
+                    commands.add(select);
+                    PipelinedCommand quotaRoot = null;
+                    if (queryQuota) {
+                        quotaRoot = new PipelinedCommand(buildQuotaRootCommand());
+                        commands.add(quotaRoot);
+                    }
+                    PipelinedCommand[] searches = new PipelinedCommand[uidSearches.length];
+                    for (int i = 0; i < uidSearches.length; i++) {
+                        searches[i] = new PipelinedCommand(
+                                ImapConstants.UID_SEARCH + " " + uidSearches[i]);
+                        commands.add(searches[i]);
                     }
-                    mMessageCount = messageCount;
-                    mExists = true;
+                    executePipelinedCommands(commands);
 
+                    handleSelectResponses(select.getResponses());
+                    int quota = -1;
+                    if (quotaRoot != null) {
+                        quotaRoot.checkOk();
+                        quota = parseQuotaRootResponses(quotaRoot.getResponses());
+                    }
+                    String[][] uids = new String[searches.length][];
+                    for (int i = 0; i < searches.length; i++) {
+                        // A failed search means that no message matched, see searchForUids().
+                        uids[i] = searches[i].isOk()
+                                ? parseSearchResponses(searches[i].getResponses())
+                                : Utility.EMPTY_STRINGS;
+                    }
+                    return new OpenResult(quota, uids);
                 } catch (IOException ioe) {
                     throw ioExceptionHandler(mConnection, ioe);
                 } finally {
@@ -598,16 +753,123 @@ public class ImapStore extends Store {
                 }
             } catch (MessagingException e) {
                 mExists = false;
-                close(false);
+                close(false, true);
                 throw e;
             }
         }
 
+        /**
+         * Builds the SELECT command of the folder. The connection is opened first, as the
+         * capabilities of the server are needed to enable CONDSTORE.
+         */
+        private String buildSelectCommand() throws IOException, MessagingException {
+            mConnection.open();
+            String selectCommand = String.format(ImapConstants.SELECT + " \"%s\"",
+                    encodeFolderName(mName));
+            if (mConnection.hasCapability(ImapConstants.CONDSTORE)) {
+                // Enables CONDSTORE so that the server reports HIGHESTMODSEQ (RFC 4551)
+                selectCommand += " (" + ImapConstants.CONDSTORE + ")";
+            }
+            return selectCommand;
+        }
+
+        /**
+         * Reads the state of the folder from the responses to its SELECT, and marks it open.
+         */
+        private void handleSelectResponses(List<ImapResponse> responses)
+                throws MessagingException {
+            // * FLAGS (\Answered \Flagged \Deleted \Seen \Draft NonJunk
+            // $MDNSent)
+            // * OK [PERMANENTFLAGS (\Answered \Flagged \Deleted \Seen \Draft
+            // NonJunk $MDNSent \*)] Flags permitted.
+            // * 23 EXISTS
+            // * 0 RECENT
+            // * OK [UIDVALIDITY 1125022061] UIDs valid
+            // * OK [UIDNEXT 57576] Predicted next UID
+            // * OK [HIGHESTMODSEQ 715194045007] (CONDSTORE servers only)
+            // 2 OK [READ-WRITE] Select completed.
+
+            /*
+             * If the command succeeds we expect the folder has been opened read-write
+             * unless we are notified otherwise in the responses.
+             */
+            mMode = OpenMode.READ_WRITE;
+            mUidValidity = 0;
+            mUidNext = 0;
+            mHighestModSeq = 0;
+
+            int messageCount = -1;
+            for (ImapResponse response : responses) {
+                if (response.isDataResponse(1, ImapConstants.EXISTS)) {
+                    messageCount = response.getStringOrEmpty(0).getNumberOrZero();
+
+                } else if (response.isOk()) {
+                    final ImapString responseCode = response.getResponseCodeOrEmpty();
+                    final ImapString responseValue =
+                            response.getListOrEmpty(1).getStringOrEmpty(1);
+                    if (responseCode.is(ImapConstants.READ_ONLY)) {
+                        mMode = OpenMode.READ_ONLY;
+                    } else if (responseCode.is(ImapConstants.READ_WRITE)) {
+                        mMode = OpenMode.READ_WRITE;
+                    } else if (responseCode.is(ImapConstants.UIDVALIDITY)) {
+                        mUidValidity = responseValue.getLongOrZero();
+                    } else if (responseCode.is(ImapConstants.UIDNEXT)) {
+                        mUidNext = responseValue.getLongOrZero();
+                    } else if (responseCode.is(ImapConstants.HIGHESTMODSEQ)) {
+                        mHighestModSeq = responseValue.getLongOrZero();
+                    } else if (responseCode.is(ImapConstants.NOMODSEQ)) {
+                        mHighestModSeq = 0;
+                    }
+                } else if (response.isTagged()) { // Not OK
+                    throw new MessagingException("Can't open mailbox: "
+                            + response.getStatusResponseTextOrEmpty());
+                }
+            }
+
+            if (messageCount == -1) {
+                throw new MessagingException("Did not find message count during select");
+            }
+            mMessageCount = messageCount;
+            mExists = true;
+        }
+
+        /**
+         * Sends the commands in a pipeline. If it fails, the connection is closed rather than
+         * returned to the pool, as responses to the commands may be left unread.
+         */
+        private void executePipelinedCommands(List<PipelinedCommand> commands)
+                throws IOException, MessagingException {
+            try {
+                mConnection.executePipelinedCommands(
+                        commands.toArray(new PipelinedCommand[commands.size()]));
+            } catch (MessagingException me) {
+                // Already closed by the connection.
+                mConnection = null;
+                close(false);
+                throw me;
+            }
+        }
+
         @Override
         public boolean isOpen() {
             return mExists && mConnection != null;
         }
 
+        @Override
+        public long getUidValidity() {
+            return mUidValidity;
+        }
+
+        @Override
+        public long getUidNext() {
+            return mUidNext;
+        }
+
+        @Override
+        public long getHighestModSeq() {
+            return mHighestModSeq;
+        }
+
         @Override
         public OpenMode getMode() throws MessagingException {
             return mMode;
@@ -618,6 +880,12 @@ public class ImapStore extends Store {
         	close(expunge, false);
         }
         
+        /**
+         * Closes the folder. Unless {@code logout} is set, the connection is returned to the pool
+         * of the store. Otherwise LOGOUT is sent if the folder is open, and the connection is
+         * closed: this must be used after a failure, as the connection may have responses left
+         * unread.
+         */
         @Override
         public void close(boolean expunge, boolean logout) {
             mMessageCount = -1;
@@ -627,16 +895,20 @@ public class ImapStore extends Store {
 	                    expunge();
 	            	}
 	            	
-	            	if (logout) {
+	            	if (logout && isOpen()) {
 	            		logout();
-	            		mConnection = null; // we don't want the connection to be added to the pool
 	            	}
                 } catch (MessagingException e) {
-                    // Failed to expunge
+                    // Failed to expunge or to log out
                 }
             	
                 destroyResponses();
-                mStore.poolConnection(mConnection);
+                if (!logout) {
+                    mStore.poolConnection(mConnection);
+                } else if (mConnection != null) {
+                    // we don't want the connection to be added to the pool
+                    mConnection.close();
+                }
                 mConnection = null;
             }
         }
@@ -730,10 +1002,11 @@ public class ImapStore extends Store {
                 MessageUpdateCallbacks callbacks) throws MessagingException {
             checkOpen();
             try {
-                mConnection.executeSimpleCommand(
-                        String.format(ImapConstants.UID_COPY + " %s \"%s\"",
-                                joinMessageUids(messages),
-                                encodeFolderName(folder.getName())));
+                for (String uidSet : buildUidSets(messages)) {
+                    mConnection.executeSimpleCommand(
+                            String.format(ImapConstants.UID_COPY + " %s \"%s\"",
+                                    uidSet, encodeFolderName(folder.getName())));
+                }
             } catch (IOException ioe) {
                 throw ioExceptionHandler(mConnection, ioe);
             } finally {
@@ -787,26 +1060,30 @@ public class ImapStore extends Store {
                 } catch (IOException ioe) {
                     throw ioExceptionHandler(mConnection, ioe);
                 }
-                // S: * SEARCH 2 3 6
-                final ArrayList<String> uids = new ArrayList<String>();
-                for (ImapResponse response : responses) {
-                    if (!response.isDataResponse(0, ImapConstants.SEARCH)) {
-                        continue;
-                    }
-                    // Found SEARCH response data
-                    for (int i = 1; i < response.size(); i++) {
-                        ImapString s = response.getStringOrEmpty(i);
-                        if (s.isString()) {
-                            uids.add(s.getString());
-                        }
-                    }
-                }
-                return uids.toArray(Utility.EMPTY_STRINGS);
+                return parseSearchResponses(responses);
             } finally {
                 destroyResponses();
             }
         }
 
+        private String[] parseSearchResponses(List<ImapResponse> responses) {
+            // S: * SEARCH 2 3 6
+            final ArrayList<String> uids = new ArrayList<String>();
+            for (ImapResponse response : responses) {
+                if (!response.isDataResponse(0, ImapConstants.SEARCH)) {
+                    continue;
+                }
+                // Found SEARCH response data
+                for (int i = 1; i < response.size(); i++) {
+                    ImapString s = response.getStringOrEmpty(i);
+                    if (s.isString()) {
+                        uids.add(s.getString());
+                    }
+                }
+            }
+            return uids.toArray(Utility.EMPTY_STRINGS);
+        }
+
         @Override
         public Message getMessage(String uid) throws MessagingException {
             checkOpen();
@@ -932,112 +1209,387 @@ public class ImapStore extends Store {
             }
 
             try {
-                mConnection.sendCommand(String.format(
-                        ImapConstants.UID_FETCH + " %s (%s)", joinMessageUids(messages),
-                        Utility.combine(fetchFields.toArray(new String[fetchFields.size()]), ' ')
-                        ), false);
-                ImapResponse response;
-                int messageNumber = 0;
-                do {
-                    response = null;
-                    try {
-                        response = mConnection.readResponse();
+                // The messages of all the sets share the map and the listener, so splitting a long
+                // set over several commands is transparent to the caller.
+                for (String uidSet : buildUidSets(messages)) {
+                    mConnection.sendCommand(String.format(
+                            ImapConstants.UID_FETCH + " %s (%s)", uidSet,
+                            Utility.combine(
+                                    fetchFields.toArray(new String[fetchFields.size()]), ' ')
+                            ), false);
+                    ImapResponse response;
+                    int messageNumber = 0;
+                    do {
+                        response = null;
+                        try {
+                            response = mConnection.readResponse();
 
-                        if (!response.isDataResponse(1, ImapConstants.FETCH)) {
-                            continue; // Ignore
-                        }
-                        final ImapList fetchList = response.getListOrEmpty(2);
-                        final String uid = fetchList.getKeyedStringOrEmpty(ImapConstants.UID)
-                                .getString();
-                        if (TextUtils.isEmpty(uid)) continue;
-
-                        ImapMessage message = (ImapMessage) messageMap.get(uid);
-                        if (message == null) continue;
-
-                        if (fp.contains(FetchProfile.Item.FLAGS)) {
-                            final ImapList flags =
-                                fetchList.getKeyedListOrEmpty(ImapConstants.FLAGS);
-                            for (int i = 0, count = flags.size(); i < count; i++) {
-                                final ImapString flag = flags.getStringOrEmpty(i);
-                                if (flag.is(ImapConstants.FLAG_DELETED)) {
-                                    message.setFlagInternal(Flag.DELETED, true);
-                                } else if (flag.is(ImapConstants.FLAG_ANSWERED)) {
-                                    message.setFlagInternal(Flag.ANSWERED, true);
-                                } else if (flag.is(ImapConstants.FLAG_SEEN)) {
-                                    message.setFlagInternal(Flag.SEEN, true);
-                                } else if (flag.is(ImapConstants.FLAG_FLAGGED)) {
-                                    message.setFlagInternal(Flag.FLAGGED, true);
-                                } else if (flag.is(ImapConstants.FLAG_GREETING_ON)) {
-                                	message.setFlagInternal(Flag.GREETING_ON, true);
-                                }
+                            if (!response.isDataResponse(1, ImapConstants.FETCH)) {
+                                continue; // Ignore
                             }
-                        }
-                        if (fp.contains(FetchProfile.Item.ENVELOPE)) {
-                            final Date internalDate = fetchList.getKeyedStringOrEmpty(
-                                    ImapConstants.INTERNALDATE).getDateOrNull();
-                            final int size = fetchList.getKeyedStringOrEmpty(
-                                    ImapConstants.RFC822_SIZE).getNumberOrZero();
-                            final String header = fetchList.getKeyedStringOrEmpty(
-                                    ImapConstants.BODY_BRACKET_HEADER, true).getString();
-
-                            message.setInternalDate(internalDate);
-                            message.setSize(size);
-                            message.parse(Utility.streamFromAsciiString(header));
-                        }
-                        if (fp.contains(FetchProfile.Item.STRUCTURE)) {
-                            ImapList bs = fetchList.getKeyedListOrEmpty(
-                                    ImapConstants.BODYSTRUCTURE);
-                            if (!bs.isEmpty()) {
-                                try {
-                                    parseBodyStructure(bs, message, ImapConstants.TEXT);
-                                } catch (MessagingException e) {
-                                    if (Email.LOGD) {
-                                        Log.v(Email.LOG_TAG, "Error handling message", e);
+                            final ImapList fetchList = response.getListOrEmpty(2);
+                            final String uid = fetchList.getKeyedStringOrEmpty(ImapConstants.UID)
+                                    .getString();
+                            if (TextUtils.isEmpty(uid)) continue;
+
+                            ImapMessage message = (ImapMessage) messageMap.get(uid);
+                            if (message == null) continue;
+
+                            if (fp.contains(FetchProfile.Item.FLAGS)) {
+                                parseFlags(fetchList, message);
+                            }
+                            if (fp.contains(FetchProfile.Item.ENVELOPE)) {
+                                final Date internalDate = fetchList.getKeyedStringOrEmpty(
+                                        ImapConstants.INTERNALDATE).getDateOrNull();
+                                final int size = fetchList.getKeyedStringOrEmpty(
+                                        ImapConstants.RFC822_SIZE).getNumberOrZero();
+                                final String header = fetchList.getKeyedStringOrEmpty(
+                                        ImapConstants.BODY_BRACKET_HEADER, true).getString();
+
+                                message.setInternalDate(internalDate);
+                                message.setSize(size);
+                                message.parse(Utility.streamFromAsciiString(header));
+                            }
+                            if (fp.contains(FetchProfile.Item.STRUCTURE)) {
+                                ImapList bs = fetchList.getKeyedListOrEmpty(
+                                        ImapConstants.BODYSTRUCTURE);
+                                if (!bs.isEmpty()) {
+                                    try {
+                                        parseBodyStructure(bs, message, ImapConstants.TEXT);
+                                    } catch (MessagingException e) {
+                                        if (Email.LOGD) {
+                                            Log.v(Email.LOG_TAG, "Error handling message", e);
+                                        }
+                                        message.setBody(null);
                                     }
-                                    message.setBody(null);
                                 }
                             }
+                            if (fp.contains(FetchProfile.Item.BODY)
+                                    || fp.contains(FetchProfile.Item.BODY_SANE)) {
+                                // Body is keyed by "BODY[...".
+                                // TOOD Should we accept "RFC822" as well??
+                                // The old code didn't really check the key, so it accepted any
+                                // literal that first appeared.
+
+                                // Typically there are two values keyed with "BODY[" prefix in
+                                // a fetch response:
+                                // 1) Keyed by "BODY[HEADER.FIELDS...". This includes message
+                                //    headers.
+                                // 2) Keyed by "BODY[]". This include the content of the message
+                                //    (and possibly the headers as well?)
+                                // The earlier implementation fetched the value keyed with "BODY[".
+                                // This meant that we used to pick the one that appeared first. So
+                                // if "BODY[HEADER.FIELDS..." appears first then we never were able
+                                // to get to the actual content. What we need here is the pick the
+                                // value keyed by "BODY[]" to ensure that we we always get the body
+                                // field with the content and not just headers.
+                                ImapString body = fetchList.getKeyedStringOrEmpty("BODY[]", true);
+                                InputStream bodyStream = body.getAsStream();
+                                message.parse(bodyStream);
+                            }
+                            if (fetchPart != null && fetchPart.getSize() > 0) {
+                                InputStream bodyStream = fetchList.getKeyedStringOrEmpty(
+                                        "BODY[", true).getAsStream();
+                                String contentType = fetchPart.getContentType();
+                                String contentTransferEncoding = fetchPart.getHeader(
+                                        MimeHeader.HEADER_CONTENT_TRANSFER_ENCODING)[0];
+
+                                // TODO Don't create 2 temp files.
+                                // decodeBody creates BinaryTempFileBody, but we could avoid this
+                                // if we implement ImapStringBody.
+                                // (We'll need to share a temp file.  Protect it with a ref-count.)
+                                fetchPart.setBody(MimeUtility.decodeBody(
+                                        bodyStream,
+                                        contentTransferEncoding));
+                            }
+
+                            if (listener != null) {
+                                listener.messageRetrieved(message);
+                            }
+                        } finally {
+                            destroyResponses();
                         }
-                        if (fp.contains(FetchProfile.Item.BODY)
-                                || fp.contains(FetchProfile.Item.BODY_SANE)) {
-                            // Body is keyed by "BODY[...".
-                            // TOOD Should we accept "RFC822" as well??
-                            // The old code didn't really check the key, so it accepted any literal
-                            // that first appeared.
-                          
-                            // Typically there are two values keyed with "BODY[" prefix in a fetch
-                            // response:
-                            // 1) Keyed by "BODY[HEADER.FIELDS...". This includes message headers.
-                            // 2) Keyed by "BODY[]". This include the content of the message (and
-                            //    possibly the headers as well?)
-                            // The earlier implementation fetched the value keyed with "BODY[". 
-                            // This meant that we used to pick the one that appeared first. So if 
-                            // "BODY[HEADER.FIELDS..." appears first then we never were able to get
-                            // to the actual content. What we need here is the pick the value keyed
-                            // by "BODY[]" to ensure that we we always get the body field with the
-                            // content and not just headers.
-                            ImapString body = fetchList.getKeyedStringOrEmpty("BODY[]", true);
-                            InputStream bodyStream = body.getAsStream();
-                            message.parse(bodyStream);
+                    } while (!response.isTagged());
+                }
+            } catch (IOException ioe) {
+                throw ioExceptionHandler(mConnection, ioe);
+            }
+        }
+
+        /**
+         * Fetches a single part of a message and writes its decoded content to the output stream
+         * while it is received, so that the part is never held in memory. The part must come
+         * from a BODYSTRUCTURE fetch, which sets its IMAP part id and transfer encoding.
+         * <pre>
+         * C: UID FETCH 42 (UID BODY.PEEK[2])
+         * S: * 1 FETCH (UID 42 BODY[2] {81236}
+         * </pre>
+         */
+        @Override
+        public void fetchPart(Message message, Part part, OutputStream out)
+                throws MessagingException {
+            final String[] encodings = part.getHeader(MimeHeader.HEADER_CONTENT_TRANSFER_ENCODING);
+            final String encoding = (encodings != null) ? encodings[0] : null;
+            if (fetchPartLiteral(message, part, "", encoding, out) < 0) {
+                throw new MessagingException("Part not returned by the server");
+            }
+        }
+
+        /**
+         * Fetches a range of a single part of a message and writes it, still transfer encoded, to
+         * the output stream while it is received. Successive ranges can be decoded by feeding them
+         * to the same decoder, which allows a download to be resumed from the last offset.
+         * <pre>
+         * C: UID FETCH 42 (UID BODY.PEEK[2]&lt;65536.65536&gt;)
+         * S: * 1 FETCH (UID 42 BODY[2]&lt;65536&gt; {15700}
+         * </pre>
+         */
+        @Override
+        public int fetchPartRange(Message message, Part part, long offset, int length,
+                OutputStream out) throws MessagingException {
+            final String range = "<" + offset + "." + length + ">";
+            // A range starting past the end of the part is returned as an empty string.
+            return (int) Math.max(fetchPartLiteral(message, part, range, null, out), 0);
+        }
+
+        /**
+         * Sends a UID FETCH for the given part (and range) of a message and copies the returned
+         * literal to the output stream, decoding it if a transfer encoding is provided.
+         *
+         * @return the number of bytes written, -1 if the server did not return a literal.
+         */
+        private long fetchPartLiteral(Message message, Part part, String range,
+                final String encoding, final OutputStream out) throws MessagingException {
+            checkOpen();
+            final String[] partIds =
+                    part.getHeader(MimeHeader.HEADER_ANDROID_ATTACHMENT_STORE_DATA);
+            if (partIds == null) {
+                throw new MessagingException("No part id, the structure must be fetched first");
+            }
+            final long[] written = new long[] { -1 };
+
+            try {
+                mConnection.setLiteralSink(new ImapResponseParser.LiteralSink() {
+                    @Override
+                    public void consume(InputStream in, int size) throws IOException {
+                        written[0] = IOUtils.copyLarge(
+                                MimeUtility.getDecodingInputStream(in, encoding), out);
+                    }
+                });
+                List<ImapResponse> responses = mConnection.executeSimpleCommand(String.format(
+                        ImapConstants.UID_FETCH + " %s (%s %s[%s]%s)", message.getUid(),
+                        ImapConstants.UID, ImapConstants.FETCH_FIELD_BODY_PEEK_BARE, partIds[0],
+                        range));
+                handleUntaggedResponses(responses);
+            } catch (IOException ioe) {
+                throw ioExceptionHandler(mConnection, ioe);
+            } finally {
+                if (mConnection != null) {
+                    mConnection.setLiteralSink(null);
+                }
+                destroyResponses();
+            }
+            return written[0];
+        }
+
+        @Override
+        public boolean isIdleSupported() {
+            return mConnection != null && mConnection.hasCapability(ImapConstants.IDLE);
+        }
+
+        /**
+         * Waits for changes of the selected folder with IDLE (RFC 2177). The IDLE command is
+         * ended when the server reports new or expunged messages, when nothing has been received
+         * for {@code timeoutMillis}, or when {@link #stopIdle()} is called.
+         * <p>
+         * Flag updates (FETCH responses) are not reported as changes: they mostly echo the
+         * STOREs sent by the client's own synchronizations, which would otherwise trigger one
+         * another endlessly.
+         * <pre>
+         * C: 12 IDLE
+         * S: + idling
+         * S: * 4 EXISTS
+         * C: DONE
+         * S: 12 OK IDLE terminated
+         * </pre>
+         * @return whether the server reported a change of the folder.
+         */
+        @Override
+        public boolean idle(int timeoutMillis) throws MessagingException {
+            checkOpen();
+            if (!isIdleSupported()) {
+                throw new MessagingException("IDLE is not supported by the server");
+            }
+            boolean changed = false;
+            try {
+                mConnection.sendCommand(ImapConstants.IDLE, false);
+                ImapResponse response = mConnection.readResponse();
+                try {
+                    if (!response.isContinuationRequest()) {
+                        throw new ImapException(response.toString(),
+                                response.getAlertTextOrEmpty().getString());
+                    }
+                } finally {
+                    destroyResponses();
+                }
+                synchronized (mIdleLock) {
+                    mIdling = true;
+                    if (mIdleStopRequested) {
+                        endIdle();
+                    }
+                }
+
+                boolean completed = false;
+                mConnection.setReadTimeout(timeoutMillis);
+                try {
+                    while (!changed && !completed) {
+                        response = mConnection.readResponse();
+                        try {
+                            completed = response.isTagged();
+                            changed = isFolderChange(response);
+                            handleUntaggedResponse(response);
+                        } finally {
+                            destroyResponses();
                         }
-                        if (fetchPart != null && fetchPart.getSize() > 0) {
-                            InputStream bodyStream =
-                                    fetchList.getKeyedStringOrEmpty("BODY[", true).getAsStream();
-                            String contentType = fetchPart.getContentType();
-                            String contentTransferEncoding = fetchPart.getHeader(
-                                    MimeHeader.HEADER_CONTENT_TRANSFER_ENCODING)[0];
-
-                            // TODO Don't create 2 temp files.
-                            // decodeBody creates BinaryTempFileBody, but we could avoid this
-                            // if we implement ImapStringBody.
-                            // (We'll need to share a temp file.  Protect it with a ref-count.)
-                            fetchPart.setBody(MimeUtility.decodeBody(
-                                    bodyStream,
-                                    contentTransferEncoding));
+                    }
+                } catch (SocketTimeoutException e) {
+                    // Nothing happened, the caller is expected to issue a new IDLE.
+                } finally {
+                    mConnection.setReadTimeout(MailTransport.SOCKET_READ_TIMEOUT);
+                }
+
+                if (!completed) {
+                    synchronized (mIdleLock) {
+                        endIdle();
+                    }
+                    do {
+                        response = mConnection.readResponse();
+                        try {
+                            changed |= isFolderChange(response);
+                            handleUntaggedResponse(response);
+                        } finally {
+                            destroyResponses();
                         }
+                    } while (!response.isTagged());
+                }
+                synchronized (mIdleLock) {
+                    mIdling = false;
+                }
+                if (!response.isOk()) {
+                    throw new ImapException(response.toString(),
+                            response.getAlertTextOrEmpty().getString());
+                }
+            } catch (IOException ioe) {
+                throw ioExceptionHandler(mConnection, ioe);
+            }
+            return changed;
+        }
 
-                        if (listener != null) {
-                            listener.messageRetrieved(message);
+        /**
+         * Ends the current IDLE command, or the next one if none is in progress. May be called
+         * from any thread.
+         */
+        @Override
+        public void stopIdle() {
+            synchronized (mIdleLock) {
+                mIdleStopRequested = true;
+                if (mIdling) {
+                    try {
+                        endIdle();
+                    } catch (IOException e) {
+                        // The IDLE thread will fail reading from the connection.
+                        if (Config.LOGD && Email.DEBUG) {
+                            Log.d(Email.LOG_TAG, "Failed to end IDLE: " + e);
+                        }
+                    }
+                }
+            }
+        }
+
+        @Override
+        public void abort() {
+            ImapConnection connection = mConnection;
+            if (connection != null) {
+                connection.abort();
+            }
+        }
+
+        /**
+         * Sends DONE once for the current IDLE command. Must be called holding mIdleLock.
+         */
+        private void endIdle() throws IOException {
+            if (mIdling) {
+                mIdling = false;
+                mIdleStopRequested = false;
+                mConnection.sendIdleDone();
+            }
+        }
+
+        private static boolean isFolderChange(ImapResponse response) {
+            return response.isDataResponse(1, ImapConstants.EXISTS)
+                    || response.isDataResponse(1, ImapConstants.EXPUNGE);
+        }
+
+        /**
+         * Sets the flags found in the given FETCH response on the message.
+         */
+        private static void parseFlags(ImapList fetchList, ImapMessage message)
+                throws MessagingException {
+            final ImapList flags = fetchList.getKeyedListOrEmpty(ImapConstants.FLAGS);
+            for (int i = 0, count = flags.size(); i < count; i++) {
+                final ImapString flag = flags.getStringOrEmpty(i);
+                if (flag.is(ImapConstants.FLAG_DELETED)) {
+                    message.setFlagInternal(Flag.DELETED, true);
+                } else if (flag.is(ImapConstants.FLAG_ANSWERED)) {
+                    message.setFlagInternal(Flag.ANSWERED, true);
+                } else if (flag.is(ImapConstants.FLAG_SEEN)) {
+                    message.setFlagInternal(Flag.SEEN, true);
+                } else if (flag.is(ImapConstants.FLAG_FLAGGED)) {
+                    message.setFlagInternal(Flag.FLAGGED, true);
+                } else if (flag.is(ImapConstants.FLAG_GREETING_ON)) {
+                    message.setFlagInternal(Flag.GREETING_ON, true);
+                }
+            }
+        }
+
+        /**
+         * Returns the messages whose flags changed since the given mod-sequence, with their flags
+         * fetched. Relies on CONDSTORE (RFC 4551) being enabled by {@link #open}.
+         * <pre>
+         * C: UID FETCH 1:* (UID FLAGS) (CHANGEDSINCE 12345)
+         * S: * 7 FETCH (UID 25 MODSEQ (12350) FLAGS (\Seen))
+         * </pre>
+         */
+        @Override
+        public Message[] getMessagesChangedSince(long modSeq) throws MessagingException {
+            checkOpen();
+            if (mHighestModSeq == 0) {
+                throw new MessagingException("CONDSTORE is not available on this folder");
+            }
+            final ArrayList<Message> messages = new ArrayList<Message>();
+            try {
+                mConnection.sendCommand(String.format(Locale.US,
+                        ImapConstants.UID_FETCH + " 1:* (%s %s) (%s %d)", ImapConstants.UID,
+                        ImapConstants.FLAGS, ImapConstants.CHANGEDSINCE, modSeq), false);
+                ImapResponse response;
+                do {
+                    response = null;
+                    try {
+                        response = mConnection.readResponse();
+                        if (response.isDataResponse(1, ImapConstants.FETCH)) {
+                            final ImapList fetchList = response.getListOrEmpty(2);
+                            final String uid = fetchList.getKeyedStringOrEmpty(ImapConstants.UID)
+                                    .getString();
+                            if (!TextUtils.isEmpty(uid)) {
+                                ImapMessage message = new ImapMessage(uid, this);
+                                parseFlags(fetchList, message);
+                                messages.add(message);
+                            }
+                        } else if (response.isTagged() && !response.isOk()) {
+                            throw new ImapException(response.toString(),
+                                    response.getAlertTextOrEmpty().getString());
+                        } else {
+                            handleUntaggedResponse(response);
                         }
                     } finally {
                         destroyResponses();
@@ -1046,6 +1598,7 @@ public class ImapStore extends Store {
             } catch (IOException ioe) {
                 throw ioExceptionHandler(mConnection, ioe);
             }
+            return messages.toArray(new Message[messages.size()]);
         }
 
         @Override
@@ -1070,6 +1623,9 @@ public class ImapStore extends Store {
         private void handleUntaggedResponse(ImapResponse response) {
             if (response.isDataResponse(1, ImapConstants.EXISTS)) {
                 mMessageCount = response.getStringOrEmpty(0).getNumberOrZero();
+            } else if (response.isDataResponse(0, ImapConstants.QUOTA)) {
+                // Sent unsolicited by some servers when an APPEND or EXPUNGE changes the usage.
+                mReceivedQuota = parseQuotaPercentage(response.getListOrEmpty(2));
             }
         }
 
@@ -1258,11 +1814,6 @@ public class ImapStore extends Store {
             checkOpen();
             try {
                 for (Message message : messages) {
-                    // Create output count
-                    CountingOutputStream out = new CountingOutputStream();
-                    EOLConvertingOutputStream eolOut = new EOLConvertingOutputStream(out);
-                    message.writeTo(eolOut);
-                    eolOut.flush();
                     // Create flag list (most often this will be "\SEEN")
                     String flagList = "";
                     Flag[] flags = message.getFlags();
@@ -1281,25 +1832,16 @@ public class ImapStore extends Store {
                         }
                     }
 
-                    mConnection.sendCommand(
-                            String.format(ImapConstants.APPEND + " %s%s {%d}",
-                                    encodeFolderName(mName),
-                                    flagList,
-                                    out.getCount()), false);
+                    // The message is serialized only once, into a spool file whose length is the
+                    // size of the literal and whose content is then sent as is.
                     ImapResponse response;
-                    do {
-                        response = mConnection.readResponse();
-                        if (response.isContinuationRequest()) {
-                            eolOut = new EOLConvertingOutputStream(
-                                    mConnection.mTransport.getOutputStream());
-                            message.writeTo(eolOut);
-                            eolOut.write('\r');
-                            eolOut.write('\n');
-                            eolOut.flush();
-                        } else if (!response.isTagged()) {
-                            handleUntaggedResponse(response);
-                        }
-                    } while (!response.isTagged());
+                    File spool = File.createTempFile("append", ".tmp", Email.getTempDirectory());
+                    try {
+                        spoolMessage(message, spool);
+                        response = appendSpooledMessage(flagList, spool);
+                    } finally {
+                        spool.delete();
+                    }
 
                     // TODO Why not check the response?
 
@@ -1337,6 +1879,82 @@ public class ImapStore extends Store {
             }
         }
 
+        /**
+         * Writes the message, with CRLF line endings, to the provided file.
+         */
+        private void spoolMessage(Message message, File spool)
+                throws IOException, MessagingException {
+            OutputStream out = new BufferedOutputStream(new FileOutputStream(spool));
+            try {
+                EOLConvertingOutputStream eolOut = new EOLConvertingOutputStream(out);
+                message.writeTo(eolOut);
+                eolOut.flush();
+            } finally {
+                out.close();
+            }
+        }
+
+        /**
+         * Sends an APPEND command with the content of the spool file as literal, and returns the
+         * tagged response. When the server supports non-synchronizing literals, LITERAL+ (RFC 2088)
+         * or LITERAL- (RFC 7888) for small literals, the literal is sent right after the command
+         * instead of waiting for the continuation request.
+         */
+        private ImapResponse appendSpooledMessage(String flagList, File spool)
+                throws IOException, MessagingException {
+            final long size = spool.length();
+            final boolean nonSynchronizing = mConnection.hasCapability(ImapConstants.LITERAL_PLUS)
+                    || (size <= LITERAL_MINUS_MAX_SIZE
+                            && mConnection.hasCapability(ImapConstants.LITERAL_MINUS));
+            mConnection.sendCommand(
+                    String.format(ImapConstants.APPEND + " %s%s {%d%s}",
+                            encodeFolderName(mName),
+                            flagList,
+                            size,
+                            nonSynchronizing ? "+" : ""), false);
+            boolean literalSent = false;
+            if (nonSynchronizing) {
+                writeLiteral(spool);
+                literalSent = true;
+            }
+            ImapResponse response;
+            do {
+                response = mConnection.readResponse();
+                if (response.isContinuationRequest()) {
+                    if (!literalSent) {
+                        writeLiteral(spool);
+                        literalSent = true;
+                    }
+                } else if (!response.isTagged()) {
+                    handleUntaggedResponse(response);
+                }
+            } while (!response.isTagged());
+            return response;
+        }
+
+        /**
+         * Writes the content of the file to the connection, followed by the CRLF ending the
+         * command.
+         */
+        private void writeLiteral(File file) throws IOException {
+            OutputStream out = mConnection.mTransport.getOutputStream();
+            FileInputStream in = new FileInputStream(file);
+            try {
+                FileChannel channel = in.getChannel();
+                WritableByteChannel target = Channels.newChannel(out);
+                long size = channel.size();
+                long position = 0;
+                while (position < size) {
+                    position += channel.transferTo(position, size - position, target);
+                }
+            } finally {
+                in.close();
+            }
+            out.write('\r');
+            out.write('\n');
+            out.flush();
+        }
+
         @Override
         public Message[] expunge() throws MessagingException {
             checkOpen();
@@ -1366,10 +1984,73 @@ public class ImapStore extends Store {
         }
 
         @Override
+        /**
+         * Sets or clears the flags of the messages. When the UIDs are split over several sets,
+         * their STOREs are pipelined.
+         */
         public void setFlags(Message[] messages, Flag[] flags, boolean value)
                 throws MessagingException {
             checkOpen();
+            try {
+                final ArrayList<PipelinedCommand> commands = new ArrayList<PipelinedCommand>();
+                for (String uidSet : buildUidSets(messages)) {
+                    commands.add(new PipelinedCommand(buildStoreCommand(uidSet, flags, value)));
+                }
+                executePipelinedCommands(commands);
+                for (PipelinedCommand command : commands) {
+                    command.checkOk();
+                }
+            } catch (IOException ioe) {
+                throw ioExceptionHandler(mConnection, ioe);
+            } finally {
+                destroyResponses();
+            }
+        }
 
+        /**
+         * Flags the messages as deleted and expunges them. When the server supports UIDPLUS
+         * (RFC 4315), each UID STORE is pipelined with a UID EXPUNGE of the same set, so it only
+         * costs a single round trip and nothing but the provided messages can be expunged.
+         * Otherwise the STOREs are pipelined, and the folder is only expunged once all of them
+         * have succeeded, as EXPUNGE also removes the messages deleted by other clients.
+         */
+        @Override
+        public void deleteMessages(Message[] messages) throws MessagingException {
+            checkOpen();
+            final List<String> uidSets = buildUidSets(messages);
+            final boolean uidExpunge = mConnection.hasCapability(ImapConstants.UIDPLUS);
+            final ArrayList<PipelinedCommand> commands = new ArrayList<PipelinedCommand>();
+            final ArrayList<PipelinedCommand> expunges = new ArrayList<PipelinedCommand>();
+            for (String uidSet : uidSets) {
+                commands.add(new PipelinedCommand(
+                        buildStoreCommand(uidSet, new Flag[] { Flag.DELETED }, true)));
+                if (uidExpunge) {
+                    PipelinedCommand expunge = new PipelinedCommand(
+                            ImapConstants.UID_EXPUNGE + " " + uidSet);
+                    commands.add(expunge);
+                    expunges.add(expunge);
+                }
+            }
+            try {
+                executePipelinedCommands(commands);
+                for (PipelinedCommand command : commands) {
+                    command.checkOk();
+                }
+                for (PipelinedCommand expunge : expunges) {
+                    handleUntaggedResponses(expunge.getResponses());
+                }
+                if (!uidExpunge) {
+                    handleUntaggedResponses(
+                            mConnection.executeSimpleCommand(ImapConstants.EXPUNGE));
+                }
+            } catch (IOException ioe) {
+                throw ioExceptionHandler(mConnection, ioe);
+            } finally {
+                destroyResponses();
+            }
+        }
+
+        private String buildStoreCommand(String uidSet, Flag[] flags, boolean value) {
             String allFlags = "";
             if (flags.length > 0) {
                 StringBuilder flagList = new StringBuilder();
@@ -1387,18 +2068,11 @@ public class ImapStore extends Store {
                 }
                 allFlags = flagList.substring(1);
             }
-            try {
-                mConnection.executeSimpleCommand(String.format(
-                        ImapConstants.UID_STORE + " %s %s" + ImapConstants.FLAGS + " (%s)",
-                        joinMessageUids(messages),
-                        value ? "+" : "-",
-                        allFlags));
-
-            } catch (IOException ioe) {
-                throw ioExceptionHandler(mConnection, ioe);
-            } finally {
-                destroyResponses();
-            }
+            return String.format(
+                    ImapConstants.UID_STORE + " %s %s" + ImapConstants.FLAGS + " (%s)",
+                    uidSet,
+                    value ? "+" : "-",
+                    allFlags);
         }
 
         private void checkOpen() throws MessagingException {
@@ -1437,55 +2111,75 @@ public class ImapStore extends Store {
 		@Override
 		public int getQuotaRoot() throws MessagingException {
 			checkOpen();
-			int freeStoragePercent = 0;
 			try {
-				List<ImapResponse> responses = mConnection.executeSimpleCommand(String.format(
-						ImapConstants.GETQUOTAROOT + " \"%s\"", encodeFolderName(mName)));
-				// get responses
-				for (ImapResponse response : responses) {
-					// check if the response entry is a list and if this list
-					// contains "STORAGE" or "MESSAGE"
-					// response list sent from the server e.g.
-					// >>> 6 GETQUOTAROOT Inbox
-					// <<< #null# ["QUOTAROOT", "Inbox", "INBOX"]
-					// <<< #null# ["QUOTA", "INBOX", ["STORAGE", "123", "2097151"]]
-					// <<< #6# ["OK", "Completed"]
-					if (response.getElementOrNone(2).isList()) {
-						ImapList list = response.getListOrEmpty(2);
-						int quotaPercentageOne = 0;
-						int quotaPercentageTwo = 0;
-						if ((list.getStringOrEmpty(1).getNumberOrZero() != 0)
-								&& (list.getStringOrEmpty(2).getNumberOrZero() != 0)) {
-							quotaPercentageOne = getQuotaPercentage(list.getStringOrEmpty(1)
-									.getNumberOrZero(), list.getStringOrEmpty(2).getNumberOrZero());
-						}
-						// in case of Comverse server, the response is a bit  different
-						// and we can see two values important for the QUOTA value calculation
-						// which we have to take into account STORAGE and voice
-						// we will pick the higher quota value e.g.:
-						// >>> 4 GETQUOTAROOT "inbox"
-						// <<< #null# ["QUOTAROOT", "inbox", ""]
-						// <<< #null# ["QUOTA", "", ["STORAGE", "1911", "2200", "voice", "6", "10",
-						// "voice-soft", "6", "8", "ARCHIVED", "0", "5"]]
-						// let's check if we have another element available
-						if ((list.getStringOrEmpty(4).getNumberOrZero() != 0)
-								&& (list.getStringOrEmpty(5).getNumberOrZero() != 0)) {
-							quotaPercentageTwo = getQuotaPercentage(list.getStringOrEmpty(4)
-									.getNumberOrZero(), list.getStringOrEmpty(5).getNumberOrZero());
-						}
-						// calculate the percentage of occupied place
-						freeStoragePercent = quotaPercentageOne >= quotaPercentageTwo ? quotaPercentageOne
-								: quotaPercentageTwo;
-					}
-				}
+				return parseQuotaRootResponses(
+						mConnection.executeSimpleCommand(buildQuotaRootCommand()));
 			} catch (IOException ioe) {
 				throw ioExceptionHandler(mConnection, ioe);
 			} finally {
 				destroyResponses();
 			}
+		}
+
+		private String buildQuotaRootCommand() {
+			return String.format(ImapConstants.GETQUOTAROOT + " \"%s\"", encodeFolderName(mName));
+		}
+
+		private int parseQuotaRootResponses(List<ImapResponse> responses) {
+			int freeStoragePercent = 0;
+			// get responses
+			for (ImapResponse response : responses) {
+				// check if the response entry is a list and if this list
+				// contains "STORAGE" or "MESSAGE"
+				// response list sent from the server e.g.
+				// >>> 6 GETQUOTAROOT Inbox
+				// <<< #null# ["QUOTAROOT", "Inbox", "INBOX"]
+				// <<< #null# ["QUOTA", "INBOX", ["STORAGE", "123", "2097151"]]
+				// <<< #6# ["OK", "Completed"]
+				if (response.getElementOrNone(2).isList()) {
+					freeStoragePercent = parseQuotaPercentage(response.getListOrEmpty(2));
+				}
+			}
 			return freeStoragePercent;
 		}
 
+		/**
+		 * Returns the percentage of the quota in use from the resource list of a QUOTA response.
+		 */
+		private int parseQuotaPercentage(ImapList list) {
+			int quotaPercentageOne = 0;
+			int quotaPercentageTwo = 0;
+			if ((list.getStringOrEmpty(1).getNumberOrZero() != 0)
+					&& (list.getStringOrEmpty(2).getNumberOrZero() != 0)) {
+				quotaPercentageOne = getQuotaPercentage(list.getStringOrEmpty(1)
+						.getNumberOrZero(), list.getStringOrEmpty(2).getNumberOrZero());
+			}
+			// in case of Comverse server, the response is a bit  different
+			// and we can see two values important for the QUOTA value calculation
+			// which we have to take into account STORAGE and voice
+			// we will pick the higher quota value e.g.:
+			// >>> 4 GETQUOTAROOT "inbox"
+			// <<< #null# ["QUOTAROOT", "inbox", ""]
+			// <<< #null# ["QUOTA", "", ["STORAGE", "1911", "2200", "voice", "6", "10",
+			// "voice-soft", "6", "8", "ARCHIVED", "0", "5"]]
+			// let's check if we have another element available
+			if ((list.getStringOrEmpty(4).getNumberOrZero() != 0)
+					&& (list.getStringOrEmpty(5).getNumberOrZero() != 0)) {
+				quotaPercentageTwo = getQuotaPercentage(list.getStringOrEmpty(4)
+						.getNumberOrZero(), list.getStringOrEmpty(5).getNumberOrZero());
+			}
+			// calculate the percentage of occupied place
+			return quotaPercentageOne >= quotaPercentageTwo ? quotaPercentageOne
+					: quotaPercentageTwo;
+		}
+
+		@Override
+		public int getReceivedQuota() {
+			int quota = mReceivedQuota;
+			mReceivedQuota = -1;
+			return quota;
+		}
+
 		/**
 		 * Calculates a percentage of the two input quota values
 		 * @param inboxResourceUsage current occupation value/number of messages stored in inbox
@@ -1510,6 +2204,12 @@ public class ImapStore extends Store {
         /** # of command/response lines to log upon crash. */
         private static final int DISCOURSE_LOGGER_SIZE = 64;
         private final DiscourseLogger mDiscourse = new DiscourseLogger(DISCOURSE_LOGGER_SIZE);
+        /** Time the connection was last returned to the pool, see {@link SystemClock}. */
+        private volatile long mLastUsedTime;
+        /** Whether the connection is counted in {@link ImapStore#mConnectionsInUse}. */
+        private final AtomicBoolean mCheckedOut = new AtomicBoolean();
+        /** Capabilities advertised by the server, upper-cased. */
+        private final HashSet<String> mCapabilities = new HashSet<String>();
 
         public void open() throws IOException, MessagingException {
             if (mTransport != null && mTransport.isOpen()) {
@@ -1587,8 +2287,9 @@ public class ImapStore extends Store {
                         if (Config.LOGD && Email.DEBUG) {
                             Log.d(Email.LOG_TAG, "Using AUTH=DIGEST-MD5");
                         }
-                        executeCommandWithResponse("AUTHENTICATE DIGEST-MD5",
-                            new DigestMd5Responder(mUsername, mPassword));
+                        updateCapabilities(executeCommandWithResponse(
+                                "AUTHENTICATE DIGEST-MD5",
+                                new DigestMd5Responder(mUsername, mPassword)));
                     } else if (capabilityResponse.contains("LOGINDISABLED")) {
                         if (Config.LOGD && Email.DEBUG) {
                             Log.d(Email.LOG_TAG, "Giving up: LOGINDISABLED");
@@ -1599,7 +2300,7 @@ public class ImapStore extends Store {
                         if (Config.LOGD && Email.DEBUG) {
                             Log.d(Email.LOG_TAG, "Using LOGIN");
                         }
-                        executeSimpleCommand(mLoginPhrase, true);
+                        updateCapabilities(executeSimpleCommand(mLoginPhrase, true));
                     }
                 } catch (ImapException ie) {
                     if (Config.LOGD && Email.DEBUG) {
@@ -1610,6 +2311,12 @@ public class ImapStore extends Store {
                 } catch (MessagingException me) {
                     throw new AuthenticationFailedException(null, me);
                 }
+
+                // COMPRESS
+                if (hasCapability(ImapConstants.COMPRESS_DEFLATE)
+                        && mTransport.isCompressionSupported()) {
+                    startCompression();
+                }
             } catch (SSLException e) {
                 if (Config.LOGD && Email.DEBUG) {
                     Log.d(Email.LOG_TAG, e.toString());
@@ -1629,12 +2336,33 @@ public class ImapStore extends Store {
         }
 
         public void close() {
+            checkIn();
             if (mTransport != null) {
                 mTransport.close();
                 mTransport = null;
             }
         }
 
+        /**
+         * Stops counting the connection as in use, once it is pooled or closed.
+         */
+        private void checkIn() {
+            if (mCheckedOut.compareAndSet(true, false)) {
+                mConnectionsInUse.decrementAndGet();
+            }
+        }
+
+        /**
+         * Closes the transport from another thread, failing the command in progress. The
+         * transport is left in place for the thread running the command to close.
+         */
+        public void abort() {
+            Transport transport = mTransport;
+            if (transport != null) {
+                transport.close();
+            }
+        }
+
         /**
          * Create an {@link ImapResponseParser} from {@code mTransport.getInputStream()} and
          * set it to {@link #mParser}.
@@ -1661,6 +2389,29 @@ public class ImapStore extends Store {
             return mParser.readResponse();
         }
 
+        /**
+         * Sets the sink receiving the literals of the next responses, null to store them again.
+         * @see ImapResponseParser#setLiteralSink
+         */
+        public void setLiteralSink(ImapResponseParser.LiteralSink sink) {
+            mParser.setLiteralSink(sink);
+        }
+
+        /**
+         * Changes the read timeout of the connection, e.g. while waiting in IDLE.
+         */
+        public void setReadTimeout(int timeoutMillis) throws IOException {
+            mTransport.setSoTimeout(timeoutMillis);
+        }
+
+        /**
+         * Sends the DONE continuation ending an IDLE command.
+         */
+        public void sendIdleDone() throws IOException {
+            mTransport.writeLine(ImapConstants.DONE, null);
+            mDiscourse.addSentCommand(ImapConstants.DONE);
+        }
+
         /**
          * Send a single command to the server.  The command will be preceded by an IMAP command
          * tag and followed by \r\n (caller need not supply them).
@@ -1718,6 +2469,64 @@ public class ImapStore extends Store {
             return responses;
         }
 
+        /**
+         * Sends all the given commands without waiting for the completion of the previous ones,
+         * then reads the responses and routes them back to their command by tag. Each command
+         * acts as a future: once this method returns, all of them are completed.
+         *
+         * Untagged responses are attributed to the oldest command still in flight, as servers
+         * process pipelined commands in order. Commands requiring a continuation (literals,
+         * authentication) can't be pipelined.
+         *
+         * Unlike {@link #executeSimpleCommand(String)}, a command completed with NO or BAD does
+         * not throw, callers check {@link PipelinedCommand#checkOk()} for each command. If the
+         * pipeline itself fails, the connection is closed, as the responses of the other commands
+         * would otherwise be read by the next command.
+         */
+        public void executePipelinedCommands(PipelinedCommand... commands)
+                throws IOException, MessagingException {
+            HashMap<String, PipelinedCommand> commandsByTag =
+                    new HashMap<String, PipelinedCommand>();
+            LinkedList<PipelinedCommand> inFlight = new LinkedList<PipelinedCommand>();
+            boolean completed = false;
+            try {
+                for (PipelinedCommand command : commands) {
+                    String tag = sendCommand(command.mCommand, command.mSensitive);
+                    commandsByTag.put(tag, command);
+                    inFlight.add(command);
+                }
+
+                while (!inFlight.isEmpty()) {
+                    ImapResponse response = mParser.readResponse();
+                    if (response.isContinuationRequest()) {
+                        throw new MessagingException(
+                                "Unexpected continuation request in pipeline");
+                    } else if (response.isTagged()) {
+                        PipelinedCommand command = commandsByTag.remove(response.getTag());
+                        if (command == null) {
+                            if (Config.LOGD && Email.DEBUG) {
+                                Log.d(Email.LOG_TAG, "Ignoring response with unknown tag: "
+                                        + response);
+                            }
+                            continue;
+                        }
+                        command.mResponses.add(response);
+                        command.mCompleted = true;
+                        inFlight.remove(command);
+                    } else {
+                        inFlight.getFirst().mResponses.add(response);
+                    }
+                }
+                completed = true;
+            } finally {
+                if (!completed) {
+                    // The responses of the other commands are still to be read.
+                    destroyResponses();
+                    close();
+                }
+            }
+        }
+
         /**
          * Query server for capabilities.
          */
@@ -1732,15 +2541,122 @@ public class ImapStore extends Store {
             if (capabilityResponse == null) {
                 throw new MessagingException("Invalid CAPABILITY response received");
             }
+            setCapabilities(capabilityResponse);
             return capabilityResponse;
         }
 
+        /**
+         * Updates the capabilities from the responses to an authentication, as servers often
+         * advertise new ones once authenticated, either in an untagged CAPABILITY response or in
+         * a CAPABILITY response code, e.g. "1 OK [CAPABILITY IMAP4rev1 COMPRESS=DEFLATE]".
+         */
+        private void updateCapabilities(List<ImapResponse> responses) {
+            for (ImapResponse r : responses) {
+                if (r.is(0, ImapConstants.CAPABILITY)) {
+                    setCapabilities(r);
+                } else if (r.isTagged() && r.getListOrEmpty(1).is(0, ImapConstants.CAPABILITY)) {
+                    setCapabilities(r.getListOrEmpty(1));
+                }
+            }
+        }
+
+        /**
+         * Replaces the capabilities by those listed after the CAPABILITY atom.
+         */
+        private void setCapabilities(ImapList capabilityList) {
+            mCapabilities.clear();
+            for (int i = 1, count = capabilityList.size(); i < count; i++) {
+                ImapString capability = capabilityList.getStringOrEmpty(i);
+                if (capability.isString()) {
+                    mCapabilities.add(capability.getString().toUpperCase(Locale.US));
+                }
+            }
+        }
+
+        /**
+         * Enables the compression of the connection (RFC 4978). The connection is left
+         * uncompressed if the server refuses, e.g. because TLS compression is already active.
+         */
+        private void startCompression() throws IOException, MessagingException {
+            try {
+                executeSimpleCommand(ImapConstants.COMPRESS + " " + ImapConstants.DEFLATE);
+            } catch (ImapException ie) {
+                if (Config.LOGD && Email.DEBUG) {
+                    Log.d(Email.LOG_TAG, "COMPRESS refused: " + ie.toString());
+                }
+                return;
+            }
+            mTransport.startCompression();
+            createParser();
+        }
+
+        /**
+         * @return whether the server advertised the given capability, e.g. "CONDSTORE".
+         */
+        public boolean hasCapability(String capability) {
+            return mCapabilities.contains(capability.toUpperCase(Locale.US));
+        }
+
         /** @see ImapResponseParser#logLastDiscourse() */
         public void logLastDiscourse() {
             mDiscourse.logLastDiscourse();
         }
     }
 
+    /**
+     * A command sent through {@link ImapConnection#executePipelinedCommands}, holding the
+     * responses received for it.
+     */
+    public static class PipelinedCommand {
+        private final String mCommand;
+        private final boolean mSensitive;
+        private final ArrayList<ImapResponse> mResponses = new ArrayList<ImapResponse>();
+        private boolean mCompleted;
+
+        public PipelinedCommand(String command) {
+            this(command, false);
+        }
+
+        public PipelinedCommand(String command, boolean sensitive) {
+            mCommand = command;
+            mSensitive = sensitive;
+        }
+
+        /**
+         * @return the untagged responses received for this command, followed by its tagged
+         * completion response.
+         */
+        public List<ImapResponse> getResponses() {
+            return mResponses;
+        }
+
+        public boolean isCompleted() {
+            return mCompleted;
+        }
+
+        /**
+         * @return whether the command has completed with an OK status.
+         */
+        public boolean isOk() {
+            return mCompleted && mResponses.get(mResponses.size() - 1).isOk();
+        }
+
+        /**
+         * Throws if the command did not complete successfully, the same way
+         * {@link ImapConnection#executeSimpleCommand(String)} would have.
+         */
+        public void checkOk() throws MessagingException {
+            if (!mCompleted) {
+                throw new MessagingException("Command not completed: " + mCommand);
+            }
+            ImapResponse response = mResponses.get(mResponses.size() - 1);
+            if (!response.isOk()) {
+                throw new ImapException(response.toString(),
+                        response.getAlertTextOrEmpty().getString());
+            }
+        }
+    }
+
     static class ImapMessage extends MimeMessage {
         ImapMessage(String uid, Folder folder) throws MessagingException {
             this.mUid = uid;
@@ -0,0 +1,77 @@
+/*
+ * Copyright (C) 2010 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.email.mail.store.imap;
+
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+
+/**
+ * Subclass of {@link ImapString} used for non literals, backed by a range of a byte array
+ * shared with the other strings parsed by the same {@link ImapResponseParser}.
+ *
+ * The bytes are only converted to a {@link String} when {@link #getString} is called, as most of
+ * the strings of a large response are never read.
+ */
+public class ImapByteString extends ImapString {
+    private byte[] mBytes;
+    private final int mOffset;
+    private final int mLength;
+    private String mString;
+
+    /* package */ ImapByteString(byte[] bytes, int offset, int length) {
+        mBytes = bytes;
+        mOffset = offset;
+        mLength = length;
+    }
+
+    @Override
+    public void destroy() {
+        // The bytes are reused by the parser once its responses have been destroyed.
+        mBytes = null;
+        mString = null;
+        super.destroy();
+    }
+
+    @Override
+    public String getString() {
+        if (mString == null && mBytes != null) {
+            // Same conversion as the parser used to do, one char per byte.
+            final char[] chars = new char[mLength];
+            for (int i = 0; i < mLength; i++) {
+                chars[i] = (char) (mBytes[mOffset + i] & 0xff);
+            }
+            mString = new String(chars);
+        }
+        return mString;
+    }
+
+    @Override
+    public InputStream getAsStream() {
+        if (mBytes == null) {
+            // The bytes may already have been overwritten by the next responses.
+            throw new IllegalStateException("Already destroyed");
+        }
+        return new ByteArrayInputStream(mBytes, mOffset, mLength);
+    }
+
+    @Override
+    public String toString() {
+        // Purposefully not return just the string, in order to prevent using it instead of
+        // getString.
+        return "\"" + getString() + "\"";
+    }
+}
@@ -0,0 +1,73 @@
+/*
+ * Copyright (C) 2010 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.email.mail.store.imap;
+
+import com.android.email.Utility;
+
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+
+/**
+ * Subclass of {@link ImapString} used for the common atoms of the protocol (FETCH, UID, FLAGS,
+ * ...).  A single instance of each is shared by all the parsed responses, so it is never
+ * destroyed.
+ */
+public class ImapInternedString extends ImapString {
+    private final String mString;
+    private final byte[] mBytes;
+
+    /* package */ ImapInternedString(String string) {
+        mString = string;
+        mBytes = Utility.toAscii(string);
+    }
+
+    @Override
+    public void destroy() {
+        // Don't call super.destroy().
+        // It's a shared object.  We don't want the mDestroyed to be set on this.
+    }
+
+    /**
+     * @return whether the given bytes are the ones of this string, case-sensitively.
+     */
+    /* package */ boolean matches(byte[] bytes, int length) {
+        if (length != mBytes.length) {
+            return false;
+        }
+        for (int i = 0; i < length; i++) {
+            if (bytes[i] != mBytes[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    @Override
+    public String getString() {
+        return mString;
+    }
+
+    @Override
+    public InputStream getAsStream() {
+        return new ByteArrayInputStream(mBytes);
+    }
+
+    @Override
+    public String toString() {
+        return "\"" + mString + "\"";
+    }
+}
@@ -0,0 +1,75 @@
+/*
+ * Copyright (C) 2010 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.email.mail.store.imap;
+
+import java.util.ArrayList;
+
+/**
+ * Pool of the fixed size chunks {@link ImapMemoryLiteral} stores large literals in.
+ *
+ * The chunks of a literal are recycled when it is destroyed, so that downloading several large
+ * literals in a row (e.g. voicemail attachments) reuses the same memory instead of allocating and
+ * collecting a new array each time.  The pool keeps at most {@link #setCapacity} bytes.
+ */
+public final class ImapLiteralBufferPool {
+    /** Size of a chunk. */
+    public static final int CHUNK_SIZE = 64 * 1024;
+
+    private static final ArrayList<byte[]> sChunks = new ArrayList<byte[]>();
+
+    /** Maximum number of chunks kept in the pool. */
+    private static int sMaxChunks = 16;
+
+    private ImapLiteralBufferPool() {}
+
+    /**
+     * Sets the maximum number of bytes kept in the pool, releasing the chunks in excess.
+     */
+    public static synchronized void setCapacity(int bytes) {
+        sMaxChunks = bytes / CHUNK_SIZE;
+        while (sChunks.size() > sMaxChunks) {
+            sChunks.remove(sChunks.size() - 1);
+        }
+    }
+
+    /**
+     * Releases all the chunks of the pool, e.g. when no IMAP connection is open anymore.
+     */
+    public static synchronized void clear() {
+        sChunks.clear();
+    }
+
+    /**
+     * @return a chunk of {@link #CHUNK_SIZE} bytes, from the pool if it is not empty.  Its
+     * content is undefined.
+     */
+    /* package */ static synchronized byte[] obtain() {
+        if (sChunks.isEmpty()) {
+            return new byte[CHUNK_SIZE];
+        }
+        return sChunks.remove(sChunks.size() - 1);
+    }
+
+    /**
+     * Returns a chunk that is not used anymore to the pool.
+     */
+    /* package */ static synchronized void recycle(byte[] chunk) {
+        if (sChunks.size() < sMaxChunks) {
+            sChunks.add(chunk);
+        }
+    }
+}
@@ -19,6 +19,9 @@ package com.android.email.mail.store.imap;
 import java.io.ByteArrayInputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.SequenceInputStream;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.Locale;
 
 import android.util.Log;
@@ -29,45 +32,103 @@ import com.android.email.Utility;
 
 /**
  * Subclass of {@link ImapString} used for literals backed by an in-memory byte array.
+ *
+ * Literals larger than {@link ImapLiteralBufferPool#CHUNK_SIZE} are stored in chunks obtained
+ * from {@link ImapLiteralBufferPool}, and given back to it when the literal is destroyed.
  */
 public class ImapMemoryLiteral extends ImapString {
+    /** Content of a small literal, null if it is stored in chunks. */
     private byte[] mData;
 
+    /** Chunks of a large literal, null if it is stored in {@link #mData}. */
+    private ArrayList<byte[]> mChunks;
+
+    private final int mLength;
+
     /* package */ ImapMemoryLiteral(FixedLengthInputStream in) throws IOException {
-        // We could use ByteArrayOutputStream and IOUtils.copy, but it'd perform an unnecessary
-        // copy....
-        mData = new byte[in.getLength()];
+        mLength = in.getLength();
+        int pos;
+        if (mLength <= ImapLiteralBufferPool.CHUNK_SIZE) {
+            // We could use ByteArrayOutputStream and IOUtils.copy, but it'd perform an
+            // unnecessary copy....
+            mData = new byte[mLength];
+            pos = readFully(in, mData, mLength);
+        } else {
+            mChunks = new ArrayList<byte[]>(mLength / ImapLiteralBufferPool.CHUNK_SIZE + 1);
+            pos = 0;
+            while (pos < mLength) {
+                final byte[] chunk = ImapLiteralBufferPool.obtain();
+                mChunks.add(chunk);
+                final int expected = Math.min(chunk.length, mLength - pos);
+                final int read = readFully(in, chunk, expected);
+                pos += read;
+                if (read < expected) {
+                    break;
+                }
+            }
+        }
+        if (pos != mLength) {
+            Log.w(Email.LOG_TAG, "");
+        }
+    }
+
+    /** Reads up to length bytes into the buffer, and returns the number of bytes read. */
+    private static int readFully(InputStream in, byte[] buffer, int length) throws IOException {
         int pos = 0;
-        while (pos < mData.length) {
-            int read = in.read(mData, pos, mData.length - pos);
+        while (pos < length) {
+            int read = in.read(buffer, pos, length - pos);
             if (read < 0) {
                 break;
             }
             pos += read;
         }
-        if (pos != mData.length) {
-            Log.w(Email.LOG_TAG, "");
-        }
+        return pos;
     }
 
     @Override
     public void destroy() {
+        if (mChunks != null) {
+            for (byte[] chunk : mChunks) {
+                ImapLiteralBufferPool.recycle(chunk);
+            }
+            mChunks = null;
+        }
         mData = null;
         super.destroy();
     }
 
     @Override
     public String getString() {
-        return Utility.fromAscii(mData);
+        if (mChunks == null) {
+            return Utility.fromAscii(mData);
+        }
+        final byte[] data = new byte[mLength];
+        int pos = 0;
+        for (byte[] chunk : mChunks) {
+            final int length = Math.min(chunk.length, mLength - pos);
+            System.arraycopy(chunk, 0, data, pos, length);
+            pos += length;
+        }
+        return Utility.fromAscii(data);
     }
 
     @Override
     public InputStream getAsStream() {
-        return new ByteArrayInputStream(mData);
+        if (mChunks == null) {
+            return new ByteArrayInputStream(mData);
+        }
+        final ArrayList<InputStream> streams = new ArrayList<InputStream>(mChunks.size());
+        int pos = 0;
+        for (byte[] chunk : mChunks) {
+            final int length = Math.min(chunk.length, mLength - pos);
+            streams.add(new ByteArrayInputStream(chunk, 0, length));
+            pos += length;
+        }
+        return new SequenceInputStream(Collections.enumeration(streams));
     }
 
     @Override
     public String toString() {
-        return String.format(Locale.getDefault(), "{%d byte literal(memory)}", mData.length);
+        return String.format(Locale.getDefault(), "{%d byte literal(memory)}", mLength);
     }
 }
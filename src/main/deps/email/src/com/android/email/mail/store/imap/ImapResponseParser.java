@@ -18,7 +18,6 @@ package com.android.email.mail.store.imap;
 
 import com.android.email.Email;
 import com.android.email.FixedLengthInputStream;
-import com.android.email.PeekableInputStream;
 import com.android.email.mail.MessagingException;
 import com.android.email.mail.transport.DiscourseLogger;
 import com.android.email.mail.transport.LoggingInputStream;
@@ -30,6 +29,7 @@ import android.util.Log;
 import java.io.IOException;
 import java.io.InputStream;
 import java.util.ArrayList;
+import java.util.Arrays;
 
 /**
  * IMAP response parser.
@@ -38,12 +38,55 @@ public class ImapResponseParser {
     private static final boolean DEBUG_LOG_RAW_STREAM = false; // DO NOT RELEASE AS 'TRUE'
 
     /**
-     * Literal larger than this will be stored in temp file.
+     * Literal larger than this will be stored in temp file, unless changed with
+     * {@link #setLiteralKeepInMemoryThreshold}.
      */
     private static final int LITERAL_KEEP_IN_MEMORY_THRESHOLD = 16 * 1024 * 1024;
 
+    /** Threshold used by the parsers created from now on. */
+    private static volatile int sLiteralKeepInMemoryThreshold = LITERAL_KEEP_IN_MEMORY_THRESHOLD;
+
+    /** Size of the buffer the responses are read into. */
+    private static final int READ_BUFFER_SIZE = 4096;
+
+    /** Size of the pages holding the bytes of the parsed strings. */
+    private static final int STRING_PAGE_SIZE = 4096;
+
+    /**
+     * Atoms and strings that are shared between all the responses rather than allocated each
+     * time they are parsed, indexed by length.
+     */
+    private static final ImapInternedString[][] INTERNED_STRINGS = internStrings(
+            ImapConstants.OK, ImapConstants.NO, ImapConstants.BAD, ImapConstants.BYE,
+            ImapConstants.PREAUTH, ImapConstants.FETCH, ImapConstants.UID, ImapConstants.FLAGS,
+            ImapConstants.EXISTS, ImapConstants.EXPUNGE, "RECENT", ImapConstants.SEARCH,
+            ImapConstants.LIST, ImapConstants.LSUB, ImapConstants.STATUS,
+            ImapConstants.CAPABILITY, ImapConstants.BODY, ImapConstants.BODYSTRUCTURE,
+            ImapConstants.INTERNALDATE, "RFC822.SIZE", "MODSEQ", ImapConstants.UIDVALIDITY,
+            ImapConstants.UIDNEXT, ImapConstants.UNSEEN, ImapConstants.HIGHESTMODSEQ,
+            ImapConstants.PERMANENTFLAGS, ImapConstants.READ_ONLY, ImapConstants.READ_WRITE,
+            ImapConstants.FLAG_SEEN, ImapConstants.FLAG_DELETED, ImapConstants.FLAG_ANSWERED,
+            ImapConstants.FLAG_FLAGGED, "\\Draft", "\\Recent", "\\*",
+            ImapConstants.INBOX, "QUOTA", "QUOTAROOT", "STORAGE", "MESSAGE",
+            // Strings of the BODYSTRUCTURE of a voicemail or a greeting.
+            "TEXT", "PLAIN", "AUDIO", "MULTIPART", "MIXED", "VOICE-MESSAGE", "CHARSET",
+            "US-ASCII", "UTF-8", "NAME", "BOUNDARY", "ATTACHMENT", "INLINE", "FILENAME",
+            "BASE64", "7BIT", "8BIT", "AMR", "X-WAV", "WAV", "MPEG");
+
     /** Input stream */
-    private final PeekableInputStream mIn;
+    private final InputStream mIn;
+
+    /** Buffer the responses are read into, in bulk. */
+    private final byte[] mReadBuffer = new byte[READ_BUFFER_SIZE];
+
+    /** Position of the next byte to read in {@link #mReadBuffer}. */
+    private int mReadPos;
+
+    /** Number of valid bytes in {@link #mReadBuffer}. */
+    private int mReadLimit;
+
+    /** Position of the first byte read but not given to {@link #mDiscourseLogger} yet. */
+    private int mLogPos;
 
     /**
      * To log network activities when the parser crashes.
@@ -54,11 +97,20 @@ public class ImapResponseParser {
 
     private final int mLiteralKeepInMemoryThreshold;
 
-    /** StringBuilder used by readUntil() */
-    private final StringBuilder mBufferReadUntil = new StringBuilder();
+    /** Bytes of the token being parsed, used by readUntil() and parseBareString(). */
+    private byte[] mToken = new byte[256];
 
-    /** StringBuilder used by parseBareString() */
-    private final StringBuilder mParseBareString = new StringBuilder();
+    /** Number of valid bytes in {@link #mToken}. */
+    private int mTokenLength;
+
+    /**
+     * Page the bytes of the parsed strings are copied to.  The strings keep a reference on their
+     * page, and the page is reused once they have been destroyed.
+     */
+    private byte[] mStringPage = new byte[STRING_PAGE_SIZE];
+
+    /** Number of bytes used in {@link #mStringPage}. */
+    private int mStringPagePos;
 
     /**
      * We store all {@link ImapResponse} in it.  {@link #destroyResponses()} must be called from
@@ -85,11 +137,33 @@ public class ImapResponseParser {
         }
     }
 
+    /**
+     * Receives the literals of the responses as they are read from the network, so that large
+     * literals can be streamed to their destination instead of being stored by the parser.
+     */
+    public interface LiteralSink {
+        /**
+         * Consumes a literal. The stream ends with the literal, any byte left unread is skipped.
+         */
+        public void consume(InputStream in, int size) throws IOException;
+    }
+
+    /** Current literal sink, null if literals are stored. */
+    private LiteralSink mLiteralSink;
+
     /**
      * Public constructor for normal use.
      */
     public ImapResponseParser(InputStream in, DiscourseLogger discourseLogger) {
-        this(in, discourseLogger, LITERAL_KEEP_IN_MEMORY_THRESHOLD);
+        this(in, discourseLogger, sLiteralKeepInMemoryThreshold);
+    }
+
+    /**
+     * Sets the size above which the literals are stored in temp files rather than in memory, for
+     * the parsers created from now on.  Typically derived from the memory class of the device.
+     */
+    public static void setLiteralKeepInMemoryThreshold(int threshold) {
+        sLiteralKeepInMemoryThreshold = threshold;
     }
 
     /**
@@ -100,11 +174,19 @@ public class ImapResponseParser {
         if (DEBUG_LOG_RAW_STREAM && Config.LOGD && Email.DEBUG) {
             in = new LoggingInputStream(in);
         }
-        mIn = new PeekableInputStream(in);
+        mIn = in;
         mDiscourseLogger = discourseLogger;
         mLiteralKeepInMemoryThreshold = literalKeepInMemoryThreshold;
     }
 
+    /**
+     * Sets the sink receiving the literals, or null to store them in memory or temp files again.
+     * Literals given to a sink are replaced by an empty string in the parsed responses.
+     */
+    public void setLiteralSink(LiteralSink sink) {
+        mLiteralSink = sink;
+    }
+
     private static IOException newEOSException() {
         final String message = "End of stream reached";
         if (Config.LOGD && Email.DEBUG) {
@@ -120,26 +202,139 @@ public class ImapResponseParser {
      * we shouldn't see EOF during parsing.
      */
     private int peek() throws IOException {
-        final int next = mIn.peek();
-        if (next == -1) {
-            throw newEOSException();
+        if (mReadPos == mReadLimit) {
+            fill();
         }
-        return next;
+        return mReadBuffer[mReadPos] & 0xff;
     }
 
     /**
-     * Read and return one byte from {@link #mIn}, and put it in {@link #mDiscourseLogger}.
+     * Read and return one byte from {@link #mReadBuffer}, refilling it from {@link #mIn} if
+     * required.  The bytes read are put in {@link #mDiscourseLogger} at the end of each response.
      *
      * Throws IOException() if reaches EOF.  As long as logical response lines end with \r\n,
      * we shouldn't see EOF during parsing.
      */
     private int readByte() throws IOException {
-        int next = mIn.read();
-        if (next == -1) {
+        if (mReadPos == mReadLimit) {
+            fill();
+        }
+        return mReadBuffer[mReadPos++] & 0xff;
+    }
+
+    /**
+     * Reads as many bytes as available from {@link #mIn} into the empty {@link #mReadBuffer}.
+     *
+     * Throws IOException() if reaches EOF.
+     */
+    private void fill() throws IOException {
+        logReadBytes();
+        int read;
+        do {
+            read = mIn.read(mReadBuffer, 0, mReadBuffer.length);
+        } while (read == 0);
+        if (read == -1) {
             throw newEOSException();
         }
-        mDiscourseLogger.addReceivedByte(next);
-        return next;
+        mReadPos = 0;
+        mReadLimit = read;
+        mLogPos = 0;
+    }
+
+    /**
+     * Puts the bytes read from {@link #mReadBuffer} since the last call in
+     * {@link #mDiscourseLogger}.
+     */
+    private void logReadBytes() {
+        if (mReadPos > mLogPos) {
+            mDiscourseLogger.addReceivedBytes(mReadBuffer, mLogPos, mReadPos - mLogPos);
+            mLogPos = mReadPos;
+        }
+    }
+
+    /**
+     * Input stream over the rest of the response: the bytes left in {@link #mReadBuffer} first,
+     * then {@link #mIn}.  Used to read literals, which are not logged.
+     */
+    private final InputStream mLiteralIn = new InputStream() {
+        @Override
+        public int read() throws IOException {
+            if (mReadPos < mReadLimit) {
+                final int next = mReadBuffer[mReadPos++] & 0xff;
+                mLogPos = mReadPos;
+                return next;
+            }
+            return mIn.read();
+        }
+
+        @Override
+        public int read(byte[] b, int offset, int length) throws IOException {
+            if (mReadPos < mReadLimit) {
+                final int count = Math.min(length, mReadLimit - mReadPos);
+                System.arraycopy(mReadBuffer, mReadPos, b, offset, count);
+                mReadPos += count;
+                mLogPos = mReadPos;
+                return count;
+            }
+            return mIn.read(b, offset, length);
+        }
+    };
+
+    /** Appends a byte to {@link #mToken}. */
+    private void appendToken(int b) {
+        if (mTokenLength == mToken.length) {
+            mToken = Arrays.copyOf(mToken, mToken.length * 2);
+        }
+        mToken[mTokenLength++] = (byte) b;
+    }
+
+    /**
+     * Returns an {@link ImapString} for the content of {@link #mToken}: a shared instance if it
+     * is a common atom, or a string backed by {@link #mStringPage} otherwise.
+     */
+    private ImapString newStringFromToken() {
+        final int length = mTokenLength;
+        if (length < INTERNED_STRINGS.length) {
+            for (ImapInternedString interned : INTERNED_STRINGS[length]) {
+                if (interned.matches(mToken, length)) {
+                    return interned;
+                }
+            }
+        }
+        if (length > STRING_PAGE_SIZE / 4) {
+            // Too large to share a page.
+            return new ImapByteString(Arrays.copyOf(mToken, length), 0, length);
+        }
+        if (mStringPagePos + length > mStringPage.length) {
+            // The current page is left to the strings pointing to it.
+            mStringPage = new byte[STRING_PAGE_SIZE];
+            mStringPagePos = 0;
+        }
+        System.arraycopy(mToken, 0, mStringPage, mStringPagePos, length);
+        final ImapString string = new ImapByteString(mStringPage, mStringPagePos, length);
+        mStringPagePos += length;
+        return string;
+    }
+
+    /** Builds the table of {@link #INTERNED_STRINGS}. */
+    private static ImapInternedString[][] internStrings(String... strings) {
+        int maxLength = 0;
+        for (String s : strings) {
+            maxLength = Math.max(maxLength, s.length());
+        }
+        final ArrayList<ArrayList<ImapInternedString>> byLength =
+                new ArrayList<ArrayList<ImapInternedString>>();
+        for (int i = 0; i <= maxLength; i++) {
+            byLength.add(new ArrayList<ImapInternedString>());
+        }
+        for (String s : strings) {
+            byLength.get(s.length()).add(new ImapInternedString(s));
+        }
+        final ImapInternedString[][] table = new ImapInternedString[maxLength + 1][];
+        for (int i = 0; i <= maxLength; i++) {
+            table[i] = byLength.get(i).toArray(new ImapInternedString[byLength.get(i).size()]);
+        }
+        return table;
     }
 
     /**
@@ -152,6 +347,8 @@ public class ImapResponseParser {
             r.destroy();
         }
         mResponsesToDestroy.clear();
+        // No string points to the current page anymore.
+        mStringPagePos = 0;
     }
 
     /**
@@ -169,6 +366,7 @@ public class ImapResponseParser {
         ImapResponse response = null;
         try {
             response = parseResponse();
+            logReadBytes();
             if (Config.LOGD && Email.DEBUG) {
                 Log.d(Email.LOG_TAG, "<<< " + response.toString());
             }
@@ -209,6 +407,7 @@ public class ImapResponseParser {
             }
         } catch (IOException ignore) {
         }
+        logReadBytes();
         Log.w(Email.LOG_TAG, "Exception detected: " + e.getMessage());
         mDiscourseLogger.logLastDiscourse();
     }
@@ -230,13 +429,26 @@ public class ImapResponseParser {
      * The {@code end} will be read (rather than peeked) and won't be included in the result.
      */
     /* package for test */ String readUntil(char end) throws IOException {
-        mBufferReadUntil.setLength(0);
+        readTokenUntil(end);
+        final char[] chars = new char[mTokenLength];
+        for (int i = 0; i < mTokenLength; i++) {
+            chars[i] = (char) (mToken[i] & 0xff);
+        }
+        return new String(chars);
+    }
+
+    /**
+     * Read bytes until we find {@code end} into {@link #mToken}.
+     * The {@code end} will be read (rather than peeked) and won't be included in the token.
+     */
+    private void readTokenUntil(char end) throws IOException {
+        mTokenLength = 0;
         for (;;) {
             final int ch = readByte();
             if (ch != end) {
-                mBufferReadUntil.append((char) ch);
+                appendToken(ch);
             } else {
-                return mBufferReadUntil.toString();
+                return;
             }
         }
     }
@@ -344,7 +556,8 @@ public class ImapResponseParser {
                 return parseList('[', ']');
             case '"':
                 readByte(); // Skip "
-                return new ImapSimpleString(readUntil('"'));
+                readTokenUntil('"');
+                return newStringFromToken();
             case '{':
                 return parseLiteral();
             case '\r':  // CR
@@ -369,7 +582,7 @@ public class ImapResponseParser {
      * If the value is "NIL", returns an empty string.
      */
     private ImapString parseBareString() throws IOException, MessagingException {
-        mParseBareString.setLength(0);
+        mTokenLength = 0;
         for (;;) {
             final int ch = peek();
 
@@ -386,27 +599,36 @@ public class ImapResponseParser {
                     // it as a flag instead
                     // ch == '"' || ch == '\' ||
                     ch == '"' || (0x00 <= ch && ch <= 0x1f) || ch == 0x7f) {
-                if (mParseBareString.length() == 0) {
+                if (mTokenLength == 0) {
                     throw new MessagingException("Expected string, none found.");
                 }
-                String s = mParseBareString.toString();
 
                 // NIL will be always converted into the empty string.
-                if (ImapConstants.NIL.equalsIgnoreCase(s)) {
+                if (isNilToken()) {
                     return ImapString.EMPTY;
                 }
-                return new ImapSimpleString(s);
+                return newStringFromToken();
             } else if (ch == '[') {
-                // Eat all until next ']'
-                mParseBareString.append((char) readByte());
-                mParseBareString.append(readUntil(']'));
-                mParseBareString.append(']'); // readUntil won't include the end char.
+                // Eat all until next ']', which is included.
+                int next;
+                do {
+                    next = readByte();
+                    appendToken(next);
+                } while (next != ']');
             } else {
-                mParseBareString.append((char) readByte());
+                appendToken(readByte());
             }
         }
     }
 
+    /** @return whether {@link #mToken} is NIL, case-insensitively. */
+    private boolean isNilToken() {
+        return mTokenLength == 3
+                && (mToken[0] == 'N' || mToken[0] == 'n')
+                && (mToken[1] == 'I' || mToken[1] == 'i')
+                && (mToken[2] == 'L' || mToken[2] == 'l');
+    }
+
     private void parseElements(ImapList list, char end)
             throws IOException, MessagingException {
         for (;;) {
@@ -440,16 +662,32 @@ public class ImapResponseParser {
 
     private ImapString parseLiteral() throws IOException, MessagingException {
         expect('{');
-        final int size;
-        try {
-            size = Integer.parseInt(readUntil('}'));
-        } catch (NumberFormatException nfe) {
+        readTokenUntil('}');
+        if (mTokenLength == 0 || mTokenLength > 9) {
             throw new MessagingException("Invalid length in literal");
         }
+        int size = 0;
+        for (int i = 0; i < mTokenLength; i++) {
+            final int digit = mToken[i] - '0';
+            if (digit < 0 || digit > 9) {
+                throw new MessagingException("Invalid length in literal");
+            }
+            size = size * 10 + digit;
+        }
         expect('\r');
         expect('\n');
-        FixedLengthInputStream in = new FixedLengthInputStream(mIn, size);
-        if (size > mLiteralKeepInMemoryThreshold) {
+        // Literals are not logged, only their length.
+        logReadBytes();
+        mDiscourseLogger.addReceivedLiteral(size);
+        FixedLengthInputStream in = new FixedLengthInputStream(mLiteralIn, size);
+        if (mLiteralSink != null) {
+            mLiteralSink.consume(in, size);
+            final byte[] skipBuffer = new byte[1024];
+            while (in.read(skipBuffer, 0, skipBuffer.length) > 0) {
+                // Skip what the sink did not read, to stay in sync with the stream.
+            }
+            return ImapString.EMPTY;
+        } else if (size > mLiteralKeepInMemoryThreshold) {
             return new ImapTempFileLiteral(in);
         } else {
             return new ImapMemoryLiteral(in);
@@ -118,6 +118,18 @@ public abstract class ImapString extends ImapElement {
         return mParsedInteger;
     }
 
+    /**
+     * @return value parsed as a long, for values which may not fit in an int such as
+     * UIDVALIDITY or HIGHESTMODSEQ.
+     */
+    public final long getLongOrZero() {
+        try {
+            return Long.parseLong(getString());
+        } catch (NumberFormatException e) {
+            return 0;
+        }
+    }
+
     /**
      * @return whether it can be parsed as a date using {@link #DATE_TIME_FORMAT}.
      */
@@ -0,0 +1,99 @@
+/*
+ * Copyright (C) 2010 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.email.mail.store.imap;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+
+/**
+ * Encodes UIDs as IMAP sequence sets (RFC 3501, "sequence-set").
+ *
+ * The UIDs are sorted and the runs of consecutive UIDs are collapsed into ranges, so that
+ * "1,2,3,...,40,42,45,46,...,60" is sent as "1:40,42,45:60". A set longer than the provided
+ * maximum is split into several sets, each of which is meant to be sent in its own command, as
+ * servers reject command lines that are too long.
+ */
+public final class ImapUidSet {
+    private ImapUidSet() {
+    }
+
+    /**
+     * Returns the sequence sets covering the provided UIDs, none of which is longer than
+     * maxLength characters (unless a single UID or range already is). Duplicated UIDs are
+     * dropped, and UIDs which are not numbers are appended as is after the numeric ones.
+     * An empty list is returned if there are no UIDs.
+     */
+    public static List<String> build(Collection<String> uids, int maxLength) {
+        final long[] numbers = new long[uids.size()];
+        int count = 0;
+        ArrayList<String> others = null;
+        for (String uid : uids) {
+            try {
+                numbers[count] = Long.parseLong(uid);
+                count++;
+            } catch (NumberFormatException e) {
+                if (others == null) {
+                    others = new ArrayList<String>();
+                }
+                others.add(uid);
+            }
+        }
+        Arrays.sort(numbers, 0, count);
+
+        final ArrayList<String> sets = new ArrayList<String>();
+        final StringBuilder set = new StringBuilder();
+        int i = 0;
+        while (i < count) {
+            final long first = numbers[i];
+            long last = first;
+            // Extend the range as long as the UIDs are consecutive (or duplicated).
+            while (++i < count && numbers[i] <= last + 1) {
+                last = numbers[i];
+            }
+            append(sets, set, (first == last) ? Long.toString(first) : first + ":" + last,
+                    maxLength);
+        }
+        if (others != null) {
+            for (String uid : others) {
+                append(sets, set, uid, maxLength);
+            }
+        }
+        if (set.length() > 0) {
+            sets.add(set.toString());
+        }
+        return sets;
+    }
+
+    /**
+     * Appends an item to the current set, first moving the set to the list if the item would
+     * make it too long.
+     */
+    private static void append(List<String> sets, StringBuilder set, String item,
+            int maxLength) {
+        if (set.length() > 0) {
+            if (set.length() + 1 + item.length() > maxLength) {
+                sets.add(set.toString());
+                set.setLength(0);
+            } else {
+                set.append(',');
+            }
+        }
+        set.append(item);
+    }
+}
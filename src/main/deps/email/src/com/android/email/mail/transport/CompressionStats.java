@@ -0,0 +1,78 @@
+/*
+ * Copyright (C) 2010 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.email.mail.transport;
+
+import java.util.HashMap;
+import java.util.Locale;
+
+/**
+ * Byte counts of the compressed connections to a server, before and after compression, which
+ * give the saving brought by the compression for each provider.
+ */
+public class CompressionStats {
+    private static final HashMap<String, CompressionStats> sStatsByHost =
+            new HashMap<String, CompressionStats>();
+
+    private long mReceivedCompressed;
+    private long mReceivedUncompressed;
+    private long mSentUncompressed;
+    private long mSentCompressed;
+
+    /**
+     * @return the statistics of the connections to the provided host.
+     */
+    public static CompressionStats forHost(String host) {
+        synchronized (sStatsByHost) {
+            CompressionStats stats = sStatsByHost.get(host);
+            if (stats == null) {
+                stats = new CompressionStats();
+                sStatsByHost.put(host, stats);
+            }
+            return stats;
+        }
+    }
+
+    /* package */ synchronized void record(long receivedCompressed, long receivedUncompressed,
+            long sentUncompressed, long sentCompressed) {
+        mReceivedCompressed += receivedCompressed;
+        mReceivedUncompressed += receivedUncompressed;
+        mSentUncompressed += sentUncompressed;
+        mSentCompressed += sentCompressed;
+    }
+
+    public synchronized long getReceivedCompressedBytes() {
+        return mReceivedCompressed;
+    }
+
+    public synchronized long getReceivedUncompressedBytes() {
+        return mReceivedUncompressed;
+    }
+
+    public synchronized long getSentCompressedBytes() {
+        return mSentCompressed;
+    }
+
+    public synchronized long getSentUncompressedBytes() {
+        return mSentUncompressed;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return String.format(Locale.US, "received %d bytes for %d, sent %d bytes for %d",
+                mReceivedCompressed, mReceivedUncompressed, mSentCompressed, mSentUncompressed);
+    }
+}
@@ -0,0 +1,170 @@
+/*
+ * Copyright (C) 2010 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.email.mail.transport;
+
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * Raw DEFLATE (RFC 1951) compression of both directions of a connection, as negotiated by the
+ * IMAP COMPRESS command (RFC 4978).
+ *
+ * Flushing the compressed stream needs the sync flush of Deflater, only available from API level
+ * 19: the compression must not be negotiated unless {@link #isSupported()}.
+ *
+ * The native memory of the compression is released by {@link #end()}, once the connection is
+ * closed. The streams fail with an {@link IOException} afterwards.
+ */
+/* package */ class DeflateCompression {
+    /** Deflater#deflate(byte[], int, int, int), available from API level 19. */
+    private static final Method DEFLATE_WITH_FLUSH = getDeflateWithFlushMethod();
+    /** Value of Deflater#SYNC_FLUSH. */
+    private static final int SYNC_FLUSH = 2;
+
+    private final Inflater mInflater = new Inflater(true);
+    private final Deflater mDeflater = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+    /** Held while using the inflater, so that it isn't ended in the middle of a read. */
+    private final Object mInflaterLock = new Object();
+    /** Held while using the deflater, so that it isn't ended in the middle of a write. */
+    private final Object mDeflaterLock = new Object();
+    private volatile boolean mEnded;
+
+    /**
+     * @return whether the compression can be used on this device.
+     */
+    public static boolean isSupported() {
+        return DEFLATE_WITH_FLUSH != null;
+    }
+
+    /**
+     * @return a stream decompressing the data read from the provided one.
+     */
+    public InputStream wrap(InputStream in) {
+        return new InflaterInputStream(in, mInflater, 1024) {
+            @Override
+            public int read(byte[] b, int off, int len) throws IOException {
+                synchronized (mInflaterLock) {
+                    checkNotEnded();
+                    return super.read(b, off, len);
+                }
+            }
+        };
+    }
+
+    /**
+     * @return a stream compressing the data written to the provided one. Flushing it sends all
+     *     the data written so far.
+     */
+    public OutputStream wrap(OutputStream out) {
+        return new BufferedOutputStream(new SyncFlushDeflaterOutputStream(out, mDeflater), 512);
+    }
+
+    /**
+     * Releases the inflater and the deflater. Must be called once the underlying connection is
+     * closed, so that the reads and writes in progress on other threads fail and release them.
+     */
+    public void end() {
+        mEnded = true;
+        synchronized (mInflaterLock) {
+            mInflater.end();
+        }
+        synchronized (mDeflaterLock) {
+            mDeflater.end();
+        }
+    }
+
+    private static Method getDeflateWithFlushMethod() {
+        try {
+            return Deflater.class.getMethod("deflate", byte[].class, int.class, int.class,
+                    int.class);
+        } catch (NoSuchMethodException e) {
+            return null;
+        }
+    }
+
+    private void checkNotEnded() throws IOException {
+        if (mEnded) {
+            throw new IOException("Connection closed");
+        }
+    }
+
+    /**
+     * Adds the byte counts of the connection to the statistics of the server.
+     */
+    public void recordStats(String host) {
+        CompressionStats.forHost(host).record(mInflater.getBytesRead(),
+                mInflater.getBytesWritten(), mDeflater.getBytesRead(),
+                mDeflater.getBytesWritten());
+    }
+
+    /**
+     * {@link DeflaterOutputStream} whose {@link #flush()} performs a sync flush: the data
+     * written so far is compressed and written, ending on a byte boundary, so that the peer can
+     * decompress it without waiting for more.
+     */
+    private class SyncFlushDeflaterOutputStream extends DeflaterOutputStream {
+        public SyncFlushDeflaterOutputStream(OutputStream out, Deflater deflater) {
+            super(out, deflater, 512);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            synchronized (mDeflaterLock) {
+                checkNotEnded();
+                super.write(b, off, len);
+            }
+        }
+
+        @Override
+        public void flush() throws IOException {
+            synchronized (mDeflaterLock) {
+                checkNotEnded();
+                syncFlush();
+            }
+        }
+
+        private void syncFlush() throws IOException {
+            int count;
+            do {
+                count = deflateWithSyncFlush();
+                out.write(buf, 0, count);
+            } while (count == buf.length);
+            out.flush();
+        }
+
+        private int deflateWithSyncFlush() throws IOException {
+            if (DEFLATE_WITH_FLUSH == null) {
+                throw new IOException("Sync flush not supported");
+            }
+            try {
+                return (Integer) DEFLATE_WITH_FLUSH.invoke(def, buf, 0, buf.length, SYNC_FLUSH);
+            } catch (IllegalAccessException e) {
+                throw new IOException(e.toString());
+            } catch (InvocationTargetException e) {
+                throw new IOException(e.getCause().toString());
+            }
+        }
+    }
+}
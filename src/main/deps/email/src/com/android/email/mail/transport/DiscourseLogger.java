@@ -20,42 +20,77 @@ import com.android.email.Email;
 
 import android.util.Log;
 
-import java.util.ArrayList;
-
 /**
  * A class to keep last N of lines sent to the server and responses received from the server.
  * They are sent to logcat when {@link #logLastDiscourse} is called.
  *
  * <p>This class is used to log the recent network activities when a response parser crashes.
+ *
+ * <p>The lines are kept as raw bytes in a ring allocated once, and only converted to text when
+ * they are logged, so recording them doesn't allocate. Lines longer than
+ * {@link #MAX_LINE_LENGTH} are truncated, and the content of the literals is not recorded, only
+ * their length.
  */
 public class DiscourseLogger {
+    /** Maximum number of bytes kept for a line, the number of bytes dropped is logged instead. */
+    /* package for testing */ static final int MAX_LINE_LENGTH = 256;
+
+    private static final char[] HEX_DIGITS = "0123456789abcdef".toCharArray();
+
     private final int mBufferSize;
-    private String[] mBuffer;
+    /** The lines of the ring, {@link #MAX_LINE_LENGTH} bytes each. */
+    private final byte[] mBuffer;
+    private final int[] mLineLengths;
+    /** Number of bytes of each line that did not fit in {@link #MAX_LINE_LENGTH}. */
+    private final int[] mDroppedBytes;
+    /** Index of the next line to write. */
     private int mPos;
-    private final StringBuilder mReceivingLine = new StringBuilder(100);
+    /** Number of lines in the ring. */
+    private int mCount;
+
+    private final byte[] mReceivingLine = new byte[MAX_LINE_LENGTH];
+    private int mReceivingLength;
+    private int mReceivingDropped;
 
     public DiscourseLogger(int bufferSize) {
         mBufferSize = bufferSize;
-        initBuffer();
+        mBuffer = new byte[bufferSize * MAX_LINE_LENGTH];
+        mLineLengths = new int[bufferSize];
+        mDroppedBytes = new int[bufferSize];
     }
 
-    private void initBuffer() {
-        mBuffer = new String[mBufferSize];
+    /** Add a single line to {@link #mBuffer}. */
+    private void addLine(byte[] line, int length, int dropped) {
+        System.arraycopy(line, 0, mBuffer, mPos * MAX_LINE_LENGTH, length);
+        endLine(length, dropped);
     }
 
-    /** Add a single line to {@link #mBuffer}. */
-    private void addLine(String s) {
-        mBuffer[mPos] = s;
+    /** Complete the line written at {@link #mPos}, and move to the next one. */
+    private void endLine(int length, int dropped) {
+        mLineLengths[mPos] = length;
+        mDroppedBytes[mPos] = dropped;
         mPos++;
         if (mPos >= mBufferSize) {
             mPos = 0;
         }
+        if (mCount < mBufferSize) {
+            mCount++;
+        }
     }
 
     private void addReceivingLineToBuffer() {
-        if (mReceivingLine.length() > 0) {
-            addLine(mReceivingLine.toString());
-            mReceivingLine.delete(0, Integer.MAX_VALUE);
+        if (mReceivingLength > 0 || mReceivingDropped > 0) {
+            addLine(mReceivingLine, mReceivingLength, mReceivingDropped);
+            mReceivingLength = 0;
+            mReceivingDropped = 0;
+        }
+    }
+
+    private void appendToReceivingLine(int b) {
+        if (mReceivingLength < MAX_LINE_LENGTH) {
+            mReceivingLine[mReceivingLength++] = (byte) b;
+        } else {
+            mReceivingDropped++;
         }
     }
 
@@ -64,40 +99,81 @@ public class DiscourseLogger {
      * received, the content of {@link #mReceivingLine} is added to {@link #mBuffer}.
      */
     public void addReceivedByte(int b) {
-        if (0x20 <= b && b <= 0x7e) { // Append only printable ASCII chars.
-            mReceivingLine.append((char) b);
-        } else if (b == '\n') { // LF
+        if (b == '\n') { // LF
             addReceivingLineToBuffer();
-        } else if (b == '\r') { // CR
-        } else {
-            final String hex = "00" + Integer.toHexString(b);
-            mReceivingLine.append("\\x" + hex.substring(hex.length() - 2, hex.length()));
+        } else if (b != '\r') { // CR
+            appendToReceivingLine(b);
+        }
+    }
+
+    /**
+     * Store bytes received from the server, as {@link #addReceivedByte} does for each of them.
+     */
+    public void addReceivedBytes(byte[] b, int offset, int length) {
+        for (int i = offset; i < offset + length; i++) {
+            addReceivedByte(b[i] & 0xff);
+        }
+    }
+
+    /**
+     * Record a literal received from the server, whose content is not stored: it appears as
+     * "&lt;N bytes&gt;" in the line that follows it.
+     */
+    public void addReceivedLiteral(int length) {
+        appendToReceivingLine('<');
+        // Digits of the length, most significant first, without creating a String.
+        int divisor = 1;
+        while (length / divisor >= 10) {
+            divisor *= 10;
+        }
+        for (; divisor > 0; divisor /= 10) {
+            appendToReceivingLine('0' + (length / divisor) % 10);
+        }
+        final String suffix = " bytes>";
+        for (int i = 0; i < suffix.length(); i++) {
+            appendToReceivingLine(suffix.charAt(i));
         }
     }
 
     /** Add a line sent to the server to {@link #mBuffer}. */
     public void addSentCommand(String command) {
-        addLine(command);
+        final int offset = mPos * MAX_LINE_LENGTH;
+        final int length = Math.min(command.length(), MAX_LINE_LENGTH);
+        for (int i = 0; i < length; i++) {
+            mBuffer[offset + i] = (byte) command.charAt(i);
+        }
+        endLine(length, command.length() - length);
+    }
+
+    /** Returns a line of the ring as text, with the non-printable bytes escaped. */
+    private String getLine(int index) {
+        final int offset = index * MAX_LINE_LENGTH;
+        final int length = mLineLengths[index];
+        final StringBuilder sb = new StringBuilder(length + 16);
+        for (int i = offset; i < offset + length; i++) {
+            final int b = mBuffer[i] & 0xff;
+            if (0x20 <= b && b <= 0x7e) { // Append only printable ASCII chars.
+                sb.append((char) b);
+            } else {
+                sb.append("\\x").append(HEX_DIGITS[b >> 4]).append(HEX_DIGITS[b & 0xf]);
+            }
+        }
+        if (mDroppedBytes[index] > 0) {
+            sb.append("... (").append(mDroppedBytes[index]).append(" more bytes)");
+        }
+        return sb.toString();
     }
 
     /** @return the contents of {@link #mBuffer} as a String array. */
     /* package for testing */ String[] getLines() {
         addReceivingLineToBuffer();
 
-        ArrayList<String> list = new ArrayList<String>();
-
-        final int start = mPos;
-        int pos = mPos;
-        do {
-            String s = mBuffer[pos];
-            if (s != null) {
-                list.add(s);
-            }
+        final String[] ret = new String[mCount];
+        int pos = (mPos - mCount + mBufferSize) % mBufferSize;
+        for (int i = 0; i < mCount; i++) {
+            ret[i] = getLine(pos);
             pos = (pos + 1) % mBufferSize;
-        } while (pos != start);
-
-        String[] ret = new String[list.size()];
-        list.toArray(ret);
+        }
         return ret;
     }
 
@@ -112,9 +188,10 @@ public class DiscourseLogger {
         }
 
         Log.w(Email.LOG_TAG, "Last network activities:");
-        for (String r : getLines()) {
+        for (String r : lines) {
             Log.w(Email.LOG_TAG, r);
         }
-        initBuffer();
+        mPos = 0;
+        mCount = 0;
     }
 }
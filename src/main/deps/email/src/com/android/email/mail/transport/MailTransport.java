@@ -56,6 +56,8 @@ public class MailTransport implements Transport {
     private static final HostnameVerifier HOSTNAME_VERIFIER =
             HttpsURLConnection.getDefaultHostnameVerifier();
 
+    private static final TlsHandshakeStats HANDSHAKE_STATS = new TlsHandshakeStats();
+
     private String mDebugLabel;
     
     private String mHost;
@@ -67,6 +69,7 @@ public class MailTransport implements Transport {
     private Socket mSocket;
     private InputStream mIn;
     private OutputStream mOut;
+    private DeflateCompression mCompression;
 
     /**
      * Simple constructor for starting from scratch.  Call setUri() and setSecurity() to 
@@ -155,16 +158,18 @@ public class MailTransport implements Transport {
         }
 
         try {
+            mCompression = null;
             SocketAddress socketAddress = new InetSocketAddress(getHost(), getPort());
-            if (canTrySslSecurity()) {
-                mSocket = SSLUtils.getSSLSocketFactory(canTrustAllCertificates()).createSocket();
-            } else {
-                mSocket = new Socket();
-            }
+            mSocket = new Socket();
             mSocket.connect(socketAddress, SOCKET_CONNECT_TIMEOUT);
-            // After the socket connects to an SSL server, confirm that the hostname is as expected
-            if (canTrySslSecurity() && !canTrustAllCertificates()) {
-                verifyHostname(mSocket, getHost());
+            if (canTrySslSecurity()) {
+                mSocket.setSoTimeout(SOCKET_READ_TIMEOUT);
+                mSocket = startTls(mSocket);
+                // After the socket connects to an SSL server, confirm that the hostname is as
+                // expected
+                if (!canTrustAllCertificates()) {
+                    verifyHostname(mSocket, getHost());
+                }
             }
             mIn = new BufferedInputStream(mSocket.getInputStream(), 1024);
             mOut = new BufferedOutputStream(mSocket.getOutputStream(), 512);
@@ -192,9 +197,8 @@ public class MailTransport implements Transport {
      */
     public void reopenTls() throws MessagingException {
         try {
-            mSocket = SSLUtils.getSSLSocketFactory(canTrustAllCertificates())
-                    .createSocket(mSocket, getHost(), getPort(), true);
             mSocket.setSoTimeout(SOCKET_READ_TIMEOUT);
+            mSocket = startTls(mSocket);
             mIn = new BufferedInputStream(mSocket.getInputStream(), 1024);
             mOut = new BufferedOutputStream(mSocket.getOutputStream(), 512);
 
@@ -211,6 +215,50 @@ public class MailTransport implements Transport {
         }
     }
 
+    /**
+     * Layers an SSL socket over the provided connected socket and performs the handshake. The SSL
+     * socket is given the host and port of the server, which its session is cached under, so that
+     * the following connections to the same server resume the session instead of performing a
+     * full handshake.
+     */
+    private SSLSocket startTls(Socket socket) throws IOException {
+        long startTime = System.currentTimeMillis();
+        SSLSocket sslSocket = (SSLSocket) SSLUtils.getSSLSocketFactory(canTrustAllCertificates())
+                .createSocket(socket, getHost(), getPort(), true);
+        SSLUtils.enableSessionTickets(sslSocket);
+        // No-op if the factory has already performed the handshake.
+        sslSocket.startHandshake();
+        long duration = System.currentTimeMillis() - startTime;
+        // A resumed session was created by an earlier handshake.
+        boolean resumed = sslSocket.getSession().getCreationTime() < startTime;
+        HANDSHAKE_STATS.record(duration, resumed);
+        if (Config.LOGD && Email.DEBUG) {
+            Log.d(Email.LOG_TAG, "*** " + mDebugLabel + (resumed ? " resumed" : " full")
+                    + " TLS handshake with " + getHost() + " in " + duration + " ms ("
+                    + HANDSHAKE_STATS + ")");
+        }
+        return sslSocket;
+    }
+
+    /**
+     * Adds the byte counts of a compressed connection which is being closed to the statistics of
+     * the server.
+     */
+    /* package */ void recordCompressionStats(DeflateCompression compression) {
+        compression.recordStats(getHost());
+        if (Config.LOGD && Email.DEBUG) {
+            Log.d(Email.LOG_TAG, "*** " + mDebugLabel + " compression with " + getHost() + ": "
+                    + CompressionStats.forHost(getHost()));
+        }
+    }
+
+    /**
+     * @return the durations of the TLS handshakes performed by all the transports.
+     */
+    public static TlsHandshakeStats getHandshakeStats() {
+        return HANDSHAKE_STATS;
+    }
+
     /**
      * Lightweight version of SSLCertificateSocketFactory.verifyHostname, which provides this
      * service but is not in the public API.
@@ -258,6 +306,16 @@ public class MailTransport implements Transport {
         mSocket.setSoTimeout(timeoutMilliseconds);
     }
 
+    public void startCompression() {
+        mCompression = new DeflateCompression();
+        mIn = mCompression.wrap(mIn);
+        mOut = mCompression.wrap(mOut);
+    }
+
+    public boolean isCompressionSupported() {
+        return DeflateCompression.isSupported();
+    }
+
     public boolean isOpen() {
         return (mIn != null && mOut != null && 
                 mSocket != null && mSocket.isConnected() && !mSocket.isClosed());
@@ -267,6 +325,8 @@ public class MailTransport implements Transport {
      * Close the connection.  MUST NOT return any exceptions - must be "best effort" and safe.
      */
     public void close() {
+        DeflateCompression compression = mCompression;
+        mCompression = null;
         try {
             mIn.close();
         } catch (Exception e) {
@@ -282,6 +342,11 @@ public class MailTransport implements Transport {
         } catch (Exception e) {
             // May fail if the connection is already closed.
         }
+        if (compression != null) {
+            // Once the socket is closed, so that a read or write blocked on another thread fails.
+            recordCompressionStats(compression);
+            compression.end();
+        }
         mIn = null;
         mOut = null;
         mSocket = null;
@@ -16,13 +16,21 @@
 
 package com.android.email.mail.transport;
 
+import android.content.Context;
 import android.net.SSLCertificateSocketFactory;
+import android.net.SSLSessionCache;
 
+import javax.net.ssl.SSLSocket;
 import javax.net.ssl.SSLSocketFactory;
 
 public class SSLUtils {
+    /** Directory of the sessions of the insecure factory, apart from the validated ones. */
+    private static final String INSECURE_SESSION_CACHE_DIR = "sslcache_insecure";
+
     private static SSLSocketFactory sInsecureFactory;
     private static SSLSocketFactory sSecureFactory;
+    private static SSLSessionCache sSessionCache;
+    private static SSLSessionCache sInsecureSessionCache;
 
     /**
      * Returns a {@link SSLSocketFactory}.  Optionally bypass all SSL certificate checks.
@@ -32,14 +40,44 @@ public class SSLUtils {
     public synchronized static final SSLSocketFactory getSSLSocketFactory(boolean insecure) {
         if (insecure) {
             if (sInsecureFactory == null) {
-                sInsecureFactory = SSLCertificateSocketFactory.getInsecure(0, null);
+                sInsecureFactory = SSLCertificateSocketFactory.getInsecure(0,
+                        sInsecureSessionCache);
             }
             return sInsecureFactory;
         } else {
             if (sSecureFactory == null) {
-                sSecureFactory = SSLCertificateSocketFactory.getDefault(0, null);
+                sSecureFactory = SSLCertificateSocketFactory.getDefault(0, sSessionCache);
             }
             return sSecureFactory;
         }
     }
+
+    /**
+     * Makes the factories keep the SSL sessions, indexed by host and port, in caches persisted in
+     * the application directory, so that they can be resumed by the next connections, including
+     * after a restart of the process.
+     *
+     * The insecure factory has a cache of its own: a session established without validating the
+     * certificate must never be resumed by a connection that is supposed to validate it.
+     */
+    public synchronized static final void setSessionCache(Context context) {
+        sSessionCache = new SSLSessionCache(context);
+        sInsecureSessionCache = new SSLSessionCache(
+                context.getDir(INSECURE_SESSION_CACHE_DIR, Context.MODE_PRIVATE));
+        sInsecureFactory = null;
+        sSecureFactory = null;
+    }
+
+    /**
+     * Enables TLS session tickets (RFC 5077) on the socket if its implementation supports them,
+     * which is the case of the OpenSSL sockets of Android. Must be called before the handshake.
+     */
+    public static void enableSessionTickets(SSLSocket socket) {
+        try {
+            socket.getClass().getMethod("setUseSessionTickets", boolean.class)
+                    .invoke(socket, true);
+        } catch (Exception e) {
+            // Not supported by this implementation, only session IDs will be used.
+        }
+    }
 }
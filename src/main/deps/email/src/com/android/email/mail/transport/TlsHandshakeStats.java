@@ -0,0 +1,69 @@
+/*
+ * Copyright (C) 2010 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.email.mail.transport;
+
+import java.util.Locale;
+
+/**
+ * Accumulates the durations of the TLS handshakes performed by {@link MailTransport}, separately
+ * for the full handshakes and for those which resumed a cached session.
+ */
+public class TlsHandshakeStats {
+    private int mFullCount;
+    private long mFullTime;
+    private int mResumedCount;
+    private long mResumedTime;
+
+    /* package */ synchronized void record(long durationMillis, boolean resumed) {
+        if (resumed) {
+            mResumedCount++;
+            mResumedTime += durationMillis;
+        } else {
+            mFullCount++;
+            mFullTime += durationMillis;
+        }
+    }
+
+    public synchronized int getFullHandshakeCount() {
+        return mFullCount;
+    }
+
+    public synchronized int getResumedHandshakeCount() {
+        return mResumedCount;
+    }
+
+    /**
+     * @return the average duration of the full handshakes in milliseconds, 0 if none was done.
+     */
+    public synchronized long getAverageFullHandshakeTime() {
+        return mFullCount == 0 ? 0 : mFullTime / mFullCount;
+    }
+
+    /**
+     * @return the average duration of the resumed handshakes in milliseconds, 0 if none was done.
+     */
+    public synchronized long getAverageResumedHandshakeTime() {
+        return mResumedCount == 0 ? 0 : mResumedTime / mResumedCount;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return String.format(Locale.US, "%d full handshake(s), avg %d ms, %d resumed, avg %d ms",
+                mFullCount, getAverageFullHandshakeTime(), mResumedCount,
+                getAverageResumedHandshakeTime());
+    }
+}
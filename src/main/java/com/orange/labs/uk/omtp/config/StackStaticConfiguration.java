@@ -46,22 +46,139 @@ public final class StackStaticConfiguration {
     public static final boolean FULL_SYNC_ON_NEW_MSG = true;
 
     /**
-     * Maximum number of attempts the stack should check that the HIPRI Mobile Data Connection has
-     * been activated. The delay between two attempts is defined by HIPRI_ACTIVATION_DELAY.
+     * Maximum time (in ms) the stack waits for the HIPRI Mobile Data Connection to be activated.
+     * The wait ends as soon as the connectivity broadcast reports HIPRI as connected.
      */
-    public static final int HIPRI_ACTIVATION_MAX_ATTEMPTS = 15;
+    public static final long HIPRI_ACTIVATION_TIMEOUT = 15 * 1000;
 
     /**
-     * Delay between two attempts to verify that the HIPRI connection has been activated or not (in
-     * ms).
+     * Time (in ms) during which the resolved address of the IMAP server is reused to route the
+     * traffic through HIPRI, without a new DNS lookup.
      */
-    public static final long HIPRI_ACTIVATION_DELAY = 1000;
+    public static final long HIPRI_DNS_CACHE_TTL = 5 * 60 * 1000;
 
     /**
      * Should the stack try to route the IMAP traffic through HIPRI while connected on Wi-Fi.
      */
     public static final boolean HIPRI_ON_WIFI = true;
 
+    /**
+     * Time (in ms) an authenticated IMAP connection is kept open in the session pool after its last
+     * use. Idle connections older than this are closed and a new login is performed on demand.
+     */
+    public static final long IMAP_SESSION_IDLE_TIMEOUT = 5 * 60 * 1000;
+
+    /**
+     * Maximum number of messages whose structure is requested in a single UID FETCH command when
+     * listing the voicemails or the greetings of a folder.
+     */
+    public static final int IMAP_FETCH_BATCH_SIZE = 50;
+
+    /**
+     * Maximum time (in ms) an IMAP IDLE command is kept running before being renewed. It must stay
+     * below the 30 minutes server timeout of RFC 2177, and below the NAT timeouts of the network.
+     */
+    public static final int IMAP_IDLE_RENEW_INTERVAL = 9 * 60 * 1000;
+
+    /**
+     * Delay (in ms) before the IMAP IDLE watcher reconnects after a failure.
+     */
+    public static final long IMAP_IDLE_RETRY_DELAY = 60 * 1000;
+
+    /**
+     * Whether voicemail payloads are downloaded in chunks, so that playback can start before the
+     * whole audio attachment has been received.
+     */
+    public static final boolean PROGRESSIVE_PAYLOAD_FETCH = true;
+
+    /**
+     * Size (in bytes, before decoding) of the chunks requested with a partial IMAP fetch when
+     * downloading a voicemail payload progressively.
+     */
+    public static final int IMAP_PAYLOAD_CHUNK_SIZE = 64 * 1024;
+
+    /**
+     * Fraction of the application heap (memory class of the device) an IMAP literal may use before
+     * it is spilled to a temp file. The same amount of memory is kept by the pool of literal
+     * buffers. A value of 16 gives 1MB on a device with a 16MB memory class.
+     */
+    public static final int IMAP_LITERAL_HEAP_FRACTION = 16;
+
+    /**
+     * Maximum length, in characters, of the UID sets sent in a single IMAP command. The UIDs are
+     * sent as ranges where possible, and the sets longer than this are split over several
+     * commands so the command lines stay well under the limits of the servers.
+     */
+    public static final int IMAP_MAX_UID_SET_LENGTH = 1000;
+
+    /**
+     * Time (in ms) during which the quota of a mailbox is reused without sending GETQUOTAROOT.
+     * The quota is refreshed earlier when voicemails or greetings are deleted or uploaded.
+     */
+    public static final long QUOTA_REFRESH_INTERVAL = 30 * 60 * 1000;
+
+    /**
+     * Size (in percents) of the quota buckets: the source is only notified of the quota when it
+     * moves to another bucket, e.g. from 70-79% to 80-89% with the default of 10.
+     */
+    public static final int QUOTA_NOTIFICATION_STEP = 10;
+
+    /**
+     * Maximum number of voicemail payloads downloaded concurrently, each on its own IMAP
+     * connection, when prefetching the voicemails inserted by a synchronization.
+     */
+    public static final int PREFETCH_CONCURRENCY = 3;
+
+    /**
+     * Maximum number of bytes prefetched for the voicemails inserted by a single synchronization.
+     * The voicemails left out are downloaded on demand.
+     */
+    public static final long PREFETCH_BYTE_BUDGET = 8 * 1024 * 1024;
+
+    /**
+     * Expected size of one second of voicemail audio, used to reserve the share of
+     * {@link #PREFETCH_BYTE_BUDGET} of a voicemail before downloading it. AMR-NB audio takes
+     * about 1.6 KB per second.
+     */
+    public static final long PREFETCH_ESTIMATED_BYTES_PER_SECOND = 2 * 1024;
+
+    /**
+     * Share of {@link #PREFETCH_BYTE_BUDGET} reserved for a voicemail whose duration is unknown.
+     */
+    public static final long PREFETCH_DEFAULT_RESERVED_BYTES = 128 * 1024;
+
+    /**
+     * Maximum time (in ms) a synchronization waits for the local stores to list their messages, or
+     * for the server to confirm a greeting upload, before failing.
+     */
+    public static final long SYNC_FETCH_TIMEOUT = 40 * 1000;
+
+    /**
+     * Maximum time (in ms) a synchronization waits for the listing of the remote mailbox, which
+     * grows with the number of messages it holds, before failing.
+     */
+    public static final long SYNC_LISTING_TIMEOUT = 5 * 60 * 1000;
+
+    /**
+     * Maximum time (in ms) a synchronization waits for the stores to perform the resolved actions,
+     * including the download of the missing voicemail contents, before failing.
+     */
+    public static final long SYNC_APPLY_TIMEOUT = 10 * 60 * 1000;
+
+    /**
+     * Time (in ms) a local synchronization waits before starting, so that the provider changes
+     * notified in a burst, for instance when several voicemails are deleted at once, are resolved
+     * by a single synchronization. 0 starts it immediately.
+     */
+    public static final long SYNC_DEBOUNCE_WINDOW = 2 * 1000;
+
+    /**
+     * Time (in ms) after which a synchronization waiting in the queue is promoted to the next
+     * priority class, so that background synchronizations are eventually executed even if more
+     * urgent ones keep being requested.
+     */
+    public static final long SYNC_PRIORITY_AGING_STEP = 60 * 1000;
+
     /**
      * Port on which OMTP SMS messages should be received by Voicemail application.
      * Binary messages with different port numbers should be ignored by the application.
@@ -25,6 +25,8 @@ import com.orange.labs.uk.omtp.account.OmtpAccountColumns;
 import com.orange.labs.uk.omtp.account.OmtpAccountDatabase;
 import com.orange.labs.uk.omtp.greetings.database.LocalGreetingsProvider;
 import com.orange.labs.uk.omtp.greetings.database.LocalGreetingsProviderColumns;
+import com.orange.labs.uk.omtp.imap.database.MailboxStateProvider;
+import com.orange.labs.uk.omtp.imap.database.MailboxStateProviderColumns;
 import com.orange.labs.uk.omtp.logging.Logger;
 import com.orange.labs.uk.omtp.provider.OmtpProviderColumns;
 import com.orange.labs.uk.omtp.provider.OmtpProviderDatabase;
@@ -48,7 +50,7 @@ public class DatabaseHelper extends SQLiteOpenHelper {
 	private static Logger logger = Logger.getLogger(DatabaseHelper.class);
 	
     private static final String DB_NAME = "omtpstack.db";
-    public static final int DB_VERSION = 4;
+    public static final int DB_VERSION = 5;
     private static final HashMap<String, DatabaseColumn[]> DB_COLUMNS = 
     		new HashMap<String, DatabaseColumn[]>();
     		
@@ -57,6 +59,7 @@ public class DatabaseHelper extends SQLiteOpenHelper {
     	DB_COLUMNS.put(OmtpAccountDatabase.ACCOUNT_TABLE_NAME, OmtpAccountColumns.values());
     	DB_COLUMNS.put(MirrorVoicemailProvider.VOICEMAIL_TABLE_NAME, MirrorVoicemailProviderColumns.values());
     	DB_COLUMNS.put(LocalGreetingsProvider.GREETINGS_TABLE_NAME, LocalGreetingsProviderColumns.values());
+    	DB_COLUMNS.put(MailboxStateProvider.MAILBOX_STATE_TABLE_NAME, MailboxStateProviderColumns.values());
     }
 	
     /** The version of the database to create. */
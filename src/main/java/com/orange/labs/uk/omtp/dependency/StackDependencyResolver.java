@@ -17,6 +17,7 @@
 package com.orange.labs.uk.omtp.dependency;
 
 import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ScheduledExecutorService;
 
 import android.content.Context;
 
@@ -25,7 +26,10 @@ import com.orange.labs.uk.omtp.db.DatabaseHelper;
 import com.orange.labs.uk.omtp.fetch.VoicemailFetcherFactory;
 import com.orange.labs.uk.omtp.greetings.GreetingsHelper;
 import com.orange.labs.uk.omtp.greetings.database.LocalGreetingsProvider;
+import com.orange.labs.uk.omtp.imap.ImapIdleWatcher;
+import com.orange.labs.uk.omtp.imap.ImapSessionManager;
 import com.orange.labs.uk.omtp.imap.OmtpRequestor;
+import com.orange.labs.uk.omtp.imap.database.MailboxStateProvider;
 import com.orange.labs.uk.omtp.notification.SourceNotifier;
 import com.orange.labs.uk.omtp.provider.OmtpProviderWrapper;
 import com.orange.labs.uk.omtp.proxy.OmtpTelephonyManagerProxy;
@@ -34,6 +38,7 @@ import com.orange.labs.uk.omtp.service.fetch.OmtpFetchController;
 import com.orange.labs.uk.omtp.sms.OmtpMessageHandler;
 import com.orange.labs.uk.omtp.sms.OmtpMessageSender;
 import com.orange.labs.uk.omtp.sms.timeout.SmsTimeoutHandler;
+import com.orange.labs.uk.omtp.sync.RemoteVvmStore;
 import com.orange.labs.uk.omtp.sync.SerialSynchronizer;
 import com.orange.labs.uk.omtp.sync.SyncResolver;
 import com.orange.labs.uk.omtp.sync.VvmStore;
@@ -86,14 +91,32 @@ public interface StackDependencyResolver {
 	public SourceNotifier getSourceNotifier();
 
 	public VoicemailFetcherFactory getVoicemailFetcherFactory();
+
+	/**
+	 * Returns the {@link ImapSessionManager} sharing the authenticated IMAP connections between
+	 * the different operations.
+	 */
+	public ImapSessionManager getImapSessionManager();
+
+	/**
+	 * Returns the {@link ImapIdleWatcher} that can be started to detect the changes of the remote
+	 * inbox without waiting for the SYNC SMS.
+	 */
+	public ImapIdleWatcher getImapIdleWatcher();
 	
 	public SyncResolver createSyncResolver();
 
 	public VvmStore getLocalStore();
 
-	public VvmStore getRemoteStore();
+	public RemoteVvmStore getRemoteStore();
 	
 	public VvmStore getMirrorStore();
+
+	/**
+	 * Returns the {@link MailboxStateProvider} storing the state of the mailboxes mirrored by the
+	 * {@link #getMirrorStore()}, from which the incremental synchronizations start.
+	 */
+	public MailboxStateProvider getMailboxStateProvider();
 	
 	/**
 	 * Returns a {@link OmtpRequestor} used to send OMTP commands to the platform.
@@ -106,6 +129,11 @@ public interface StackDependencyResolver {
 
 	public ExecutorService getSingleExecutorService();
 
+	/**
+	 * Returns the scheduler running the timeouts of the synchronizations.
+	 */
+	public ScheduledExecutorService getScheduledExecutorService();
+
 	public SerialSynchronizer getSerialSynchronizer();
 
 	public OmtpFetchController createFetchController();
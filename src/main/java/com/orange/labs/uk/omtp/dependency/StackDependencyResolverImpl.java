@@ -28,8 +28,11 @@ import com.orange.labs.uk.omtp.fetch.VoicemailFetcherFactory;
 import com.orange.labs.uk.omtp.greetings.GreetingsHelper;
 import com.orange.labs.uk.omtp.greetings.database.LocalGreetingsProvider;
 import com.orange.labs.uk.omtp.imap.AsyncImapVoicemailFetcher;
+import com.orange.labs.uk.omtp.imap.ImapIdleWatcher;
+import com.orange.labs.uk.omtp.imap.ImapSessionManager;
 import com.orange.labs.uk.omtp.imap.OmtpAsyncRequestSender;
 import com.orange.labs.uk.omtp.imap.OmtpRequestor;
+import com.orange.labs.uk.omtp.imap.database.MailboxStateProvider;
 import com.orange.labs.uk.omtp.logging.Logger;
 import com.orange.labs.uk.omtp.notification.ProviderNotification;
 import com.orange.labs.uk.omtp.notification.SourceNotifier;
@@ -43,6 +46,8 @@ import com.orange.labs.uk.omtp.proxy.OmtpTelephonyManagerProxy;
 import com.orange.labs.uk.omtp.proxy.OmtpTelephonyManagerProxyImpl;
 import com.orange.labs.uk.omtp.service.fetch.GreetingsFetchController;
 import com.orange.labs.uk.omtp.service.fetch.OmtpFetchController;
+import com.orange.labs.uk.omtp.service.fetch.PayloadFetchGuard;
+import com.orange.labs.uk.omtp.service.fetch.PayloadPrefetcher;
 import com.orange.labs.uk.omtp.sms.OmtpMessageHandler;
 import com.orange.labs.uk.omtp.sms.OmtpMessageHandlerImpl;
 import com.orange.labs.uk.omtp.sms.OmtpMessageSender;
@@ -56,6 +61,7 @@ import com.orange.labs.uk.omtp.sync.LocalVvmStore;
 import com.orange.labs.uk.omtp.sync.MirrorVvmStore;
 import com.orange.labs.uk.omtp.sync.OmtpVvmGreetingsStore;
 import com.orange.labs.uk.omtp.sync.OmtpVvmStore;
+import com.orange.labs.uk.omtp.sync.RemoteVvmStore;
 import com.orange.labs.uk.omtp.sync.SerialSynchronizer;
 import com.orange.labs.uk.omtp.sync.SyncResolver;
 import com.orange.labs.uk.omtp.sync.SyncResolverImpl;
@@ -75,6 +81,7 @@ import java.util.Date;
 import java.util.Locale;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
 
 import javax.annotation.Nullable;
 
@@ -143,18 +150,24 @@ public class StackDependencyResolverImpl implements StackDependencyResolver {
 	private OmtpMessageHandler mMessageHandler;
 	private SourceNotifier mSourceNotifier;
 	private VoicemailFetcherFactory mVoicemailFetcherFactory;
+	private ImapSessionManager mImapSessionManager;
+	private ImapIdleWatcher mImapIdleWatcher;
+	private PayloadPrefetcher mPayloadPrefetcher;
+	private PayloadFetchGuard mPayloadFetchGuard;
 
 	private ExecutorService mExecutorService;
 	private ExecutorService mSingleExecutorService;
+	private ScheduledExecutorService mScheduledExecutorService;
 
 	private SerialSynchronizer mSerialSynchronizer;
 
 	private LocalVoicemailProvider mVoicemailProvider;
 	private MirrorVoicemailProvider mMirrorProvider;
+	private MailboxStateProvider mMailboxStateProvider;
 	private LocalGreetingsProvider mGreetingsProvider;
 
 	private VvmStore mLocalStore;
-	private VvmStore mRemoteStore;
+	private RemoteVvmStore mRemoteStore;
 	private VvmStore mMirrorStore;
 	private VvmGreetingsStore mGreetingsLocalStore;
 
@@ -197,6 +210,15 @@ public class StackDependencyResolverImpl implements StackDependencyResolver {
 		return mSingleExecutorService;
 	}
 
+	@Override
+	public synchronized ScheduledExecutorService getScheduledExecutorService() {
+		if (mScheduledExecutorService == null) {
+			mScheduledExecutorService = Executors.newSingleThreadScheduledExecutor();
+		}
+
+		return mScheduledExecutorService;
+	}
+
 	@Override
 	public synchronized DatabaseHelper getProviderDatabaseHelper() {
 		return mProviderDatabaseHelper;
@@ -245,6 +267,23 @@ public class StackDependencyResolverImpl implements StackDependencyResolver {
 		return mVoicemailFetcherFactory;
 	}
 
+	@Override
+	public synchronized ImapSessionManager getImapSessionManager() {
+		if (mImapSessionManager == null) {
+			mImapSessionManager = new ImapSessionManager(getAppContext());
+		}
+		return mImapSessionManager;
+	}
+
+	@Override
+	public synchronized ImapIdleWatcher getImapIdleWatcher() {
+		if (mImapIdleWatcher == null) {
+			mImapIdleWatcher = new ImapIdleWatcher(getAppContext(), getImapSessionManager(),
+					getAccountStore(), getSerialSynchronizer());
+		}
+		return mImapIdleWatcher;
+	}
+
 	@Override
 	public synchronized VvmStore getLocalStore() {
 		if (mLocalStore == null) {
@@ -254,7 +293,7 @@ public class StackDependencyResolverImpl implements StackDependencyResolver {
 	}
 
 	@Override
-	public synchronized VvmStore getRemoteStore() {
+	public synchronized RemoteVvmStore getRemoteStore() {
 		if (mRemoteStore == null) {
 			mRemoteStore = createRemoteStore();
 		}
@@ -288,7 +327,7 @@ public class StackDependencyResolverImpl implements StackDependencyResolver {
 	public synchronized SerialSynchronizer getSerialSynchronizer() {
 		if (mSerialSynchronizer == null) {
 			mSerialSynchronizer = new SerialSynchronizer(getAppContext(), getSourceNotifier(),
-					getAccountStore());
+					getAccountStore(), getScheduledExecutorService());
 		}
 
 		return mSerialSynchronizer;
@@ -321,7 +360,7 @@ public class StackDependencyResolverImpl implements StackDependencyResolver {
 			if (smsParser != null && providerInfo != null) {
 				mMessageHandler = new OmtpMessageHandlerImpl(smsParser, getAccountStore(),
 						getSourceNotifier(), getLocalStore(), getSmsTimeoutHandler(),
-						getSerialSynchronizer(), providerInfo);
+						getSerialSynchronizer(), providerInfo, getImapSessionManager());
 			} else {
 				logger.w("OmtpMessageHandlerImpl has not been created, smsParser or providerInfo are null");
 			}
@@ -332,10 +371,11 @@ public class StackDependencyResolverImpl implements StackDependencyResolver {
 
 	@Override
 	public SyncResolver createSyncResolver() {
-		return new SyncResolverImpl(new VvmStoreResolverImpl(), new NoLocalDeletionResolvePolicy(
-				getVoicemailProvider(), getMirrorVoicemailProvider()), getRemoteStore(),
-				getLocalStore(), getMirrorStore(), getExecutorService(),
-				new VvmGreetingStoreResolverImpl(), getGreetingsHelper(), getGreetingsLocalStore(),
+		return new SyncResolverImpl(new VvmStoreResolverImpl(getScheduledExecutorService()),
+				new NoLocalDeletionResolvePolicy(), getRemoteStore(), getLocalStore(),
+				getMirrorStore(), getExecutorService(),
+				new VvmGreetingStoreResolverImpl(getScheduledExecutorService()),
+				getGreetingsHelper(), getGreetingsLocalStore(),
 				getRemoteGreetingStore(), new GreetingsResolvePolicy(getLocalGreetingsProvider()),
 				new TuiLanguageUpdaterImpl());
 	}
@@ -344,7 +384,8 @@ public class StackDependencyResolverImpl implements StackDependencyResolver {
 	@Override
 	public OmtpFetchController createFetchController() {
 		return new OmtpFetchController(getAppContext(), getAccountStore(),
-				getVoicemailFetcherFactory(), getVoicemailProvider(), getSourceNotifier());
+				getVoicemailFetcherFactory(), getVoicemailProvider(), getSourceNotifier(),
+				getPayloadFetchGuard());
 	}
 	
 	@Override
@@ -386,7 +427,8 @@ public class StackDependencyResolverImpl implements StackDependencyResolver {
 			@Override
 			public VoicemailFetcher createVoicemailFetcher() {
 				return new AsyncImapVoicemailFetcher(getAppContext(), getExecutorService(),
-						getAccountStore(), getSourceNotifier());
+						getAccountStore(), getSourceNotifier(), getImapSessionManager(),
+						getMailboxStateProvider());
 			}
 		};
 	}
@@ -413,15 +455,15 @@ public class StackDependencyResolverImpl implements StackDependencyResolver {
 	 */
 	private VvmStore createLocalStore() {
 		return new LocalVvmStore(getExecutorService(), getVoicemailProvider(), getAppContext(),
-				(MirrorVvmStore) getMirrorStore());
+				(MirrorVvmStore) getMirrorStore(), getPayloadPrefetcher());
 	}
 
 	/**
 	 * Creates a new Remote Store used to store the voicemail messages on the remote platform.
 	 * 
-	 * @return A {@link VvmStore} instance, here a {@link OmtpVvmStore}.
+	 * @return A {@link RemoteVvmStore} instance, here a {@link OmtpVvmStore}.
 	 */
-	private VvmStore createRemoteStore() {
+	private RemoteVvmStore createRemoteStore() {
 		return new OmtpVvmStore(getVoicemailFetcherFactory(), getExecutorService(),
 				getAppContext(), (MirrorVvmStore) getMirrorStore());
 	}
@@ -450,6 +492,33 @@ public class StackDependencyResolverImpl implements StackDependencyResolver {
 
 		return mMirrorProvider;
 	}
+
+	@Override
+	public synchronized MailboxStateProvider getMailboxStateProvider() {
+		if (mMailboxStateProvider == null) {
+			mMailboxStateProvider = new MailboxStateProvider(getProviderDatabaseHelper());
+		}
+
+		return mMailboxStateProvider;
+	}
+
+	private synchronized PayloadPrefetcher getPayloadPrefetcher() {
+		if (mPayloadPrefetcher == null) {
+			mPayloadPrefetcher = new PayloadPrefetcher(getAppContext(), getAccountStore(),
+					getVoicemailFetcherFactory(), getVoicemailProvider(), getSourceNotifier(),
+					getPayloadFetchGuard());
+		}
+
+		return mPayloadPrefetcher;
+	}
+
+	private synchronized PayloadFetchGuard getPayloadFetchGuard() {
+		if (mPayloadFetchGuard == null) {
+			mPayloadFetchGuard = new PayloadFetchGuard();
+		}
+
+		return mPayloadFetchGuard;
+	}
 	
 	@Override
 	public synchronized LocalGreetingsProvider getLocalGreetingsProvider() {
@@ -0,0 +1,123 @@
+/*
+ * Copyright (C) 2012 Orange Labs UK. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+package com.orange.labs.uk.omtp.fetch;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+import javax.annotation.concurrent.ThreadSafe;
+
+/**
+ * Lets the thread waiting for a payload fetch abort it once it has timed out.
+ * <p>
+ * The fetcher attaches the connection it is fetching from, which is closed by {@link #abort()} so
+ * that the fetch fails instead of keeping on running in the background. The destination of the
+ * payload is written through {@link #guard(OutputStream)}: once {@link #abort()} has returned,
+ * nothing is written to it anymore and it can safely be closed or reused by the caller.
+ */
+@ThreadSafe
+public class FetchHandle {
+
+	/**
+	 * Connection a payload is being fetched from.
+	 */
+	public interface Connection {
+		/**
+		 * Closes the connection from another thread, failing the fetch in progress.
+		 */
+		public void abort();
+	}
+
+	private Connection mConnection;
+	private boolean mAborted;
+
+	/**
+	 * Attaches the connection of the fetch, which is immediately aborted if the fetch already is.
+	 */
+	public synchronized void attach(Connection connection) {
+		mConnection = connection;
+		if (mAborted) {
+			connection.abort();
+		}
+	}
+
+	/**
+	 * Detaches the connection, to be called before it is released for another use.
+	 */
+	public synchronized void detach() {
+		mConnection = null;
+	}
+
+	/**
+	 * Aborts the fetch: closes its connection, and fails the subsequent writes to the guarded
+	 * streams.
+	 */
+	public synchronized void abort() {
+		mAborted = true;
+		if (mConnection != null) {
+			mConnection.abort();
+		}
+	}
+
+	public synchronized boolean isAborted() {
+		return mAborted;
+	}
+
+	/**
+	 * Returns a stream writing to the provided one until the fetch is aborted. A write in progress
+	 * delays {@link #abort()} until it completes.
+	 */
+	public OutputStream guard(OutputStream destination) {
+		return new FilterOutputStream(destination) {
+			@Override
+			public void write(int b) throws IOException {
+				synchronized (FetchHandle.this) {
+					checkNotAborted();
+					out.write(b);
+				}
+			}
+
+			@Override
+			public void write(byte[] b, int off, int len) throws IOException {
+				synchronized (FetchHandle.this) {
+					checkNotAborted();
+					out.write(b, off, len);
+				}
+			}
+
+			@Override
+			public void flush() throws IOException {
+				synchronized (FetchHandle.this) {
+					checkNotAborted();
+					out.flush();
+				}
+			}
+
+			@Override
+			public void close() throws IOException {
+				// The destination is closed by its owner.
+				flush();
+			}
+		};
+	}
+
+	private void checkNotAborted() throws IOException {
+		if (mAborted) {
+			throw new IOException("Fetch aborted");
+		}
+	}
+}
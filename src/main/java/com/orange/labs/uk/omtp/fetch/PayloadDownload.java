@@ -0,0 +1,194 @@
+/*
+ * Copyright (C) 2012 Orange Labs UK. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+package com.orange.labs.uk.omtp.fetch;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Locale;
+
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.NotThreadSafe;
+
+import org.apache.commons.io.output.CloseShieldOutputStream;
+import org.apache.commons.io.output.CountingOutputStream;
+
+import com.orange.labs.uk.omtp.config.StackStaticConfiguration;
+import com.orange.labs.uk.omtp.utils.Base64DecodingOutputStream;
+
+/**
+ * Progressive download of a voicemail payload. The audio attachment is requested in ranges of
+ * {@link StackStaticConfiguration#IMAP_PAYLOAD_CHUNK_SIZE} bytes, each range being decoded into the
+ * destination stream as soon as it is received so that the playback can start after the first
+ * chunk.
+ * <p>
+ * The position in the attachment and the decoder are kept across fetch attempts: a download
+ * interrupted by a dropped connection is resumed from the last received offset rather than from
+ * the beginning.
+ * <p>
+ * The download is driven by one fetcher at a time. The progress can be read from any thread.
+ */
+@NotThreadSafe
+public class PayloadDownload {
+
+	/**
+	 * Listener notified as the payload is being downloaded.
+	 */
+	public interface ProgressListener {
+		/**
+		 * Called from the fetcher thread each time a chunk has been written to the destination.
+		 */
+		public void onProgress(PayloadDownload download);
+	}
+
+	private final CountingOutputStream mDestination;
+	private final ProgressListener mListener;
+
+	/** Stream decoding the transfer encoding of the attachment, null until started. */
+	private OutputStream mDecoder;
+
+	private volatile String mMimeType;
+	/** Number of (still encoded) bytes of the attachment received so far. */
+	private volatile long mOffset;
+	/** Number of decoded bytes written to the destination so far. */
+	private volatile long mBytesAvailable;
+	private volatile boolean mComplete;
+
+	public PayloadDownload(OutputStream destination, ProgressListener listener) {
+		mDestination = new CountingOutputStream(destination);
+		mListener = listener;
+	}
+
+	/**
+	 * Starts the download of an attachment of the given MIME type and transfer encoding. Does
+	 * nothing if the download has already been started by a previous attempt.
+	 * 
+	 * @return false if the transfer encoding cannot be decoded progressively, in which case the
+	 *         attachment should be fetched at once into {@link #getDestination()}.
+	 */
+	public boolean start(String mimeType, @Nullable String transferEncoding) {
+		if (mDecoder != null) {
+			return true;
+		}
+		String encoding = (transferEncoding == null) ? "" :
+				transferEncoding.trim().toLowerCase(Locale.US);
+		OutputStream destination = new CloseShieldOutputStream(mDestination);
+		if (encoding.equals("base64")) {
+			mDecoder = new Base64DecodingOutputStream(destination);
+		} else if (encoding.length() == 0 || encoding.equals("7bit") || encoding.equals("8bit")
+				|| encoding.equals("binary")) {
+			mDecoder = destination;
+		} else {
+			return false;
+		}
+		mMimeType = mimeType;
+		return true;
+	}
+
+	public boolean isStarted() {
+		return mDecoder != null;
+	}
+
+	public boolean isComplete() {
+		return mComplete;
+	}
+
+	public String getMimeType() {
+		return mMimeType;
+	}
+
+	/** Returns the offset, in the encoded attachment, from which the next chunk starts. */
+	public long getOffset() {
+		return mOffset;
+	}
+
+	/** Returns the number of decoded bytes that have been written to the destination. */
+	public long getBytesAvailable() {
+		return mBytesAvailable;
+	}
+
+	/**
+	 * Indicates if the download can be resumed after a failed attempt. This is not the case once
+	 * an attachment that cannot be fetched in chunks has been partially written to
+	 * {@link #getDestination()}: the download should then start over with a new destination.
+	 */
+	public boolean isResumable() {
+		return mDecoder != null || mDestination.getByteCount() == 0;
+	}
+
+	/**
+	 * Returns the raw destination, to be used when the attachment cannot be fetched in chunks.
+	 * 
+	 * @throws IOException
+	 *             if a previous attempt has already written to the destination, as such a download
+	 *             cannot be resumed, see {@link #isResumable()}
+	 */
+	public OutputStream getDestination() throws IOException {
+		if (mDestination.getByteCount() > 0) {
+			throw new IOException("Interrupted download cannot be resumed");
+		}
+		return mDestination;
+	}
+
+	/**
+	 * Returns the stream the next chunk should be written to, still transfer encoded. Every byte
+	 * written moves the offset forward, so that a chunk interrupted half way is resumed where it
+	 * stopped.
+	 */
+	public OutputStream getChunkOutputStream() {
+		return new FilterOutputStream(mDecoder) {
+			@Override
+			public void write(int b) throws IOException {
+				out.write(b);
+				mOffset++;
+			}
+
+			@Override
+			public void write(byte[] b, int off, int len) throws IOException {
+				out.write(b, off, len);
+				mOffset += len;
+			}
+
+			@Override
+			public void close() {
+				// The decoder outlives the chunks.
+			}
+		};
+	}
+
+	/**
+	 * Records that a chunk has been received. The download is complete once a chunk shorter
+	 * than the requested length is received.
+	 */
+	public void onChunkReceived(int length, int requestedLength) throws IOException {
+		if (length < requestedLength) {
+			mDecoder.close();
+			mComplete = true;
+		} else {
+			mDecoder.flush();
+		}
+		mBytesAvailable = mDestination.getByteCount();
+		mListener.onProgress(this);
+	}
+
+	/** Records that the whole attachment has been written to {@link #getDestination()}. */
+	public void onComplete(String mimeType) {
+		mMimeType = mimeType;
+		mComplete = true;
+		mBytesAvailable = mDestination.getByteCount();
+		mListener.onProgress(this);
+	}
+}
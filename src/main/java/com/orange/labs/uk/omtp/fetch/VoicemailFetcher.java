@@ -16,6 +16,7 @@
 package com.orange.labs.uk.omtp.fetch;
 
 
+import java.io.OutputStream;
 import java.util.List;
 
 import com.android.email.mail.MessagingException;
@@ -34,11 +35,24 @@ import com.orange.labs.uk.omtp.voicemail.VoicemailPayload;
 public interface VoicemailFetcher {
 
 	/**
-	 * Fetch all voicemails from the platform.
+	 * Fetch all voicemails from the platform. The state of the mailbox is only saved once the
+	 * returned {@link VoicemailListing} is committed.
 	 * 
 	 * @param	callback	Callback used to return the fetched voicemails.
 	 */
-	public void fetchAllVoicemails(Callback<List<Voicemail>> callback);
+	public void fetchAllVoicemails(Callback<VoicemailListing> callback);
+
+	/**
+	 * Fetch all voicemails from the platform, only downloading the details of the voicemails
+	 * that are not part of the provided list. The details of the known voicemails are reused and
+	 * only their read status is refreshed. Falls back to a full listing if the mailbox cannot be
+	 * synchronized incrementally.
+	 * 
+	 * @param	knownVoicemails	Voicemails retrieved during the previous synchronization.
+	 * @param	callback	Callback used to return the fetched voicemails.
+	 */
+	public void fetchAllVoicemails(List<Voicemail> knownVoicemails,
+			Callback<VoicemailListing> callback);
 	
 	/**
 	 * Fetch the payload (typically the audio file) of a specified voicemail.
@@ -47,6 +61,32 @@ public interface VoicemailFetcher {
 	 * @param callback	Callback used to return the fetched payload.
 	 */
 	public void fetchVoicemailPayload(String providerData, Callback<VoicemailPayload> callback);
+
+	/**
+	 * Fetch the audio attachment of a specified voicemail and write it, decoded, to the provided
+	 * stream as it is received. The stream is not closed by the fetcher, and is written through
+	 * the handle so that nothing is written to it once the fetch has been aborted.
+	 * 
+	 * @param providerData	Provider identifying the voicemail we want to download the voicemail of.
+	 * @param destination	Stream the audio content is written to.
+	 * @param handle	Handle through which the fetch can be aborted.
+	 * @param callback	Callback used to return the MIME type of the fetched content.
+	 */
+	public void fetchVoicemailPayload(String providerData, OutputStream destination,
+			FetchHandle handle, Callback<String> callback);
+
+	/**
+	 * Fetch the audio attachment of a specified voicemail progressively, in chunks, continuing
+	 * the provided download from where a previous attempt stopped. The destination of the
+	 * download should be guarded by the handle, and the download not be used again once aborted.
+	 * 
+	 * @param providerData	Provider identifying the voicemail we want to download the voicemail of.
+	 * @param download	Download to continue, which receives the decoded audio content.
+	 * @param handle	Handle through which the fetch can be aborted.
+	 * @param callback	Callback used to return the MIME type of the fetched content.
+	 */
+	public void fetchVoicemailPayload(String providerData, PayloadDownload download,
+			FetchHandle handle, Callback<String> callback);
 	
 	/**
 	 * Mark the provided voicemails as read on the remote platform.
@@ -0,0 +1,41 @@
+/*
+ * Copyright (C) 2012 Orange Labs UK. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+package com.orange.labs.uk.omtp.fetch;
+
+import java.util.List;
+
+import com.orange.labs.uk.omtp.voicemail.Voicemail;
+
+/**
+ * Voicemails listed from the remote platform, along with the state of the mailbox they have been
+ * listed from.
+ * <p>
+ * The state is only saved by {@link #commit()}, once the listing has been applied to the local
+ * stores: a synchronization failing to apply it starts again from the previous state, and doesn't
+ * miss the changes reported by this listing.
+ */
+public interface VoicemailListing {
+
+	/**
+	 * Returns the voicemails present on the platform.
+	 */
+	public List<Voicemail> getVoicemails();
+
+	/**
+	 * Saves the state of the mailbox, so that the next incremental listing starts from it.
+	 */
+	public void commit();
+}
@@ -22,15 +22,20 @@ import com.android.email.mail.MessagingException;
 import com.orange.labs.uk.omtp.account.OmtpAccountInfo;
 import com.orange.labs.uk.omtp.account.OmtpAccountStoreWrapper;
 import com.orange.labs.uk.omtp.callbacks.Callback;
+import com.orange.labs.uk.omtp.fetch.FetchHandle;
+import com.orange.labs.uk.omtp.fetch.PayloadDownload;
 import com.orange.labs.uk.omtp.fetch.VoicemailFetcher;
+import com.orange.labs.uk.omtp.fetch.VoicemailListing;
 import com.orange.labs.uk.omtp.greetings.Greeting;
 import com.orange.labs.uk.omtp.greetings.GreetingType;
 import com.orange.labs.uk.omtp.greetings.GreetingUpdateType;
 import com.orange.labs.uk.omtp.greetings.GreetingsHelper;
+import com.orange.labs.uk.omtp.imap.database.MailboxStateProvider;
 import com.orange.labs.uk.omtp.notification.SourceNotifier;
 import com.orange.labs.uk.omtp.voicemail.Voicemail;
 import com.orange.labs.uk.omtp.voicemail.VoicemailPayload;
 
+import java.io.OutputStream;
 import java.util.List;
 import java.util.concurrent.Executor;
 
@@ -45,17 +50,24 @@ public class AsyncImapVoicemailFetcher implements VoicemailFetcher {
 	private final Executor mExecutor;
 	private final OmtpAccountStoreWrapper mAccountStore;
 	private final SourceNotifier mSourceNotifier;
+	private final ImapSessionManager mSessionManager;
+	private final MailboxStateProvider mMailboxStates;
 
 	/**
 	 * The {@link Context} is required for handing to the underlying imap code,
-	 * any context will do, the application context is fine.
+	 * any context will do, the application context is fine. The {@link ImapSessionManager} is
+	 * shared by all the fetchers so that the IMAP connections are reused between operations.
+	 * The {@link MailboxStateProvider} keeps the mailbox state used by incremental fetches.
 	 */
 	public AsyncImapVoicemailFetcher(Context context, Executor executor,
-			OmtpAccountStoreWrapper accountStore, SourceNotifier notifier) {
+			OmtpAccountStoreWrapper accountStore, SourceNotifier notifier,
+			ImapSessionManager sessionManager, MailboxStateProvider mailboxStates) {
 		mContext = context;
 		mExecutor = executor;
 		mAccountStore = accountStore;
 		mSourceNotifier = notifier;
+		mSessionManager = sessionManager;
+		mMailboxStates = mailboxStates;
 	}
 
     private OmtpAccountInfo getAccountDetailsOrFail(final Callback<?> callback) {
@@ -69,19 +81,36 @@ public class AsyncImapVoicemailFetcher implements VoicemailFetcher {
     }
 
 	@Override
-	public void fetchAllVoicemails(final Callback<List<Voicemail>> callback) {
+	public void fetchAllVoicemails(final Callback<VoicemailListing> callback) {
         mExecutor.execute(new Runnable() {
             @Override
             public void run() {
                 final OmtpAccountInfo accountDetails = getAccountDetailsOrFail(callback);
                 if(accountDetails != null) {
-                    new OneshotSyncImapVoicemailFetcher(mContext, accountDetails, mSourceNotifier)
+                    new OneshotSyncImapVoicemailFetcher(mContext, accountDetails, mSourceNotifier,
+                            mSessionManager, mMailboxStates)
                             .fetchAllVoicemails(callback);
                 }
             }
         });
 	}
 
+	@Override
+	public void fetchAllVoicemails(final List<Voicemail> knownVoicemails,
+			final Callback<VoicemailListing> callback) {
+        mExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                final OmtpAccountInfo accountDetails = getAccountDetailsOrFail(callback);
+                if(accountDetails != null) {
+                    new OneshotSyncImapVoicemailFetcher(mContext, accountDetails, mSourceNotifier,
+                            mSessionManager, mMailboxStates)
+                            .fetchAllVoicemails(knownVoicemails, callback);
+                }
+            }
+        });
+	}
+
 	@Override
 	public void fetchVoicemailPayload(final String providerData,
                                       final Callback<VoicemailPayload> callback) {
@@ -90,13 +119,46 @@ public class AsyncImapVoicemailFetcher implements VoicemailFetcher {
             public void run() {
             final OmtpAccountInfo accountDetails = getAccountDetailsOrFail(callback);
             if (accountDetails != null) {
-                new OneshotSyncImapVoicemailFetcher(mContext, accountDetails, mSourceNotifier)
+                new OneshotSyncImapVoicemailFetcher(mContext, accountDetails, mSourceNotifier,
+                        mSessionManager, mMailboxStates)
                         .fetchVoicemailPayload(providerData, callback);
             }
             }
         });
 	}
 
+	@Override
+	public void fetchVoicemailPayload(final String providerData, final OutputStream destination,
+			final FetchHandle handle, final Callback<String> callback) {
+        mExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                final OmtpAccountInfo accountDetails = getAccountDetailsOrFail(callback);
+                if (accountDetails != null) {
+                    new OneshotSyncImapVoicemailFetcher(mContext, accountDetails, mSourceNotifier,
+                            mSessionManager, mMailboxStates)
+                            .fetchVoicemailPayload(providerData, destination, handle, callback);
+                }
+            }
+        });
+	}
+
+	@Override
+	public void fetchVoicemailPayload(final String providerData, final PayloadDownload download,
+			final FetchHandle handle, final Callback<String> callback) {
+        mExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                final OmtpAccountInfo accountDetails = getAccountDetailsOrFail(callback);
+                if (accountDetails != null) {
+                    new OneshotSyncImapVoicemailFetcher(mContext, accountDetails, mSourceNotifier,
+                            mSessionManager, mMailboxStates)
+                            .fetchVoicemailPayload(providerData, download, handle, callback);
+                }
+            }
+        });
+	}
+
 	@Override
 	public void markVoicemailsAsRead(final Callback<Void> callback, final Voicemail... voicemails) {
         mExecutor.execute(new Runnable() {
@@ -104,7 +166,8 @@ public class AsyncImapVoicemailFetcher implements VoicemailFetcher {
             public void run() {
                 final OmtpAccountInfo accountDetails = getAccountDetailsOrFail(callback);
                 if (accountDetails != null) {
-                    new OneshotSyncImapVoicemailFetcher(mContext, accountDetails, mSourceNotifier)
+                    new OneshotSyncImapVoicemailFetcher(mContext, accountDetails, mSourceNotifier,
+                            mSessionManager, mMailboxStates)
                             .markVoicemailsAsRead(callback, voicemails);
                 }
             }
@@ -119,7 +182,8 @@ public class AsyncImapVoicemailFetcher implements VoicemailFetcher {
             public void run() {
                 final OmtpAccountInfo accountDetails = getAccountDetailsOrFail(callback);
                 if (accountDetails != null) {
-                    new OneshotSyncImapVoicemailFetcher(mContext, accountDetails, mSourceNotifier)
+                    new OneshotSyncImapVoicemailFetcher(mContext, accountDetails, mSourceNotifier,
+                            mSessionManager, mMailboxStates)
                             .markVoicemailsAsDeleted(callback, voicemails);
                 }
             }
@@ -137,7 +201,8 @@ public class AsyncImapVoicemailFetcher implements VoicemailFetcher {
             public void run() {
                 final OmtpAccountInfo accountDetails = getAccountDetailsOrFail(callback);
                 if (accountDetails != null) {
-                    new OneshotSyncImapVoicemailFetcher(mContext, accountDetails, mSourceNotifier)
+                    new OneshotSyncImapVoicemailFetcher(mContext, accountDetails, mSourceNotifier,
+                            mSessionManager, mMailboxStates)
                             .uploadGreetings(callback, operationType, greetingType, greetingsHelper);
                 }
             }
@@ -151,7 +216,8 @@ public class AsyncImapVoicemailFetcher implements VoicemailFetcher {
             public void run() {
                 final OmtpAccountInfo accountDetails = getAccountDetailsOrFail(callback);
                 if (accountDetails != null) {
-                    new OneshotSyncImapVoicemailFetcher(mContext, accountDetails, mSourceNotifier)
+                    new OneshotSyncImapVoicemailFetcher(mContext, accountDetails, mSourceNotifier,
+                            mSessionManager, mMailboxStates)
                             .fetchAllGreetings(callback);
                 }
             }
@@ -166,7 +232,8 @@ public class AsyncImapVoicemailFetcher implements VoicemailFetcher {
             public void run() {
                 final OmtpAccountInfo accountDetails = getAccountDetailsOrFail(callback);
                 if (accountDetails != null) {
-                    new OneshotSyncImapVoicemailFetcher(mContext, accountDetails, mSourceNotifier)
+                    new OneshotSyncImapVoicemailFetcher(mContext, accountDetails, mSourceNotifier,
+                            mSessionManager, mMailboxStates)
                             .fetchGreetingPayload(callback, greeting);
                 }
             }
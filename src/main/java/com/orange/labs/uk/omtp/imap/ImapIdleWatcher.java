@@ -0,0 +1,256 @@
+/*
+ * Copyright (C) 2012 Orange Labs UK. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+package com.orange.labs.uk.omtp.imap;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import javax.annotation.concurrent.ThreadSafe;
+
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.net.ConnectivityManager;
+
+import com.android.email.mail.Folder.OpenMode;
+import com.android.email.mail.MessagingException;
+import com.orange.labs.uk.omtp.account.OmtpAccountInfo;
+import com.orange.labs.uk.omtp.account.OmtpAccountStoreWrapper;
+import com.orange.labs.uk.omtp.config.StackStaticConfiguration;
+import com.orange.labs.uk.omtp.logging.Logger;
+import com.orange.labs.uk.omtp.proxies.FolderProxy;
+import com.orange.labs.uk.omtp.sync.SerialSynchronizer;
+import com.orange.labs.uk.omtp.sync.SerialSynchronizer.SyncFlag;
+import com.orange.labs.uk.omtp.sync.SerialSynchronizer.SyncPriority;
+import com.orange.labs.uk.omtp.utils.NetworkManager;
+
+/**
+ * Keeps an IMAP connection in IDLE (RFC 2177) on the inbox, and queues a synchronization in the
+ * {@link SerialSynchronizer} as soon as the server reports new or expunged messages. This detects
+ * changes without waiting for the OMTP SYNC SMS, which may be delayed by the SMSC. Flag updates
+ * are not watched, as most of them are the echo of the changes made by our own synchronizations.
+ * <p>
+ * As it keeps a connection open, the watcher only runs while the device is connected to Wi-Fi:
+ * once started, it follows the connectivity broadcasts to stop when Wi-Fi is lost and restart
+ * when it comes back, until {@link #stop()} is called. The IDLE command is renewed every
+ * {@link StackStaticConfiguration#IMAP_IDLE_RENEW_INTERVAL}.
+ */
+@ThreadSafe
+public class ImapIdleWatcher {
+	private static final Logger logger = Logger.getLogger(ImapIdleWatcher.class);
+
+	private final Context mContext;
+	private final ImapSessionManager mSessionManager;
+	private final OmtpAccountStoreWrapper mAccountStore;
+	private final SerialSynchronizer mSerialSynchronizer;
+	private final NetworkManager mNetworkManager;
+
+	/** Thread running the IDLE loop. */
+	private final ExecutorService mExecutor = Executors.newSingleThreadExecutor();
+
+	/** Whether the watcher has been started and not stopped since. Guarded by this. */
+	private boolean mStarted;
+
+	/**
+	 * Incremented each time the IDLE loop is started or stopped, so that a loop still ending
+	 * when the next one is started exits instead of running along with it. Guarded by this.
+	 */
+	private int mGeneration;
+
+	/** Whether the IDLE loop of the current generation is running. */
+	private volatile boolean mRunning;
+
+	/** Folder currently in IDLE, null if none. */
+	private volatile FolderProxy mFolder;
+
+	private final BroadcastReceiver mConnectivityReceiver = new BroadcastReceiver() {
+		@Override
+		public void onReceive(Context context, Intent intent) {
+			onConnectivityChanged();
+		}
+	};
+
+	public ImapIdleWatcher(Context context, ImapSessionManager sessionManager,
+			OmtpAccountStoreWrapper accountStore, SerialSynchronizer serialSynchronizer) {
+		mContext = context;
+		mSessionManager = sessionManager;
+		mAccountStore = accountStore;
+		mSerialSynchronizer = serialSynchronizer;
+		mNetworkManager = new NetworkManager(context);
+	}
+
+	/**
+	 * Starts watching the inbox. The IDLE loop only runs while the device is connected to Wi-Fi,
+	 * it is otherwise started when Wi-Fi comes back.
+	 * 
+	 * @return a boolean that indicates if the watcher is running.
+	 */
+	public synchronized boolean start() {
+		if (!mStarted) {
+			mStarted = true;
+			mContext.registerReceiver(mConnectivityReceiver, new IntentFilter(
+					ConnectivityManager.CONNECTIVITY_ACTION));
+		}
+		return startLoop();
+	}
+
+	/**
+	 * Stops watching the inbox. The pending IDLE command is ended, and its connection handed back
+	 * to the {@link ImapSessionManager}.
+	 */
+	public synchronized void stop() {
+		logger.d("Stopping IMAP IDLE watcher");
+		if (mStarted) {
+			mStarted = false;
+			mContext.unregisterReceiver(mConnectivityReceiver);
+		}
+		stopLoop();
+	}
+
+	public boolean isRunning() {
+		return mRunning;
+	}
+
+	private synchronized void onConnectivityChanged() {
+		if (!mStarted) {
+			return;
+		}
+		if (mNetworkManager.isWifiEnabled()) {
+			startLoop();
+		} else if (mRunning) {
+			logger.i("Wi-Fi connectivity lost, stopping IMAP IDLE");
+			stopLoop();
+		}
+	}
+
+	/** Starts the IDLE loop if it isn't running. Must be called holding the lock. */
+	private boolean startLoop() {
+		if (mRunning) {
+			return true;
+		}
+		if (!mNetworkManager.isWifiEnabled()) {
+			logger.i("Not connected to Wi-Fi, IMAP IDLE not started");
+			return false;
+		}
+
+		logger.d("Starting IMAP IDLE watcher");
+		final int generation = ++mGeneration;
+		mRunning = true;
+		mExecutor.execute(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					watch(generation);
+				} finally {
+					onLoopEnded(generation);
+				}
+			}
+		});
+		return true;
+	}
+
+	/** Ends the running IDLE loop. Must be called holding the lock. */
+	private void stopLoop() {
+		mGeneration++;
+		mRunning = false;
+		FolderProxy folder = mFolder;
+		if (folder != null) {
+			folder.stopIdle();
+		}
+	}
+
+	/** Indicates if the loop of the provided generation should keep running. */
+	private synchronized boolean isCurrent(int generation) {
+		return generation == mGeneration;
+	}
+
+	private synchronized void onLoopEnded(int generation) {
+		if (generation == mGeneration) {
+			mRunning = false;
+		}
+	}
+
+	private void watch(int generation) {
+		while (isCurrent(generation)) {
+			OmtpAccountInfo accountDetails = mAccountStore.getAccountInfo();
+			if (accountDetails == null || !mNetworkManager.isWifiEnabled()) {
+				logger.i("No account or Wi-Fi connectivity, stopping IMAP IDLE watcher");
+				break;
+			}
+
+			boolean completed = false;
+			try {
+				mFolder = mSessionManager.createFolder(accountDetails,
+						StackStaticConfiguration.INBOX_FOLDER_NAME);
+				mFolder.open(OpenMode.READ_ONLY, null);
+				if (!mFolder.isIdleSupported()) {
+					logger.w("IDLE is not supported by the IMAP server, stopping watcher");
+					completed = true;
+					break;
+				}
+
+				while (isCurrent(generation)) {
+					if (mFolder.idle(StackStaticConfiguration.IMAP_IDLE_RENEW_INTERVAL)) {
+						logger.d("Mailbox change reported through IDLE, synchronizing");
+						mSerialSynchronizer.execute(SyncFlag.FULL_SYNCHRONIZATION,
+								SyncPriority.NEW_MESSAGE);
+					}
+				}
+				completed = true;
+			} catch (MessagingException e) {
+				logger.w(String.format("IMAP IDLE failed: %s", e.getMessage()));
+				closeFolder(true);
+				if (isCurrent(generation) && !waitBeforeRetry()) {
+					break;
+				}
+			} finally {
+				// The connection is only handed back to the pool if IDLE ended cleanly.
+				closeFolder(!completed);
+			}
+		}
+	}
+
+	/**
+	 * Closes the folder. After a failure, the connection may have responses left unread: it is
+	 * logged out and closed rather than handed back to the {@link ImapSessionManager}.
+	 */
+	private void closeFolder(boolean logout) {
+		FolderProxy folder = mFolder;
+		mFolder = null;
+		if (folder != null) {
+			try {
+				folder.close(false, logout);
+			} catch (MessagingException e) {
+				logger.e("failure while closing folder", e);
+			}
+		}
+	}
+
+	/**
+	 * Waits before the next attempt.
+	 * 
+	 * @return false if the thread has been interrupted, in which case the loop should end.
+	 */
+	private boolean waitBeforeRetry() {
+		try {
+			Thread.sleep(StackStaticConfiguration.IMAP_IDLE_RETRY_DELAY);
+			return true;
+		} catch (InterruptedException e) {
+			return false;
+		}
+	}
+}
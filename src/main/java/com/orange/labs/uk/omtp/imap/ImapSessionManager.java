@@ -0,0 +1,278 @@
+/*
+ * Copyright (C) 2012 Orange Labs UK. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+package com.orange.labs.uk.omtp.imap;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+import javax.annotation.concurrent.ThreadSafe;
+
+import android.app.ActivityManager;
+import android.content.Context;
+
+import com.android.email.Email;
+import com.android.email.mail.MessagingException;
+import com.android.email.mail.store.ImapStore;
+import com.android.email.mail.store.imap.ImapLiteralBufferPool;
+import com.android.email.mail.store.imap.ImapResponseParser;
+import com.android.email.mail.transport.SSLUtils;
+import com.orange.labs.uk.omtp.account.OmtpAccountInfo;
+import com.orange.labs.uk.omtp.config.StackStaticConfiguration;
+import com.orange.labs.uk.omtp.logging.Logger;
+import com.orange.labs.uk.omtp.proxies.FolderDelegate;
+import com.orange.labs.uk.omtp.proxies.FolderProxy;
+import com.orange.labs.uk.omtp.utils.HipriRouteManager;
+
+/**
+ * Keeps the IMAP stores, and therefore their pool of authenticated connections, alive across
+ * operations. A store is kept per account URI so that a change of server or credentials results
+ * in a fresh login.
+ * <p>
+ * Connections are returned to the pool of their store when a folder is closed without logging
+ * out. A pooled connection is checked with a NOOP before being reused, and transparently reopened
+ * if the server has dropped it. Connections idle for more than
+ * {@link StackStaticConfiguration#IMAP_SESSION_IDLE_TIMEOUT} are closed by a background task.
+ * <p>
+ * The TLS sessions are cached per server so that reopened connections skip the full handshake,
+ * and the quota of the mailboxes is kept by a {@link QuotaTracker} so that it isn't queried by
+ * every operation.
+ * <p>
+ * A connection can be prepared ahead of an operation with {@link #warmUp(OmtpAccountInfo)}.
+ * <p>
+ * The memory used by the IMAP literals is also sized here, from the memory class of the device.
+ */
+@ThreadSafe
+public class ImapSessionManager {
+	private static final Logger logger = Logger.getLogger(ImapSessionManager.class);
+
+	private final Context mContext;
+
+	/** Runs the eviction of the idle connections. */
+	private final ScheduledExecutorService mScheduler;
+
+	/**
+	 * Prepares the connections, apart from {@link #mScheduler} so that a slow login does not
+	 * delay the eviction.
+	 */
+	private final ExecutorService mWarmUpExecutor;
+
+	/** IMAP stores indexed by account URI. */
+	private final Map<String, OmtpImapStore> mStores = new HashMap<String, OmtpImapStore>();
+
+	/** Stores closed while some of their connections were in use, kept until they are returned. */
+	private final List<OmtpImapStore> mClosedStores = new ArrayList<OmtpImapStore>();
+
+	/** Routes the IMAP traffic through HIPRI while on Wi-Fi. */
+	private final HipriRouteManager mRouteManager;
+
+	/** Quotas of the mailboxes, shared by the operations of all the accounts. */
+	private final QuotaTracker mQuotaTracker = new QuotaTracker();
+
+	/** Connections being prepared in the background, indexed by account URI. */
+	private final Map<String, Future<?>> mWarmUps = new HashMap<String, Future<?>>();
+
+	/** Pending eviction task, null if none is scheduled. */
+	private ScheduledFuture<?> mEvictionTask;
+
+	public ImapSessionManager(Context context) {
+		mContext = context;
+		mScheduler = Executors.newSingleThreadScheduledExecutor();
+		mWarmUpExecutor = Executors.newSingleThreadExecutor();
+		mRouteManager = new HipriRouteManager(context);
+		configureLiteralStorage();
+		// Lets the new connections resume the TLS sessions of the previous ones.
+		SSLUtils.setSessionCache(context);
+		ImapStore.setMaxUidSetLength(StackStaticConfiguration.IMAP_MAX_UID_SET_LENGTH);
+	}
+
+	/**
+	 * Sizes the in-memory storage of the IMAP literals after the heap available to the
+	 * application: literals larger than a fraction of it are spilled to temp files, and the pool
+	 * of literal buffers keeps at most the same amount.
+	 */
+	private void configureLiteralStorage() {
+		ActivityManager activityManager = (ActivityManager) mContext
+				.getSystemService(Context.ACTIVITY_SERVICE);
+		int threshold = activityManager.getMemoryClass() * 1024 * 1024
+				/ StackStaticConfiguration.IMAP_LITERAL_HEAP_FRACTION;
+		ImapResponseParser.setLiteralKeepInMemoryThreshold(threshold);
+		ImapLiteralBufferPool.setCapacity(threshold);
+		logger.d(String.format("IMAP literals above %d bytes will be stored in temp files",
+				threshold));
+	}
+
+	/**
+	 * Returns the IMAP store associated to the provided account, creating it if required.
+	 */
+	public synchronized OmtpImapStore getStore(OmtpAccountInfo accountDetails)
+			throws MessagingException {
+		String uri = accountDetails.getUriString();
+		OmtpImapStore store = mStores.get(uri);
+		if (store == null) {
+			logger.d("Creating a new IMAP session store");
+			store = OmtpImapStore.newInstance(uri, mContext, null);
+			mStores.put(uri, store);
+		}
+		scheduleEviction();
+		return store;
+	}
+
+	/**
+	 * Returns the tracker keeping the quota of the mailboxes between operations.
+	 */
+	public QuotaTracker getQuotaTracker() {
+		return mQuotaTracker;
+	}
+
+	/**
+	 * Starts connecting and authenticating to the IMAP server of the account in the background, so
+	 * that an operation known to come shortly, like the download of the voicemail announced by a
+	 * SYNC SMS, finds an authenticated connection in the pool. Failures are only logged, the
+	 * operation then opens its own connection.
+	 */
+	public void warmUp(final OmtpAccountInfo accountDetails) {
+		final String uri = accountDetails.getUriString();
+		synchronized (mWarmUps) {
+			Future<?> pending = mWarmUps.get(uri);
+			if (pending != null && !pending.isDone()) {
+				return;
+			}
+			mWarmUps.put(uri, mWarmUpExecutor.submit(new Runnable() {
+				@Override
+				public void run() {
+					try {
+						if (StackStaticConfiguration.HIPRI_ON_WIFI) {
+							mRouteManager.ensureRoute(accountDetails.getImapServer());
+						}
+						getStore(accountDetails).prepareConnection();
+						logger.d("IMAP connection prepared");
+					} catch (MessagingException e) {
+						logger.w(String.format("Unable to prepare the IMAP connection: %s",
+								e.getMessage()));
+					}
+				}
+			}));
+		}
+	}
+
+	/**
+	 * Waits for the connection being prepared for the account, if any, so that it is used rather
+	 * than a second one being opened in parallel.
+	 */
+	private void awaitWarmUp(String uri) {
+		Future<?> pending;
+		synchronized (mWarmUps) {
+			pending = mWarmUps.remove(uri);
+		}
+		if (pending == null) {
+			return;
+		}
+		try {
+			pending.get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		} catch (ExecutionException e) {
+			// Already logged by the warm-up task.
+		}
+	}
+
+	/**
+	 * Returns a new folder attached to the shared store of the provided account. The folder is not
+	 * opened, and it should be closed without logging out so its connection goes back to the pool.
+	 * <p>
+	 * If {@link StackStaticConfiguration#HIPRI_ON_WIFI} is set, the traffic to the server is routed
+	 * through HIPRI first, which is immediate once the route has been established.
+	 */
+	public FolderProxy createFolder(OmtpAccountInfo accountDetails, String folderName)
+			throws MessagingException {
+		awaitWarmUp(accountDetails.getUriString());
+		if (StackStaticConfiguration.HIPRI_ON_WIFI) {
+			mRouteManager.ensureRoute(accountDetails.getImapServer());
+		}
+		Email.setTempDirectory(mContext);
+		return new FolderDelegate(getStore(accountDetails).createFolder(folderName));
+	}
+
+	/**
+	 * Closes the connections that have been idle for too long. The eviction is rescheduled as long
+	 * as some connections remain in the pools or in use.
+	 */
+	public synchronized void evictIdleSessions() {
+		mEvictionTask = null;
+		int remaining = 0;
+		int inUse = 0;
+		for (OmtpImapStore store : mStores.values()) {
+			remaining += store.closeIdleConnections(
+					StackStaticConfiguration.IMAP_SESSION_IDLE_TIMEOUT);
+			inUse += store.getConnectionsInUse();
+		}
+		for (Iterator<OmtpImapStore> it = mClosedStores.iterator(); it.hasNext();) {
+			int storeInUse = it.next().getConnectionsInUse();
+			if (storeInUse == 0) {
+				it.remove();
+			}
+			inUse += storeInUse;
+		}
+		logger.d(String.format("Idle IMAP sessions evicted, %d connection(s) left, %d in use",
+				remaining, inUse));
+		if (remaining > 0 || inUse > 0) {
+			scheduleEviction();
+		} else {
+			// Nothing is being downloaded anymore, give the pooled buffers back to the heap.
+			ImapLiteralBufferPool.clear();
+		}
+	}
+
+	/**
+	 * Closes all the pooled connections, for instance when the account has been reset. The
+	 * connections in use are closed once their operation returns them.
+	 */
+	public synchronized void closeAllSessions() {
+		for (OmtpImapStore store : mStores.values()) {
+			store.close();
+			if (store.getConnectionsInUse() > 0) {
+				mClosedStores.add(store);
+			}
+		}
+		mStores.clear();
+		mQuotaTracker.clear();
+		mRouteManager.release();
+		if (!mClosedStores.isEmpty()) {
+			scheduleEviction();
+		}
+	}
+
+	private void scheduleEviction() {
+		if (mEvictionTask == null) {
+			mEvictionTask = mScheduler.schedule(new Runnable() {
+				@Override
+				public void run() {
+					evictIdleSessions();
+				}
+			}, StackStaticConfiguration.IMAP_SESSION_IDLE_TIMEOUT, TimeUnit.MILLISECONDS);
+		}
+	}
+}
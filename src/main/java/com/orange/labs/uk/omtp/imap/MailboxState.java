@@ -0,0 +1,79 @@
+/*
+ * Copyright (C) 2012 Orange Labs UK. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+package com.orange.labs.uk.omtp.imap;
+
+import javax.annotation.concurrent.Immutable;
+
+import com.orange.labs.uk.omtp.proxies.FolderProxy;
+
+/**
+ * State of an IMAP mailbox as reported by the server when it is selected: UIDVALIDITY, UIDNEXT
+ * and, on servers supporting CONDSTORE, HIGHESTMODSEQ. Values not reported by the server are 0.
+ */
+@Immutable
+public class MailboxState {
+	private final long mUidValidity;
+	private final long mUidNext;
+	private final long mHighestModSeq;
+
+	public MailboxState(long uidValidity, long uidNext, long highestModSeq) {
+		mUidValidity = uidValidity;
+		mUidNext = uidNext;
+		mHighestModSeq = highestModSeq;
+	}
+
+	/**
+	 * Returns the state of the provided folder, which must be open.
+	 */
+	public static MailboxState fromFolder(FolderProxy folder) {
+		return new MailboxState(folder.getUidValidity(), folder.getUidNext(),
+				folder.getHighestModSeq());
+	}
+
+	public long getUidValidity() {
+		return mUidValidity;
+	}
+
+	public long getUidNext() {
+		return mUidNext;
+	}
+
+	public long getHighestModSeq() {
+		return mHighestModSeq;
+	}
+
+	/**
+	 * Indicates if the UIDs known in the provided previous state still refer to the same
+	 * messages, i.e. if the mailbox can be synchronized incrementally from that state.
+	 */
+	public boolean isContinuationOf(MailboxState previous) {
+		return mUidValidity != 0 && previous.mUidValidity == mUidValidity;
+	}
+
+	/**
+	 * Indicates if flag changes since the provided previous state can be retrieved through
+	 * CONDSTORE.
+	 */
+	public boolean hasModSeqSince(MailboxState previous) {
+		return previous.mHighestModSeq != 0 && mHighestModSeq >= previous.mHighestModSeq;
+	}
+
+	@Override
+	public String toString() {
+		return String.format("MailboxState [uidValidity=%d, uidNext=%d, highestModSeq=%d]",
+				mUidValidity, mUidNext, mHighestModSeq);
+	}
+}
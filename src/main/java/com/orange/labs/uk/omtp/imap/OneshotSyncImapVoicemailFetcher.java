@@ -19,10 +19,16 @@ package com.orange.labs.uk.omtp.imap;
 import java.io.BufferedOutputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.io.OutputStream;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
 import java.util.concurrent.Callable;
 import java.util.concurrent.atomic.AtomicBoolean;
 
@@ -32,7 +38,6 @@ import javax.annotation.concurrent.ThreadSafe;
 import android.content.Context;
 import android.util.Base64;
 
-import com.android.email.Email;
 import com.android.email.mail.Address;
 import com.android.email.mail.Body;
 import com.android.email.mail.BodyPart;
@@ -43,14 +48,16 @@ import com.android.email.mail.Folder.OpenMode;
 import com.android.email.mail.Message;
 import com.android.email.mail.MessagingException;
 import com.android.email.mail.Multipart;
-import com.android.email.mail.Store;
+import com.android.email.mail.internet.MimeHeader;
 import com.android.email.mail.internet.MimeMessage;
-import com.android.email.mail.store.ImapStore;
 import com.android.email.mail.store.imap.ImapConstants;
 import com.orange.labs.uk.omtp.account.OmtpAccountInfo;
 import com.orange.labs.uk.omtp.callbacks.Callback;
 import com.orange.labs.uk.omtp.config.StackStaticConfiguration;
+import com.orange.labs.uk.omtp.fetch.FetchHandle;
+import com.orange.labs.uk.omtp.fetch.PayloadDownload;
 import com.orange.labs.uk.omtp.fetch.VoicemailFetcher;
+import com.orange.labs.uk.omtp.fetch.VoicemailListing;
 import com.orange.labs.uk.omtp.greetings.Greeting;
 import com.orange.labs.uk.omtp.greetings.GreetingCreator;
 import com.orange.labs.uk.omtp.greetings.GreetingCreatorImpl;
@@ -58,14 +65,12 @@ import com.orange.labs.uk.omtp.greetings.GreetingImpl;
 import com.orange.labs.uk.omtp.greetings.GreetingType;
 import com.orange.labs.uk.omtp.greetings.GreetingUpdateType;
 import com.orange.labs.uk.omtp.greetings.GreetingsHelper;
+import com.orange.labs.uk.omtp.imap.database.MailboxStateProvider;
 import com.orange.labs.uk.omtp.logging.Logger;
 import com.orange.labs.uk.omtp.notification.DataChannelNotification;
-import com.orange.labs.uk.omtp.notification.QuotaNotification;
 import com.orange.labs.uk.omtp.notification.SourceNotifier;
-import com.orange.labs.uk.omtp.proxies.FolderDelegate;
 import com.orange.labs.uk.omtp.proxies.FolderProxy;
 import com.orange.labs.uk.omtp.utils.CloseUtils;
-import com.orange.labs.uk.omtp.utils.NetworkManager;
 import com.orange.labs.uk.omtp.voicemail.Voicemail;
 import com.orange.labs.uk.omtp.voicemail.VoicemailImpl;
 import com.orange.labs.uk.omtp.voicemail.VoicemailPayload;
@@ -83,20 +88,34 @@ import com.orange.labs.uk.omtp.voicemail.VoicemailPayloadImpl;
 /* package */class OneshotSyncImapVoicemailFetcher implements VoicemailFetcher {
 	private static final Logger logger = Logger.getLogger(OneshotSyncImapVoicemailFetcher.class);
 
+	/** UID SEARCH criteria listing all the messages of a folder. */
+	private static final String ALL_MESSAGES_SEARCH = "1:* NOT DELETED";
+
+	/** UID SEARCH criteria listing the messages received since the provided UIDNEXT. */
+	private static final String NEW_MESSAGES_SEARCH = "UID %d:* NOT DELETED";
+
+	/** UID SEARCH criteria listing the messages up to the provided UID. */
+	private static final String KNOWN_MESSAGES_SEARCH = "UID 1:%d NOT DELETED";
+
+	/** UID SEARCH criteria listing the seen messages up to the provided UID. */
+	private static final String KNOWN_SEEN_MESSAGES_SEARCH = "UID 1:%d SEEN NOT DELETED";
+
 	private final Context mContext;
 	private final OmtpAccountInfo mAccountDetails;
+	private final ImapSessionManager mSessionManager;
+	private final MailboxStateProvider mMailboxStates;
+	private final QuotaTracker mQuotaTracker;
 
 	private final AtomicBoolean mStarted;
 	private final AtomicBoolean mFinished;
 
 	private volatile FolderProxy mFolder;
 
-	private boolean mExpunge;
+	/** Quota and UIDs found by the UID SEARCHes sent along with the SELECT. */
+	private volatile Folder.OpenResult mOpenResult;
+
 	private SourceNotifier mNotifier;
 
-	/** Used to determine current network status */
-	private final NetworkManager mNetworkManager;
-	
 	/**
 	 * Duration of the message is fixed to 22s instead to be null during initial insertions in order
 	 * to try to overcome an issue on Samsung s4 device.
@@ -104,40 +123,265 @@ import com.orange.labs.uk.omtp.voicemail.VoicemailPayloadImpl;
 	private long FIXED_DURATION_FOR_RETREIVED_MESSAGES = 22;
 
 	public OneshotSyncImapVoicemailFetcher(final Context context,
-			final OmtpAccountInfo accountDetails, final SourceNotifier notifier) {
+			final OmtpAccountInfo accountDetails, final SourceNotifier notifier,
+			final ImapSessionManager sessionManager, final MailboxStateProvider mailboxStates) {
 		mContext = context;
 		mAccountDetails = accountDetails;
+		mSessionManager = sessionManager;
+		mMailboxStates = mailboxStates;
+		mQuotaTracker = sessionManager.getQuotaTracker();
 		mNotifier = notifier;
-		mNetworkManager = new NetworkManager(context);
 
 		mStarted = new AtomicBoolean(false);
 		mFinished = new AtomicBoolean(false);
-		mExpunge = false;
 		mFolder = null;
 	}
 
 	@Override
-	public void fetchAllVoicemails(final Callback<List<Voicemail>> callback) {
+	public void fetchAllVoicemails(final Callback<VoicemailListing> callback) {
 		executeFetchWithFolder(new Callable<Void>() {
 			@Override
 			public Void call() throws MessagingException {
-				checkFolderQuota();
-
 				// Now retrieve the voicemails.
-				List<Voicemail> voicemails = new ArrayList<Voicemail>();
-				Message[] messages = mFolder.getMessages(null);
-				for (Message message : messages) {
-					Voicemail voicemail = fetchVoicemail(message, callback);
-					if (voicemail != null) {
-						voicemails.add(voicemail);
-					}
+				MailboxState state = MailboxState.fromFolder(mFolder);
+				Message[] messages = mFolder.getMessages(mOpenResult.getUids(), null);
+				List<Voicemail> voicemails = getVoicemails(messages,
+						fetchVoicemails(messages));
+				if (!mFinished.getAndSet(true)) {
+					callback.onSuccess(new MailboxListing(voicemails,
+							getMailboxKey(StackStaticConfiguration.INBOX_FOLDER_NAME), state));
+				}
+				return null;
+			}
+		}, callback, StackStaticConfiguration.INBOX_FOLDER_NAME, true, ALL_MESSAGES_SEARCH);
+	}
+
+	/**
+	 * Incremental variant of {@link #fetchAllVoicemails(Callback)}, starting from the
+	 * {@link MailboxState} stored by the previous synchronization. The SELECT is pipelined with a
+	 * UID SEARCH of the messages received since its UIDNEXT and one limited to the UIDs it could
+	 * know, which detects the expunged messages as well as the ones the previous synchronization
+	 * failed to store. Only the structure of the unknown messages is fetched, while the read
+	 * status of the known ones comes from CONDSTORE (flags changed since the stored
+	 * HIGHESTMODSEQ) or, without it, from a third UID SEARCH of the seen messages of that range.
+	 * If the UIDVALIDITY of the mailbox has changed, all its messages are fetched.
+	 */
+	@Override
+	public void fetchAllVoicemails(final List<Voicemail> knownVoicemails,
+			final Callback<VoicemailListing> callback) {
+		final String mailbox = getMailboxKey(StackStaticConfiguration.INBOX_FOLDER_NAME);
+		final MailboxState previousState = mMailboxStates.getMailboxState(mailbox);
+		if (previousState == null || previousState.getUidNext() <= 1
+				|| knownVoicemails.isEmpty()) {
+			logger.d(String.format("Full listing of the mailbox, previous state: %s",
+					previousState));
+			fetchAllVoicemails(callback);
+			return;
+		}
+
+		final long uidNext = previousState.getUidNext();
+		List<String> searches = new ArrayList<String>();
+		searches.add(String.format(Locale.US, NEW_MESSAGES_SEARCH, uidNext));
+		searches.add(String.format(Locale.US, KNOWN_MESSAGES_SEARCH, uidNext - 1));
+		if (previousState.getHighestModSeq() == 0) {
+			searches.add(String.format(Locale.US, KNOWN_SEEN_MESSAGES_SEARCH, uidNext - 1));
+		}
+		executeFetchWithFolder(new Callable<Void>() {
+			@Override
+			public Void call() throws MessagingException {
+				MailboxState currentState = MailboxState.fromFolder(mFolder);
+				String[] knownRangeUids = mOpenResult.getUids(1);
+				String[] newUids = mOpenResult.getUids(0);
+				List<Voicemail> voicemails;
+				if (!currentState.isContinuationOf(previousState)) {
+					logger.d(String.format("Full listing of the mailbox, previous state: %s",
+							previousState));
+					// Both searches together cover the whole mailbox.
+					Set<String> uids = new LinkedHashSet<String>(Arrays.asList(knownRangeUids));
+					uids.addAll(Arrays.asList(newUids));
+					Message[] messages = mFolder.getMessages(
+							uids.toArray(new String[uids.size()]), null);
+					voicemails = getVoicemails(messages, fetchVoicemails(messages));
+				} else {
+					voicemails = fetchVoicemailChanges(knownRangeUids,
+							getUidsFrom(newUids, uidNext), mOpenResult.getUids(2),
+							knownVoicemails, previousState, currentState);
 				}
 				if (!mFinished.getAndSet(true)) {
-					callback.onSuccess(voicemails);
+					callback.onSuccess(new MailboxListing(voicemails, mailbox, currentState));
 				}
 				return null;
 			}
-		}, callback, StackStaticConfiguration.INBOX_FOLDER_NAME);
+		}, callback, StackStaticConfiguration.INBOX_FOLDER_NAME, true,
+				searches.toArray(new String[searches.size()]));
+	}
+
+	/**
+	 * Returns the provided UIDs which are not lower than {@code uidNext}: a search of
+	 * {@code uidNext:*} also matches the last message of the mailbox when no UID is that high.
+	 */
+	private static String[] getUidsFrom(String[] uids, long uidNext) {
+		List<String> newUids = new ArrayList<String>();
+		for (String uid : uids) {
+			try {
+				if (Long.parseLong(uid) >= uidNext) {
+					newUids.add(uid);
+				}
+			} catch (NumberFormatException e) {
+				logger.w(String.format("Ignoring invalid UID %s", uid));
+			}
+		}
+		return newUids.toArray(new String[newUids.size()]);
+	}
+
+	/**
+	 * Builds the list of voicemails of the mailbox from the known voicemails, only fetching the
+	 * structure of the unknown messages and the read status that changed since the previous
+	 * state.
+	 * 
+	 * @param knownRangeUids
+	 *            UIDs of the messages of the mailbox lower than the previous UIDNEXT
+	 * @param newUids
+	 *            UIDs of the messages received since the previous synchronization
+	 * @param seenUids
+	 *            UIDs of the seen messages lower than the previous UIDNEXT, null if the read
+	 *            status is to be retrieved through CONDSTORE
+	 */
+	private List<Voicemail> fetchVoicemailChanges(String[] knownRangeUids, String[] newUids,
+			@Nullable String[] seenUids, List<Voicemail> knownVoicemails,
+			MailboxState previousState, MailboxState currentState) throws MessagingException {
+		Map<String, Voicemail> known = new HashMap<String, Voicemail>();
+		for (Voicemail voicemail : knownVoicemails) {
+			known.put(voicemail.getSourceData(), voicemail);
+		}
+
+		List<String> knownUids = new ArrayList<String>();
+		List<String> unknownUids = new ArrayList<String>();
+		for (String uid : knownRangeUids) {
+			if (known.containsKey(uid)) {
+				knownUids.add(uid);
+			} else {
+				unknownUids.add(uid);
+			}
+		}
+		unknownUids.addAll(Arrays.asList(newUids));
+		logger.d(String.format("Incremental listing: %d known, %d expunged and %d new "
+				+ "message(s), %s", knownUids.size(), known.size() - knownUids.size(),
+				unknownUids.size(), currentState));
+
+		Map<String, Boolean> readStatus = fetchReadStatus(knownUids, seenUids, previousState,
+				currentState);
+		Message[] unknownMessages = mFolder.getMessages(
+				unknownUids.toArray(new String[unknownUids.size()]), null);
+		Map<String, Voicemail> fetchedVoicemails = fetchVoicemails(unknownMessages);
+
+		List<String> uids = new ArrayList<String>(Arrays.asList(knownRangeUids));
+		uids.addAll(Arrays.asList(newUids));
+		List<Voicemail> voicemails = new ArrayList<Voicemail>();
+		for (String uid : uids) {
+			Voicemail voicemail = known.get(uid);
+			if (voicemail == null) {
+				voicemail = fetchedVoicemails.get(uid);
+			} else {
+				Boolean isRead = readStatus.get(uid);
+				if (isRead != null && isRead != voicemail.isRead()) {
+					voicemail = VoicemailImpl.createCopyBuilder(voicemail).setIsRead(isRead)
+							.build();
+				}
+			}
+			if (voicemail != null) {
+				voicemails.add(voicemail);
+			}
+		}
+		return voicemails;
+	}
+
+	/**
+	 * Returns the read status of the provided known messages, indexed by UID. It is taken from
+	 * the seen UIDs when they have been searched, otherwise from CONDSTORE, in which case only the
+	 * messages whose flags changed since the previous state are returned.
+	 */
+	private Map<String, Boolean> fetchReadStatus(List<String> uids, @Nullable String[] seenUids,
+			MailboxState previousState, MailboxState currentState) throws MessagingException {
+		Map<String, Boolean> readStatus = new HashMap<String, Boolean>();
+		if (seenUids != null) {
+			Set<String> seen = new HashSet<String>(Arrays.asList(seenUids));
+			for (String uid : uids) {
+				readStatus.put(uid, seen.contains(uid));
+			}
+			return readStatus;
+		}
+
+		if (currentState.hasModSeqSince(previousState)) {
+			if (currentState.getHighestModSeq() != previousState.getHighestModSeq()) {
+				for (Message message : mFolder.getMessagesChangedSince(
+						previousState.getHighestModSeq())) {
+					readStatus.put(message.getUid(), message.isSet(Flag.SEEN));
+				}
+			}
+			return readStatus;
+		}
+
+		// CONDSTORE is no longer available on the mailbox: fetch the flags of the messages.
+		Message[] messages = mFolder.getMessages(uids.toArray(new String[uids.size()]), null);
+		FetchProfile fetchProfile = new FetchProfile();
+		fetchProfile.add(FetchProfile.Item.FLAGS);
+		final int batchSize = StackStaticConfiguration.IMAP_FETCH_BATCH_SIZE;
+		for (int start = 0; start < messages.length; start += batchSize) {
+			mFolder.fetch(Arrays.copyOfRange(messages, start,
+					Math.min(messages.length, start + batchSize)), fetchProfile, null);
+		}
+		for (Message message : messages) {
+			readStatus.put(message.getUid(), message.isSet(Flag.SEEN));
+		}
+		return readStatus;
+	}
+
+	/**
+	 * Returns the voicemails corresponding to the provided messages, in the same order.
+	 */
+	private List<Voicemail> getVoicemails(Message[] messages,
+			Map<String, Voicemail> fetchedVoicemails) {
+		List<Voicemail> voicemails = new ArrayList<Voicemail>();
+		for (Message message : messages) {
+			Voicemail voicemail = fetchedVoicemails.get(message.getUid());
+			if (voicemail != null) {
+				voicemails.add(voicemail);
+			}
+		}
+		return voicemails;
+	}
+
+	/** Key identifying a mailbox of the current account in the {@link MailboxStateProvider}. */
+	private String getMailboxKey(String folderName) {
+		return String.format("%s@%s/%s", mAccountDetails.getImapUsername(),
+				mAccountDetails.getImapServer(), folderName);
+	}
+
+	/**
+	 * Listing of a mailbox, storing the state of the open folder so that the next incremental
+	 * fetch can start from it once the listing has been applied.
+	 */
+	private final class MailboxListing implements VoicemailListing {
+		private final List<Voicemail> mVoicemails;
+		private final String mMailbox;
+		private final MailboxState mState;
+
+		private MailboxListing(List<Voicemail> voicemails, String mailbox, MailboxState state) {
+			mVoicemails = voicemails;
+			mMailbox = mailbox;
+			mState = state;
+		}
+
+		@Override
+		public List<Voicemail> getVoicemails() {
+			return mVoicemails;
+		}
+
+		@Override
+		public void commit() {
+			mMailboxStates.updateMailboxState(mMailbox, mState);
+		}
 	}
 
 	@Override
@@ -145,22 +389,87 @@ import com.orange.labs.uk.omtp.voicemail.VoicemailPayloadImpl;
 		executeFetchWithFolder(new Callable<Void>() {
 			@Override
 			public Void call() throws MessagingException {
-				checkFolderQuota();
-				logger.d("About to execute getMessage() in fetchVoicemailPayload");
-				Message message = mFolder.getMessage(uid);
-				VoicemailPayload voicemailPayload = fetchVoicemailPayload(message, callback);
+				Message message = mFolder.createMessage(uid);
+				VoicemailPayload voicemailPayload = fetchVoicemailPayload(message);
 				if (!mFinished.getAndSet(true)) {
 					callback.onSuccess(voicemailPayload);
 				}
 				return null;
 			}
 
-		}, callback, StackStaticConfiguration.INBOX_FOLDER_NAME);
+		}, callback, StackStaticConfiguration.INBOX_FOLDER_NAME, true);
 	}
 	
-	private void checkFolderQuota() throws MessagingException {
-		int quota = mFolder.getQuotaRootInformation();
-		mNotifier.sendNotification(QuotaNotification.quotaValue(quota));
+	@Override
+	public void fetchVoicemailPayload(final String uid, final OutputStream destination,
+			final FetchHandle handle, final Callback<String> callback) {
+		executeFetchWithFolder(new Callable<Void>() {
+			@Override
+			public Void call() throws MessagingException {
+				attachFolder(handle);
+				try {
+					Message message = mFolder.createMessage(uid);
+					String mimeType = streamVoicemailPayload(message, handle.guard(destination));
+					if (!mFinished.getAndSet(true)) {
+						callback.onSuccess(mimeType);
+					}
+				} finally {
+					// The connection must not be aborted once handed back to the session manager.
+					handle.detach();
+				}
+				return null;
+			}
+
+		}, callback, StackStaticConfiguration.INBOX_FOLDER_NAME, true);
+	}
+
+	@Override
+	public void fetchVoicemailPayload(final String uid, final PayloadDownload download,
+			final FetchHandle handle, final Callback<String> callback) {
+		executeFetchWithFolder(new Callable<Void>() {
+			@Override
+			public Void call() throws MessagingException {
+				attachFolder(handle);
+				try {
+					Message message = mFolder.createMessage(uid);
+					String mimeType = downloadVoicemailPayload(message, download);
+					if (!mFinished.getAndSet(true)) {
+						callback.onSuccess(mimeType);
+					}
+				} finally {
+					handle.detach();
+				}
+				return null;
+			}
+
+		}, callback, StackStaticConfiguration.INBOX_FOLDER_NAME, true);
+	}
+
+	/**
+	 * Attaches the open folder to the handle, so that aborting the fetch closes its connection.
+	 */
+	private void attachFolder(FetchHandle handle) {
+		final FolderProxy folder = mFolder;
+		handle.attach(new FetchHandle.Connection() {
+			@Override
+			public void abort() {
+				folder.abort();
+			}
+		});
+	}
+
+	/**
+	 * To be called once messages have been deleted or uploaded: the quota pushed by the server
+	 * with the change is recorded if there is one, otherwise the next operation refreshes it.
+	 */
+	private void onMailboxContentChanged() {
+		String account = mAccountDetails.getUriString();
+		int quota = mFolder.getReceivedQuota();
+		if (quota >= 0) {
+			mQuotaTracker.update(account, quota, mNotifier);
+		} else {
+			mQuotaTracker.invalidate(account);
+		}
 	}
 
 	/** The caller thread will block until the method returns. */
@@ -169,11 +478,33 @@ import com.orange.labs.uk.omtp.voicemail.VoicemailPayloadImpl;
 		setFlags(voicemails, callback, Flag.SEEN);
 	}
 
-	/** The caller thread will block until the method returns. */
+	/**
+	 * The caller thread will block until the method returns. The voicemails are flagged as deleted
+	 * and expunged together, in a single round trip.
+	 */
 	@Override
-	public void markVoicemailsAsDeleted(Callback<Void> callback, Voicemail... voicemails) {
-		mExpunge = true; // Expunge is required after a deletion.
-		setFlags(voicemails, callback, Flag.DELETED);
+	public void markVoicemailsAsDeleted(final Callback<Void> callback,
+			final Voicemail... voicemails) {
+		if (voicemails.length == 0) {
+			callback.onFailure(new IllegalArgumentException("No voicemails to apply operation on."));
+			return;
+		}
+
+		executeWithFolder(new Callable<Void>() {
+
+			@Override
+			public Void call() throws Exception {
+				mFolder.deleteMessages(convertToImapMessages(voicemails));
+				onMailboxContentChanged();
+
+				if (!mFinished.getAndSet(true)) {
+					callback.onSuccess(null);
+				}
+
+				return null;
+			}
+
+		}, callback, OpenMode.READ_WRITE, StackStaticConfiguration.INBOX_FOLDER_NAME, false);
 	}
 
 	private void setFlags(final Voicemail[] voicemails, final Callback<Void> callback,
@@ -196,7 +527,7 @@ import com.orange.labs.uk.omtp.voicemail.VoicemailPayloadImpl;
 				return null;
 			}
 
-		}, callback, OpenMode.READ_WRITE, StackStaticConfiguration.INBOX_FOLDER_NAME);
+		}, callback, OpenMode.READ_WRITE, StackStaticConfiguration.INBOX_FOLDER_NAME, false);
 	}
 
 	/**
@@ -210,10 +541,16 @@ import com.orange.labs.uk.omtp.voicemail.VoicemailPayloadImpl;
 	 * @param folderName
 	 *            name of the folder used to retrieve IMAP messages (usually
 	 *            inbox or greetings)
+	 * @param checkQuota
+	 *            whether the quota of the folder should be refreshed if it is stale
+	 * @param uidSearches
+	 *            criteria of the UID SEARCHes whose results are available in
+	 *            {@link #mOpenResult}
 	 */
 	private void executeFetchWithFolder(Callable<Void> callable, Callback<?> failureCallback,
-			String folderName) {
-		executeWithFolder(callable, failureCallback, OpenMode.READ_ONLY, folderName);
+			String folderName, boolean checkQuota, String... uidSearches) {
+		executeWithFolder(callable, failureCallback, OpenMode.READ_ONLY, folderName, checkQuota,
+				uidSearches);
 	}
 
 	/**
@@ -236,25 +573,32 @@ import com.orange.labs.uk.omtp.voicemail.VoicemailPayloadImpl;
 	 * @param folderName
 	 *            name of the folder used to retrieve IMAP messages (usually
 	 *            inbox or greetings)
+	 * @param checkQuota
+	 *            whether the quota of the folder should be refreshed if the one known by the
+	 *            {@link QuotaTracker} is missing, stale or too old
+	 * @param uidSearches
+	 *            criteria of the UID SEARCHes whose results are available in
+	 *            {@link #mOpenResult}
 	 */
 	private void executeWithFolder(Callable<Void> callable, Callback<?> failureCallback,
-			OpenMode mode, String folderName) {
+			OpenMode mode, String folderName, boolean checkQuota, String... uidSearches) {
 		if (mStarted.getAndSet(true)) {
 			throw new IllegalStateException("Already have an operation in progress");
 		}
 
-		// If HIPRI on Wi-Fi, then let the connectivity manager handle the setup if required.
-		if (StackStaticConfiguration.HIPRI_ON_WIFI) {
-			String serverAddress = mAccountDetails.getImapServer();
-			mNetworkManager.setUpNetworkIfRequired(serverAddress);
-		}
-
 		try {
 			mFolder = openFolder(folderName);
-			mFolder.open(mode, null);
+			// The quota and the search are pipelined with the SELECT.
+			String account = mAccountDetails.getUriString();
+			boolean queryQuota = checkQuota && mQuotaTracker.needsRefresh(account);
+			mOpenResult = mFolder.open(mode, queryQuota, uidSearches);
+			if (queryQuota) {
+				// The source is notified by the tracker when the quota changes of bucket.
+				mQuotaTracker.update(account, mOpenResult.getQuota(), mNotifier);
+			}
 			callable.call();
 			logger.d("Closing mailbox");
-			closeMailbox();
+			closeMailbox(false);
 
 			// Notify of IMAP Connectivity Success
 			mNotifier.sendNotification(DataChannelNotification.connectivityOk());
@@ -266,17 +610,24 @@ import com.orange.labs.uk.omtp.voicemail.VoicemailPayloadImpl;
 	}
 
 	/**
-	 * Close the mailbox. By default, it does not expunge before closing, the mExpunge attribute
-	 * should be set to true if that is required. However, a LOGOUT command will be automatically
-	 * sent.
+	 * Close the mailbox, without expunging: deletions are expunged by
+	 * {@link FolderProxy#deleteMessages(Message[])}. Once an operation has completed, no LOGOUT is
+	 * sent and the authenticated connection is handed back to the {@link ImapSessionManager} so
+	 * that the next operation can reuse it. After a failure, the connection may have responses
+	 * left unread: it is logged out and closed instead.
 	 */
-	private void closeMailbox() {
+	private void closeMailbox(boolean logout) {
 		FolderProxy folder = mFolder;
 		mFolder = null;
 
 		if (folder != null) {
+			// Quota pushed by the server along with the responses of other commands.
+			int quota = folder.getReceivedQuota();
+			if (quota >= 0) {
+				mQuotaTracker.update(mAccountDetails.getUriString(), quota, mNotifier);
+			}
 			try {
-				folder.close(mExpunge, true); // logout
+				folder.close(false, logout);
 			} catch (MessagingException e) {
 				logger.e("failure while closing folder", e);
 			}
@@ -285,14 +636,13 @@ import com.orange.labs.uk.omtp.voicemail.VoicemailPayloadImpl;
 
 	// Visible for testing.
 	protected FolderProxy openFolder(String name) throws MessagingException {
-		Email.setTempDirectory(mContext);
-		Store store = ImapStore.newInstance(mAccountDetails.getUriString(), mContext, null);
-		return new FolderDelegate(store.getFolder(name));
+		return mSessionManager.createFolder(mAccountDetails, name);
 	}
 
 	private void handleFailure(Exception e, Callback<?> callback) {
+		// Closed even if the result has already been reported, so the connection isn't leaked.
+		closeMailbox(true);
 		if (!mFinished.getAndSet(true)) {
-			closeMailbox();
 			callback.onFailure(e);
 		}
 	}
@@ -326,6 +676,10 @@ import com.orange.labs.uk.omtp.voicemail.VoicemailPayloadImpl;
 						.setTimestamp(message.getSentDate().getTime())
 						.setSourceData(message.getUid())
 						.setDuration(FIXED_DURATION_FOR_RETREIVED_MESSAGES );
+				long payloadSize = getDecodedSize(bodyPart);
+				if (payloadSize > 0) {
+					voicemailBuilder.setPayloadSize(payloadSize);
+				}
 				setSender(voicemailBuilder, message.getFrom());
 				setMailBoxAndReadStatus(voicemailBuilder, message.getFlags());
 				return voicemailBuilder.build();
@@ -335,6 +689,20 @@ import com.orange.labs.uk.omtp.voicemail.VoicemailPayloadImpl;
 		return null;
 	}
 
+	/**
+	 * Returns the size of the provided attachment once decoded, computed from the size of its
+	 * encoded content reported by the BODYSTRUCTURE, or 0 if unknown.
+	 */
+	private static long getDecodedSize(BodyPart bodyPart) throws MessagingException {
+		long size = bodyPart.getSize();
+		String[] encodings = bodyPart.getHeader(MimeHeader.HEADER_CONTENT_TRANSFER_ENCODING);
+		if (encodings != null && encodings[0].trim().equalsIgnoreCase("base64")) {
+			// Four characters for three bytes, ignoring the line breaks.
+			size = size * 3 / 4;
+		}
+		return Math.max(size, 0);
+	}
+
 	private VoicemailPayload getVoicemailPayloadFromMessage(Message message)
 			throws MessagingException, IOException {
 		Multipart multipart = (Multipart) message.getBody();
@@ -408,44 +776,138 @@ import com.orange.labs.uk.omtp.voicemail.VoicemailPayloadImpl;
 	}
 
 	/**
-	 * Fetches the structure of the given message and returns the voicemail parsed from it.
+	 * Fetches the structure of the given messages and returns the voicemails parsed from them,
+	 * indexed by UID. Messages that are not valid voicemails are not part of the result.
+	 * <p>
+	 * The messages are fetched with one UID FETCH per batch of
+	 * {@link StackStaticConfiguration#IMAP_FETCH_BATCH_SIZE} messages rather than one per message.
 	 * 
 	 * @throws MessagingException
-	 *             if fetching the structure of the message fails
+	 *             if fetching or parsing the structure of the messages fails
 	 */
-	private Voicemail fetchVoicemail(Message message, Callback<?> failureCallback)
+	private Map<String, Voicemail> fetchVoicemails(Message[] messages)
 			throws MessagingException {
 		FetchProfile fetchProfile = new FetchProfile();
 		fetchProfile.addAll(Arrays.asList(FetchProfile.Item.FLAGS, FetchProfile.Item.ENVELOPE,
 				FetchProfile.Item.STRUCTURE));
-		logger.d("Fetching message structure for " + message.getUid());
-		MessageStructureFetchedListener listener = new MessageStructureFetchedListener(
-				failureCallback);
-		mFolder.fetch(new Message[] { message }, fetchProfile, listener);
-		return listener.getVoicemail();
+		MessageStructureFetchedListener listener = new MessageStructureFetchedListener();
+		final int batchSize = StackStaticConfiguration.IMAP_FETCH_BATCH_SIZE;
+		for (int start = 0; start < messages.length; start += batchSize) {
+			Message[] batch = Arrays.copyOfRange(messages, start,
+					Math.min(messages.length, start + batchSize));
+			logger.d(String.format("Fetching message structure for %d message(s)",
+					batch.length));
+			mFolder.fetch(batch, fetchProfile, listener);
+			listener.checkFailure();
+		}
+		return listener.getVoicemails();
 	}
 
 	/**
 	 * Fetches the body of the given message and returns the parsed voicemail payload.
 	 * 
 	 * @throws MessagingException
-	 *             if fetching the body of the message fails
+	 *             if fetching or parsing the body of the message fails
 	 */
-	private VoicemailPayload fetchVoicemailPayload(Message message, Callback<?> failureCallback)
-			throws MessagingException {
+	private VoicemailPayload fetchVoicemailPayload(Message message) throws MessagingException {
 		FetchProfile fetchProfile = new FetchProfile();
 		fetchProfile.add(FetchProfile.Item.BODY);
 		logger.d("Fetching message body for " + message.getUid());
-		MessageBodyFetchedListener listener = new MessageBodyFetchedListener(failureCallback);
+		MessageBodyFetchedListener listener = new MessageBodyFetchedListener();
 		mFolder.fetch(new Message[] { message }, fetchProfile, listener);
+		listener.checkFailure();
+		if (!listener.isRetrieved()) {
+			throw new MessagingException("Voicemail not found on the server: " + message.getUid());
+		}
 		return listener.getVoicemailPayload();
 	}
 
+	/**
+	 * Fetches the structure of the given message, then streams its audio attachment into the
+	 * provided destination, decoding it on the fly. Only the audio part is downloaded from the
+	 * server, and it is never held in memory as a whole.
+	 * 
+	 * @return the MIME type of the audio attachment
+	 * @throws MessagingException
+	 *             if the message has no audio attachment, or if fetching it fails
+	 */
+	private String streamVoicemailPayload(Message message, OutputStream destination)
+			throws MessagingException {
+		BodyPart audioPart = fetchAudioPart(message);
+		String mimeType = audioPart.getMimeType().toLowerCase(Locale.US);
+		logger.d(String.format("Streaming %s attachment of message %s", mimeType,
+				message.getUid()));
+		mFolder.fetchPart(message, audioPart, destination);
+		return mimeType;
+	}
+
+	/**
+	 * Downloads the audio attachment of the given message in chunks, resuming from the offset
+	 * reached by a previous attempt if any.
+	 * 
+	 * @return the MIME type of the audio attachment
+	 * @throws MessagingException
+	 *             if the message has no audio attachment, or if fetching it fails
+	 */
+	private String downloadVoicemailPayload(Message message, PayloadDownload download)
+			throws MessagingException {
+		BodyPart audioPart = fetchAudioPart(message);
+		String mimeType = audioPart.getMimeType().toLowerCase(Locale.US);
+		String[] encodings = audioPart.getHeader(MimeHeader.HEADER_CONTENT_TRANSFER_ENCODING);
+		try {
+			if (!download.start(mimeType, (encodings != null) ? encodings[0] : null)) {
+				logger.w("Transfer encoding not supported for a progressive download");
+				mFolder.fetchPart(message, audioPart, download.getDestination());
+				download.onComplete(mimeType);
+				return mimeType;
+			}
+
+			int chunkSize = StackStaticConfiguration.IMAP_PAYLOAD_CHUNK_SIZE;
+			while (!download.isComplete()) {
+				logger.d(String.format("Fetching %d byte(s) of message %s from offset %d",
+						chunkSize, message.getUid(), download.getOffset()));
+				int received = mFolder.fetchPartRange(message, audioPart, download.getOffset(),
+						chunkSize, download.getChunkOutputStream());
+				download.onChunkReceived(received, chunkSize);
+			}
+		} catch (IOException e) {
+			throw new MessagingException("Unable to write the voicemail content", e);
+		}
+		return download.getMimeType();
+	}
+
+	/**
+	 * Fetches the structure of the given message and returns its audio attachment.
+	 * 
+	 * @throws MessagingException
+	 *             if the message doesn't exist or has no audio attachment, or if fetching its
+	 *             structure fails
+	 */
+	private BodyPart fetchAudioPart(Message message) throws MessagingException {
+		FetchProfile fetchProfile = new FetchProfile();
+		fetchProfile.add(FetchProfile.Item.STRUCTURE);
+		MessageRetrievedListener listener = new MessageRetrievedListener();
+		mFolder.fetch(new Message[] { message }, fetchProfile, listener);
+		if (!listener.isRetrieved()) {
+			throw new MessagingException("Voicemail not found on the server: " + message.getUid());
+		}
+
+		if (message.getBody() instanceof Multipart) {
+			Multipart multipart = (Multipart) message.getBody();
+			for (int i = 0; i < multipart.getCount(); ++i) {
+				BodyPart bodyPart = multipart.getBodyPart(i);
+				if (bodyPart.getMimeType().toLowerCase(Locale.US).startsWith("audio/")) {
+					return bodyPart;
+				}
+			}
+		}
+		throw new MessagingException("No audio attachment found on this voicemail");
+	}
+
 	/** Opens the said folder for specified imap account. */
 	/* package for testing */FolderProxy openImapFolder(OmtpAccountInfo accountDetails,
 			String folderName, Folder.OpenMode openMode) throws MessagingException {
-		FolderDelegate folder = new FolderDelegate(ImapStore.newInstance(
-				accountDetails.getUriString(), mContext, null).getFolder(folderName));
+		FolderProxy folder = mSessionManager.createFolder(accountDetails, folderName);
 		folder.open(openMode, null);
 		return folder;
 	}
@@ -463,21 +925,41 @@ import com.orange.labs.uk.omtp.voicemail.VoicemailPayloadImpl;
 	}
 	
 	/**
-	 * Listener for the message structure being fetched.
-	 * <p>
-	 * In case of failure, it calls {@link #handleFailure(Exception, Callback)}.
+	 * Listener keeping the first failure to parse a message. The failure is only thrown by
+	 * {@link #checkFailure()} once the fetch has completed, as the folder can't be closed while
+	 * the responses of the UID FETCH are being read.
 	 */
-	private final class MessageStructureFetchedListener implements Folder.MessageRetrievalListener {
-		private final Callback<?> mFailureCallback;
+	private abstract static class FailureRecordingListener implements
+			Folder.MessageRetrievalListener {
+		private Exception mFailure;
 
-		private Voicemail mVoicemail;
+		protected void recordFailure(Exception e) {
+			if (mFailure == null) {
+				mFailure = e;
+			}
+		}
 
-		public MessageStructureFetchedListener(Callback<?> failureCallback) {
-			mFailureCallback = failureCallback;
+		/**
+		 * Throws the failure recorded while the messages were retrieved, if any.
+		 */
+		public void checkFailure() throws MessagingException {
+			if (mFailure instanceof MessagingException) {
+				throw (MessagingException) mFailure;
+			} else if (mFailure != null) {
+				throw new MessagingException("Unable to parse the fetched message", mFailure);
+			}
 		}
+	}
 
-		public Voicemail getVoicemail() {
-			return mVoicemail;
+	/**
+	 * Listener for the message structure being fetched.
+	 */
+	private final class MessageStructureFetchedListener extends FailureRecordingListener {
+		/** Voicemails parsed so far, indexed by UID. */
+		private final Map<String, Voicemail> mVoicemails = new HashMap<String, Voicemail>();
+
+		public Map<String, Voicemail> getVoicemails() {
+			return mVoicemails;
 		}
 
 		@Override
@@ -488,38 +970,39 @@ import com.orange.labs.uk.omtp.voicemail.VoicemailPayloadImpl;
 			// with testing.
 			logger.d(debugStringForMessage(message));
 			try {
-				mVoicemail = getVoicemailFromMessage(message);
-				if (mVoicemail == null) {
+				Voicemail voicemail = getVoicemailFromMessage(message);
+				if (voicemail == null) {
 					logger.d("This voicemail does not have an attachment...");
 					return;
 				}
+				mVoicemails.put(message.getUid(), voicemail);
 			} catch (MessagingException e) {
-				handleFailure(e, mFailureCallback);
+				recordFailure(e);
 			}
 		}
 	}
 
 	/**
 	 * Listener for the message body being fetched.
-	 * <p>
-	 * In case of failure, it calls {@link #handleFailure(Exception, Callback)}.
 	 */
-	private final class MessageBodyFetchedListener implements Folder.MessageRetrievalListener {
-		private final Callback<?> mFailureCallback;
-
+	private final class MessageBodyFetchedListener extends FailureRecordingListener {
 		private VoicemailPayload mVoicemailPayload;
 
-		public MessageBodyFetchedListener(Callback<?> failureCallback) {
-			mFailureCallback = failureCallback;
-		}
+		private boolean mRetrieved;
 
 		/** Returns the fetch voicemail payload. */
 		public VoicemailPayload getVoicemailPayload() {
 			return mVoicemailPayload;
 		}
 
+		/** Returns true if the server returned the message, false if it no longer exists. */
+		public boolean isRetrieved() {
+			return mRetrieved;
+		}
+
 		@Override
 		public void messageRetrieved(Message message) {
+			mRetrieved = true;
 			logger.d("Fetched message body for " + message.getUid());
 			logger.d("Message retrieved: " + message);
 			// TODO: Get rid of the detailed message logging when we are done
@@ -533,13 +1016,32 @@ import com.orange.labs.uk.omtp.voicemail.VoicemailPayloadImpl;
 			try {
 				mVoicemailPayload = getVoicemailPayloadFromMessage(message);
 			} catch (MessagingException e) {
-				handleFailure(e, mFailureCallback);
+				recordFailure(e);
 			} catch (IOException e) {
-				handleFailure(e, mFailureCallback);
+				recordFailure(e);
 			}
 		}
 	}
 
+	/**
+	 * Listener only recording whether the message was returned by the server. The messages are
+	 * created from their UID without checking that they exist, a fetch returning nothing means that
+	 * the message is gone.
+	 */
+	private static final class MessageRetrievedListener implements
+			Folder.MessageRetrievalListener {
+		private boolean mRetrieved;
+
+		public boolean isRetrieved() {
+			return mRetrieved;
+		}
+
+		@Override
+		public void messageRetrieved(Message message) {
+			mRetrieved = true;
+		}
+	}
+
 	/**
 	 * Creates new Greeting Message based on its type.
 	 * @param greetingType
@@ -557,6 +1059,7 @@ import com.orange.labs.uk.omtp.voicemail.VoicemailPayloadImpl;
 		if (newGreetingMessage != null && newMessages.length > 0) {
 			// send new greeting
 			mFolder.appendMessages(newMessages);
+			onMailboxContentChanged();
 			// activate new greeting
 			mFolder.setFlags(newMessages, new Flag[] { Flag.GREETING_ON }, true);
 		} else {
@@ -586,7 +1089,9 @@ import com.orange.labs.uk.omtp.voicemail.VoicemailPayloadImpl;
 				logger.d(String.format("uploadGreetings() called with greeting to update/activate type:%s operation:%s", 
 						greetingToUpdateType.getTypeString(), operationType.getTypeString()));
 				// first get all greeting Messages from the server
-				Message[] messages = mFolder.getMessages(null);
+				Message[] messages = mFolder.getMessages(mOpenResult.getUids(), null);
+				// fetch the structure (FLAGS etc..) of all of them at once
+				Map<String, Voicemail> fetchedGreetings = fetchVoicemails(messages);
 				
 				// now trigger an action depending on the number of messages on the server
 				switch (messages.length) {
@@ -599,16 +1104,15 @@ import com.orange.labs.uk.omtp.voicemail.VoicemailPayloadImpl;
 				case 1: // just one old greeting, deactivate or delete it and upload the new one
 				{
 					Message message = messages[0];
-					// fetch message structure (FLAGS etc..)
-					Voicemail fetchedGreeting = fetchVoicemail(message, callback);
+					Voicemail fetchedGreeting = fetchedGreetings.get(message.getUid());
 					if (fetchedGreeting != null) {
 						String oldGreetingType = message.getGreetingType();
 						if (greetingToUpdateType.getTypeString().equalsIgnoreCase(oldGreetingType)) {
 							// the same type as before, it needs to be deleted first
 							logger.d(String.format("marking greeting type:%s as deleted",
 									oldGreetingType));
-							mFolder.setFlags(messages, new Flag[] { Flag.DELETED }, true);
-							mFolder.expunge();
+							mFolder.deleteMessages(messages);
+							onMailboxContentChanged();
 						} else {
 							// different greeting type than before, needs to be
 							// flagged
@@ -628,8 +1132,7 @@ import com.orange.labs.uk.omtp.voicemail.VoicemailPayloadImpl;
 					
 				default: // more than 1 old greeting present on the server
 					for (Message message : messages) {
-						// fetch message structure (FLAGS etc..)
-						Voicemail fetchedGreeting = fetchVoicemail(message, callback);
+						Voicemail fetchedGreeting = fetchedGreetings.get(message.getUid());
 						if (fetchedGreeting != null) {
 							String oldGreetingType = message.getGreetingType();
 							if (greetingToUpdateType.getTypeString().equalsIgnoreCase(oldGreetingType)) {
@@ -645,9 +1148,8 @@ import com.orange.labs.uk.omtp.voicemail.VoicemailPayloadImpl;
 								case UPLOAD_REQUIRED: // delete current message,
 									logger.d(String.format("marking greeting type:%s as deleted",
 											oldGreetingType));
-									mFolder.setFlags(new Message[] { message },
-											new Flag[] { Flag.DELETED }, true);
-									mFolder.expunge();
+									mFolder.deleteMessages(new Message[] { message });
+									onMailboxContentChanged();
 									// send new greeting content
 									messagesAfterUpload = createAndSendNewGreetingMessage(
 											greetingToUpdateType, greetingsHelper);
@@ -711,7 +1213,8 @@ import com.orange.labs.uk.omtp.voicemail.VoicemailPayloadImpl;
 				callback.onFailure(new Exception("Greetings update error"));
 			}
 			
-		}, callback, OpenMode.READ_WRITE, StackStaticConfiguration.GREETINGS_FOLDER_NAME);
+		}, callback, OpenMode.READ_WRITE, StackStaticConfiguration.GREETINGS_FOLDER_NAME, false,
+				ALL_MESSAGES_SEARCH);
 	}
 	
 	/**
@@ -741,10 +1244,11 @@ import com.orange.labs.uk.omtp.voicemail.VoicemailPayloadImpl;
 				List<Greeting> greetingsList = new ArrayList<Greeting>();
 				
 				// first fetch all greeting Messages structure
-				Message[] messages = mFolder.getMessages(null);
+				Message[] messages = mFolder.getMessages(mOpenResult.getUids(), null);
+				Map<String, Voicemail> fetchedGreetings = fetchVoicemails(messages);
 				for (Message message : messages) {
-					// fetch message structure as a Voicemail
-					Voicemail voicemail = fetchVoicemail(message, callback);
+					// message structure as a Voicemail
+					Voicemail voicemail = fetchedGreetings.get(message.getUid());
 					if (voicemail != null) {
 						Greeting fetchedGreeting = GreetingImpl.createFromFetch(message.getGreetingType(),
 								voicemail, isItActiveGreeting(message), false).build();
@@ -763,7 +1267,7 @@ import com.orange.labs.uk.omtp.voicemail.VoicemailPayloadImpl;
 				return null;
 			}
 
-		}, callback, StackStaticConfiguration.GREETINGS_FOLDER_NAME);
+		}, callback, StackStaticConfiguration.GREETINGS_FOLDER_NAME, false, ALL_MESSAGES_SEARCH);
 	}
 	
 	/**
@@ -785,10 +1289,10 @@ import com.orange.labs.uk.omtp.voicemail.VoicemailPayloadImpl;
 						greeting.getGreetingType().getTypeString(), greetingUid));
 
 				// convert greeting to a message (just Uid is important)
-				Message message = mFolder.getMessage(greetingUid);
+				Message message = mFolder.createMessage(greetingUid);
 				
 				// fetch payload 
-				VoicemailPayload fetchedPayload = fetchVoicemailPayload(message, callback);
+				VoicemailPayload fetchedPayload = fetchVoicemailPayload(message);
 				
 				if (!mFinished.getAndSet(true)) {
 					logger.d("calling onSucess callback in fetchGreetingPayload()");
@@ -797,7 +1301,7 @@ import com.orange.labs.uk.omtp.voicemail.VoicemailPayloadImpl;
 				return null;
 			}
 
-		}, callback, StackStaticConfiguration.GREETINGS_FOLDER_NAME);
+		}, callback, StackStaticConfiguration.GREETINGS_FOLDER_NAME, false);
 
 	}
 	
@@ -0,0 +1,115 @@
+/*
+ * Copyright (C) 2012 Orange Labs UK. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+package com.orange.labs.uk.omtp.imap;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import javax.annotation.concurrent.ThreadSafe;
+
+import android.os.SystemClock;
+
+import com.orange.labs.uk.omtp.config.StackStaticConfiguration;
+import com.orange.labs.uk.omtp.logging.Logger;
+import com.orange.labs.uk.omtp.notification.QuotaNotification;
+import com.orange.labs.uk.omtp.notification.SourceNotifier;
+
+/**
+ * Keeps the quota of the mailboxes, indexed by account URI, so that GETQUOTAROOT is not sent by
+ * every operation. The quota is refreshed once it is older than
+ * {@link StackStaticConfiguration#QUOTA_REFRESH_INTERVAL}, or after it has been invalidated by a
+ * change of the content of the mailbox. Quotas pushed by the server are recorded the same way.
+ * <p>
+ * The source is only notified when the quota moves to another bucket of
+ * {@link StackStaticConfiguration#QUOTA_NOTIFICATION_STEP} percents, rather than every time it is
+ * read.
+ */
+@ThreadSafe
+public class QuotaTracker {
+	private static final Logger logger = Logger.getLogger(QuotaTracker.class);
+
+	private static class QuotaState {
+		/** Elapsed realtime of the last update. */
+		private long mUpdateTime;
+		/** Whether the mailbox changed since the last update. */
+		private boolean mStale;
+		/** Bucket of the last quota sent to the source. */
+		private int mNotifiedBucket;
+	}
+
+	/** Quota states indexed by account URI. */
+	private final Map<String, QuotaState> mStates = new HashMap<String, QuotaState>();
+
+	/**
+	 * Returns true if the quota of the account is unknown, stale or too old, and should be queried.
+	 */
+	public synchronized boolean needsRefresh(String account) {
+		QuotaState state = mStates.get(account);
+		return state == null || state.mStale
+				|| now() - state.mUpdateTime >= StackStaticConfiguration.QUOTA_REFRESH_INTERVAL;
+	}
+
+	/**
+	 * Records the quota percentage just read or received for the account, and notifies the source
+	 * if it doesn't fall in the same bucket as the last notified one.
+	 */
+	public void update(String account, int percentage, SourceNotifier notifier) {
+		int bucket = percentage / StackStaticConfiguration.QUOTA_NOTIFICATION_STEP;
+		boolean notify;
+		synchronized (this) {
+			QuotaState state = mStates.get(account);
+			notify = (state == null || state.mNotifiedBucket != bucket);
+			if (state == null) {
+				state = new QuotaState();
+				mStates.put(account, state);
+			}
+			state.mUpdateTime = now();
+			state.mStale = false;
+			state.mNotifiedBucket = bucket;
+		}
+		if (notify) {
+			notifier.sendNotification(QuotaNotification.quotaValue(percentage));
+		} else {
+			logger.d(String.format("Quota at %d%%, no change of bucket", percentage));
+		}
+	}
+
+	/**
+	 * Marks the quota of the account as stale, so that the next operation refreshes it. To be
+	 * called when messages have been deleted or uploaded.
+	 */
+	public synchronized void invalidate(String account) {
+		QuotaState state = mStates.get(account);
+		if (state != null) {
+			state.mStale = true;
+		}
+	}
+
+	/**
+	 * Forgets all the quotas, for instance when the account has been reset. The next quota read
+	 * is then always notified.
+	 */
+	public synchronized void clear() {
+		mStates.clear();
+	}
+
+	/**
+	 * Returns the time used for the age of the quotas, in ms. Overridden by the tests.
+	 */
+	/* package */ long now() {
+		return SystemClock.elapsedRealtime();
+	}
+}
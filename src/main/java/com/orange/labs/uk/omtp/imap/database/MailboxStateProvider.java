@@ -0,0 +1,148 @@
+/*
+ * Copyright (C) 2012 Orange Labs UK. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+package com.orange.labs.uk.omtp.imap.database;
+
+import javax.annotation.Nullable;
+
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.database.DatabaseUtils;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteException;
+
+import com.orange.labs.uk.omtp.db.DatabaseHelper;
+import com.orange.labs.uk.omtp.imap.MailboxState;
+import com.orange.labs.uk.omtp.logging.Logger;
+import com.orange.labs.uk.omtp.utils.CloseUtils;
+
+/**
+ * Database storing the {@link MailboxState} of the synchronized IMAP mailboxes, see
+ * {@link MailboxStateProviderColumns}.
+ */
+public class MailboxStateProvider {
+	private static Logger logger = Logger.getLogger(MailboxStateProvider.class);
+
+	public static final String MAILBOX_STATE_TABLE_NAME = "mailbox_states";
+
+	private DatabaseHelper mDatabaseHelper;
+
+	public MailboxStateProvider(DatabaseHelper dbHelper) {
+		mDatabaseHelper = dbHelper;
+	}
+
+	/**
+	 * Returns the state stored for the provided mailbox, or null if it has never been
+	 * synchronized.
+	 */
+	@Nullable
+	public MailboxState getMailboxState(String mailbox) {
+		SQLiteDatabase database = null;
+		try {
+			database = mDatabaseHelper.getReadableDatabase();
+		} catch (SQLiteException e) {
+			logger.e(String.format("Impossible to open the OMTP Stack database: %s",
+					e.getLocalizedMessage()));
+			return null;
+		}
+
+		String query = getEqualityClause(MailboxStateProviderColumns.MAILBOX, mailbox);
+		Cursor cursor = null;
+		try {
+			cursor = database.query(MAILBOX_STATE_TABLE_NAME, null, query, null, null, null, null);
+			if (cursor.moveToFirst()) {
+				return getMailboxStateFromCursor(cursor);
+			}
+			return null;
+		} finally {
+			CloseUtils.closeQuietly(cursor);
+		}
+	}
+
+	/**
+	 * Inserts or replaces the state of the provided mailbox.
+	 */
+	public boolean updateMailboxState(String mailbox, MailboxState state) {
+		logger.d(String.format("Updating state of mailbox %s: %s", mailbox, state));
+		SQLiteDatabase database = getWritableDatabase();
+		if (database == null) {
+			return false;
+		}
+
+		ContentValues values = new ContentValues();
+		values.put(MailboxStateProviderColumns.MAILBOX.getColumnName(), mailbox);
+		values.put(MailboxStateProviderColumns.UID_VALIDITY.getColumnName(),
+				state.getUidValidity());
+		values.put(MailboxStateProviderColumns.UID_NEXT.getColumnName(), state.getUidNext());
+		values.put(MailboxStateProviderColumns.HIGHEST_MODSEQ.getColumnName(),
+				state.getHighestModSeq());
+		return (database.replace(MAILBOX_STATE_TABLE_NAME, null, values) != -1);
+	}
+
+	/**
+	 * Delete all the stored mailbox states, forcing a full listing on the next synchronization.
+	 */
+	public int deleteAll() {
+		logger.d("Removing all mailbox states.");
+		SQLiteDatabase database = getWritableDatabase();
+		if (database == null) {
+			return 0;
+		}
+
+		return database.delete(MAILBOX_STATE_TABLE_NAME, null, null);
+	}
+
+	private MailboxState getMailboxStateFromCursor(Cursor cursor) {
+		return new MailboxState(
+				cursor.getLong(cursor.getColumnIndexOrThrow(
+						MailboxStateProviderColumns.UID_VALIDITY.getColumnName())),
+				cursor.getLong(cursor.getColumnIndexOrThrow(
+						MailboxStateProviderColumns.UID_NEXT.getColumnName())),
+				cursor.getLong(cursor.getColumnIndexOrThrow(
+						MailboxStateProviderColumns.HIGHEST_MODSEQ.getColumnName())));
+	}
+
+	/**
+	 * Generate an SQLite equality clause using on the specified column, using
+	 * the provided value.
+	 */
+	private String getEqualityClause(MailboxStateProviderColumns column, String value) {
+		StringBuilder clause = new StringBuilder();
+		clause.append("(");
+		clause.append(MAILBOX_STATE_TABLE_NAME);
+		clause.append(".");
+		clause.append(column.getColumnName());
+		clause.append(" = ");
+		DatabaseUtils.appendEscapedSQLString(clause, value);
+		clause.append(")");
+		return clause.toString();
+	}
+
+	/**
+	 * Returns a Writable database or null if an exception occurred.
+	 */
+	@Nullable
+	private SQLiteDatabase getWritableDatabase() {
+		SQLiteDatabase database = null;
+		try {
+			database = mDatabaseHelper.getWritableDatabase();
+		} catch (SQLiteException e) {
+			logger.e(String.format("Impossible to get a writable database: %s",
+					e.getLocalizedMessage()));
+		}
+		return database;
+	}
+
+}
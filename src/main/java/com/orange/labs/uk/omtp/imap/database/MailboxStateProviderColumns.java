@@ -0,0 +1,55 @@
+/*
+ * Copyright (C) 2012 Orange Labs UK. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+package com.orange.labs.uk.omtp.imap.database;
+
+import com.orange.labs.uk.omtp.db.DatabaseColumn;
+
+/**
+ * Database columns storing, for each synchronized IMAP mailbox, the state reported by the server
+ * during the last synchronization. It is used to only download the changes that occurred since.
+ */
+public enum MailboxStateProviderColumns implements DatabaseColumn {
+	MAILBOX("mailbox", "TEXT PRIMARY KEY", 5), // user@server/folder
+	UID_VALIDITY("uid_validity", "INTEGER", 5),
+	UID_NEXT("uid_next", "INTEGER", 5),
+	HIGHEST_MODSEQ("highest_modseq", "INTEGER", 5); // 0 if CONDSTORE is not supported
+
+	private String mColumnName;
+	private String mColumnType;
+	private int mSinceVersion;
+
+	private MailboxStateProviderColumns(String columnName, String columnType, int sinceVersion) {
+		mColumnName = columnName;
+		mColumnType = columnType;
+		mSinceVersion = sinceVersion;
+	}
+
+	@Override
+	public String getColumnName() {
+		return mColumnName;
+	}
+
+	@Override
+	public String getColumnType() {
+		return mColumnType;
+	}
+
+	@Override
+	public int getSinceVersion() {
+		return mSinceVersion;
+	}
+
+}
@@ -16,11 +16,14 @@
  */
 package com.orange.labs.uk.omtp.proxies;
 
+import java.io.OutputStream;
+
 import com.android.email.mail.FetchProfile;
 import com.android.email.mail.Flag;
 import com.android.email.mail.Folder;
 import com.android.email.mail.Message;
 import com.android.email.mail.MessagingException;
+import com.android.email.mail.Part;
 
 /** This class was auto-generated using ProxyGen (http://goto/proxygen). */
 public class FolderDelegate implements FolderProxy {
@@ -70,6 +73,12 @@ public class FolderDelegate implements FolderProxy {
         mDelegate.open(a, b);
     }
 
+    @Override
+    public Folder.OpenResult open(Folder.OpenMode a, boolean b, String... c)
+            throws MessagingException {
+        return mDelegate.open(a, b, c);
+    }
+
     @Override
     public boolean isOpen() {
         return mDelegate.isOpen();
@@ -95,6 +104,21 @@ public class FolderDelegate implements FolderProxy {
         return mDelegate.getMessageCount();
     }
 
+    @Override
+    public long getUidValidity() {
+        return mDelegate.getUidValidity();
+    }
+
+    @Override
+    public long getUidNext() {
+        return mDelegate.getUidNext();
+    }
+
+    @Override
+    public long getHighestModSeq() {
+        return mDelegate.getHighestModSeq();
+    }
+
     @Override
     public int getUnreadMessageCount() throws MessagingException {
         return mDelegate.getUnreadMessageCount();
@@ -123,6 +147,31 @@ public class FolderDelegate implements FolderProxy {
         return mDelegate.getMessages(a, b, c);
     }
 
+    @Override
+    public Message[] getMessagesChangedSince(long a) throws MessagingException {
+        return mDelegate.getMessagesChangedSince(a);
+    }
+
+    @Override
+    public boolean isIdleSupported() {
+        return mDelegate.isIdleSupported();
+    }
+
+    @Override
+    public boolean idle(int a) throws MessagingException {
+        return mDelegate.idle(a);
+    }
+
+    @Override
+    public void stopIdle() {
+        mDelegate.stopIdle();
+    }
+
+    @Override
+    public void abort() {
+        mDelegate.abort();
+    }
+
     @Override
     public void setFlags(Message[] a, Flag[] b, boolean c) throws MessagingException {
         mDelegate.setFlags(a, b, c);
@@ -143,6 +192,11 @@ public class FolderDelegate implements FolderProxy {
     public Message[] expunge() throws MessagingException {
         return mDelegate.expunge();
     }
+
+    @Override
+    public void deleteMessages(Message[] a) throws MessagingException {
+        mDelegate.deleteMessages(a);
+    }
     
     @Override
     public Message[] logout() throws MessagingException {
@@ -155,6 +209,17 @@ public class FolderDelegate implements FolderProxy {
         mDelegate.fetch(a, b, c);
     }
 
+    @Override
+    public void fetchPart(Message a, Part b, OutputStream c) throws MessagingException {
+        mDelegate.fetchPart(a, b, c);
+    }
+
+    @Override
+    public int fetchPartRange(Message a, Part b, long c, int d, OutputStream e)
+            throws MessagingException {
+        return mDelegate.fetchPartRange(a, b, c, d, e);
+    }
+
     @Override
     public Flag[] getPermanentFlags() throws MessagingException {
         return mDelegate.getPermanentFlags();
@@ -180,4 +245,9 @@ public class FolderDelegate implements FolderProxy {
 		return mDelegate.getQuotaRoot();
 		
 	}
+
+	@Override
+	public int getReceivedQuota() {
+		return mDelegate.getReceivedQuota();
+	}
 }
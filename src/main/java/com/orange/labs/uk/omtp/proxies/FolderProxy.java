@@ -16,11 +16,14 @@
  */
 package com.orange.labs.uk.omtp.proxies;
 
+import java.io.OutputStream;
+
 import com.android.email.mail.FetchProfile;
 import com.android.email.mail.Flag;
 import com.android.email.mail.Folder;
 import com.android.email.mail.Message;
 import com.android.email.mail.MessagingException;
+import com.android.email.mail.Part;
 
 /** This class was auto-generated using ProxyGen (http://goto/proxygen). */
 public interface FolderProxy {
@@ -31,11 +34,16 @@ public interface FolderProxy {
     public void delete(boolean a) throws MessagingException;
     public boolean create(Folder.FolderType a) throws MessagingException;
     public void open(Folder.OpenMode a, Folder.PersistentDataCallbacks b) throws MessagingException;
+    public Folder.OpenResult open(Folder.OpenMode a, boolean b, String... c)
+            throws MessagingException;
     public boolean isOpen();
     public boolean exists() throws MessagingException;
     public Folder.OpenMode getMode() throws MessagingException;
     public boolean canCreate(Folder.FolderType a);
     public int getMessageCount() throws MessagingException;
+    public long getUidValidity();
+    public long getUidNext();
+    public long getHighestModSeq();
     public int getUnreadMessageCount() throws MessagingException;
     public Message[] getMessages(int a, int b, Folder.MessageRetrievalListener c)
             throws MessagingException;
@@ -44,17 +52,27 @@ public interface FolderProxy {
             throws MessagingException;
     public Message[] getMessages(Flag[] a, Flag[] b, Folder.MessageRetrievalListener c)
             throws MessagingException;
+    public Message[] getMessagesChangedSince(long a) throws MessagingException;
+    public boolean isIdleSupported();
+    public boolean idle(int a) throws MessagingException;
+    public void stopIdle();
+    public void abort();
     public void setFlags(Message[] a, Flag[] b, boolean c) throws MessagingException;
     public void appendMessages(Message[] a) throws MessagingException;
     public void copyMessages(Message[] a, Folder b, Folder.MessageUpdateCallbacks c)
             throws MessagingException;
     public Message[] expunge() throws MessagingException;
+    public void deleteMessages(Message[] a) throws MessagingException;
     public Message[] logout() throws MessagingException;
     public void fetch(Message[] a, FetchProfile b, Folder.MessageRetrievalListener c)
             throws MessagingException;
+    public void fetchPart(Message a, Part b, OutputStream c) throws MessagingException;
+    public int fetchPartRange(Message a, Part b, long c, int d, OutputStream e)
+            throws MessagingException;
     public Flag[] getPermanentFlags() throws MessagingException;
     public Folder.FolderRole getRole();
     public void localFolderSetupComplete(Folder a) throws MessagingException;
     public Message createMessage(String a) throws MessagingException;
     public int getQuotaRootInformation() throws MessagingException;
+    public int getReceivedQuota();
 }
@@ -17,27 +17,33 @@
 package com.orange.labs.uk.omtp.service.fetch;
 
 import java.io.IOException;
+import java.io.OutputStream;
 import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicInteger;
 
 import javax.annotation.Nullable;
 import javax.annotation.concurrent.NotThreadSafe;
 
+import org.apache.commons.io.output.CountingOutputStream;
+
 import android.content.Context;
 import android.content.Intent;
 import android.net.Uri;
 
 import com.orange.labs.uk.omtp.account.OmtpAccountStoreWrapper;
 import com.orange.labs.uk.omtp.config.StackStaticConfiguration;
+import com.orange.labs.uk.omtp.fetch.FetchHandle;
+import com.orange.labs.uk.omtp.fetch.PayloadDownload;
 import com.orange.labs.uk.omtp.fetch.VoicemailFetcherFactory;
 import com.orange.labs.uk.omtp.imap.SynchronizationCallback;
 import com.orange.labs.uk.omtp.logging.Logger;
 import com.orange.labs.uk.omtp.notification.SourceNotifier;
+import com.orange.labs.uk.omtp.utils.CloseUtils;
 import com.orange.labs.uk.omtp.voicemail.LocalVoicemailProvider;
 import com.orange.labs.uk.omtp.voicemail.Voicemail;
 import com.orange.labs.uk.omtp.voicemail.VoicemailIntentUtils;
-import com.orange.labs.uk.omtp.voicemail.VoicemailPayload;
 
 /**
  * Contains the logic for handling fetch requests on behalf of the {@link OmtpFetchService}.
@@ -57,21 +63,27 @@ public class OmtpFetchController {
 	/** Over a 3G network, fetching one message by IMAP can take > 10s. */
 	private static final long TIME_TO_WAIT_FOR_RESULT_MS = 40000;
 
+	/** Time given to a fetch that timed out to fail once its connection has been closed. */
+	private static final long TIME_TO_WAIT_FOR_ABORT_MS = 5000;
+
 	private final VoicemailFetcherFactory mVoicemailFetcherFactory;
 	private final LocalVoicemailProvider mVoicemailProviderHelper;
 	private final Context mContext;
 	private final OmtpAccountStoreWrapper mAccountStore;
 	private final SourceNotifier mNotifier;
+	private final PayloadFetchGuard mFetchGuard;
 	private final AtomicInteger mAttempts = new AtomicInteger();
 
 	public OmtpFetchController(Context context, OmtpAccountStoreWrapper accountStore,
 			VoicemailFetcherFactory voicemailFetcherFactory,
-			LocalVoicemailProvider voicemailProviderHelper, SourceNotifier notifier) {
+			LocalVoicemailProvider voicemailProviderHelper, SourceNotifier notifier,
+			PayloadFetchGuard fetchGuard) {
 		mContext = context;
 		mAccountStore = accountStore;
 		mVoicemailFetcherFactory = voicemailFetcherFactory;
 		mVoicemailProviderHelper = voicemailProviderHelper;
 		mNotifier = notifier;
+		mFetchGuard = fetchGuard;
 	}
 
 	public void onHandleFetchIntent(Intent intent) {
@@ -119,36 +131,236 @@ public class OmtpFetchController {
 		logger.d(String.format("Received onHandleFetchIntent(\"%s\" for identifier:%s)",
 				intent, identifier));
 
-		VoicemailPayload fetchedPayload = null;
+		if (!check(voicemail != null, "Inexistent voicemail", identifier)) {
+			return;
+		}
+		fetchPayload(voicemail);
+	}
+
+	/**
+	 * Downloads the payload of the provided voicemail, which must have been inserted in the local
+	 * voicemail provider, and blocks until the download completes. If the voicemail is already
+	 * being downloaded, that download is waited for and only retried if it failed.
+	 * 
+	 * @return the number of bytes written to the content provider, -1 if the download failed.
+	 */
+	public long fetchPayload(Voicemail voicemail) {
+		Uri voicemailUri = voicemail.getUri();
+		try {
+			if (mFetchGuard.acquire(voicemailUri) && hasContent(voicemailUri)) {
+				logger.d(String.format("Payload of %s downloaded in the meantime", voicemailUri));
+				return 0;
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			return -1;
+		}
+		try {
+			return fetchClaimedPayload(voicemail);
+		} finally {
+			mFetchGuard.release(voicemailUri);
+		}
+	}
+
+	/**
+	 * Downloads the payload of the provided voicemail like {@link #fetchPayload(Voicemail)},
+	 * unless it has already been downloaded or is being downloaded.
+	 * 
+	 * @return the number of bytes written to the content provider, 0 if the voicemail has been
+	 *         skipped, -1 if the download failed.
+	 */
+	public long prefetchPayload(Voicemail voicemail) {
+		Uri voicemailUri = voicemail.getUri();
+		if (!mFetchGuard.tryAcquire(voicemailUri)) {
+			logger.d(String.format("Payload of %s already being downloaded", voicemailUri));
+			return 0;
+		}
+		try {
+			if (hasContent(voicemailUri)) {
+				return 0;
+			}
+			return fetchClaimedPayload(voicemail);
+		} finally {
+			mFetchGuard.release(voicemailUri);
+		}
+	}
+
+	/**
+	 * Whether the voicemail still exists and has content. A deleted voicemail is reported as
+	 * having content, as there is nothing to download for it.
+	 */
+	private boolean hasContent(Uri voicemailUri) {
+		Voicemail current = mVoicemailProviderHelper.findVoicemailByUri(voicemailUri);
+		return current == null || current.hasContent();
+	}
+
+	private long fetchClaimedPayload(Voicemail voicemail) {
+		logger.d(voicemail.toString());
+		if (StackStaticConfiguration.PROGRESSIVE_PAYLOAD_FETCH) {
+			return fetchPayloadProgressively(voicemail.getSourceData(), voicemail.getUri());
+		} else {
+			return fetchPayload(voicemail.getSourceData(), voicemail.getUri());
+		}
+	}
+
+	/**
+	 * Streams the payload into the content provider, marking the voicemail as having content
+	 * once it has been entirely received.
+	 */
+	private long fetchPayload(String identifier, Uri voicemailUri) {
+		String fetchedMimeType = null;
+		long fetchedBytes = 0;
 
 		mAttempts.set(StackStaticConfiguration.MAX_IMAP_ATTEMPTS);
 		do {
 			FetchAttachmentCallback callback = new FetchAttachmentCallback(mContext, mNotifier,
 					mAccountStore, mAttempts);
+			FetchHandle handle = new FetchHandle();
+
+			// The audio content is streamed straight into the content provider, each attempt
+			// starting over from an empty file.
+			CountingOutputStream destination;
+			try {
+				destination = new CountingOutputStream(
+						mVoicemailProviderHelper.openVoicemailContentOutputStream(voicemailUri));
+			} catch (IOException e) {
+				logger.e("Couldn't open the content provider for writing", e);
+				return -1;
+			}
 
 			// Fire off a fetch request and wait synchronously for the result.
 			// Retry up to
 			// N times specified in StackConfiguration.MAX_IMAP_ATTEMPTS if the
 			// operation fails.
-			mVoicemailFetcherFactory.createVoicemailFetcher().fetchVoicemailPayload(identifier,
-					callback);
-			fetchedPayload = callback.waitForResult();
+			try {
+				mVoicemailFetcherFactory.createVoicemailFetcher().fetchVoicemailPayload(identifier,
+						destination, handle, callback);
+				fetchedMimeType = callback.waitForResult(null);
+				if (!callback.isComplete()) {
+					// Stop the fetch before the destination is closed, it may still be writing.
+					fetchedMimeType = callback.abort(handle);
+				}
+			} finally {
+				CloseUtils.closeQuietly(destination);
+			}
+			fetchedBytes = destination.getByteCount();
 
 			// Update the retry indicator in case it failed.
-		} while (fetchedPayload == null && mAttempts.get() > 0);
+		} while (fetchedMimeType == null && mAttempts.get() > 0);
 
-		if (check(fetchedPayload != null, "Missing payload", identifier)) {
+		if (check(fetchedMimeType != null, "Missing payload", identifier)) {
 			try {
-				if (check(voicemail != null, "Inexistent voicemail", identifier)) {
-					// put the fetched content in the right place
-					logger.d(voicemail.toString());
-					mVoicemailProviderHelper.setVoicemailContent(voicemail.getUri(),
-							fetchedPayload.getBytes(), fetchedPayload.getMimeType());
+				mVoicemailProviderHelper.setVoicemailContentType(voicemailUri, fetchedMimeType);
+				return fetchedBytes;
+			} catch (IOException e) {
+				logger.e("Couldn't write payload to content provider", e);
+			}
+		}
+		return -1;
+	}
+
+	/**
+	 * Downloads the payload into the content provider in chunks. The voicemail is marked as having
+	 * content as soon as the first chunk has been written, so that the playback can start while
+	 * the rest is being downloaded. A failed attempt is resumed from the last received offset.
+	 * <p>
+	 * An attempt that times out is aborted instead, as it may still be writing: the download then
+	 * starts over from an empty file. So does a failed attempt that was fetching the whole
+	 * attachment at once, its transfer encoding not being decodable in chunks.
+	 */
+	private long fetchPayloadProgressively(final String identifier, final Uri voicemailUri) {
+		final AtomicBoolean contentExposed = new AtomicBoolean(false);
+		PayloadDownload.ProgressListener listener = new PayloadDownload.ProgressListener() {
+			@Override
+			public void onProgress(PayloadDownload download) {
+				logger.d(String.format("%d byte(s) available for %s",
+						download.getBytesAvailable(), identifier));
+				if (download.getBytesAvailable() > 0 && !contentExposed.getAndSet(true)) {
+					try {
+						mVoicemailProviderHelper.setVoicemailContentType(voicemailUri,
+								download.getMimeType());
+					} catch (IOException e) {
+						logger.w("Couldn't mark the voicemail as having content", e);
+						contentExposed.set(false);
+					}
+				}
+			}
+		};
+
+		OutputStream destination = null;
+		PayloadDownload download = null;
+		FetchHandle handle = null;
+		String fetchedMimeType = null;
+		try {
+			mAttempts.set(StackStaticConfiguration.MAX_IMAP_ATTEMPTS);
+			do {
+				if (download == null) {
+					CloseUtils.closeQuietly(destination);
+					destination = openEmptyContent(voicemailUri, contentExposed);
+					if (destination == null) {
+						break;
+					}
+					handle = new FetchHandle();
+					download = new PayloadDownload(handle.guard(destination), listener);
+				}
+
+				FetchAttachmentCallback callback = new FetchAttachmentCallback(mContext, mNotifier,
+						mAccountStore, mAttempts);
+				mVoicemailFetcherFactory.createVoicemailFetcher().fetchVoicemailPayload(identifier,
+						download, handle, callback);
+				fetchedMimeType = callback.waitForResult(download);
+				if (!callback.isComplete()) {
+					fetchedMimeType = callback.abort(handle);
+					if (fetchedMimeType == null) {
+						// What the aborted attempt received is unknown: start over.
+						download = null;
+					}
+				} else if (fetchedMimeType == null && !download.isResumable()) {
+					download = null;
 				}
+			} while (fetchedMimeType == null && mAttempts.get() > 0);
+		} finally {
+			CloseUtils.closeQuietly(destination);
+		}
+
+		if (!check(fetchedMimeType != null, "Missing payload", identifier)) {
+			if (contentExposed.get()) {
+				// The content is truncated, do not let it be played as if it was complete.
+				try {
+					mVoicemailProviderHelper.clearVoicemailContent(voicemailUri);
+				} catch (IOException e) {
+					logger.e("Couldn't clear the truncated payload", e);
+				}
+			}
+			return -1;
+		} else if (!contentExposed.get()) {
+			try {
+				mVoicemailProviderHelper.setVoicemailContentType(voicemailUri, fetchedMimeType);
 			} catch (IOException e) {
 				logger.e("Couldn't write payload to content provider", e);
-				return;
+				return -1;
+			}
+		}
+		return download.getBytesAvailable();
+	}
+
+	/**
+	 * Opens the content of the voicemail for writing, truncated. Content exposed by a previous
+	 * download is hidden first, so that it is not played while being rewritten.
+	 * 
+	 * @return the stream to write the content to, null if it couldn't be opened.
+	 */
+	@Nullable
+	private OutputStream openEmptyContent(Uri voicemailUri, AtomicBoolean contentExposed) {
+		try {
+			if (contentExposed.get()) {
+				mVoicemailProviderHelper.clearVoicemailContent(voicemailUri);
+				contentExposed.set(false);
 			}
+			return mVoicemailProviderHelper.openVoicemailContentOutputStream(voicemailUri);
+		} catch (IOException e) {
+			logger.e("Couldn't open the content provider for writing", e);
+			return null;
 		}
 	}
 
@@ -163,7 +375,7 @@ public class OmtpFetchController {
 	/**
 	 * Helper class used as a callback that also allows a thread to wait for the result.
 	 */
-	private class FetchAttachmentCallback extends SynchronizationCallback<VoicemailPayload> {
+	private class FetchAttachmentCallback extends SynchronizationCallback<String> {
 
 		public FetchAttachmentCallback(Context context, SourceNotifier notifier,
 				OmtpAccountStoreWrapper accountStore, AtomicInteger attempts) {
@@ -171,10 +383,15 @@ public class OmtpFetchController {
 		}
 
 		private final CountDownLatch mIsComplete = new CountDownLatch(1);
-		private volatile VoicemailPayload mResult;
+		/** Set by the first outcome, the attempt being counted only once. */
+		private final AtomicBoolean mDone = new AtomicBoolean(false);
+		private volatile String mResult;
 
 		@Override
 		public void onFailure(Exception error) {
+			if (mDone.getAndSet(true)) {
+				return;
+			}
 			if (!shouldRetry(error)) {
 				super.onFailure(error);
 			}
@@ -183,7 +400,10 @@ public class OmtpFetchController {
 		}
 
 		@Override
-		public void onSuccess(VoicemailPayload result) {
+		public void onSuccess(String result) {
+			if (mDone.getAndSet(true)) {
+				return;
+			}
 			mAttemptsLeft.decrementAndGet(); // in case result is null.
 			mResult = result;
 			mIsComplete.countDown();
@@ -192,19 +412,52 @@ public class OmtpFetchController {
 		/**
 		 * Waits for the asynchronous result of the callback to complete.
 		 * <p>
-		 * Returns the voicemail and the payload that we retrieved. Returns null if the thread was
+		 * Returns the MIME type of the payload that we retrieved. Returns null if the thread was
 		 * interrupted, if there was an exception of any sort fetching the data from the server, or
-		 * if the timeout expired (i.e. the fetch took too long).
+		 * if the timeout expired (i.e. the fetch took too long). When a progressive download is
+		 * provided, the timeout is extended as long as new content keeps being received.
 		 */
 		@Nullable
-		private VoicemailPayload waitForResult() {
+		private String waitForResult(@Nullable PayloadDownload download) {
 			try {
-				mIsComplete.await(TIME_TO_WAIT_FOR_RESULT_MS, TimeUnit.MILLISECONDS);
+				long bytesAvailable = (download != null) ? download.getBytesAvailable() : 0;
+				while (!mIsComplete.await(TIME_TO_WAIT_FOR_RESULT_MS, TimeUnit.MILLISECONDS)
+						&& download != null && download.getBytesAvailable() > bytesAvailable) {
+					// Keep waiting as long as a progressive download is moving forward.
+					bytesAvailable = download.getBytesAvailable();
+				}
 			} catch (InterruptedException e) {
 				// Restore interrupt status and fall through.
 				Thread.currentThread().interrupt();
 			}
 			return mResult;
 		}
+
+		private boolean isComplete() {
+			return mIsComplete.getCount() == 0;
+		}
+
+		/**
+		 * Aborts the fetch after a timeout and waits for it to fail. Once this method returns,
+		 * nothing is written anymore to the destination of the fetch. If the fetch doesn't fail in
+		 * time, the attempt is counted nonetheless and its outcome ignored.
+		 * 
+		 * @return the MIME type of the payload if the fetch completed before being aborted.
+		 */
+		@Nullable
+		private String abort(FetchHandle handle) {
+			logger.w("Payload fetch timed out, aborting it");
+			handle.abort();
+			try {
+				mIsComplete.await(TIME_TO_WAIT_FOR_ABORT_MS, TimeUnit.MILLISECONDS);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+			if (!mDone.getAndSet(true)) {
+				mAttemptsLeft.decrementAndGet();
+				mIsComplete.countDown();
+			}
+			return mResult;
+		}
 	}
 }
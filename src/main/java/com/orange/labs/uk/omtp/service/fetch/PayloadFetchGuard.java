@@ -0,0 +1,66 @@
+/*
+ * Copyright (C) 2012 Orange Labs UK. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+package com.orange.labs.uk.omtp.service.fetch;
+
+import java.util.HashSet;
+import java.util.Set;
+
+import javax.annotation.concurrent.ThreadSafe;
+
+import android.net.Uri;
+
+/**
+ * Keeps track of the voicemails whose payload is being downloaded, so that an on-demand fetch and
+ * a prefetch never write the content of the same voicemail at once.
+ */
+@ThreadSafe
+public class PayloadFetchGuard {
+
+	private final Set<Uri> mInFlight = new HashSet<Uri>();
+
+	/**
+	 * Claims the download of the voicemail, waiting for a download of it in progress to end.
+	 * 
+	 * @return true if another download of the voicemail had to be waited for.
+	 */
+	public synchronized boolean acquire(Uri voicemailUri) throws InterruptedException {
+		boolean waited = false;
+		while (mInFlight.contains(voicemailUri)) {
+			waited = true;
+			wait();
+		}
+		mInFlight.add(voicemailUri);
+		return waited;
+	}
+
+	/**
+	 * Claims the download of the voicemail unless it is already being downloaded.
+	 * 
+	 * @return true if the download has been claimed.
+	 */
+	public synchronized boolean tryAcquire(Uri voicemailUri) {
+		return mInFlight.add(voicemailUri);
+	}
+
+	/**
+	 * Releases the download of the voicemail claimed by {@link #acquire(Uri)} or
+	 * {@link #tryAcquire(Uri)}.
+	 */
+	public synchronized void release(Uri voicemailUri) {
+		mInFlight.remove(voicemailUri);
+		notifyAll();
+	}
+}
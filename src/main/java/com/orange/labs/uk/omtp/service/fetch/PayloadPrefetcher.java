@@ -0,0 +1,188 @@
+/*
+ * Copyright (C) 2012 Orange Labs UK. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+package com.orange.labs.uk.omtp.service.fetch;
+
+import java.util.List;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.annotation.concurrent.ThreadSafe;
+
+import android.content.Context;
+
+import com.orange.labs.uk.omtp.account.OmtpAccountStoreWrapper;
+import com.orange.labs.uk.omtp.config.StackStaticConfiguration;
+import com.orange.labs.uk.omtp.fetch.VoicemailFetcherFactory;
+import com.orange.labs.uk.omtp.logging.Logger;
+import com.orange.labs.uk.omtp.notification.SourceNotifier;
+import com.orange.labs.uk.omtp.voicemail.LocalVoicemailProvider;
+import com.orange.labs.uk.omtp.voicemail.Voicemail;
+
+/**
+ * Downloads the payloads of the voicemails inserted by a synchronization in the background, on up
+ * to {@link StackStaticConfiguration#PREFETCH_CONCURRENCY} IMAP connections at once, instead of
+ * one at a time through the {@link OmtpFetchService}.
+ * <p>
+ * The voicemails are downloaded newest first, so that the most recent messages become playable
+ * first. Each download reserves the expected size of its voicemail from the
+ * {@link StackStaticConfiguration#PREFETCH_BYTE_BUDGET} of its synchronization before starting,
+ * and gives back what it didn't use once done: the downloads that don't fit are not started, and
+ * those voicemails are fetched on demand, when the user plays them.
+ * <p>
+ * A voicemail being fetched on demand is not prefetched, see {@link PayloadFetchGuard}.
+ */
+@ThreadSafe
+public class PayloadPrefetcher {
+	private static final Logger logger = Logger.getLogger(PayloadPrefetcher.class);
+
+	/** Time after which the idle prefetch threads are stopped. */
+	private static final long THREAD_KEEP_ALIVE_MS = 30000;
+
+	private final Context mContext;
+	private final OmtpAccountStoreWrapper mAccountStore;
+	private final VoicemailFetcherFactory mVoicemailFetcherFactory;
+	private final LocalVoicemailProvider mVoicemailProviderHelper;
+	private final SourceNotifier mNotifier;
+	private final PayloadFetchGuard mFetchGuard;
+
+	private final ThreadPoolExecutor mExecutor;
+
+	/** Sequence number of the prefetched batches, the voicemails of the latest one go first. */
+	private final AtomicLong mBatchSequence = new AtomicLong(0);
+
+	public PayloadPrefetcher(Context context, OmtpAccountStoreWrapper accountStore,
+			VoicemailFetcherFactory voicemailFetcherFactory,
+			LocalVoicemailProvider voicemailProviderHelper, SourceNotifier notifier,
+			PayloadFetchGuard fetchGuard) {
+		mContext = context;
+		mAccountStore = accountStore;
+		mVoicemailFetcherFactory = voicemailFetcherFactory;
+		mVoicemailProviderHelper = voicemailProviderHelper;
+		mNotifier = notifier;
+		mFetchGuard = fetchGuard;
+
+		int concurrency = StackStaticConfiguration.PREFETCH_CONCURRENCY;
+		mExecutor = new ThreadPoolExecutor(concurrency, concurrency, THREAD_KEEP_ALIVE_MS,
+				TimeUnit.MILLISECONDS, new PriorityBlockingQueue<Runnable>());
+		mExecutor.allowCoreThreadTimeOut(true);
+	}
+
+	/**
+	 * Schedules the download of the payloads of the provided voicemails, which must have been
+	 * inserted in the local voicemail provider. Returns immediately.
+	 */
+	public void prefetch(List<Voicemail> voicemails) {
+		long batch = mBatchSequence.incrementAndGet();
+		AtomicLong budget = new AtomicLong(StackStaticConfiguration.PREFETCH_BYTE_BUDGET);
+		logger.d(String.format("Prefetching the payload of %d voicemail(s)", voicemails.size()));
+		for (Voicemail voicemail : voicemails) {
+			mExecutor.execute(new PrefetchTask(voicemail, batch, budget));
+		}
+	}
+
+	/**
+	 * Downloads the payload of the provided voicemail, unless it has been deleted, played or is
+	 * being played in the meantime. Overridden by the tests.
+	 * 
+	 * @return the number of bytes downloaded, 0 if the voicemail has been skipped, -1 if the
+	 *         download failed
+	 */
+	/* package */ long fetchPayload(Voicemail voicemail) {
+		// Controllers are not thread safe, each download gets its own.
+		OmtpFetchController controller = new OmtpFetchController(mContext, mAccountStore,
+				mVoicemailFetcherFactory, mVoicemailProviderHelper, mNotifier, mFetchGuard);
+		return controller.prefetchPayload(voicemail);
+	}
+
+	/**
+	 * Returns the expected size of the payload of the voicemail: the size announced by the server
+	 * when it was listed if known, otherwise an estimate from its duration, in seconds.
+	 */
+	/* package */ static long getExpectedSize(Voicemail voicemail) {
+		if (voicemail.hasPayloadSize() && voicemail.getPayloadSize() > 0) {
+			return voicemail.getPayloadSize();
+		}
+		if (!voicemail.hasDuration() || voicemail.getDuration() <= 0) {
+			return StackStaticConfiguration.PREFETCH_DEFAULT_RESERVED_BYTES;
+		}
+		return voicemail.getDuration()
+				* StackStaticConfiguration.PREFETCH_ESTIMATED_BYTES_PER_SECOND;
+	}
+
+	/**
+	 * Download of the payload of one voicemail. Tasks are ordered so that the latest batch comes
+	 * first and, within a batch, the newest voicemail comes first.
+	 */
+	private final class PrefetchTask implements Runnable, Comparable<PrefetchTask> {
+		private final Voicemail mVoicemail;
+		private final long mBatch;
+		/** Bytes left to the batch of the task, shared by all its tasks. */
+		private final AtomicLong mBudget;
+
+		public PrefetchTask(Voicemail voicemail, long batch, AtomicLong budget) {
+			mVoicemail = voicemail;
+			mBatch = batch;
+			mBudget = budget;
+		}
+
+		@Override
+		public void run() {
+			long reserved = getExpectedSize(mVoicemail);
+			if (!reserve(reserved)) {
+				logger.d(String.format("Prefetch budget used, %s will be fetched on demand",
+						mVoicemail.getSourceData()));
+				return;
+			}
+
+			long fetchedBytes = 0;
+			try {
+				fetchedBytes = fetchPayload(mVoicemail);
+			} finally {
+				mBudget.addAndGet(reserved - Math.max(fetchedBytes, 0));
+			}
+		}
+
+		/**
+		 * Takes the given number of bytes from the budget of the batch, if it has enough left.
+		 */
+		private boolean reserve(long bytes) {
+			while (true) {
+				long left = mBudget.get();
+				if (left < bytes) {
+					return false;
+				}
+				if (mBudget.compareAndSet(left, left - bytes)) {
+					return true;
+				}
+			}
+		}
+
+		@Override
+		public int compareTo(PrefetchTask another) {
+			if (mBatch != another.mBatch) {
+				return (mBatch > another.mBatch) ? -1 : 1;
+			}
+			long timestamp = mVoicemail.getTimestampMillis();
+			long anotherTimestamp = another.mVoicemail.getTimestampMillis();
+			if (timestamp != anotherTimestamp) {
+				return (timestamp > anotherTimestamp) ? -1 : 1;
+			}
+			return 0;
+		}
+	}
+}
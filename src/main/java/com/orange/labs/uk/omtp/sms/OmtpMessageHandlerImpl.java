@@ -24,6 +24,7 @@ import com.orange.labs.uk.omtp.account.OmtpAccountStoreWrapper;
 import com.orange.labs.uk.omtp.callbacks.Callback;
 import com.orange.labs.uk.omtp.config.StackStaticConfiguration;
 import com.orange.labs.uk.omtp.greetings.GreetingUpdateType;
+import com.orange.labs.uk.omtp.imap.ImapSessionManager;
 import com.orange.labs.uk.omtp.logging.Logger;
 import com.orange.labs.uk.omtp.notification.MessageNotification;
 import com.orange.labs.uk.omtp.notification.NotifChannelNotification;
@@ -36,6 +37,7 @@ import com.orange.labs.uk.omtp.sms.timeout.SmsTimeoutHandler;
 import com.orange.labs.uk.omtp.sync.LocalVvmStore;
 import com.orange.labs.uk.omtp.sync.SerialSynchronizer;
 import com.orange.labs.uk.omtp.sync.SerialSynchronizer.SyncFlag;
+import com.orange.labs.uk.omtp.sync.SerialSynchronizer.SyncPriority;
 import com.orange.labs.uk.omtp.sync.VvmStore;
 import com.orange.labs.uk.omtp.sync.VvmStore.Action;
 import com.orange.labs.uk.omtp.sync.VvmStoreActions;
@@ -80,10 +82,13 @@ public class OmtpMessageHandlerImpl implements OmtpMessageHandler, OmtpMessage.V
 	 */
 	private final OmtpProviderInfo mProviderInfo;
 
+	/** Used to connect to the IMAP server as soon as a new message is announced. */
+	private final ImapSessionManager mSessionManager;
+
 	public OmtpMessageHandlerImpl(OmtpSmsParser smsParser, OmtpAccountStoreWrapper accountStore,
 			SourceNotifier sourceNotifier, VvmStore localVvmStore,
 			SmsTimeoutHandler smsTimeoutHandler, SerialSynchronizer serialSynchronizer,
-			OmtpProviderInfo omtpProviderInfo) {
+			OmtpProviderInfo omtpProviderInfo, ImapSessionManager sessionManager) {
 		mAccountStore = accountStore;
 		mSmsParser = smsParser;
 		mSourceNotifier = sourceNotifier;
@@ -91,6 +96,7 @@ public class OmtpMessageHandlerImpl implements OmtpMessageHandler, OmtpMessage.V
 		mSmsTimeoutHandler = smsTimeoutHandler;
 		mSerialSynchronizer = serialSynchronizer;
 		mProviderInfo = omtpProviderInfo;
+		mSessionManager = sessionManager;
 	}
 
 	@Override
@@ -247,6 +253,9 @@ public class OmtpMessageHandlerImpl implements OmtpMessageHandler, OmtpMessage.V
 			sendNewMessageNotification(sender, duration, time);
 			return;
 		} else {
+			// The voicemail will be fetched once inserted: connect to the server in the meantime.
+			mSessionManager.warmUp(account);
+
 			// notify source that just new message SMS has been received
 			MessageNotification.Builder builder = new MessageNotification.Builder();
 			builder.justNewMessageDeposited();
@@ -321,7 +330,8 @@ public class OmtpMessageHandlerImpl implements OmtpMessageHandler, OmtpMessage.V
 		 */
 		private void synchronizeIfEnabled() {
 			if (StackStaticConfiguration.FULL_SYNC_ON_NEW_MSG) {
-				triggerFullSynchronization();
+				mSerialSynchronizer.execute(SyncFlag.FULL_SYNCHRONIZATION,
+						SyncPriority.NEW_MESSAGE);
 			}
 		}
 	}
@@ -333,9 +343,9 @@ public class OmtpMessageHandlerImpl implements OmtpMessageHandler, OmtpMessage.V
 		// A status message can include the TUI number, we check here that this number has not been
 		// updated since we last stored. If it has, we include this information with the Status
 		// notification.
+		OmtpAccountInfo account = mAccountStore.getAccountInfo();
 		boolean tuiUpdated = false;
 		if (statusMessage.getTuiAccessNumber() != null) {
-			OmtpAccountInfo account = mAccountStore.getAccountInfo();
 			if (account == null || account.getTuiNumber() == null
 					|| !account.getTuiNumber().equals(statusMessage.getTuiAccessNumber())) {
 				tuiUpdated = true;
@@ -357,6 +367,15 @@ public class OmtpMessageHandlerImpl implements OmtpMessageHandler, OmtpMessage.V
 
 		mAccountStore.updateAccountInfo(accountInfoBuilder);
 
+		// The pooled IMAP sessions were opened with the previous server or credentials.
+		if (account != null && account.getUriString() != null) {
+			OmtpAccountInfo updated = mAccountStore.getAccountInfo();
+			if (updated == null || !account.getUriString().equals(updated.getUriString())) {
+				logger.d("IMAP account details changed, closing the pooled sessions");
+				mSessionManager.closeAllSessions();
+			}
+		}
+
 		// notify the source that the status has been updated.
 		sendStatusNotification(statusMessage, tuiUpdated);
 	}
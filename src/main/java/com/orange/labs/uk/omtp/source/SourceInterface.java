@@ -145,6 +145,19 @@ public interface SourceInterface {
 	 * remote OMTP platform.
 	 */
 	public abstract void triggerLocalSynchronization();
+
+	/**
+	 * Start watching the remote inbox with IMAP IDLE, so that new voicemails are synchronized
+	 * without waiting for the SYNC SMS. The watcher only runs while the device is connected to
+	 * Wi-Fi.
+	 * @return a boolean that indicates if the watcher has been started.
+	 */
+	public abstract boolean startPushSynchronization();
+
+	/**
+	 * Stop watching the remote inbox with IMAP IDLE.
+	 */
+	public abstract void stopPushSynchronization();
 	
 	/**
 	 * Trigger suppression of all Voicemail data (Account + Voicemails) associated 
@@ -28,6 +28,7 @@ import com.orange.labs.uk.omtp.logging.Logger;
 import com.orange.labs.uk.omtp.provider.OmtpProviderInfo;
 import com.orange.labs.uk.omtp.sms.OmtpMessageSender;
 import com.orange.labs.uk.omtp.sync.SerialSynchronizer.SyncFlag;
+import com.orange.labs.uk.omtp.sync.SerialSynchronizer.SyncPriority;
 
 import java.util.ArrayList;
 import java.util.List;
@@ -206,7 +207,8 @@ public class SourceInterfaceImpl implements SourceInterface {
 	 */
 	@Override
 	public void triggerFullSynchronization() {
-		mDependencyResolver.getSerialSynchronizer().execute(SyncFlag.FULL_SYNCHRONIZATION);
+		mDependencyResolver.getSerialSynchronizer().execute(SyncFlag.FULL_SYNCHRONIZATION,
+				SyncPriority.USER_REQUEST);
 	}
 
 	/*
@@ -216,7 +218,28 @@ public class SourceInterfaceImpl implements SourceInterface {
 	 */
 	@Override
 	public void triggerLocalSynchronization() {
-		mDependencyResolver.getSerialSynchronizer().execute(SyncFlag.LOCAL_SYNCHRONIZATION);
+		mDependencyResolver.getSerialSynchronizer().execute(SyncFlag.LOCAL_SYNCHRONIZATION,
+				SyncPriority.USER_REQUEST);
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see com.orange.labs.uk.omtp.source.SourceInterface#startPushSynchronization()
+	 */
+	@Override
+	public boolean startPushSynchronization() {
+		return mDependencyResolver.getImapIdleWatcher().start();
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see com.orange.labs.uk.omtp.source.SourceInterface#stopPushSynchronization()
+	 */
+	@Override
+	public void stopPushSynchronization() {
+		mDependencyResolver.getImapIdleWatcher().stop();
 	}
 
 	/*
@@ -231,6 +254,10 @@ public class SourceInterfaceImpl implements SourceInterface {
 		// delete voicemail messages for this account from LovalVvmStore and MirrorVvmStore
 		mDependencyResolver.getLocalStore().deleteAllMessages(Callbacks.<Void>emptyCallback());
 		mDependencyResolver.getMirrorStore().deleteAllMessages(Callbacks.<Void>emptyCallback());
+		// The states of the mailboxes no longer match the emptied mirror
+		mDependencyResolver.getMailboxStateProvider().deleteAll();
+		// Drop the pooled IMAP sessions and the quota of the deleted account
+		mDependencyResolver.getImapSessionManager().closeAllSessions();
 	}
 	
 	/*
@@ -22,24 +22,26 @@ import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
-import java.util.concurrent.CountDownLatch;
-import java.util.concurrent.TimeUnit;
+import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.atomic.AtomicBoolean;
-import java.util.concurrent.atomic.AtomicInteger;
-
-import javax.annotation.Nullable;
 
 import com.orange.labs.uk.omtp.callbacks.Callback;
+import com.orange.labs.uk.omtp.config.StackStaticConfiguration;
 import com.orange.labs.uk.omtp.greetings.Greeting;
 import com.orange.labs.uk.omtp.greetings.GreetingType;
 import com.orange.labs.uk.omtp.greetings.GreetingUpdateType;
 import com.orange.labs.uk.omtp.greetings.GreetingsHelper;
 import com.orange.labs.uk.omtp.logging.Logger;
+import com.orange.labs.uk.omtp.sync.ResolveCompletion.Join;
+import com.orange.labs.uk.omtp.sync.ResolveCompletion.Result;
 import com.orange.labs.uk.omtp.sync.VvmGreetingsStoreResolver.ResolvePolicy;
 
 /**
  * Class used to resolve differences between the greetings messages stored in the application db
  * and in the IMAP server. 
+ * <p>
+ * The resolve is chained on the callbacks of the stores, no thread waits for them. The callback is
+ * invoked exactly once, with a failure if a step does not complete in time.
  */
 public final class InnerGreetingsResolver {
 	
@@ -47,7 +49,7 @@ public final class InnerGreetingsResolver {
 
 	private final VvmGreetingsStore mRemoteStore;
 	private final VvmGreetingsStore mLocalStore;
-	private final Callback<Void> mCallback;
+	private final ResolveCompletion mCompletion;
 	private final Set<GreetingUpdateType> mGreetingUpdateSet;
 	private GreetingType mGreetingToActivate = GreetingType.UNKNOWN;
 	private GreetingUpdateType mGreetingUpdateType = GreetingUpdateType.UNKNOWN;
@@ -65,10 +67,11 @@ public final class InnerGreetingsResolver {
 
 	public InnerGreetingsResolver(VvmGreetingsStore remoteStore, VvmGreetingsStore localStore,
 			Callback<Void> result, Set<GreetingUpdateType> greetingUpdateType,
-			GreetingsHelper greetingsHelper, ResolvePolicy policy) {
+			GreetingsHelper greetingsHelper, ResolvePolicy policy,
+			ScheduledExecutorService scheduler) {
 		mRemoteStore = remoteStore;
 		mLocalStore = localStore;
-		mCallback = result;
+		mCompletion = new ResolveCompletion(result, scheduler);
 		mResolvePolicy = policy;
 		mHasResolveBeenCalled = new AtomicBoolean(false);
 		
@@ -100,77 +103,95 @@ public final class InnerGreetingsResolver {
 		switch(mGreetingUpdateType) {
 		case FETCH_GREETINGS_CONTENT:
 		case UNKNOWN:
-		{
-			GreetingsManagementCallback<List<Greeting>> localCallback = new GreetingsManagementCallback<List<Greeting>>();
-			GreetingsManagementCallback<List<Greeting>> remoteCallback = new GreetingsManagementCallback<List<Greeting>>();
-
-			mLocalStore.getAllGreetingsMessages(localCallback);
-			mRemoteStore.getAllGreetingsMessages(remoteCallback);
-			
-			List<Greeting> localGreetingsList = localCallback.waitForResult();
-			List<Greeting> remoteGreetingsList = remoteCallback.waitForResult();
-
-			if (remoteGreetingsList != null && localGreetingsList != null) {
-				logger.d(String.format("[Remote Greetings] %s", remoteGreetingsList));
-				logger.d(String.format("[Local Greetings] %s", localGreetingsList));
-				// set current active greeting (used by Source application to determinate which
-				// greeting is currently active)
-				checkWhichRemoteGreetingIsActiveAndUpdate(remoteGreetingsList, mGreetingUpdateType);
-
-				// resolve local and remote messages
-				performResolve(localGreetingsList, remoteGreetingsList);
-				// send notification to the source about a Greetings Update
-				mGreetingsHelper.notifySourceAboutGreetingsUpdate(mGreetingUpdateType);
-			} else {
-				logger.d("There was a problem with local/remote Greetings Retrieval.");
-
-				// call to callback onFailure() method is required in case of GreetingsManagementCallback
-				// timer expiration, otherwise it may happened that the task is never removed from
-				// SerialSynchronizer queue
-				mCallback.onFailure(new VvmFetchingException(
-						"Local/Remote Greetings retrieval error", mGreetingToActivate,
-						mGreetingUpdateType));
-			}
+			fetchGreetings();
 			break;
-		}
 		case ONLY_CHANGE_REQUIRED:
 		case UPLOAD_REQUIRED:
-		{
-			GreetingsManagementCallback<Greeting> callback = new GreetingsManagementCallback<Greeting>();
-			
-			// launch upload
-			mRemoteStore.uploadGreetings(callback, mGreetingUpdateType, mGreetingToActivate,
-					mGreetingsHelper);
-			Greeting successfulyUploadedGreeting = callback.waitForResult();
-			
-			// If it is an upload there should be a Greeting returned, if change only, the 
-			// returned Greeting should be null
-			if (successfulyUploadedGreeting != null) {
-				mGreetingsHelper.setCurrentActiveGreeting(mGreetingToActivate, mGreetingUpdateType);
-				
-				logger.d("Successfuly uploaded/changed greeting, updating Local Greeting DB");
-				List<VvmStore.Action> localActions = new ArrayList<VvmStore.Action>();
-				localActions.add(VvmStoreActions.insert(successfulyUploadedGreeting));
-				mLocalStore.performActions(localActions, new StoreCallback(new AtomicInteger(1),
-						 new AtomicBoolean(false)));
-				
-			} else {
-				logger.d("There was a problem with greetich change/upload, no confirmation has been received.");
-
-				// call to callback onFailure() method is required in case of GreetingsManagementCallback
-				// timer expiration, otherwise it may happened that the task is never removed from
-				// SerialSynchronizer queue
-				mCallback.onFailure(new VvmFetchingException("Greetings change/upload error",
-						mGreetingToActivate, mGreetingUpdateType));
-			}
-			
+			uploadGreetings();
 			break;
-		}
 		default:
 			break;
 		}
 	}
 
+	/**
+	 * Fetches the local and remote greetings, and resolves them once both lists are available.
+	 */
+	private void fetchGreetings() {
+		Join fetched = mCompletion.new Join(2);
+		final Result<List<Greeting>> localCallback = fetched.newResult();
+		final Result<List<Greeting>> remoteCallback = fetched.newResult();
+		fetched.setNext(new Runnable() {
+			@Override
+			public void run() {
+				List<Greeting> localGreetingsList = localCallback.get();
+				List<Greeting> remoteGreetingsList = remoteCallback.get();
+
+				if (remoteGreetingsList != null && localGreetingsList != null) {
+					logger.d(String.format("[Remote Greetings] %s", remoteGreetingsList));
+					logger.d(String.format("[Local Greetings] %s", localGreetingsList));
+					// set current active greeting (used by Source application to determinate which
+					// greeting is currently active)
+					checkWhichRemoteGreetingIsActiveAndUpdate(remoteGreetingsList,
+							mGreetingUpdateType);
+
+					// resolve local and remote messages
+					performResolve(localGreetingsList, remoteGreetingsList);
+					// send notification to the source about a Greetings Update
+					mGreetingsHelper.notifySourceAboutGreetingsUpdate(mGreetingUpdateType);
+				} else {
+					logger.d("There was a problem with local/remote Greetings Retrieval.");
+					mCompletion.fail(new VvmFetchingException(
+							"Local/Remote Greetings retrieval error", mGreetingToActivate,
+							mGreetingUpdateType));
+				}
+			}
+		});
+
+		mCompletion.startStep("fetching greetings", StackStaticConfiguration.SYNC_LISTING_TIMEOUT);
+		mLocalStore.getAllGreetingsMessages(mCompletion.track(localCallback));
+		mRemoteStore.getAllGreetingsMessages(mCompletion.track(remoteCallback));
+	}
+
+	/**
+	 * Uploads or activates the requested greeting, and updates the local greetings once the server
+	 * has confirmed it.
+	 */
+	private void uploadGreetings() {
+		Join uploaded = mCompletion.new Join(1);
+		final Result<Greeting> callback = uploaded.newResult();
+		uploaded.setNext(new Runnable() {
+			@Override
+			public void run() {
+				Greeting successfulyUploadedGreeting = callback.get();
+
+				// If it is an upload there should be a Greeting returned, if change only, the 
+				// returned Greeting should be null
+				if (successfulyUploadedGreeting != null) {
+					mGreetingsHelper.setCurrentActiveGreeting(mGreetingToActivate,
+							mGreetingUpdateType);
+
+					logger.d("Successfuly uploaded/changed greeting, updating Local Greeting DB");
+					List<VvmStore.Action> localActions = new ArrayList<VvmStore.Action>();
+					localActions.add(VvmStoreActions.insert(successfulyUploadedGreeting));
+					mCompletion.startStep("storing greeting",
+							StackStaticConfiguration.SYNC_APPLY_TIMEOUT);
+					mLocalStore.performActions(localActions,
+							mCompletion.track(mCompletion.newActionsCallback(1)));
+				} else {
+					logger.d("There was a problem with greetich change/upload, no confirmation has been received.");
+					mCompletion.fail(new VvmFetchingException("Greetings change/upload error",
+							mGreetingToActivate, mGreetingUpdateType));
+				}
+			}
+		});
+
+		// launch upload
+		mCompletion.startStep("uploading greeting", StackStaticConfiguration.SYNC_FETCH_TIMEOUT);
+		mRemoteStore.uploadGreetings(mCompletion.track(callback), mGreetingUpdateType, mGreetingToActivate,
+				mGreetingsHelper);
+	}
+
 	private void performResolve(List<Greeting> localGreetingsList, List<Greeting> remoteGreetingsList) {
 		List<VvmStore.Action> localActions = new ArrayList<VvmStore.Action>();
 		List<VvmStore.Action> remoteActions = new ArrayList<VvmStore.Action>();
@@ -198,13 +219,11 @@ public final class InnerGreetingsResolver {
 		logger.d("localGreetingActions: " + localActions);
 		logger.d("remoteGreetingActions: " + remoteActions);
 
-		AtomicInteger storesRemaining = new AtomicInteger(2);
-		AtomicBoolean failureReported = new AtomicBoolean(false);
-		
-		mRemoteStore.performActions(remoteActions, new StoreCallback(storesRemaining,
-				failureReported));
-		mLocalStore.performActions(localActions,
-				new StoreCallback(storesRemaining, failureReported));
+		mCompletion.startStep("performing greeting actions",
+				StackStaticConfiguration.SYNC_APPLY_TIMEOUT);
+		Callback<Void> callback = mCompletion.newActionsCallback(2);
+		mRemoteStore.performActions(remoteActions, mCompletion.track(callback));
+		mLocalStore.performActions(localActions, mCompletion.track(callback));
 
 	}
 
@@ -270,77 +289,4 @@ public final class InnerGreetingsResolver {
 		}
 	}
 
-	/**
-	 * Helper class used as a callback that also allows a thread to wait for the result.
-	 */
-	private class GreetingsManagementCallback<T> implements Callback<T> {
-		public static final long TIME_TO_WAIT_FOR_RESULT_MS = 40000;
-		private final CountDownLatch mIsComplete = new CountDownLatch(1);
-		private volatile T mResult;
-
-		@Override
-		public void onSuccess(T result) {
-			logger.d("GreetingsManagementCallback onSuccess() called");
-			mResult = result;
-			mIsComplete.countDown();
-		}
-
-		@Override
-		public void onFailure(Exception error) {
-			logger.w("GreetingsManagementCallback onFailure() called");
-			mCallback.onFailure(error);
-		}
-		
-		/**
-		 * Waits for the asynchronous result of the callback to complete.
-		 * <p>
-		 * Returns the greetings structure that we retrieved. Returns null if the thread was
-		 * interrupted, if there was an exception of any sort fetching the data from the server, or
-		 * if the timeout expired (i.e. the fetch took too long).
-		 */
-		@Nullable
-		private T waitForResult() {
-			try {
-				mIsComplete.await(TIME_TO_WAIT_FOR_RESULT_MS, TimeUnit.MILLISECONDS);
-			} catch (InterruptedException e) {
-				// Restore interrupt status and fall through.
-				Thread.currentThread().interrupt();
-			}
-			return mResult;
-		}
-	}
-	
-	private class StoreCallback implements Callback<Void> {
-
-		private final AtomicInteger mStoresRemaining;
-		private final AtomicBoolean mFailureReported;
-
-		public StoreCallback(AtomicInteger storesRemaining, AtomicBoolean failureReported) {
-			mStoresRemaining = storesRemaining;
-			mFailureReported = failureReported;
-		}
-
-		@Override
-		public void onSuccess(Void result) {
-			// A list of actions succeeded.
-			// If this is the last list of actions to complete, call the
-			// original callback.
-			logger.d("[Store Greeting Callback] Store succesfully executed actions.");
-			if (mStoresRemaining.decrementAndGet() == 0) {
-				logger.d("[Store Callback] Done with actions, invoking callback");
-				mCallback.onSuccess(null);
-			}
-		}
-
-		@Override
-		public void onFailure(Exception error) {
-			// A list of actions has failed.
-			// Fail the original callback, unless we've already failed once.
-			if (!mFailureReported.getAndSet(true)) {
-				logger.w("[Store Greeting Callback] Store failed to execute actions, invoking callback");
-				mCallback.onFailure(error);
-			}
-		}
-	}
-	
 }
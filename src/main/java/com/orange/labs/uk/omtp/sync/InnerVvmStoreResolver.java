@@ -17,19 +17,20 @@
 package com.orange.labs.uk.omtp.sync;
 
 import java.util.ArrayList;
-import java.util.Collection;
-import java.util.HashMap;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.List;
-import java.util.Map;
-import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.atomic.AtomicBoolean;
-import java.util.concurrent.atomic.AtomicInteger;
 
-import javax.annotation.Nullable;
 import javax.annotation.concurrent.ThreadSafe;
 
 import com.orange.labs.uk.omtp.callbacks.Callback;
+import com.orange.labs.uk.omtp.config.StackStaticConfiguration;
+import com.orange.labs.uk.omtp.fetch.VoicemailListing;
 import com.orange.labs.uk.omtp.logging.Logger;
+import com.orange.labs.uk.omtp.sync.ResolveCompletion.Join;
+import com.orange.labs.uk.omtp.sync.ResolveCompletion.Result;
 import com.orange.labs.uk.omtp.sync.VvmStoreResolver.ResolvePolicy;
 import com.orange.labs.uk.omtp.voicemail.Voicemail;
 
@@ -42,7 +43,12 @@ import com.orange.labs.uk.omtp.voicemail.Voicemail;
  * instance of this class, call the {@link #resolve()} method, and then drop the instance.
  * <p>
  * This class needs to be thread-safe, because the callbacks involved are complex and may happen on
- * arbitrary threads.
+ * arbitrary threads. No thread waits on the stores: each step is run by the callback completing the
+ * previous one, and is failed if it does not complete in time.
+ * <p>
+ * The stores are resolved by sorting their messages on their source data (the IMAP UID) and
+ * walking the sorted lists side by side, so that a resolve is linear in the size of the mailbox
+ * and the policy is never left to look a message up in a database.
  * <p>
  * This class is in one of the following conceptual 'states':
  * <ul>
@@ -53,7 +59,7 @@ import com.orange.labs.uk.omtp.voicemail.Voicemail;
  * <li>Done.</li>
  * </ul>
  * <p>
- * The original callback passed in with this class is guaranteed to be invoked at most once. Success
+ * The original callback passed in with this class is guaranteed to be invoked exactly once. Success
  * will only be called after both fetches complete, the sync resolves, and the new actions are
  * successfully completed. In any other situation, onFailure will be called as soon as the failure
  * is detected.
@@ -62,12 +68,12 @@ import com.orange.labs.uk.omtp.voicemail.Voicemail;
 /* package */final class InnerVvmStoreResolver {
 	private static final Logger logger = Logger.getLogger(InnerVvmStoreResolver.class);
 
-	/** The callback to be invoked when the resolve is complete. */
-	private final Callback<Void> mCallback;
+	/** Completes the callback to be invoked when the resolve is complete. */
+	private final ResolveCompletion mCompletion;
 	/** The local store holding voicemails, expected to be the content provider. */
 	private final VvmStore mLocalStore;
 	/** The remote store holding voicemails. */
-	private final VvmStore mRemoteStore;
+	private final RemoteVvmStore mRemoteStore;
 	/** The local mirror holding voicemails. */
 	private final VvmStore mMirrorStore;
 	/** Policy used to resolve conflicts and detect changes */
@@ -78,9 +84,11 @@ import com.orange.labs.uk.omtp.voicemail.Voicemail;
 	 */
 	private final AtomicBoolean mHasResolveBeenCalled;
 
-	public InnerVvmStoreResolver(VvmStore localStore, VvmStore remoteStore, VvmStore mirrorStore,
-			ResolvePolicy resolvePolicy, Callback<Void> callback) {
-		mCallback = callback;
+	public InnerVvmStoreResolver(VvmStore localStore, RemoteVvmStore remoteStore,
+			VvmStore mirrorStore,
+			ResolvePolicy resolvePolicy, ScheduledExecutorService scheduler,
+			Callback<Void> callback) {
+		mCompletion = new ResolveCompletion(callback, scheduler);
 		mLocalStore = localStore;
 		mRemoteStore = remoteStore;
 		mMirrorStore = mirrorStore;
@@ -91,9 +99,8 @@ import com.orange.labs.uk.omtp.voicemail.Voicemail;
 
 	/**
 	 * Performs the resolve between the remote and local repositories provided through the
-	 * constructor. using synchronous callbacks. To resolve the differences between the two
-	 * repositories, the {@link ResolvePolicy} that has been provided to the constructor will be
-	 * used.
+	 * constructor. To resolve the differences between the two repositories, the
+	 * {@link ResolvePolicy} that has been provided to the constructor will be used.
 	 * 
 	 * <p>
 	 * See the class documentation for a fuller description of how this method will behave.
@@ -106,24 +113,46 @@ import com.orange.labs.uk.omtp.voicemail.Voicemail;
 			throw new IllegalStateException("You cannot use this class more than once.");
 		}
 
-		FetchMessagesCallback localCallback = new FetchMessagesCallback();
-		FetchMessagesCallback remoteCallback = new FetchMessagesCallback();
-
-		mRemoteStore.getAllMessages(remoteCallback);
-		mLocalStore.getAllMessages(localCallback);
-
-		List<Voicemail> localVoicemails = localCallback.waitForResult();
-		List<Voicemail> remoteVoicemails = remoteCallback.waitForResult();
+		Join fetched = mCompletion.new Join(3);
+		final Result<List<Voicemail>> localCallback = fetched.newResult();
+		final Result<VoicemailListing> remoteCallback = fetched.newResult();
+		final Result<List<Voicemail>> mirrorCallback = fetched.newResult();
+		fetched.setNext(new Runnable() {
+			@Override
+			public void run() {
+				List<Voicemail> localVoicemails = localCallback.get();
+				VoicemailListing remoteListing = remoteCallback.get();
+				List<Voicemail> mirrorVoicemails = mirrorCallback.get();
+
+				if (localVoicemails != null && remoteListing != null
+						&& mirrorVoicemails != null) {
+					logger.d(String.format("[Local voicemails] %s", localVoicemails));
+					logger.d(String.format("[Remote Voicemails] %s",
+							remoteListing.getVoicemails()));
+					performResolve(localVoicemails, remoteListing, mirrorVoicemails);
+				} else {
+					logger.w("It has not been possible to fetch local and remote Voicemails");
+					mCompletion.fail(new VvmFetchingException(
+							"Local/remote Voicemail fetch failure"));
+				}
+			}
+		});
+
+		mCompletion.startStep("listing voicemails", StackStaticConfiguration.SYNC_LISTING_TIMEOUT);
+		mLocalStore.getAllMessages(mCompletion.track(localCallback));
+		// The mirror is loaded once: the remote listing only fetches the changes since it.
+		mMirrorStore.getAllMessages(mCompletion.track(new Callback<List<Voicemail>>() {
+			@Override
+			public void onSuccess(List<Voicemail> mirrorVoicemails) {
+				mRemoteStore.getMessageListing(mirrorVoicemails, mCompletion.track(remoteCallback));
+				mirrorCallback.onSuccess(mirrorVoicemails);
+			}
 
-		// In case of error, the list is null
-		if (localVoicemails != null && remoteVoicemails != null) {
-			logger.d(String.format("[Local voicemails] %s", localVoicemails));
-			logger.d(String.format("[Remote Voicemails] %s", remoteVoicemails));
-			performResolve(localVoicemails, remoteVoicemails);
-		} else {
-			mCallback.onFailure(new VvmFetchingException("Local/remote Voicemail fetch failure"));
-			logger.w("It has not been possible to fetch local and remote Voicemails");
-		}
+			@Override
+			public void onFailure(Exception error) {
+				mirrorCallback.onFailure(error);
+			}
+		}));
 	}
 
 	/**
@@ -141,23 +170,30 @@ import com.orange.labs.uk.omtp.voicemail.Voicemail;
 			throw new IllegalStateException("You cannot use this class more than once.");
 		}
 
-		FetchMessagesCallback localCallback = new FetchMessagesCallback();
-		FetchMessagesCallback mirrorCallback = new FetchMessagesCallback();
-
-		mLocalStore.getAllMessages(localCallback);
-		mMirrorStore.getAllMessages(mirrorCallback);
-
-		List<Voicemail> localVoicemails = localCallback.waitForResult();
-		List<Voicemail> mirrorVoicemails = mirrorCallback.waitForResult();
-
-		logger.d(String.format("[Local Voicemails] %s", localVoicemails.toString()));
-		logger.d(String.format("[Mirror Voicemails] %s", mirrorVoicemails.toString()));
+		Join fetched = mCompletion.new Join(2);
+		final Result<List<Voicemail>> localCallback = fetched.newResult();
+		final Result<List<Voicemail>> mirrorCallback = fetched.newResult();
+		fetched.setNext(new Runnable() {
+			@Override
+			public void run() {
+				List<Voicemail> localVoicemails = localCallback.get();
+				List<Voicemail> mirrorVoicemails = mirrorCallback.get();
+
+				if (localVoicemails != null && mirrorVoicemails != null) {
+					logger.d(String.format("[Local Voicemails] %s", localVoicemails));
+					logger.d(String.format("[Mirror Voicemails] %s", mirrorVoicemails));
+					performLocalResolve(localVoicemails, mirrorVoicemails);
+				} else {
+					logger.w("It has not been possible to fetch local and mirror Voicemails");
+					mCompletion.fail(new VvmFetchingException(
+							"Local/mirror Voicemail fetch failure"));
+				}
+			}
+		});
 
-		if (localVoicemails != null && mirrorVoicemails != null) {
-			performLocalResolve(localVoicemails, mirrorVoicemails);
-		} else {
-			logger.w("It has not been possible to fetch local and remote Voicemails");
-		}
+		mCompletion.startStep("fetching voicemails", StackStaticConfiguration.SYNC_FETCH_TIMEOUT);
+		mLocalStore.getAllMessages(mCompletion.track(localCallback));
+		mMirrorStore.getAllMessages(mCompletion.track(mirrorCallback));
 	}
 
 	/**
@@ -181,24 +217,32 @@ import com.orange.labs.uk.omtp.voicemail.Voicemail;
 	private void performLocalResolve(List<Voicemail> localResults, List<Voicemail> mirrorResults) {
 		List<VvmStore.Action> remoteActions = new ArrayList<VvmStore.Action>();
 
-		Map<String, Voicemail> mirrorMap = buildMap(mirrorResults);
-		for (Voicemail localMessage : localResults) {
-			if (mirrorMap.containsKey(localMessage.getSourceData())) {
-				Voicemail mirrorMessage = mirrorMap.remove(localMessage.getSourceData());
-				mResolvePolicy.resolveBothLocalAndMirrorMessage(localMessage, mirrorMessage,
+		List<Voicemail> local = sortBySourceData(localResults, false);
+		List<Voicemail> mirror = sortBySourceData(mirrorResults, true);
+		int l = 0;
+		int m = 0;
+		while (m < mirror.size()) {
+			Voicemail mirrorMessage = mirror.get(m);
+			int order = l < local.size() ? compareSourceData(local.get(l), mirrorMessage) : 1;
+			if (order < 0) {
+				// Received since the last resolve, nothing to report to the server.
+				l++;
+			} else if (order == 0) {
+				mResolvePolicy.resolveBothLocalAndMirrorMessage(local.get(l), mirrorMessage,
 						remoteActions);
+				l++;
+				m++;
+			} else {
+				// Still in the mirror, means it has been deleted, apply on server.
+				mResolvePolicy.resolveMirrorOnlyMessage(mirrorMessage, remoteActions);
+				m++;
 			}
 		}
 
-		// If still messages in mirror, means they have been deleted, apply
-		// on server.
-		for (Voicemail mirrorMessage : mirrorMap.values()) {
-			mResolvePolicy.resolveMirrorOnlyMessage(mirrorMessage, remoteActions);
-		}
-
 		logger.d(String.format("[Remote Actions] %s", remoteActions));
-		StoreCallback callback = new StoreCallback(new AtomicInteger(1), new AtomicBoolean(false));
-		mRemoteStore.performActions(remoteActions, callback);
+		mCompletion.startStep("performing actions", StackStaticConfiguration.SYNC_APPLY_TIMEOUT);
+		mRemoteStore.performActions(remoteActions,
+				mCompletion.track(mCompletion.newActionsCallback(1)));
 	}
 
 	/**
@@ -208,7 +252,8 @@ import com.orange.labs.uk.omtp.voicemail.Voicemail;
 	 * <p>
 	 * A message exists only locally.
 	 * <p>
-	 * A message exists only remotely.
+	 * A message exists only remotely. The state of the message in the mirror store (mirrorResults)
+	 * is joined to it, so that the policy can tell a new message from a locally deleted one.
 	 * <p>
 	 * A message exists locally and remotely.
 	 * 
@@ -217,117 +262,117 @@ import com.orange.labs.uk.omtp.voicemail.Voicemail;
 	 * 
 	 * @param localResults
 	 *            {@link List} of {@link Voicemail} present in the {@link LocalVvmStore}.
-	 * @param remoteResults
-	 *            {@link List} of {@link Voicemail} present in the {@link OmtpVvmStore}.
+	 * @param remoteListing
+	 *            Listing of the {@link Voicemail} present in the {@link OmtpVvmStore}, committed
+	 *            once the actions have been performed on both stores.
+	 * @param mirrorResults
+	 *            {@link List} of {@link Voicemail} present in the {@link MirrorVvmStore}.
 	 */
-	private void performResolve(List<Voicemail> localResults, List<Voicemail> remoteResults) {
+	private void performResolve(List<Voicemail> localResults,
+			final VoicemailListing remoteListing, List<Voicemail> mirrorResults) {
 		List<VvmStore.Action> localActions = new ArrayList<VvmStore.Action>();
 		List<VvmStore.Action> remoteActions = new ArrayList<VvmStore.Action>();
-		Map<String, Voicemail> remoteMap = buildMap(remoteResults);
-		for (Voicemail localMessage : localResults) {
-			if (remoteMap.containsKey(localMessage.getSourceData())) {
-				Voicemail remoteMessage = remoteMap.remove(localMessage.getSourceData());
-				mResolvePolicy.resolveBothLocalAndRemoteMessage(localMessage, remoteMessage,
+
+		List<Voicemail> local = sortBySourceData(localResults, false);
+		List<Voicemail> remote = sortBySourceData(remoteListing.getVoicemails(), true);
+		List<Voicemail> mirror = sortBySourceData(mirrorResults, true);
+		int l = 0;
+		int r = 0;
+		int m = 0;
+		while (l < local.size() || r < remote.size()) {
+			int order;
+			if (l == local.size()) {
+				order = 1;
+			} else if (r == remote.size()) {
+				order = -1;
+			} else {
+				order = compareSourceData(local.get(l), remote.get(r));
+			}
+
+			if (order < 0) {
+				mResolvePolicy.resolveLocalOnlyMessage(local.get(l), localActions, remoteActions);
+				l++;
+			} else if (order == 0) {
+				mResolvePolicy.resolveBothLocalAndRemoteMessage(local.get(l), remote.get(r),
 						localActions, remoteActions);
+				l++;
+				r++;
 			} else {
-				mResolvePolicy.resolveLocalOnlyMessage(localMessage, localActions, remoteActions);
+				Voicemail remoteMessage = remote.get(r);
+				// The remote messages are visited in order, so the mirror never has to be rewound.
+				while (m < mirror.size() && compareSourceData(mirror.get(m), remoteMessage) < 0) {
+					m++;
+				}
+				Voicemail mirrorMessage = null;
+				if (m < mirror.size() && compareSourceData(mirror.get(m), remoteMessage) == 0) {
+					mirrorMessage = mirror.get(m);
+				}
+				mResolvePolicy.resolveRemoteOnlyMessage(remoteMessage, mirrorMessage,
+						localActions, remoteActions);
+				r++;
 			}
 		}
-		// Because we did a remove() from remoteMap during the loop through the list of local
-		// results, we know that remoteMap's values() contains only messages that are missing
-		// locally.
-		for (Voicemail remoteMessage : remoteMap.values()) {
-			mResolvePolicy.resolveRemoteOnlyMessage(remoteMessage, localActions, remoteActions);
-		}
 
 		logger.d("localActions: " + localActions);
 		logger.d("remoteActions: " + remoteActions);
 
-		AtomicInteger storesRemaining = new AtomicInteger(2);
-		AtomicBoolean failureReported = new AtomicBoolean(false);
-
-		mRemoteStore.performActions(remoteActions, new StoreCallback(storesRemaining,
-				failureReported));
-		mLocalStore.performActions(localActions,
-				new StoreCallback(storesRemaining, failureReported));
-	}
-
-	/**
-	 * Callback provided to {@link VvmStore} when executing actions.
-	 */
-	private class StoreCallback implements Callback<Void> {
-
-		private final AtomicInteger mStoresRemaining;
-		private final AtomicBoolean mFailureReported;
-
-		public StoreCallback(AtomicInteger storesRemaining, AtomicBoolean failureReported) {
-			mStoresRemaining = storesRemaining;
-			mFailureReported = failureReported;
-		}
-
-		@Override
-		public void onSuccess(Void result) {
-			// A list of actions succeeded.
-			// If this is the last list of actions to complete, call the
-			// original callback.
-			logger.d("[Store Callback] Store succesfully executed actions.");
-			if (mStoresRemaining.decrementAndGet() == 0) {
-				logger.d("[Store Callback] Done with actions, invoking callback");
-				mCallback.onSuccess(null);
-			}
-		}
-
-		@Override
-		public void onFailure(Exception error) {
-			// A list of actions has failed.
-			// Fail the original callback, unless we've already failed once.
-			if (!mFailureReported.getAndSet(true)) {
-				logger.w("[Store Callback] Store failed to execute actions, invoking callback");
-				mCallback.onFailure(error);
+		Join applied = mCompletion.new Join(2);
+		Callback<Void> callback = applied.newResult();
+		applied.setNext(new Runnable() {
+			@Override
+			public void run() {
+				// Only now can the next incremental listing start from this one.
+				remoteListing.commit();
+				mCompletion.succeed();
 			}
-		}
+		});
+		mCompletion.startStep("performing actions", StackStaticConfiguration.SYNC_APPLY_TIMEOUT);
+		mRemoteStore.performActions(remoteActions, mCompletion.track(callback));
+		mLocalStore.performActions(localActions, mCompletion.track(callback));
 	}
 
 	/**
-	 * Synchronous callbacks used to fetch {@link Voicemail} from {@link VvmStore} before resolving.
+	 * Orders voicemails on their source data, messages without source data first. Shorter source
+	 * data come first, so that numeric UIDs are sorted by value without being parsed.
 	 */
-	private class FetchMessagesCallback implements Callback<List<Voicemail>> {
-		private final CountDownLatch mIsComplete = new CountDownLatch(1);
-		private volatile List<Voicemail> mResult;
-
+	private static final Comparator<Voicemail> SOURCE_DATA_ORDER = new Comparator<Voicemail>() {
 		@Override
-		public void onFailure(Exception error) {
-			mCallback.onFailure(error);
-			mIsComplete.countDown();
+		public int compare(Voicemail lhs, Voicemail rhs) {
+			return compareSourceData(lhs, rhs);
 		}
+	};
 
-		@Override
-		public void onSuccess(List<Voicemail> result) {
-			mResult = result;
-			mIsComplete.countDown();
+	private static int compareSourceData(Voicemail lhs, Voicemail rhs) {
+		String left = lhs.getSourceData();
+		String right = rhs.getSourceData();
+		if (left == null || right == null) {
+			return (left == null ? 0 : 1) - (right == null ? 0 : 1);
 		}
-
-		@Nullable
-		private List<Voicemail> waitForResult() {
-			try {
-				mIsComplete.await();
-			} catch (InterruptedException e) {
-				// Restore interrupt status and fall through.
-				Thread.currentThread().interrupt();
-			}
-			return mResult;
+		if (left.length() != right.length()) {
+			return left.length() - right.length();
 		}
+		return left.compareTo(right);
 	}
 
 	/**
-	 * Builds a map from provider data to message for the given collection of voicemails.
+	 * Returns a copy of the given voicemails sorted on their source data. If unique is set and
+	 * several voicemails share the same source data, only the last one of them is kept.
 	 */
-	private static Map<String, Voicemail> buildMap(Collection<Voicemail> messages) {
-		Map<String, Voicemail> map = new HashMap<String, Voicemail>();
-		for (Voicemail message : messages) {
-			map.put(message.getSourceData(), message);
+	private static List<Voicemail> sortBySourceData(List<Voicemail> messages, boolean unique) {
+		List<Voicemail> sorted = new ArrayList<Voicemail>(messages);
+		// The sort is stable, the last duplicate in the list remains the last one once sorted.
+		Collections.sort(sorted, SOURCE_DATA_ORDER);
+		if (!unique) {
+			return sorted;
+		}
+		List<Voicemail> result = new ArrayList<Voicemail>(sorted.size());
+		for (int i = 0; i < sorted.size(); i++) {
+			if (i + 1 == sorted.size()
+					|| compareSourceData(sorted.get(i), sorted.get(i + 1)) != 0) {
+				result.add(sorted.get(i));
+			}
 		}
-		return map;
+		return result;
 	}
 
 }
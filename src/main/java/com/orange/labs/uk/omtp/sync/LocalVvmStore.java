@@ -34,6 +34,7 @@ import android.net.Uri;
 import com.orange.labs.uk.omtp.callbacks.Callback;
 import com.orange.labs.uk.omtp.callbacks.Callbacks;
 import com.orange.labs.uk.omtp.logging.Logger;
+import com.orange.labs.uk.omtp.service.fetch.PayloadPrefetcher;
 import com.orange.labs.uk.omtp.voicemail.LocalVoicemailProvider;
 import com.orange.labs.uk.omtp.voicemail.Voicemail;
 import com.orange.labs.uk.omtp.voicemail.VoicemailImpl;
@@ -55,13 +56,16 @@ public class LocalVvmStore implements VvmStore {
 	private final Context mContext;
 	/** Used to mirror changes, such as insertions */
 	private final MirrorVvmStore mMirrorStore;
+	/** Used to download the content of the voicemails inserted in batch */
+	private final PayloadPrefetcher mPrefetcher;
 
 	public LocalVvmStore(Executor executor, LocalVoicemailProvider voicemailProviderHelper,
-			Context context, MirrorVvmStore store) {
+			Context context, MirrorVvmStore store, PayloadPrefetcher prefetcher) {
 		mVoicemailProviderHelper = voicemailProviderHelper;
 		mExecutor = executor;
 		mContext = context;
 		mMirrorStore = store;
+		mPrefetcher = prefetcher;
 	}
 
 	@Override
@@ -148,13 +152,11 @@ public class LocalVvmStore implements VvmStore {
 			List<Uri> uris = mVoicemailProviderHelper.insert(messages);
 			if (uris.size() > 0 && uris.size() == messages.size()) {
 
-				// Fetching content for all messages
-				for (int i = 0; i < messages.size(); i++) {
-					broadcastFetchIntent(messages.get(i), uris.get(i));
-				}
+				// Fetching content for all messages, newest first and a few at a time.
+				List<Voicemail> insertedMessages = insertedList(uris, messages);
+				mPrefetcher.prefetch(insertedMessages);
 
-				callback.onSuccess(VvmStoreActions.createActions(insertedList(uris, messages),
-						operation));
+				callback.onSuccess(VvmStoreActions.createActions(insertedMessages, operation));
 				return;
 			}
 			break;
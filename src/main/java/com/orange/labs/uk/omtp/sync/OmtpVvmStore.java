@@ -17,6 +17,7 @@
 package com.orange.labs.uk.omtp.sync;
 
 import java.util.List;
+import java.util.Map;
 import java.util.concurrent.Executor;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicInteger;
@@ -29,6 +30,7 @@ import android.content.Intent;
 import com.orange.labs.uk.omtp.callbacks.Callback;
 import com.orange.labs.uk.omtp.callbacks.Callbacks;
 import com.orange.labs.uk.omtp.fetch.VoicemailFetcherFactory;
+import com.orange.labs.uk.omtp.fetch.VoicemailListing;
 import com.orange.labs.uk.omtp.greetings.Greeting;
 import com.orange.labs.uk.omtp.logging.Logger;
 import com.orange.labs.uk.omtp.voicemail.Voicemail;
@@ -38,7 +40,7 @@ import com.orange.labs.uk.omtp.voicemail.VoicemailIntentUtils;
  * VvmStore implementation backed by an OMTP voicemail service.
  */
 @ThreadSafe
-public class OmtpVvmStore implements VvmStore {
+public class OmtpVvmStore implements RemoteVvmStore {
 
 	private static Logger logger = Logger.getLogger(OmtpVvmStore.class);
 
@@ -71,8 +73,10 @@ public class OmtpVvmStore implements VvmStore {
 	}
 
 	/**
-	 * Perform the provided {@link Action} on the store. The provided callback is invoked when an
-	 * operation fails or when the whole set of operation has succeeded.
+	 * Perform the provided {@link Action} on the store. The actions are grouped by
+	 * {@link Operation}, and the voicemails of each group are updated together, using a single
+	 * IMAP session and command. The provided callback is invoked when an operation fails or when
+	 * the whole set of operation has succeeded.
 	 */
 	@Override
 	public void performActions(final List<VvmStore.Action> actions, final Callback<Void> callback) {
@@ -86,13 +90,14 @@ public class OmtpVvmStore implements VvmStore {
 		mExecutor.execute(new Runnable() {
 			@Override
 			public void run() {
-				AtomicInteger actionsSize = new AtomicInteger(actions.size());
+				Map<Operation, List<Action>> batches = VvmStoreActions.groupByOperation(actions);
+				AtomicInteger batchesSize = new AtomicInteger(batches.size());
 				AtomicBoolean failureReported = new AtomicBoolean(false);
 
-				for (VvmStore.Action action : actions) {
-					ResultCallback resultCallback = new ResultCallback(action, actionsSize,
-							callback, failureReported);
-					performSingleAction(action, resultCallback);
+				for (Map.Entry<Operation, List<Action>> batch : batches.entrySet()) {
+					ResultCallback resultCallback = new ResultCallback(batch.getKey(),
+							batch.getValue(), batchesSize, callback, failureReported);
+					performBatch(batch.getKey(), batch.getValue(), resultCallback);
 				}
 			}
 		});
@@ -103,7 +108,38 @@ public class OmtpVvmStore implements VvmStore {
 	 */
 	@Override
 	public void getAllMessages(final Callback<List<Voicemail>> callback) {
-		mVoicemailFetcherFactory.createVoicemailFetcher().fetchAllVoicemails(callback);
+		final Callback<VoicemailListing> listingCallback = new Callback<VoicemailListing>() {
+			@Override
+			public void onSuccess(VoicemailListing listing) {
+				callback.onSuccess(listing.getVoicemails());
+			}
+
+			@Override
+			public void onFailure(Exception error) {
+				callback.onFailure(error);
+			}
+		};
+		// The mirror holds the remote messages known since the last synchronization, only the
+		// changes since then have to be fetched.
+		mMirrorStore.getAllMessages(new Callback<List<Voicemail>>() {
+			@Override
+			public void onSuccess(List<Voicemail> knownVoicemails) {
+				getMessageListing(knownVoicemails, listingCallback);
+			}
+
+			@Override
+			public void onFailure(Exception error) {
+				mVoicemailFetcherFactory.createVoicemailFetcher().fetchAllVoicemails(
+						listingCallback);
+			}
+		});
+	}
+
+	@Override
+	public void getMessageListing(List<Voicemail> knownVoicemails,
+			Callback<VoicemailListing> callback) {
+		mVoicemailFetcherFactory.createVoicemailFetcher().fetchAllVoicemails(knownVoicemails,
+				callback);
 	}
 
 	/**
@@ -115,45 +151,51 @@ public class OmtpVvmStore implements VvmStore {
 	}
 
 	/**
-	 * Execute a single action on the store. Once the action has been performed, the provided
-	 * callback's method is invoked.
+	 * Execute the actions of a single operation on the store. Once they have been performed, the
+	 * provided callback's method is invoked.
 	 * 
-	 * @param action
-	 *            Action to apply on the store.
+	 * @param operation
+	 *            Operation performed by all the actions.
+	 * @param actions
+	 *            Actions to apply on the store.
 	 * @param callback
 	 *            Callback to be invoked while it's done (successfuly or not).
 	 */
-	private void performSingleAction(Action action, Callback<Void> callback) {
-		Voicemail message = action.getVoicemail();
-		Operation operation = action.getOperation();
+	private void performBatch(Operation operation, List<Action> actions, Callback<Void> callback) {
+		Voicemail[] messages = new Voicemail[actions.size()];
+		for (int i = 0; i < messages.length; i++) {
+			messages[i] = actions.get(i).getVoicemail();
+		}
 
 		switch (operation) {
 		case DELETE:
 			mVoicemailFetcherFactory.createVoicemailFetcher().markVoicemailsAsDeleted(callback,
-					message);
+					messages);
 			break;
 		case MARK_AS_READ:
 			mVoicemailFetcherFactory.createVoicemailFetcher().markVoicemailsAsRead(callback,
-					message);
+					messages);
 			break;
 		case INSERT:
 			// Inserting into a remote OMTP store isn't supported.
 			throw new UnsupportedOperationException("Cannot insert new message into remote store");
 		case FETCH_VOICEMAIL_CONTENT:
-			logger.d(String
-					.format("Broadcasting a fetch Intent for voicemail message: %s", message));
-			mContext.sendBroadcast(VoicemailIntentUtils.createFetchIntent(message));
+			for (Voicemail message : messages) {
+				logger.d(String.format("Broadcasting a fetch Intent for voicemail message: %s",
+						message));
+				mContext.sendBroadcast(VoicemailIntentUtils.createFetchIntent(message));
+			}
 			callback.onSuccess(null);
 			break;
-		case FETCH_GREETING_CONTENT: {
-			Greeting greeting = action.getGreeting();
-			Intent fetchIntent = VoicemailIntentUtils.createFetchIntent(greeting);
-			logger.d(String
-					.format("Broadcasting a fetch Intent %s, for Greeting message: %s", fetchIntent, 
-							greeting));
-			mContext.sendBroadcast(fetchIntent);
+		case FETCH_GREETING_CONTENT:
+			for (Action action : actions) {
+				Greeting greeting = action.getGreeting();
+				Intent fetchIntent = VoicemailIntentUtils.createFetchIntent(greeting);
+				logger.d(String.format("Broadcasting a fetch Intent %s, for Greeting message: %s",
+						fetchIntent, greeting));
+				mContext.sendBroadcast(fetchIntent);
+			}
 			callback.onSuccess(null);
-		}
 			break;
 		default:
 			break;
@@ -162,35 +204,39 @@ public class OmtpVvmStore implements VvmStore {
 
 	private class ResultCallback implements Callback<Void> {
 
-		/** Action being executed */
-		private final Action mAction;
+		/** Operation being executed */
+		private final Operation mOperation;
+		/** Actions being executed */
+		private final List<Action> mActions;
 		/** Callback to invoke when all actions have been performed */
 		private final Callback<Void> mCallback;
-		/** Number of actions that remain */
-		private final AtomicInteger mActionsRemaining;
+		/** Number of batches of actions that remain */
+		private final AtomicInteger mBatchesRemaining;
 		/** Indicate if a failure has been reported, we don't report twice */
 		private final AtomicBoolean mFailureReported;
 
-		public ResultCallback(Action action, AtomicInteger actionsRemaining,
-				Callback<Void> callback, AtomicBoolean failureReported) {
-			mAction = action;
+		public ResultCallback(Operation operation, List<Action> actions,
+				AtomicInteger batchesRemaining, Callback<Void> callback,
+				AtomicBoolean failureReported) {
+			mOperation = operation;
+			mActions = actions;
 			mCallback = callback;
-			mActionsRemaining = actionsRemaining;
+			mBatchesRemaining = batchesRemaining;
 			mFailureReported = failureReported;
 		}
 
 		@Override
 		public void onSuccess(Void result) {
-			logger.i(String.format("Action successful: %s", mAction.toString()));
-			if (!mAction.getOperation().equals(VvmStore.Operation.FETCH_VOICEMAIL_CONTENT)) {
-				mMirrorStore.performActions(mAction, Callbacks.<Void> emptyCallback());
+			logger.i(String.format("%d %s action(s) successful", mActions.size(), mOperation));
+			if (!mOperation.equals(VvmStore.Operation.FETCH_VOICEMAIL_CONTENT)) {
+				mMirrorStore.performActions(mActions, Callbacks.<Void> emptyCallback());
 			}
 			operationCompleted();
 		}
 
 		@Override
 		public void onFailure(Exception error) {
-			logger.w(String.format("Action failed: %s", mAction.toString()));
+			logger.w(String.format("%d %s action(s) failed", mActions.size(), mOperation));
 			if (!mFailureReported.getAndSet(true)) {
 				mCallback.onFailure(error);
 			}
@@ -198,7 +244,7 @@ public class OmtpVvmStore implements VvmStore {
 		}
 
 		private void operationCompleted() {
-			if (mActionsRemaining.decrementAndGet() == 0)
+			if (mBatchesRemaining.decrementAndGet() == 0)
 				if (!mFailureReported.get()) {
 					mCallback.onSuccess(null);
 				}
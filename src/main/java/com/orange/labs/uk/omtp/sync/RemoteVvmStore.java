@@ -0,0 +1,42 @@
+/*
+ * Copyright (C) 2012 Orange Labs UK. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+package com.orange.labs.uk.omtp.sync;
+
+import java.util.List;
+
+import com.orange.labs.uk.omtp.callbacks.Callback;
+import com.orange.labs.uk.omtp.fetch.VoicemailListing;
+import com.orange.labs.uk.omtp.voicemail.Voicemail;
+
+/**
+ * A {@link VvmStore} backed by a remote platform, which keeps track of the state of its mailbox to
+ * list it incrementally.
+ */
+public interface RemoteVvmStore extends VvmStore {
+
+	/**
+	 * Fetches the listing of the voicemails contained by this store. The state of the mailbox is
+	 * only saved once the listing is committed, which the caller does after having applied it.
+	 * <p>
+	 * {@link #getAllMessages(Callback)} returns the same voicemails, without ever saving the state.
+	 * 
+	 * @param knownVoicemails
+	 *            Voicemails of the mailbox known since the last synchronization, as kept by the
+	 *            mirror store, from which only the changes are listed.
+	 */
+	public void getMessageListing(List<Voicemail> knownVoicemails,
+			Callback<VoicemailListing> callback);
+}
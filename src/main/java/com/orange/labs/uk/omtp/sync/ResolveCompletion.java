@@ -0,0 +1,268 @@
+/*
+ * Copyright (C) 2012 Orange Labs UK. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+package com.orange.labs.uk.omtp.sync;
+
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import javax.annotation.concurrent.ThreadSafe;
+
+import com.orange.labs.uk.omtp.callbacks.Callback;
+import com.orange.labs.uk.omtp.config.StackStaticConfiguration;
+import com.orange.labs.uk.omtp.logging.Logger;
+
+/**
+ * Chains the asynchronous steps of a resolve without any thread waiting for them.
+ * <p>
+ * The results of operations run in parallel are gathered by a {@link Join}, which runs the next
+ * step on the thread delivering the last of them. Each step is given a timeout, after which the
+ * resolve fails. The callback of the resolve is invoked exactly once: results and failures
+ * delivered after the resolve has completed, because of a timeout or a previous failure, are
+ * dropped.
+ * <p>
+ * The callbacks handed to the stores are wrapped by {@link #track(Callback)}. A failure is only
+ * reported once all the tracked operations have returned, so that the next synchronization does
+ * not start while the stores are still working for this one. It is reported anyway after
+ * {@link StackStaticConfiguration#SYNC_APPLY_TIMEOUT}, should a store never return.
+ */
+@ThreadSafe
+/* package */final class ResolveCompletion {
+	private static final Logger logger = Logger.getLogger(ResolveCompletion.class);
+
+	private final Callback<Void> mCallback;
+	private final ScheduledExecutorService mScheduler;
+	private final AtomicBoolean mDone = new AtomicBoolean(false);
+	/** Number of tracked store operations which have not returned yet. */
+	private final AtomicInteger mOutstanding = new AtomicInteger(0);
+	/** Failure to report once the outstanding operations have returned, null if none. */
+	private final AtomicReference<Exception> mDeferredFailure = new AtomicReference<Exception>();
+
+	/** Timeout of the current step, null if none is armed. */
+	private ScheduledFuture<?> mTimeout;
+
+	public ResolveCompletion(Callback<Void> callback, ScheduledExecutorService scheduler) {
+		mCallback = callback;
+		mScheduler = scheduler;
+	}
+
+	/**
+	 * Starts a new step, which fails the resolve unless it is followed by another step or the
+	 * resolve completes within the provided delay.
+	 */
+	public synchronized void startStep(final String step, long timeoutMs) {
+		cancelTimeout();
+		if (mDone.get()) {
+			return;
+		}
+		mTimeout = mScheduler.schedule(new Runnable() {
+			@Override
+			public void run() {
+				fail(new VvmFetchingException(String.format("Resolve timed out: %s", step)));
+			}
+		}, timeoutMs, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * Returns true once the resolve has succeeded, failed or timed out.
+	 */
+	public boolean isDone() {
+		return mDone.get();
+	}
+
+	/**
+	 * Completes the resolve successfully, unless it has already completed.
+	 */
+	public void succeed() {
+		if (finish()) {
+			mCallback.onSuccess(null);
+		}
+	}
+
+	/**
+	 * Fails the resolve, unless it has already completed.
+	 */
+	public void fail(Exception error) {
+		if (finish()) {
+			logger.w(String.format("Resolve failed: %s", error.getMessage()));
+			mDeferredFailure.set(error);
+			if (mOutstanding.get() == 0) {
+				reportDeferredFailure();
+			} else {
+				logger.d(String.format("Waiting for %d store operation(s) before reporting it",
+						mOutstanding.get()));
+				mScheduler.schedule(new Runnable() {
+					@Override
+					public void run() {
+						if (mDeferredFailure.get() != null) {
+							logger.w("Store operations still running, reporting the failure");
+							reportDeferredFailure();
+						}
+					}
+				}, StackStaticConfiguration.SYNC_APPLY_TIMEOUT, TimeUnit.MILLISECONDS);
+			}
+		} else {
+			logger.d(String.format("Resolve already completed, dropping: %s", error.getMessage()));
+		}
+	}
+
+	/**
+	 * Returns a callback delegating to the provided one, to be handed to a store so that the
+	 * operation is waited for before a failure of the resolve is reported.
+	 */
+	public <T> Callback<T> track(final Callback<T> callback) {
+		mOutstanding.incrementAndGet();
+		return new Callback<T>() {
+			private final AtomicBoolean mReturned = new AtomicBoolean(false);
+
+			@Override
+			public void onSuccess(T result) {
+				try {
+					callback.onSuccess(result);
+				} finally {
+					returned();
+				}
+			}
+
+			@Override
+			public void onFailure(Exception error) {
+				try {
+					callback.onFailure(error);
+				} finally {
+					returned();
+				}
+			}
+
+			private void returned() {
+				// The next step has already tracked its own operations, if any.
+				if (!mReturned.getAndSet(true) && mOutstanding.decrementAndGet() == 0) {
+					reportDeferredFailure();
+				}
+			}
+		};
+	}
+
+	private void reportDeferredFailure() {
+		Exception error = mDeferredFailure.getAndSet(null);
+		if (error != null) {
+			mCallback.onFailure(error);
+		}
+	}
+
+	private boolean finish() {
+		if (mDone.getAndSet(true)) {
+			return false;
+		}
+		synchronized (this) {
+			cancelTimeout();
+		}
+		return true;
+	}
+
+	private void cancelTimeout() {
+		if (mTimeout != null) {
+			mTimeout.cancel(false);
+			mTimeout = null;
+		}
+	}
+
+	/**
+	 * Gathers the results of operations run in parallel, and runs the next step once all of them
+	 * have succeeded. The first failure fails the resolve. The next step has to be set before the
+	 * operations are started.
+	 */
+	public final class Join {
+		private final AtomicInteger mPending;
+		private volatile Runnable mNext;
+
+		public Join(int parties) {
+			mPending = new AtomicInteger(parties);
+		}
+
+		/**
+		 * Sets the step run once all the parties have succeeded.
+		 */
+		public void setNext(Runnable next) {
+			mNext = next;
+		}
+
+		/**
+		 * Returns a callback counting as one of the parties of this join.
+		 */
+		public <T> Result<T> newResult() {
+			return new Result<T>(this);
+		}
+
+		private void arrive() {
+			if (mPending.decrementAndGet() == 0 && !isDone()) {
+				try {
+					mNext.run();
+				} catch (RuntimeException e) {
+					fail(e);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Callback keeping the result of one of the parties of a {@link Join}.
+	 */
+	public final class Result<T> implements Callback<T> {
+		private final Join mJoin;
+		private volatile T mValue;
+
+		private Result(Join join) {
+			mJoin = join;
+		}
+
+		/**
+		 * Returns the result received, only meaningful once the join has run its step.
+		 */
+		public T get() {
+			return mValue;
+		}
+
+		@Override
+		public void onSuccess(T result) {
+			mValue = result;
+			mJoin.arrive();
+		}
+
+		@Override
+		public void onFailure(Exception error) {
+			fail(error);
+		}
+	}
+
+	/**
+	 * Returns a callback completing the resolve once the actions of the given number of stores have
+	 * all been performed.
+	 */
+	public Callback<Void> newActionsCallback(int stores) {
+		Join join = new Join(stores);
+		join.setNext(new Runnable() {
+			@Override
+			public void run() {
+				logger.d("[Store Callback] Done with actions, invoking callback");
+				succeed();
+			}
+		});
+		return join.newResult();
+	}
+}
@@ -16,13 +16,19 @@
  */
 package com.orange.labs.uk.omtp.sync;
 
+import java.util.EnumMap;
 import java.util.EnumSet;
-import java.util.Queue;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
 import java.util.Set;
-import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicInteger;
 
 import android.content.Context;
+import android.os.SystemClock;
 
 import com.android.email.mail.AuthenticationFailedException;
 import com.orange.labs.uk.omtp.account.OmtpAccountStoreWrapper;
@@ -38,6 +44,21 @@ import com.orange.labs.uk.omtp.notification.SourceNotifier;
  * This class behaves as a queue for synchronizations. This class exists because of Android often
  * sending two events when a change is made. Doing synchronizations avoid doing twice the same
  * operations.
+ * <p>
+ * The queue coalesces the requests: a synchronization already pending is not queued twice, a
+ * pending full synchronization covers a local one, and greetings updates are merged when a single
+ * synchronization can perform them. Local synchronizations are also delayed by
+ * {@link StackStaticConfiguration#SYNC_DEBOUNCE_WINDOW}, so that a burst of provider changes
+ * results in a single run.
+ * <p>
+ * Each request has a {@link SyncPriority}, and the most urgent synchronization is executed first.
+ * A synchronization waiting in the queue is promoted by one class every
+ * {@link StackStaticConfiguration#SYNC_PRIORITY_AGING_STEP}, so background work can't be starved.
+ * The synchronizations of the inbox are executed serially, and so are the greetings and TUI
+ * changes, but both run concurrently as they use different IMAP folders. A failed synchronization
+ * is queued again for its retry, so more urgent work isn't held back by its attempts, and is merged
+ * into the pending synchronization covering it if one has been requested in the meantime. Only the
+ * time spent in the queue counts for the aging, not the time spent running.
  */
 public class SerialSynchronizer {
 
@@ -47,142 +68,600 @@ public class SerialSynchronizer {
 	private final Context mContext;
 	/** Used to notify the sources */
 	private final SourceNotifier mNotifier;
-	/** Counter for attempts, retry while not 0 */
-	private final AtomicInteger mAttempts = new AtomicInteger();
-	/** Queue that contains synchronisation to execute serially */
-	private final Queue<SyncFlag> mSyncQueue = new LinkedBlockingQueue<SyncFlag>();
-
-	private volatile SyncFlag mActiveFlag;
-	private volatile Set<GreetingUpdateType> mGreetingUpdateSet;
 	/** Used in SynchronizationCallback to update the local account */
 	private final OmtpAccountStoreWrapper mAccountStore;
+	/** Delays the start of the debounced synchronisations. */
+	private final ScheduledExecutorService mScheduler;
+
+	/** Synchronisations waiting to be executed, in request order. */
+	private final List<PendingSync> mQueue = new LinkedList<PendingSync>();
+	/** Synchronisation running on each lane. */
+	private final Map<SyncLane, PendingSync> mActive = new EnumMap<SyncLane, PendingSync>(
+			SyncLane.class);
+	/** Queue wait and run times of each priority class. */
+	private final Map<SyncPriority, SyncTimings> mTimings = new EnumMap<SyncPriority, SyncTimings>(
+			SyncPriority.class);
 
-	private volatile int mNewLanguage;
+	/** Set after an authentication failure: the queue is kept, but not executed. */
+	private boolean mHeld;
+	/** Order of the requests, breaks the ties between synchronisations of the same priority. */
+	private long mSequence;
+	/** Pending dispatch of the debounced synchronisations, null if none is scheduled. */
+	private ScheduledFuture<?> mDispatchTask;
+	private long mDispatchTime;
 
 	public SerialSynchronizer(Context context, SourceNotifier notifier,
-			OmtpAccountStoreWrapper accountStore) {
+			OmtpAccountStoreWrapper accountStore, ScheduledExecutorService scheduler) {
 		mContext = context;
 		mNotifier = notifier;
 		mAccountStore = accountStore;
+		mScheduler = scheduler;
+		for (SyncPriority priority : SyncPriority.values()) {
+			mTimings.put(priority, new SyncTimings());
+		}
+	}
+
+	/**
+	 * Queues a synchronization with the default priority of its flag.
+	 */
+	public void execute(SyncFlag flag) {
+		execute(flag, flag.getDefaultPriority());
 	}
 
-	public synchronized void execute(SyncFlag flag) {
+	/**
+	 * Queues a synchronization with the provided priority. If it is coalesced with a pending one,
+	 * the pending synchronization gets the most urgent of both priorities.
+	 */
+	public synchronized void execute(SyncFlag flag, SyncPriority priority) {
 
-		mSyncQueue.offer(flag);
-		logger.d(String.format("New voicemail synchronisation in queue, total: %d", mSyncQueue.size()));
+		if (flag == SyncFlag.GREETINGS_SYNCHRONIZATION) {
+			// Greetings synchronisations are queued along with their update set.
+			executeGreeting(null);
+			return;
+		}
 
-		if (mActiveFlag == null) {
-			scheduleNextSynchronisation();
+		mHeld = false;
+		long now = now();
+		PendingSync sync = new PendingSync(flag, priority, mSequence++, now);
+		if (flag == SyncFlag.LOCAL_SYNCHRONIZATION && !isRunning(flag.mLane)) {
+			sync.mNotBefore = now + StackStaticConfiguration.SYNC_DEBOUNCE_WINDOW;
+		}
+		if (enqueue(sync, now) != sync) {
+			logger.d(String.format("%s already covered by the queue, total: %d", flag,
+					mQueue.size()));
+		} else {
+			logger.d(String.format("New voicemail synchronisation in queue, total: %d",
+					mQueue.size()));
 		}
+
+		dispatch();
 	}
 
 	public synchronized void executeGreeting(Set<GreetingUpdateType> greetingUpdateTypeSet) {
 		
-		if (greetingUpdateTypeSet == null) {
+		Set<GreetingUpdateType> requested;
+		if (greetingUpdateTypeSet == null || greetingUpdateTypeSet.isEmpty()) {
 			logger.d("Greetings synchronisation called with null type.");
-			mGreetingUpdateSet = EnumSet.of(GreetingUpdateType.UNKNOWN);
+			requested = EnumSet.of(GreetingUpdateType.UNKNOWN);
 		} else {
-			mGreetingUpdateSet = greetingUpdateTypeSet;
+			requested = EnumSet.copyOf(greetingUpdateTypeSet);
 		}
 
-		mSyncQueue.offer(SyncFlag.GREETINGS_SYNCHRONIZATION);
-		logger.d(String.format("New greeting synchronisation in queue, total: %d", mSyncQueue.size()));
-
-		if (mActiveFlag == null) {
-			scheduleNextSynchronisation();
+		mHeld = false;
+		long now = now();
+		SyncFlag flag = SyncFlag.GREETINGS_SYNCHRONIZATION;
+		PendingSync sync = new PendingSync(flag, flag.getDefaultPriority(), mSequence++, now);
+		sync.mGreetingUpdateSet = requested;
+		PendingSync queued = enqueue(sync, now);
+		if (queued != sync) {
+			logger.d(String.format("Greeting synchronisation merged into the queue: %s",
+					queued.mGreetingUpdateSet));
+		} else {
+			logger.d(String.format("New greeting synchronisation in queue, total: %d",
+					mQueue.size()));
 		}
+
+		dispatch();
 	}
 	
 	public synchronized void executeTuiChange(SyncFlag flag, int languageId) {
 		
-		mNewLanguage = languageId;
-		
-		mSyncQueue.offer(flag);
-		logger.d(String.format("New TUI language change in queue, total: %d", mSyncQueue.size()));
+		mHeld = false;
+		long now = now();
+		PendingSync sync = enqueue(new PendingSync(flag, flag.getDefaultPriority(), mSequence++,
+				now), now);
+		// A pending change is performed with the latest language.
+		sync.mLanguage = languageId;
+		logger.d(String.format("New TUI language change in queue, total: %d", mQueue.size()));
+
+		dispatch();
+	}
+
+	/**
+	 * Returns the queue wait and run times of the synchronizations executed so far with the
+	 * provided priority.
+	 */
+	public synchronized SyncTimings getTimings(SyncPriority priority) {
+		return mTimings.get(priority).copy();
+	}
 
-		if (mActiveFlag == null) {
-			scheduleNextSynchronisation();
+	private PendingSync findPending(SyncFlag flag) {
+		for (PendingSync sync : mQueue) {
+			if (sync.mFlag == flag) {
+				return sync;
+			}
 		}
+		return null;
 	}
-	
-	private synchronized void scheduleNextSynchronisation() {
-		if ((mActiveFlag = mSyncQueue.poll()) != null) {
-			logger.d(String.format("About to schedule synchronisation, remaining: %d",
-					mSyncQueue.size()));
 
-			// Reset attempt number and execute the synchronisation.
-			mAttempts.set(StackStaticConfiguration.MAX_IMAP_ATTEMPTS);
-			executeSynchronization();
+	/**
+	 * Adds a synchronization to the queue, unless a pending one covers it. The covering
+	 * synchronization then gets the most urgent of both priorities and the longest wait. Returns
+	 * the synchronization left in the queue.
+	 */
+	private PendingSync enqueue(PendingSync sync, long now) {
+		PendingSync covering = null;
+		switch (sync.mFlag) {
+		case LOCAL_SYNCHRONIZATION:
+			covering = findPending(SyncFlag.LOCAL_SYNCHRONIZATION);
+			if (covering == null) {
+				covering = findPending(SyncFlag.FULL_SYNCHRONIZATION);
+			}
+			break;
+		case GREETINGS_SYNCHRONIZATION:
+			PendingSync last = null;
+			for (PendingSync pending : mQueue) {
+				if (pending.mFlag == SyncFlag.GREETINGS_SYNCHRONIZATION) {
+					last = pending;
+				}
+			}
+			if (last != null) {
+				Set<GreetingUpdateType> merged = mergeGreetingUpdates(last.mGreetingUpdateSet,
+						sync.mGreetingUpdateSet);
+				if (merged != null) {
+					last.mGreetingUpdateSet = merged;
+					covering = last;
+				}
+			}
+			break;
+		default:
+			covering = findPending(sync.mFlag);
+			break;
 		}
+
+		if (covering != null) {
+			covering.raisePriority(sync.mPriority);
+			covering.inheritWait(sync, now);
+			return covering;
+		}
+		if (sync.mFlag == SyncFlag.FULL_SYNCHRONIZATION) {
+			PendingSync local = findPending(SyncFlag.LOCAL_SYNCHRONIZATION);
+			if (local != null) {
+				logger.d("Pending local synchronisation replaced by a full one");
+				mQueue.remove(local);
+				sync.raisePriority(local.mPriority);
+				sync.inheritWait(local, now);
+			}
+		}
+		mQueue.add(sync);
+		return sync;
+	}
+
+	private boolean isRunning(SyncLane lane) {
+		return mActive.containsKey(lane);
 	}
 
 	/**
-	 * Execute a synchronization using both the active {@link SyncFlag} and number of left attempts
-	 * by creating a new {@link SyncResolver}.
+	 * Starts the most urgent synchronization of each idle lane. Synchronizations still in their
+	 * debounce window are skipped, and the dispatch is scheduled again for the end of the window.
 	 */
-	private synchronized void executeSynchronization() {
-		SyncResolver resolver = StackDependencyResolverImpl.getInstance().createSyncResolver();
-		
-		if (mActiveFlag == null) {
-			logger.d("Nothing to synchronise...");
+	private void dispatch() {
+		if (mHeld) {
+			logger.d("Queue held until the next request");
 			return;
 		}
+
+		long now = now();
+		long nextStart = Long.MAX_VALUE;
+		for (SyncLane lane : SyncLane.values()) {
+			if (isRunning(lane)) {
+				continue;
+			}
+			PendingSync next = null;
+			for (PendingSync sync : mQueue) {
+				if (sync.mFlag.mLane != lane) {
+					continue;
+				}
+				if (sync.mNotBefore > now) {
+					nextStart = Math.min(nextStart, sync.mNotBefore);
+				} else if (next == null || sync.isBefore(next, now)) {
+					next = sync;
+				}
+			}
+			if (next != null) {
+				mQueue.remove(next);
+				start(lane, next, now);
+			}
+		}
+
+		if (nextStart != Long.MAX_VALUE) {
+			scheduleDispatch(nextStart);
+		}
+	}
+
+	private void scheduleDispatch(long time) {
+		if (mDispatchTask != null && !mDispatchTask.isDone()) {
+			if (mDispatchTime <= time) {
+				return;
+			}
+			mDispatchTask.cancel(false);
+		}
+		mDispatchTime = time;
+		mDispatchTask = mScheduler.schedule(new Runnable() {
+			@Override
+			public void run() {
+				onDispatchTime();
+			}
+		}, time - now(), TimeUnit.MILLISECONDS);
+	}
+
+	private synchronized void onDispatchTime() {
+		mDispatchTask = null;
+		dispatch();
+	}
+
+	private void start(SyncLane lane, PendingSync sync, long now) {
+		long wait = now - sync.mQueuedSince;
+		logger.d(String.format("About to schedule %s (%s) after %d ms in queue, remaining: %d",
+				sync.mFlag, sync.mPriority, wait, mQueue.size()));
+		mTimings.get(sync.mPriority).addWait(wait);
+		sync.mWaited += wait;
+		sync.mStartTime = now;
+		mActive.put(lane, sync);
+		executeSynchronization(sync);
+	}
+
+	/**
+	 * Ends the run of the provided synchronization, and records its duration.
+	 */
+	private void finish(PendingSync sync) {
+		mTimings.get(sync.mPriority).addRun(now() - sync.mStartTime);
+		if (mActive.get(sync.mFlag.mLane) == sync) {
+			mActive.remove(sync.mFlag.mLane);
+		}
+	}
+
+	/**
+	 * Called when a synchronization has completed, successfully or not, to start the next ones.
+	 */
+	private synchronized void onSynchronizationDone(PendingSync sync) {
+		finish(sync);
+		dispatch();
+	}
+
+	/**
+	 * Queues a failed synchronization again for its next attempt. It keeps the time it has already
+	 * waited as far as aging is concerned, but more urgent work of its lane is executed first. If a
+	 * pending synchronization covering it has been requested while it was running, it is merged
+	 * into that one.
+	 */
+	private synchronized void retrySynchronization(PendingSync sync) {
+		finish(sync);
+		long now = now();
+		sync.mNotBefore = 0;
+		sync.mQueuedSince = now;
+		if (enqueue(sync, now) != sync) {
+			logger.d(String.format("Retry of %s merged into the queue", sync.mFlag));
+		}
+		dispatch();
+	}
+
+	/**
+	 * In case of error, this method should be called to drop the provided synchronization. The
+	 * other synchronizations in the queue are kept, but not executed until the next request.
+	 */
+	private synchronized void dropSynchronization(PendingSync sync) {
+		logger.d("Dropping current synch.");
+		finish(sync);
+		mHeld = true;
+	}
+
+
+	/**
+	 * Merges a greetings update into the pending one, or returns null if a single synchronisation
+	 * can't perform both. Fetches merge together, a content fetch covering a plain one. Uploads and
+	 * changes merge if they are about the same greeting, an upload covering a change.
+	 */
+	private static Set<GreetingUpdateType> mergeGreetingUpdates(Set<GreetingUpdateType> pending,
+			Set<GreetingUpdateType> requested) {
+		boolean fetch = isGreetingsFetch(pending);
+		if (fetch != isGreetingsFetch(requested)) {
+			return null;
+		}
+
+		if (fetch) {
+			if (pending.contains(GreetingUpdateType.FETCH_GREETINGS_CONTENT)
+					|| requested.contains(GreetingUpdateType.FETCH_GREETINGS_CONTENT)) {
+				return EnumSet.of(GreetingUpdateType.FETCH_GREETINGS_CONTENT);
+			}
+			return EnumSet.of(GreetingUpdateType.UNKNOWN);
+		}
+
+		GreetingUpdateType greeting = getGreeting(pending);
+		if (greeting != getGreeting(requested)) {
+			return null;
+		}
+		Set<GreetingUpdateType> merged;
+		if (pending.contains(GreetingUpdateType.UPLOAD_REQUIRED)
+				|| requested.contains(GreetingUpdateType.UPLOAD_REQUIRED)) {
+			merged = EnumSet.of(GreetingUpdateType.UPLOAD_REQUIRED);
+		} else {
+			merged = EnumSet.of(GreetingUpdateType.ONLY_CHANGE_REQUIRED);
+		}
+		if (greeting != null) {
+			merged.add(greeting);
+		}
+		return merged;
+	}
+
+	/**
+	 * Returns true if the update only fetches the greetings, as interpreted by
+	 * {@link InnerGreetingsResolver}.
+	 */
+	private static boolean isGreetingsFetch(Set<GreetingUpdateType> update) {
+		return update.contains(GreetingUpdateType.UNKNOWN)
+				|| !(update.contains(GreetingUpdateType.UPLOAD_REQUIRED)
+				|| update.contains(GreetingUpdateType.ONLY_CHANGE_REQUIRED));
+	}
+
+	/**
+	 * Returns the greeting an upload or change is about, null if none is specified.
+	 */
+	private static GreetingUpdateType getGreeting(Set<GreetingUpdateType> update) {
+		if (update.contains(GreetingUpdateType.VOICE_SIGNATURE)) {
+			return GreetingUpdateType.VOICE_SIGNATURE;
+		} else if (update.contains(GreetingUpdateType.NORMAL)) {
+			return GreetingUpdateType.NORMAL;
+		}
+		return null;
+	}
+
+	/**
+	 * Returns the resolver performing the next synchronization. Overridden by the tests.
+	 */
+	/* package */ SyncResolver createSyncResolver() {
+		return StackDependencyResolverImpl.getInstance().createSyncResolver();
+	}
+
+	/**
+	 * Returns the time used for the debounce and the aging, in ms. Overridden by the tests.
+	 */
+	/* package */ long now() {
+		return SystemClock.elapsedRealtime();
+	}
+
+	/**
+	 * Execute a synchronization using both its {@link SyncFlag} and number of left attempts by
+	 * creating a new {@link SyncResolver}.
+	 */
+	private void executeSynchronization(PendingSync sync) {
+		SyncResolver resolver = createSyncResolver();
 		
-		switch (mActiveFlag) {
+		switch (sync.mFlag) {
 		case FULL_SYNCHRONIZATION:
 			logger.d("Executing full synchronization...");
 			resolver.syncAllMessages(new SynchronisationCallback(mContext, mNotifier,
-					mAccountStore, mAttempts));
+					mAccountStore, sync));
 			break;
 		case LOCAL_SYNCHRONIZATION:
 			logger.d("Executing local changes based synchronization...");
 			resolver.syncLocalMessages(new SynchronisationCallback(mContext, mNotifier,
-					mAccountStore, mAttempts));
+					mAccountStore, sync));
 			break;
 		case GREETINGS_SYNCHRONIZATION:
 			logger.d(String.format("Executing greetings synchronization... attempts left :%s",
-					mAttempts));
+					sync.mAttempts));
 			resolver.syncGreetings(new SynchronisationCallback(mContext, mNotifier, mAccountStore,
-					mAttempts), mGreetingUpdateSet);
+					sync), sync.mGreetingUpdateSet);
 			break;
 		case TUI_LANGUAGE_CHANGE:
 			logger.d("Executing TUI language change action...");
 			resolver.updateTuiLanguage(new TuiSynchronisationCallback(mContext, mNotifier, mAccountStore,
-					mAttempts), mNewLanguage, mContext, mAccountStore);
+					sync), sync.mLanguage, mContext, mAccountStore);
 		default:
 			break;
 		
 		}
 	}
 
-	/**
-	 * In case of error, this method should be called to drop the current synchronization. The other
-	 * synchronizations in the queue are kept, but not executed.
-	 */
-	public synchronized void dropCurrentSynchronization() {
-		logger.d("Dropping current synch.");
-		mActiveFlag = null;
-	}
-
 	public enum SyncFlag {
 		/**
 		 * Flag used to execute a full synchronization: download remote message headers, compare to
 		 * local stores, update local and remote store with changes.
 		 */
-		FULL_SYNCHRONIZATION,
+		FULL_SYNCHRONIZATION(SyncPriority.FULL_SYNC, SyncLane.INBOX),
 		/**
 		 * Flag used to execute a local synchronization: compare local/mirror stores, obtain list of
 		 * changes, reflect these changes on remote store.
 		 */
-		LOCAL_SYNCHRONIZATION,
+		LOCAL_SYNCHRONIZATION(SyncPriority.LOCAL_CHANGES, SyncLane.INBOX),
 		/**
 		 * Flag used to trigger greetings synchronization
 		 */
-		GREETINGS_SYNCHRONIZATION,
+		GREETINGS_SYNCHRONIZATION(SyncPriority.BACKGROUND, SyncLane.GREETINGS),
 		/**
 		 * Flag used  to trigger TUI language change
 		 */
-		TUI_LANGUAGE_CHANGE,
+		TUI_LANGUAGE_CHANGE(SyncPriority.BACKGROUND, SyncLane.GREETINGS);
+
+		private final SyncPriority mDefaultPriority;
+		private final SyncLane mLane;
+
+		private SyncFlag(SyncPriority defaultPriority, SyncLane lane) {
+			mDefaultPriority = defaultPriority;
+			mLane = lane;
+		}
+
+		/**
+		 * Returns the priority of the synchronization when none is specified by the request.
+		 */
+		public SyncPriority getDefaultPriority() {
+			return mDefaultPriority;
+		}
+	}
+
+	/**
+	 * Priority classes of the synchronizations, from the most to the least urgent.
+	 */
+	public enum SyncPriority {
+		/** Explicitly requested by the user through the source. */
+		USER_REQUEST,
+		/** Triggered by the arrival of a new voicemail. */
+		NEW_MESSAGE,
+		/** Reflects on the server the changes made locally, such as deletions. */
+		LOCAL_CHANGES,
+		/** Periodic or server initiated full synchronization. */
+		FULL_SYNC,
+		/** Greetings and TUI settings. */
+		BACKGROUND,
+	}
+
+	/**
+	 * Groups of synchronizations executed serially. The greetings and TUI changes share a lane as
+	 * they both update the settings of the mailbox.
+	 */
+	private enum SyncLane {
+		INBOX,
+		GREETINGS,
+	}
+
+	/**
+	 * A synchronization waiting in the queue or running.
+	 */
+	private static final class PendingSync {
+		private final SyncFlag mFlag;
+		private final long mSequence;
+		private final AtomicInteger mAttempts = new AtomicInteger(
+				StackStaticConfiguration.MAX_IMAP_ATTEMPTS);
+		private SyncPriority mPriority;
+		/** Greetings to update, for a greetings synchronization. */
+		private Set<GreetingUpdateType> mGreetingUpdateSet;
+		/** Language to set, for a TUI language change. */
+		private int mLanguage;
+		/** Time it was last added to the queue: requested, or queued again for a retry. */
+		private long mQueuedSince;
+		/** Time spent in the queue before its previous runs, used for the aging. */
+		private long mWaited;
+		/** Time before which it shouldn't start, 0 if it can start immediately. */
+		private long mNotBefore;
+		private long mStartTime;
+
+		private PendingSync(SyncFlag flag, SyncPriority priority, long sequence, long queueTime) {
+			mFlag = flag;
+			mPriority = priority;
+			mSequence = sequence;
+			mQueuedSince = queueTime;
+		}
+
+		private void raisePriority(SyncPriority priority) {
+			if (priority.ordinal() < mPriority.ordinal()) {
+				mPriority = priority;
+			}
+		}
+
+		/**
+		 * Returns the total time spent in the queue, excluding the runs.
+		 */
+		private long getWait(long now) {
+			return mWaited + now - mQueuedSince;
+		}
+
+		/**
+		 * Takes the wait of a synchronization it covers, if it has waited longer.
+		 */
+		private void inheritWait(PendingSync other, long now) {
+			if (other.getWait(now) > getWait(now)) {
+				mWaited = other.mWaited;
+				mQueuedSince = other.mQueuedSince;
+			}
+		}
+
+		/**
+		 * Returns the priority class after aging, the lower the more urgent.
+		 */
+		private long getRank(long now) {
+			return mPriority.ordinal()
+					- getWait(now) / StackStaticConfiguration.SYNC_PRIORITY_AGING_STEP;
+		}
+
+		private boolean isBefore(PendingSync other, long now) {
+			long rank = getRank(now);
+			long otherRank = other.getRank(now);
+			return rank < otherRank || (rank == otherRank && mSequence < other.mSequence);
+		}
+	}
+
+	/**
+	 * Queue wait and run times (in ms) of the synchronizations of a priority class. A retry counts
+	 * as a new run, its wait starting when it is queued again.
+	 */
+	public static final class SyncTimings {
+		private int mRuns;
+		private int mCompletedRuns;
+		private long mTotalWait;
+		private long mMaxWait;
+		private long mTotalRun;
+		private long mMaxRun;
+
+		private void addWait(long wait) {
+			mRuns++;
+			mTotalWait += wait;
+			mMaxWait = Math.max(mMaxWait, wait);
+		}
+
+		private void addRun(long run) {
+			mCompletedRuns++;
+			mTotalRun += run;
+			mMaxRun = Math.max(mMaxRun, run);
+		}
+
+		private SyncTimings copy() {
+			SyncTimings copy = new SyncTimings();
+			copy.mRuns = mRuns;
+			copy.mCompletedRuns = mCompletedRuns;
+			copy.mTotalWait = mTotalWait;
+			copy.mMaxWait = mMaxWait;
+			copy.mTotalRun = mTotalRun;
+			copy.mMaxRun = mMaxRun;
+			return copy;
+		}
+
+		/** Returns the number of runs started. */
+		public int getRuns() {
+			return mRuns;
+		}
+
+		public long getAverageWait() {
+			return mRuns == 0 ? 0 : mTotalWait / mRuns;
+		}
+
+		public long getMaxWait() {
+			return mMaxWait;
+		}
+
+		public long getAverageRun() {
+			return mCompletedRuns == 0 ? 0 : mTotalRun / mCompletedRuns;
+		}
+
+		public long getMaxRun() {
+			return mMaxRun;
+		}
+
+		@Override
+		public String toString() {
+			return String.format("runs: %d, wait: %d ms (max %d), run: %d ms (max %d)", mRuns,
+					getAverageWait(), mMaxWait, getAverageRun(), mMaxRun);
+		}
 	}
 
 	/**
@@ -190,9 +669,12 @@ public class SerialSynchronizer {
 	 */
 	private class SynchronisationCallback extends SynchronizationCallback<Void> {
 
+		protected final PendingSync mSync;
+
 		public SynchronisationCallback(Context context, SourceNotifier notifier,
-				OmtpAccountStoreWrapper accountStore, AtomicInteger attempts) {
-			super(context, notifier, accountStore, attempts);
+				OmtpAccountStoreWrapper accountStore, PendingSync sync) {
+			super(context, notifier, accountStore, sync.mAttempts);
+			mSync = sync;
 		}
 
 		/**
@@ -200,8 +682,8 @@ public class SerialSynchronizer {
 		 */
 		@Override
 		public void onSuccess(Void result) {
-			logger.d(String.format("[Synchronization Success] In Queue %d", mSyncQueue.size()));
-			scheduleNextSynchronisation();
+			logger.d(String.format("[Synchronization Success] %s", mSync.mFlag));
+			onSynchronizationDone(mSync);
 		}
 
 		/**
@@ -214,18 +696,19 @@ public class SerialSynchronizer {
 			if (shouldRetry(error)) {
 				logger.d(String.format("[Synchronization Failed] Exception:%s, Retrying...",
 						error.getClass()));
-				executeSynchronization();
+				retrySynchronization(mSync);
 			} else {
 				super.onFailure(error);
 
 				// Retry synchronisation only if not authentication error.
 				if (authenticationError(error)) {
-					dropCurrentSynchronization();
+					dropSynchronization(mSync);
 				} else if (vvmFetchingException(error)) {
 					logger.d("VvmFetchingException has been receid by SerialSynchronizer");
 					shouldNotifyAboutGreetingsUploadFailure((VvmFetchingException)error);
+					onSynchronizationDone(mSync);
 				} else {
-					scheduleNextSynchronisation();
+					onSynchronizationDone(mSync);
 				}
 			}
 		}
@@ -237,8 +720,8 @@ public class SerialSynchronizer {
 	private class TuiSynchronisationCallback extends SynchronisationCallback {
 		
 		public TuiSynchronisationCallback(Context context, SourceNotifier notifier,
-				OmtpAccountStoreWrapper accountStore, AtomicInteger attempts) {
-			super(context, notifier, accountStore, attempts);
+				OmtpAccountStoreWrapper accountStore, PendingSync sync) {
+			super(context, notifier, accountStore, sync);
 		}
 		
 		@Override
@@ -38,7 +38,7 @@ public class SyncResolverImpl implements SyncResolver {
 	private final VvmGreetingsStoreResolver mGreetingsResolver;
 	private final ResolvePolicy mResolvePolicy;
 	private final VvmGreetingsStoreResolver.ResolvePolicy mGreetingsResolvePolicy;
-	private final VvmStore mRemoteStore;
+	private final RemoteVvmStore mRemoteStore;
 	private final VvmStore mLocalStore;
 	private final VvmStore mMirrorStore;
 	private final VvmGreetingsStore mRemoteGreetingsStore;
@@ -48,7 +48,7 @@ public class SyncResolverImpl implements SyncResolver {
 	private final TuiLanguageUpdater mTuiLanguageUpdater;
 
 	public SyncResolverImpl(VvmStoreResolver resolver, ResolvePolicy resolvePolicy,
-			VvmStore remoteStore, VvmStore localStore, VvmStore mirrorStore,
+			RemoteVvmStore remoteStore, VvmStore localStore, VvmStore mirrorStore,
 			ExecutorService executor, VvmGreetingsStoreResolver greetingsResolver,
 			GreetingsHelper greetingsHelper, VvmGreetingsStore greetingsLocalStore,
 			VvmGreetingsStore remoteGreetingsStore,
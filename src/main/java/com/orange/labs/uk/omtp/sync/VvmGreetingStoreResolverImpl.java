@@ -17,19 +17,26 @@
 package com.orange.labs.uk.omtp.sync;
 
 import java.util.Set;
+import java.util.concurrent.ScheduledExecutorService;
 
 import com.orange.labs.uk.omtp.callbacks.Callback;
 import com.orange.labs.uk.omtp.greetings.GreetingUpdateType;
 import com.orange.labs.uk.omtp.greetings.GreetingsHelper;
 
 public class VvmGreetingStoreResolverImpl implements VvmGreetingsStoreResolver {
+	/** Runs the timeouts of the resolves. */
+	private final ScheduledExecutorService mScheduler;
+
+	public VvmGreetingStoreResolverImpl(ScheduledExecutorService scheduler) {
+		mScheduler = scheduler;
+	}
 
 	@Override
 	public void resolveFullSync(VvmGreetingsStore remoteStore, VvmGreetingsStore localStore,
 			Callback<Void> result, Set<GreetingUpdateType> newGreetingType,
 			GreetingsHelper greetingsHelper, VvmGreetingsStoreResolver.ResolvePolicy policy) {
 		new InnerGreetingsResolver(remoteStore, localStore, result, newGreetingType,
-				greetingsHelper, policy).resolve();
+				greetingsHelper, policy, mScheduler).resolve();
 	}
 
 }
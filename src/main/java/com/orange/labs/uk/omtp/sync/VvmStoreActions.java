@@ -20,6 +20,7 @@ import java.util.ArrayList;
 import java.util.Collection;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
@@ -167,6 +168,30 @@ public class VvmStoreActions {
 		return map;
 	}
 	
+	/**
+	 * Creates a {@link Map} associating each {@link Operation} to the list of actions performing
+	 * it, in the order in which the operations first appear.
+	 * 
+	 * @param actions
+	 *            A {@link List} of {@link Action}
+	 * @return A {@link Map} associating an {@link Operation} to the concerned {@link Action}
+	 *         instances.
+	 */
+	public static Map<Operation, List<Action>> groupByOperation(List<Action> actions) {
+		Map<Operation, List<Action>> map = new LinkedHashMap<Operation, List<Action>>();
+
+		for (VvmStore.Action action : actions) {
+			List<Action> group = map.get(action.getOperation());
+			if (group == null) {
+				group = new ArrayList<Action>();
+				map.put(action.getOperation(), group);
+			}
+			group.add(action);
+		}
+
+		return map;
+	}
+
 	/**
 	 * Creates a {@link Map} associating each {@link Operation} to the list of concerned
 	 * {@link Greeting} objects.
@@ -18,6 +18,8 @@ package com.orange.labs.uk.omtp.sync;
 
 import java.util.List;
 
+import javax.annotation.Nullable;
+
 import com.orange.labs.uk.omtp.callbacks.Callback;
 import com.orange.labs.uk.omtp.sync.VvmStore.Action;
 import com.orange.labs.uk.omtp.voicemail.Voicemail;
@@ -33,7 +35,7 @@ public interface VvmStoreResolver {
 	 * You would call this method when it is indicated that you need to, such as
 	 * via the receipt of an SMS message in the case of an OMTP remote source.
 	 */
-	public void resolveFullSync(VvmStore local, VvmStore remote, VvmStore mirror,
+	public void resolveFullSync(VvmStore local, RemoteVvmStore remote, VvmStore mirror,
 			VvmStoreResolver.ResolvePolicy policy, Callback<Void> result);
 
 	/**
@@ -41,7 +43,7 @@ public interface VvmStoreResolver {
 	 * mirror store and the local store and synchronization these specific
 	 * changes with the remote store.
 	 */
-	public void resolveSpecificSync(VvmStore local, VvmStore remote, VvmStore mirror,
+	public void resolveSpecificSync(VvmStore local, RemoteVvmStore remote, VvmStore mirror,
 			ResolvePolicy policy, Callback<Void> result);
 
 	/**
@@ -59,10 +61,13 @@ public interface VvmStoreResolver {
 				List<VvmStore.Action> localActions, List<VvmStore.Action> remoteActions);
 
 		/**
-		 * Called when the resolve finds a Voicemail is only available remotely.
+		 * Called when the resolve finds a Voicemail is only available remotely. The
+		 * Voicemail with the same source data in the mirror store is provided, or
+		 * null if the mirror store does not hold it.
 		 */
 		public void resolveRemoteOnlyMessage(Voicemail remoteMessage,
-				List<VvmStore.Action> localActions, List<VvmStore.Action> remoteActions);
+				@Nullable Voicemail mirrorMessage, List<VvmStore.Action> localActions,
+				List<VvmStore.Action> remoteActions);
 
 		/**
 		 * Called in the case that a Voicemail is available both locally and
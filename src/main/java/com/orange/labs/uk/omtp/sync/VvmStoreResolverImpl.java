@@ -16,21 +16,31 @@
  */
 package com.orange.labs.uk.omtp.sync;
 
+import java.util.concurrent.ScheduledExecutorService;
+
 import com.orange.labs.uk.omtp.callbacks.Callback;
 
 /**
  * Concrete implementation of the {@link VvmStoreResolver} interface.
  */
 public final class VvmStoreResolverImpl implements VvmStoreResolver {
+	/** Runs the timeouts of the resolves. */
+	private final ScheduledExecutorService mScheduler;
+
+	public VvmStoreResolverImpl(ScheduledExecutorService scheduler) {
+		mScheduler = scheduler;
+	}
+
 	@Override
-	public void resolveFullSync(VvmStore local, VvmStore remote, VvmStore mirror,
+	public void resolveFullSync(VvmStore local, RemoteVvmStore remote, VvmStore mirror,
 			VvmStoreResolver.ResolvePolicy policy, final Callback<Void> result) {
-		new InnerVvmStoreResolver(local, remote, mirror, policy, result).resolve();
+		new InnerVvmStoreResolver(local, remote, mirror, policy, mScheduler, result).resolve();
 	}
 
 	@Override
-	public void resolveSpecificSync(VvmStore local, VvmStore remote, VvmStore mirror,
+	public void resolveSpecificSync(VvmStore local, RemoteVvmStore remote, VvmStore mirror,
 			VvmStoreResolver.ResolvePolicy policy, Callback<Void> result) {
-		new InnerVvmStoreResolver(local, remote, mirror, policy, result).resolveLocalChanges();
+		new InnerVvmStoreResolver(local, remote, mirror, policy, mScheduler, result)
+				.resolveLocalChanges();
 	}
 }
@@ -18,26 +18,18 @@ package com.orange.labs.uk.omtp.sync.policies;
 
 import java.util.List;
 
+import javax.annotation.Nullable;
+
 import com.orange.labs.uk.omtp.logging.Logger;
 import com.orange.labs.uk.omtp.sync.VvmStore;
 import com.orange.labs.uk.omtp.sync.VvmStoreActions;
 import com.orange.labs.uk.omtp.sync.VvmStoreResolver.ResolvePolicy;
-import com.orange.labs.uk.omtp.voicemail.LocalVoicemailProvider;
 import com.orange.labs.uk.omtp.voicemail.Voicemail;
-import com.orange.labs.uk.omtp.voicemail.database.MirrorVoicemailProvider;
 
 public abstract class AbstractResolvePolicy implements ResolvePolicy {
 
 	private static Logger logger = Logger.getLogger(AbstractResolvePolicy.class);
 
-	private LocalVoicemailProvider mLocalDb;
-	private MirrorVoicemailProvider mMirrorDb;
-
-	public AbstractResolvePolicy(LocalVoicemailProvider localDb, MirrorVoicemailProvider mirrorDb) {
-		mLocalDb = localDb;
-		mMirrorDb = mirrorDb;
-	}
-
 	@Override
 	public abstract void resolveLocalOnlyMessage(Voicemail localMessage,
 			List<VvmStore.Action> localActions, List<VvmStore.Action> remoteActions);
@@ -53,23 +45,20 @@ public abstract class AbstractResolvePolicy implements ResolvePolicy {
 	 * <li>
 	 * The message does not exist in the Mirror VVM Store, the message has never been downloaded
 	 * locally.
+	 * </ul>
+	 * The mirror message is looked up by the resolver, no store is queried here.
 	 */
 	@Override
 	public void resolveRemoteOnlyMessage(Voicemail remoteMessage,
-			List<VvmStore.Action> localActions, List<VvmStore.Action> remoteActions) {
-		String sourceData = remoteMessage.getSourceData();
-		if (sourceData != null) {
-			if (mMirrorDb.findVoicemailBySourceData(sourceData) == null) {
+			@Nullable Voicemail mirrorMessage, List<VvmStore.Action> localActions,
+			List<VvmStore.Action> remoteActions) {
+		if (remoteMessage.getSourceData() != null) {
+			if (mirrorMessage == null) {
 				logger.d("[Remote Message] Inserting voicemail; Absent from Mirror Store.");
 				localActions.add(VvmStoreActions.insert(remoteMessage));
 			} else {
-				// Double check with local repository.
-				if (mLocalDb.findVoicemailBySourceData(sourceData) == null) {
-					logger.d("[Remote Message] Deleting. Present in Mirror Store.");
-					remoteActions.add(VvmStoreActions.delete(remoteMessage));
-				} else {
-					logger.d("[Remote Message] Nothing. Present in both Mirror and Local Stores.");
-				}
+				logger.d("[Remote Message] Deleting. Present in Mirror Store.");
+				remoteActions.add(VvmStoreActions.delete(remoteMessage));
 			}
 		} else {
 			logger.w("[Remote Message] Voicemail does not have a source data.");
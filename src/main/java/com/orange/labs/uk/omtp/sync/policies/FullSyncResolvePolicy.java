@@ -20,9 +20,7 @@ import java.util.List;
 
 import com.orange.labs.uk.omtp.sync.VvmStore;
 import com.orange.labs.uk.omtp.sync.VvmStoreActions;
-import com.orange.labs.uk.omtp.voicemail.LocalVoicemailProvider;
 import com.orange.labs.uk.omtp.voicemail.Voicemail;
-import com.orange.labs.uk.omtp.voicemail.database.MirrorVoicemailProvider;
 
 /**
  * Resolve policy that fully synchronize voicemails in both direction (remote to local, local to
@@ -31,10 +29,6 @@ import com.orange.labs.uk.omtp.voicemail.database.MirrorVoicemailProvider;
  */
 public class FullSyncResolvePolicy extends AbstractResolvePolicy {
 
-	public FullSyncResolvePolicy(LocalVoicemailProvider localDb, MirrorVoicemailProvider mirrorDb) {
-		super(localDb, mirrorDb);
-	}
-
 	@Override
 	public void resolveLocalOnlyMessage(Voicemail localMessage, List<VvmStore.Action> localActions,
 			List<VvmStore.Action> remoteActions) {
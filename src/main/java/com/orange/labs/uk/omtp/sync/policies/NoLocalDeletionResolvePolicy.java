@@ -21,9 +21,7 @@ import java.util.List;
 import com.orange.labs.uk.omtp.logging.Logger;
 import com.orange.labs.uk.omtp.sync.VvmStore.Action;
 import com.orange.labs.uk.omtp.sync.VvmStoreActions;
-import com.orange.labs.uk.omtp.voicemail.LocalVoicemailProvider;
 import com.orange.labs.uk.omtp.voicemail.Voicemail;
-import com.orange.labs.uk.omtp.voicemail.database.MirrorVoicemailProvider;
 
 /**
  * This Resolve Policy never deletes local messages when they are not found on the remote platform.
@@ -34,11 +32,6 @@ public class NoLocalDeletionResolvePolicy extends AbstractResolvePolicy {
 
 	private static final Logger logger = Logger.getLogger(NoLocalDeletionResolvePolicy.class);
 
-	public NoLocalDeletionResolvePolicy(LocalVoicemailProvider localDb,
-			MirrorVoicemailProvider mirrorDb) {
-		super(localDb, mirrorDb);
-	}
-
 	/**
 	 * If a message is only present locally, it means it has been deleted on the voicemail platform.
 	 * This policy does not delete the message locally but instead mark it as read if it has never
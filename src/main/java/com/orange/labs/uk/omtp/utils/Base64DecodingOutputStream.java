@@ -0,0 +1,143 @@
+/*
+ * Copyright (C) 2012 Orange Labs UK. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+package com.orange.labs.uk.omtp.utils;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Arrays;
+
+import javax.annotation.concurrent.NotThreadSafe;
+
+/**
+ * Output stream decoding the base64 content written to it. Line breaks and other characters that
+ * are not part of the base64 alphabet are skipped, as is anything following the padding.
+ * <p>
+ * Characters are decoded by quanta of four, an incomplete quantum being kept until more content
+ * is written. The content can therefore be written in arbitrary chunks, for instance successive
+ * ranges of an attachment downloaded from the server. Each write is decoded in a single pass
+ * into a buffer written at once to the underlying stream. A trailing quantum without padding is
+ * decoded when the stream is closed.
+ */
+@NotThreadSafe
+public class Base64DecodingOutputStream extends FilterOutputStream {
+	/** Size of the buffer of decoded bytes, a multiple of three. */
+	private static final int BUFFER_SIZE = 3072;
+
+	/** Value of each base64 character, -1 for the characters outside of the alphabet. */
+	private static final byte[] DECODING_TABLE = new byte[128];
+	static {
+		Arrays.fill(DECODING_TABLE, (byte) -1);
+		String alphabet = "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789+/";
+		for (int i = 0; i < alphabet.length(); ++i) {
+			DECODING_TABLE[alphabet.charAt(i)] = (byte) i;
+		}
+	}
+
+	private final byte[] mBuffer = new byte[BUFFER_SIZE];
+
+	/** Bits of the incomplete quantum, six per character received. */
+	private int mQuantum = 0;
+	private int mQuantumLength = 0;
+	/** Set once the padding has been reached. */
+	private boolean mEnded = false;
+
+	public Base64DecodingOutputStream(OutputStream out) {
+		super(out);
+	}
+
+	@Override
+	public void write(int b) throws IOException {
+		write(new byte[] { (byte) b }, 0, 1);
+	}
+
+	@Override
+	public void write(byte[] b, int off, int len) throws IOException {
+		int count = 0;
+		for (int i = off; i < off + len && !mEnded; ++i) {
+			int c = b[i];
+			if (c == '=') {
+				count = decodeTrailingQuantum(count);
+				mEnded = true;
+				break;
+			}
+			int value = (c >= 0) ? DECODING_TABLE[c] : -1;
+			if (value < 0) {
+				continue;
+			}
+			mQuantum = (mQuantum << 6) | value;
+			if (++mQuantumLength == 4) {
+				if (count == mBuffer.length) {
+					out.write(mBuffer, 0, count);
+					count = 0;
+				}
+				mBuffer[count++] = (byte) (mQuantum >> 16);
+				mBuffer[count++] = (byte) (mQuantum >> 8);
+				mBuffer[count++] = (byte) mQuantum;
+				mQuantum = 0;
+				mQuantumLength = 0;
+			}
+		}
+		if (count > 0) {
+			out.write(mBuffer, 0, count);
+		}
+	}
+
+	@Override
+	public void close() throws IOException {
+		try {
+			if (!mEnded) {
+				int count = decodeTrailingQuantum(0);
+				if (count > 0) {
+					out.write(mBuffer, 0, count);
+				}
+				mEnded = true;
+			}
+			out.flush();
+		} finally {
+			out.close();
+		}
+	}
+
+	/**
+	 * Decodes the incomplete quantum at the end of the content into the buffer, after the given
+	 * number of bytes already in it.
+	 * 
+	 * @return the number of bytes in the buffer
+	 */
+	private int decodeTrailingQuantum(int count) throws IOException {
+		if (count > mBuffer.length - 2) {
+			out.write(mBuffer, 0, count);
+			count = 0;
+		}
+		switch (mQuantumLength) {
+		case 0:
+			break;
+		case 2:
+			mBuffer[count++] = (byte) (mQuantum >> 4);
+			break;
+		case 3:
+			mBuffer[count++] = (byte) (mQuantum >> 10);
+			mBuffer[count++] = (byte) (mQuantum >> 2);
+			break;
+		default:
+			throw new IOException("Invalid base64 content: truncated quantum");
+		}
+		mQuantum = 0;
+		mQuantumLength = 0;
+		return count;
+	}
+}
@@ -0,0 +1,278 @@
+/*
+ * Copyright (C) 2012 Orange Labs UK. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+package com.orange.labs.uk.omtp.utils;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+import javax.annotation.concurrent.ThreadSafe;
+
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.net.ConnectivityManager;
+import android.net.NetworkInfo;
+import android.os.Looper;
+import android.os.SystemClock;
+
+import com.orange.labs.uk.omtp.config.StackStaticConfiguration;
+import com.orange.labs.uk.omtp.logging.Logger;
+
+/**
+ * Routes the traffic to the IMAP platform through the HIPRI mobile data connection while the
+ * device is on Wi-Fi.
+ * <p>
+ * HIPRI is brought up once, and its state is then followed through the connectivity broadcasts
+ * rather than polled: a caller waiting for the activation is woken up as soon as the connection
+ * is established. The routes added to HIPRI are remembered until it goes down, so that the
+ * following operations reuse them, and the resolved addresses of the servers are cached for
+ * {@link StackStaticConfiguration#HIPRI_DNS_CACHE_TTL}.
+ * <p>
+ * The connectivity receiver is only registered while HIPRI is in use: it is unregistered once
+ * HIPRI is down and no caller is waiting for it, or when the manager is {@link #release()}d.
+ */
+@ThreadSafe
+public class HipriRouteManager {
+	private static final Logger logger = Logger.getLogger(HipriRouteManager.class);
+
+	private static final String FEATURE_ENABLE_HIPRI = "enableHIPRI";
+
+	private final Context mContext;
+	private final ConnectivityManager mConnectivityManager;
+
+	/** Guards the fields below, and is notified when the state of HIPRI changes. */
+	private final Object mLock = new Object();
+
+	/** Whether the HIPRI connection is established, as reported by the last broadcast. */
+	private boolean mHipriConnected;
+
+	/** Addresses for which a route through HIPRI has been added since it came up. */
+	private final Set<Integer> mRoutedAddresses = new HashSet<Integer>();
+
+	/** Resolved addresses indexed by host name. */
+	private final Map<String, ResolvedAddress> mAddresses = new HashMap<String, ResolvedAddress>();
+
+	private boolean mReceiverRegistered;
+
+	/** Number of callers waiting for HIPRI to connect. */
+	private int mWaitingCount;
+
+	private final BroadcastReceiver mConnectivityReceiver = new BroadcastReceiver() {
+		@Override
+		public void onReceive(Context context, Intent intent) {
+			updateHipriState();
+		}
+	};
+
+	private static class ResolvedAddress {
+		private final int mAddress;
+		private final long mExpiryTime;
+
+		private ResolvedAddress(int address, long expiryTime) {
+			mAddress = address;
+			mExpiryTime = expiryTime;
+		}
+	}
+
+	public HipriRouteManager(Context context) {
+		mContext = context;
+		mConnectivityManager = (ConnectivityManager) context
+				.getSystemService(Context.CONNECTIVITY_SERVICE);
+	}
+
+	/**
+	 * Makes sure the connections to the provided server go through HIPRI if the device is on
+	 * Wi-Fi. Returns immediately if the route is already established, otherwise activates HIPRI,
+	 * waiting at most {@link StackStaticConfiguration#HIPRI_ACTIVATION_TIMEOUT} for it to
+	 * connect, and adds the route.
+	 * <p>
+	 * Must not be called on the main thread: the connectivity broadcasts waking up the wait are
+	 * delivered there.
+	 * 
+	 * @return true if the traffic to the server is routed through HIPRI
+	 * @throws IllegalStateException if called on the main thread
+	 */
+	public boolean ensureRoute(String serverAddress) {
+		if (Looper.myLooper() == Looper.getMainLooper()) {
+			throw new IllegalStateException("HIPRI route requested on the main thread");
+		}
+		if (serverAddress == null || !isWifiConnected()) {
+			return false;
+		}
+
+		// Also renews the use of the feature, which would otherwise be torn down after a while.
+		int result = mConnectivityManager.startUsingNetworkFeature(
+				ConnectivityManager.TYPE_MOBILE, FEATURE_ENABLE_HIPRI);
+		if (result == -1) {
+			logger.w("Activation of HIPRI has failed.");
+			return false;
+		}
+
+		int address = resolve(serverAddress);
+		if (address == -1) {
+			return false;
+		}
+
+		synchronized (mLock) {
+			registerReceiverIfRequired();
+			// The broadcasts may have been missed if HIPRI changed before the registration, or
+			// not be delivered yet: HIPRI may have gone down, taking the routes with it.
+			updateHipriStateLocked(isHipriConnected());
+			if (mHipriConnected && mRoutedAddresses.contains(address)) {
+				return true;
+			}
+			if (!waitForHipriLocked()) {
+				logger.w("HIPRI not connected in time, no route added");
+				return false;
+			}
+			if (mRoutedAddresses.contains(address)) {
+				return true;
+			}
+			if (mConnectivityManager.requestRouteToHost(ConnectivityManager.TYPE_MOBILE_HIPRI,
+					address)) {
+				mRoutedAddresses.add(address);
+				return true;
+			}
+			logger.w(String.format("Unable to route %s through HIPRI", serverAddress));
+			return false;
+		}
+	}
+
+	/**
+	 * Waits for the connectivity broadcasts to report HIPRI as connected. Must be called with
+	 * {@link #mLock} held.
+	 */
+	private boolean waitForHipriLocked() {
+		long deadline = SystemClock.elapsedRealtime()
+				+ StackStaticConfiguration.HIPRI_ACTIVATION_TIMEOUT;
+		mWaitingCount++;
+		try {
+			while (!mHipriConnected) {
+				long remaining = deadline - SystemClock.elapsedRealtime();
+				if (remaining <= 0) {
+					return false;
+				}
+				mLock.wait(remaining);
+			}
+		} catch (InterruptedException e) {
+			logger.w("InterruptedException thrown while waiting for HIPRI activation");
+			// Re-assert the thread's interrupted status
+			Thread.currentThread().interrupt();
+		} finally {
+			mWaitingCount--;
+		}
+		return mHipriConnected;
+	}
+
+	/**
+	 * Returns the IPv4 address of the host as expected by
+	 * {@link ConnectivityManager#requestRouteToHost(int, int)}, from the cache if it has not
+	 * expired, or -1 if it can't be resolved. Failures are not cached.
+	 */
+	private int resolve(String host) {
+		long now = SystemClock.elapsedRealtime();
+		synchronized (mLock) {
+			ResolvedAddress resolved = mAddresses.get(host);
+			if (resolved != null && resolved.mExpiryTime > now) {
+				return resolved.mAddress;
+			}
+		}
+		int address = ConnectionUtils.lookupHost(host);
+		if (address != -1) {
+			synchronized (mLock) {
+				mAddresses.put(host, new ResolvedAddress(address,
+						now + StackStaticConfiguration.HIPRI_DNS_CACHE_TTL));
+			}
+		}
+		return address;
+	}
+
+	/**
+	 * Stops following the state of HIPRI and forgets the routes, for instance when the sessions
+	 * are closed. The next call to {@link #ensureRoute(String)} starts over.
+	 */
+	public void release() {
+		synchronized (mLock) {
+			unregisterReceiverIfRequired();
+			mHipriConnected = false;
+			mRoutedAddresses.clear();
+		}
+	}
+
+	/**
+	 * Must be called with {@link #mLock} held.
+	 */
+	private void registerReceiverIfRequired() {
+		if (!mReceiverRegistered) {
+			mContext.registerReceiver(mConnectivityReceiver, new IntentFilter(
+					ConnectivityManager.CONNECTIVITY_ACTION));
+			mReceiverRegistered = true;
+		}
+	}
+
+	/**
+	 * Must be called with {@link #mLock} held.
+	 */
+	private void unregisterReceiverIfRequired() {
+		if (mReceiverRegistered) {
+			mContext.unregisterReceiver(mConnectivityReceiver);
+			mReceiverRegistered = false;
+		}
+	}
+
+	/**
+	 * Called on connectivity changes: wakes up the callers waiting for HIPRI. Once it is down, the
+	 * routes are forgotten, as they are removed along with its interface, and the receiver is
+	 * unregistered unless a caller is waiting for HIPRI to come up.
+	 */
+	private void updateHipriState() {
+		boolean connected = isHipriConnected();
+		synchronized (mLock) {
+			updateHipriStateLocked(connected);
+			if (!connected && mWaitingCount == 0) {
+				unregisterReceiverIfRequired();
+			}
+			mLock.notifyAll();
+		}
+	}
+
+	/**
+	 * Records the state of HIPRI. Must be called with {@link #mLock} held.
+	 */
+	private void updateHipriStateLocked(boolean connected) {
+		if (connected != mHipriConnected) {
+			logger.d(String.format("HIPRI %s", connected ? "connected" : "disconnected"));
+		}
+		mHipriConnected = connected;
+		if (!connected) {
+			mRoutedAddresses.clear();
+		}
+	}
+
+	private boolean isHipriConnected() {
+		NetworkInfo hipriInfo = mConnectivityManager
+				.getNetworkInfo(ConnectivityManager.TYPE_MOBILE_HIPRI);
+		return hipriInfo != null && hipriInfo.isConnected();
+	}
+
+	private boolean isWifiConnected() {
+		NetworkInfo wifiInfo = mConnectivityManager.getNetworkInfo(ConnectivityManager.TYPE_WIFI);
+		return wifiInfo != null && wifiInfo.isConnectedOrConnecting();
+	}
+}
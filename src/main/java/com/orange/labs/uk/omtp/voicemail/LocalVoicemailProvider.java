@@ -18,6 +18,7 @@ package com.orange.labs.uk.omtp.voicemail;
 
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStream;
 import java.util.List;
 import java.util.Map;
 
@@ -194,6 +195,34 @@ public interface LocalVoicemailProvider {
 	public void setVoicemailContent(Uri voicemailUri, byte[] inputBytes, String mimeType)
 			throws IOException;
 
+	/**
+	 * Opens a stream to write the voicemail content directly into the content provider, typically
+	 * while it is being downloaded. The stream is owned by the caller, who must close it and then
+	 * call {@link #setVoicemailContentType(Uri, String)} once the content is complete.
+	 * 
+	 * @throws IOException
+	 *             if there is a problem creating the file or no voicemail is
+	 *             found matching the given Uri
+	 */
+	public OutputStream openVoicemailContentOutputStream(Uri voicemailUri) throws IOException;
+
+	/**
+	 * Marks the voicemail as having content, of the provided MIME type.
+	 * 
+	 * @throws IOException
+	 *             if no voicemail is found matching the given Uri
+	 */
+	public void setVoicemailContentType(Uri voicemailUri, String mimeType) throws IOException;
+
+	/**
+	 * Marks the voicemail as not having content, for instance when a progressive download that
+	 * had already exposed the beginning of the content could not be completed.
+	 * 
+	 * @throws IOException
+	 *             if no voicemail is found matching the given Uri
+	 */
+	public void clearVoicemailContent(Uri voicemailUri) throws IOException;
+
 	/**
 	 * Fetch all the voicemails accessible to this voicemail content provider.
 	 * 
@@ -224,7 +224,7 @@ public final class LocalVoicemailProviderImpl implements LocalVoicemailProvider
 		logger.d(String.format("Writing new voicemail content: %s", voicemailUri));
 		OutputStream outputStream = null;
 		try {
-			outputStream = mContentResolver.openOutputStream(voicemailUri);
+			outputStream = openVoicemailContentOutputStream(voicemailUri);
 			if (inputBytes != null) {
 				outputStream.write(inputBytes);
 			} else if (inputStream != null) {
@@ -234,9 +234,34 @@ public final class LocalVoicemailProviderImpl implements LocalVoicemailProvider
 			CloseUtils.closeQuietly(outputStream);
 		}
 		// Update mime_type & has_content after we are done with file update.
+		setVoicemailContentType(voicemailUri, mimeType);
+	}
+
+	@Override
+	public OutputStream openVoicemailContentOutputStream(Uri voicemailUri) throws IOException {
+		OutputStream outputStream = mContentResolver.openOutputStream(voicemailUri);
+		if (outputStream == null) {
+			throw new IOException("Unable to open the content of voicemail: " + voicemailUri);
+		}
+		return outputStream;
+	}
+
+	@Override
+	public void setVoicemailContentType(Uri voicemailUri, String mimeType) throws IOException {
 		ContentValues values = new ContentValues();
 		values.put(Voicemails.MIME_TYPE, mimeType);
 		values.put(Voicemails.HAS_CONTENT, true);
+		updateContentValues(voicemailUri, values);
+	}
+
+	@Override
+	public void clearVoicemailContent(Uri voicemailUri) throws IOException {
+		ContentValues values = new ContentValues();
+		values.put(Voicemails.HAS_CONTENT, false);
+		updateContentValues(voicemailUri, values);
+	}
+
+	private void updateContentValues(Uri voicemailUri, ContentValues values) throws IOException {
 		logger.d(String.format("updating VoicemailUri:%s,  with values:%s", voicemailUri, values));
 		int updatedCount = mContentResolver.update(voicemailUri, values, null, null);
 		if (updatedCount != 1) {
@@ -45,11 +45,20 @@ public interface Voicemail {
 
     public boolean hasTimestampMillis();
 
-    /** Gets the duration of the voicemail in millis, or zero if the field is not set. */
+    /** Gets the duration of the voicemail in seconds, or zero if the field is not set. */
     public long getDuration();
 
     public boolean hasDuration();
 
+    /**
+     * Gets the size in bytes of the decoded audio payload as announced by the server when the
+     * voicemail was listed, or zero if the field is not set. This field is not stored in the
+     * content provider.
+     */
+    public long getPayloadSize();
+
+    public boolean hasPayloadSize();
+
     /**
      * Returns the package name of the source that added this voicemail, or null if this field is
      * not set.
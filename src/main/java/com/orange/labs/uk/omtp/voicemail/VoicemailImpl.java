@@ -26,6 +26,7 @@ public final class VoicemailImpl implements Voicemail {
     private final String mNumber;
     private final Long mId;
     private final Long mDuration;
+    private final Long mPayloadSize;
     private final String mSource;
     private final String mProviderData;
     private final Uri mUri;
@@ -40,6 +41,7 @@ public final class VoicemailImpl implements Voicemail {
             String number,
             Long id,
             Long duration,
+            Long payloadSize,
             String source,
             String providerData,
             Uri uri,
@@ -48,6 +50,7 @@ public final class VoicemailImpl implements Voicemail {
         mId = id;
         mNumber = number;
         mDuration = duration;
+        mPayloadSize = payloadSize;
         mTimestamp = timestamp;
         mSource = source;
         mProviderData = providerData;
@@ -92,6 +95,9 @@ public final class VoicemailImpl implements Voicemail {
 		if (message.hasDuration()) {
 			builder.setDuration(message.getDuration());
 		}
+		if (message.hasPayloadSize()) {
+			builder.setPayloadSize(message.getPayloadSize());
+		}
 		if (message.hasId()) {
 			builder.setId(message.getId());
 		}
@@ -130,6 +136,7 @@ public final class VoicemailImpl implements Voicemail {
         private String mBuilderNumber;
         private Long mBuilderId;
         private Long mBuilderDuration;
+        private Long mBuilderPayloadSize;
         private String mBuilderSourcePackage;
         private String mBuilderSourceData;
         private Uri mBuilderUri;
@@ -160,6 +167,11 @@ public final class VoicemailImpl implements Voicemail {
             return this;
         }
 
+        public Builder setPayloadSize(long payloadSize) {
+            mBuilderPayloadSize = payloadSize;
+            return this;
+        }
+
         public Builder setSourcePackage(String sourcePackage) {
             mBuilderSourcePackage = sourcePackage;
             return this;
@@ -187,7 +199,7 @@ public final class VoicemailImpl implements Voicemail {
 
         public VoicemailImpl build() {
             return new VoicemailImpl(mBuilderTimestamp, mBuilderNumber, mBuilderId,
-                    mBuilderDuration,
+                    mBuilderDuration, mBuilderPayloadSize,
                     mBuilderSourcePackage, mBuilderSourceData, mBuilderUri,
                     mBuilderIsRead,
                     mBuilderHasContent);
@@ -234,6 +246,16 @@ public final class VoicemailImpl implements Voicemail {
         return mDuration != null;
     }
 
+    @Override
+    public long getPayloadSize() {
+        return hasPayloadSize() ? mPayloadSize : 0;
+    }
+
+    @Override
+    public boolean hasPayloadSize() {
+        return mPayloadSize != null;
+    }
+
     @Override
     public String getSourcePackage() {
         return mSource;
@@ -282,9 +304,9 @@ public final class VoicemailImpl implements Voicemail {
     @Override
     public String toString() {
         return "VoicemailImpl [mTimestamp=" + mTimestamp + ", mNumber=" + mNumber + ", mId=" + mId
-                + ", mDuration=" + mDuration + ", mSource=" + mSource + ", mProviderData="
-                + mProviderData + ", mUri=" + mUri + ", mIsRead=" + mIsRead + ", mHasContent="
-                + mHasContent + "]";
+                + ", mDuration=" + mDuration + ", mPayloadSize=" + mPayloadSize + ", mSource="
+                + mSource + ", mProviderData=" + mProviderData + ", mUri=" + mUri + ", mIsRead="
+                + mIsRead + ", mHasContent=" + mHasContent + "]";
     }
 
 }